@@ -17,6 +17,7 @@ multiproxy_servlet () {
 curl "${BASE_URL}/multi-proxy-servlet-1/index.html"
 curl "${BASE_URL}/multi-proxy-servlet-2/index.html"
 curl "${BASE_URL}/multi-proxy-servlet-3/index.html"
+curl "${BASE_URL}/multi-proxy-servlet-4/index.html"
 }
 
 #proxy_servlet
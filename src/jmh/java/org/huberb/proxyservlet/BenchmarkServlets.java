@@ -0,0 +1,219 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Servlet request, and response for benchmarks.
+ * <p>
+ * Unlike mocks they neither record invocations, nor box arguments, thus the
+ * allocations reported by the gc profiler are the allocations of the code
+ * under test. Methods not overridden return {@code null}, {@code 0}, or
+ * {@code false}.
+ *
+ * @author pi
+ */
+final class BenchmarkServlets {
+
+    private BenchmarkServlets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T defaults(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == long.class) {
+                return 0L;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * A GET request to the proxy servlet.
+     */
+    static class Request extends HttpServletRequestWrapper {
+
+        private final List<String> headerNames = new ArrayList<>();
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Object> attributes = new HashMap<>();
+        private String pathInfo;
+        private String queryString;
+
+        Request() {
+            super(defaults(HttpServletRequest.class));
+        }
+
+        Request pathInfo(String pathInfo) {
+            this.pathInfo = pathInfo;
+            return this;
+        }
+
+        Request queryString(String queryString) {
+            this.queryString = queryString;
+            return this;
+        }
+
+        Request header(String name, String value) {
+            if (!headers.containsKey(name)) {
+                headerNames.add(name);
+            }
+            headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+            return this;
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public String getScheme() {
+            return "http";
+        }
+
+        @Override
+        public String getRemoteAddr() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public StringBuffer getRequestURL() {
+            return new StringBuffer("http://localhost:8080/proxyservlet/multi-proxy-servlet/index.html");
+        }
+
+        @Override
+        public String getContextPath() {
+            return "/proxyservlet";
+        }
+
+        @Override
+        public String getServletPath() {
+            return "/multi-proxy-servlet";
+        }
+
+        @Override
+        public String getPathInfo() {
+            return pathInfo;
+        }
+
+        @Override
+        public String getQueryString() {
+            return queryString;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values != null ? values.get(0) : null;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            List<String> values = headers.get(name);
+            return Collections.enumeration(values != null ? values : Collections.<String>emptyList());
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(headerNames);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object o) {
+            attributes.put(name, o);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        /**
+         * Remove all attributes, making the request look like a new one.
+         */
+        void clearAttributes() {
+            attributes.clear();
+        }
+    }
+
+    /**
+     * A response counting the headers, and cookies set.
+     */
+    static class Response extends HttpServletResponseWrapper {
+
+        int status;
+        int headers;
+        int cookies;
+
+        Response() {
+            super(defaults(HttpServletResponse.class));
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers += 1;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers += 1;
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            headers += 1;
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            cookies += 1;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure {@link Encoding#encodeUriQuery(CharSequence, boolean)} for a query
+ * needing no escapes, for a query needing some, and for a query having non
+ * ASCII characters. The {@code Append} benchmarks append to a reused
+ * {@link StringBuilder}, like the request proxy factory does.
+ * <p>
+ * Run with the gc profiler, {@code gc.alloc.rate.norm} is the number of bytes
+ * allocated per call.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodingBenchmark {
+
+    @Param({"plain", "escaped", "unicode"})
+    public String query;
+
+    private String queryString;
+    private String pathInfo;
+    private final StringBuilder uri = new StringBuilder(500);
+
+    @Setup
+    public void setUp() {
+        if ("plain".equals(query)) {
+            queryString = "name=value&foo=bar&page=2&sort=created,desc&filter=a%20b";
+            pathInfo = "/api/v1/orders/4711/items";
+        } else if ("unicode".equals(query)) {
+            queryString = "name=J\u00fcrgen&city=M\u00fcnchen&price=10\u20ac";
+            pathInfo = "/api/v1/stra\u00dfe/4711/items";
+        } else {
+            queryString = "name=va lue&foo=<bar>&page=2&sort=created|desc&filter=\"a b\"";
+            pathInfo = "/api/v1/orders/47 11/items[0]";
+        }
+    }
+
+    @Benchmark
+    public CharSequence encodeQueryString() {
+        return Encoding.encodeUriQuery(queryString, false);
+    }
+
+    @Benchmark
+    public CharSequence encodePathInfo() {
+        return Encoding.encodeUriQuery(pathInfo, true);
+    }
+
+    @Benchmark
+    public CharSequence encodeQueryStringAppend() {
+        uri.setLength(0);
+        return Encoding.encodeUriQuery(queryString, false, uri);
+    }
+
+    @Benchmark
+    public CharSequence encodePathInfoAppend() {
+        uri.setLength(0);
+        return Encoding.encodeUriQuery(pathInfo, true, uri);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare platform and virtual threads for mirrored exchanges.
+ * <p>
+ * Each exchange blocks for the latency of a target, like a blocking
+ * HttpClient call does. The benchmark measures the time until a burst of
+ * concurrent exchanges is completed. Virtual threads fall back to platform
+ * threads on runtimes before Java 21.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FanOutExecutorBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100", "1000", "5000"})
+    public int exchanges;
+
+    @Param({"20"})
+    public int targetLatencyMillis;
+
+    private ExecutorService executorService;
+
+    @Setup
+    public void setUp() {
+        Config config = new Config();
+        config.setDoVirtualThreads("virtual".equals(threads));
+        executorService = FanOutExecutors.newExecutorService(config, "benchmark-fan-out-");
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public void mirrorExchanges() throws InterruptedException {
+        final CountDownLatch completed = new CountDownLatch(exchanges);
+        for (int i = 0; i < exchanges; i += 1) {
+            executorService.execute(() -> {
+                try {
+                    Thread.sleep(targetLatencyMillis);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    completed.countDown();
+                }
+            });
+        }
+        completed.await();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure {@link HobByHopHeaders#containsHeader(String)} for the headers of a
+ * typical request, and response, and additionally checking the headers listed
+ * in the {@code Connection} header.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HobByHopHeadersBenchmark {
+
+    private final String[] headerNames = {
+        "Host",
+        "User-Agent",
+        "Accept",
+        "Accept-Encoding",
+        "Accept-Language",
+        "connection",
+        "Cookie",
+        "Content-Type",
+        "Content-Length",
+        "Transfer-Encoding",
+        "Cache-Control",
+        "X-Forwarded-For"
+    };
+
+    private final HobByHopHeaders.ConnectionTokens connectionTokens = connectionTokens();
+
+    private static HobByHopHeaders.ConnectionTokens connectionTokens() {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Connection", "keep-alive, X-Trace");
+        return HobByHopHeaders.ConnectionTokens.of(response);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public int containsHeader() {
+        int n = 0;
+        for (String headerName : headerNames) {
+            if (HobByHopHeaders.containsHeader(headerName)) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public int containsHeaderConnectionTokens() {
+        int n = 0;
+        for (String headerName : headerNames) {
+            if (HobByHopHeaders.containsHeader(headerName, connectionTokens)) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+}
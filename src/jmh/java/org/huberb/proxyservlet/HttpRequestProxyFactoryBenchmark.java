@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measure creating a proxy request by
+ * {@link HttpRequestProxyFactory#createHttpRequest(javax.servlet.http.HttpServletRequest)},
+ * rewriting the uri, and copying the headers of a typical browser request.
+ * <p>
+ * With {@code doPreserveCookies} {@code false} the cookies are rewritten,
+ * dropping local cookies, and removing the prefix of proxied cookies.
+ * <p>
+ * {@code createHttpRequests} creates the proxy requests of all
+ * {@code fanOut} targets of one servlet request, the path, and query are
+ * rewritten once for all of them.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HttpRequestProxyFactoryBenchmark {
+
+    @Param({"false", "true"})
+    public boolean doPreserveCookies;
+
+    @Param({"1", "8", "32"})
+    public int fanOut;
+
+    private Config config;
+    private Env env;
+    private Env[] envs;
+    private BenchmarkServlets.Request servletRequest;
+
+    @Setup
+    public void setUp() {
+        config = new Config();
+        config.setDoPreserveCookies(doPreserveCookies);
+        env = new Env.Builder().targetUri("http://localhost:8080/proxyservlet/multiproxyingservlet/a.html").build();
+        envs = new Env[fanOut];
+        for (int i = 0; i < fanOut; i += 1) {
+            envs[i] = new Env.Builder().targetUri("http://localhost:8080/proxyservlet/multiproxyingservlet/t" + i).build();
+        }
+        String prefix = env.getCookieNamePrefix();
+        servletRequest = new BenchmarkServlets.Request()
+                .pathInfo("/orders/4711")
+                .queryString("page=2&sort=created,desc")
+                .header("Host", "localhost:8080")
+                .header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0")
+                .header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                .header("Accept-Encoding", "gzip, deflate, br")
+                .header("Accept-Language", "en-US,en;q=0.5")
+                .header("Connection", "keep-alive")
+                .header("Cookie", prefix + "JSESSIONID=0123456789ABCDEF; " + prefix + "theme=dark; local=1")
+                .header("Cache-Control", "no-cache");
+    }
+
+    @Benchmark
+    public HttpRequest createHttpRequest() throws IOException {
+        servletRequest.clearAttributes();
+        return new HttpRequestProxyFactory(config, env).createHttpRequest(servletRequest);
+    }
+
+    @Benchmark
+    public void createHttpRequests(Blackhole blackhole) throws IOException {
+        servletRequest.clearAttributes();
+        for (Env e : envs) {
+            blackhole.consume(new HttpRequestProxyFactory(config, e).createHttpRequest(servletRequest));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure sending status, and headers of a typical target response by
+ * {@link HttpResponseProxyFactory#sendResponseHead}, copying the headers,
+ * rewriting the cookies, and the location.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HttpResponseProxyFactoryBenchmark {
+
+    @Param({"false", "true"})
+    public boolean doPreserveCookies;
+
+    private Config config;
+    private Env env;
+    private BenchmarkServlets.Request servletRequest;
+    private BenchmarkServlets.Response servletResponse;
+    private HttpResponse proxyResponse;
+
+    @Setup
+    public void setUp() {
+        config = new Config();
+        config.setDoPreserveCookies(doPreserveCookies);
+        env = new Env.Builder().targetUri("http://localhost:8080/proxyservlet/multiproxyingservlet/a.html").build();
+        servletRequest = new BenchmarkServlets.Request();
+        servletResponse = new BenchmarkServlets.Response();
+        proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 302, "Found");
+        proxyResponse.addHeader("Date", "Sun, 18 Oct 2026 10:00:00 GMT");
+        proxyResponse.addHeader("Server", "Apache");
+        proxyResponse.addHeader("Content-Type", "text/html; charset=UTF-8");
+        proxyResponse.addHeader("Content-Length", "0");
+        proxyResponse.addHeader("Cache-Control", "no-store");
+        proxyResponse.addHeader("Connection", "keep-alive");
+        proxyResponse.addHeader("Keep-Alive", "timeout=5, max=100");
+        proxyResponse.addHeader("Location", env.getTargetUri() + "/orders/4711");
+        proxyResponse.addHeader("Set-Cookie", "JSESSIONID=0123456789ABCDEF; Path=/; HttpOnly");
+        proxyResponse.addHeader("Set-Cookie", "theme=dark; Max-Age=3600; Path=/");
+    }
+
+    @Benchmark
+    public boolean sendResponseHead() {
+        return new HttpResponseProxyFactory(config, env).sendResponseHead(servletRequest, servletResponse, proxyResponse);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare resolving the targets for each request with the precompiled
+ * {@link TargetTable}.
+ * <p>
+ * {@code perRequest} formats the uri prefix, parses, and sorts the
+ * {@code targetUri.NNN} parameters, and parses each target uri again, as the
+ * servlet did before. {@code precompiled} builds the uri prefix, and looks up
+ * the resolved targets.
+ *
+ * @author pi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TargetTableBenchmark {
+
+    @Param({"2", "6", "20"})
+    public int targets;
+
+    private Properties props;
+    private TargetTable targetTable;
+    private final String scheme = "http";
+    private final String localName = "localhost";
+    private final int localPort = 8080;
+    private final String contextPath = "/multiproxyingservlet";
+
+    @Setup
+    public void setUp() {
+        props = new Properties();
+        for (int i = 0; i < targets; i += 1) {
+            props.setProperty("targetUri." + i, "/multiproxyingservlet/" + i + ".html");
+        }
+        ParameterValueFactory parameterValueFactory = new ParameterValueFactory();
+        targetTable = new TargetTable(parameterValueFactory.setupTargetUrisFromProperties(props),
+                parameterValueFactory.setupSampleRatesFromProperties(props));
+    }
+
+    @Benchmark
+    public List<Env> perRequest() {
+        String uriPrefix = String.format("%s://%s:%d%s", scheme, localName, localPort, contextPath);
+        List<String> targetUriList = new ParameterValueFactory().setupTargetUrisFromProperties(props);
+        List<Env> envList = new ArrayList<>(targetUriList.size());
+        for (String targetUri : targetUriList) {
+            envList.add(new Env.Builder()
+                    .targetUri(targetUri.startsWith("/") ? uriPrefix + targetUri : targetUri)
+                    .build());
+        }
+        return envList;
+    }
+
+    @Benchmark
+    public Env[] precompiled() {
+        String uriPrefix = new StringBuilder(64)
+                .append(scheme)
+                .append("://")
+                .append(localName)
+                .append(':')
+                .append(localPort)
+                .append(contextPath)
+                .toString();
+        return targetTable.getTargets(uriPrefix);
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * Execute an HTTP request/response via the non-blocking JDK
+ * {@link java.net.http.HttpClient}.
+ * <p>
+ * Requests are sent asynchronously, no thread waits for a target. Thus
+ * sending a request to N targets needs no additional thread per target. The
+ * responses are adapted to {@link HttpResponse}, so they are processed the
+ * same way as the responses of {@link HttpClientExecutor}.
+ * <p>
+ * The executor is thread-safe, and intended to be shared by all requests and
+ * all targets.
+ *
+ * @author pi
+ */
+public class AsyncHttpClientExecutor {
+
+    private static final Logger LOG = Logger.getLogger(AsyncHttpClientExecutor.class.getName());
+    /**
+     * Headers set by the JDK client itself, which must not be set by the
+     * caller.
+     */
+    private static final List<String> RESTRICTED_HEADERS = Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade");
+
+    protected boolean doLog = true;
+    private final java.net.http.HttpClient proxyClient;
+    private final Duration readTimeout;
+
+    /**
+     * Create an executor using its own JDK client.
+     *
+     * @param config
+     */
+    public AsyncHttpClientExecutor(Config config) {
+        this(config, createHttpClient(config));
+    }
+
+    /**
+     * Create an executor using the given JDK client.
+     *
+     * @param config
+     * @param proxyClient
+     */
+    public AsyncHttpClientExecutor(Config config, java.net.http.HttpClient proxyClient) {
+        this.doLog = config.isDoLog();
+        this.proxyClient = proxyClient;
+        this.readTimeout = config.getReadTimeout() > 0
+                ? Duration.ofMillis(config.getReadTimeout())
+                : null;
+    }
+
+    /**
+     * Create a JDK client from the configuration.
+     * <p>
+     * The JDK client does not decompress response entities, thus
+     * {@code doHandleCompression} passes compressed entities through. The
+     * {@code connectionRequestTimeout}, and {@code maxConnections} do not
+     * apply, as the JDK client does not limit its connections.
+     *
+     * @param config
+     * @return
+     */
+    static java.net.http.HttpClient createHttpClient(Config config) {
+        return createHttpClient(config, null);
+    }
+
+    /**
+     * Create a JDK client from the configuration, running its tasks by the
+     * given executor.
+     * <p>
+     * The JDK client cannot be closed on Java 8 to 20, shutting down the
+     * executor releases its threads, once the client is not referenced
+     * anymore.
+     *
+     * @param config
+     * @param executor the executor, or {@code null} for the default executor
+     * of the JDK client
+     * @return
+     * @see #createHttpClient(Config)
+     */
+    static java.net.http.HttpClient createHttpClient(Config config, Executor executor) {
+        java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_1_1)
+                .followRedirects(config.isDoHandleRedirects()
+                        ? java.net.http.HttpClient.Redirect.NORMAL
+                        : java.net.http.HttpClient.Redirect.NEVER);
+        if (config.getConnectTimeout() > 0) {
+            builder.connectTimeout(Duration.ofMillis(config.getConnectTimeout()));
+        }
+        if (config.isUseSystemProperties()) {
+            builder.proxy(ProxySelector.getDefault());
+        }
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Send the proxy request.
+     *
+     * @param env the target
+     * @param proxyRequest
+     * @return the response, its entity streams the response body
+     */
+    public CompletableFuture<HttpResponse> doExecute(Env env, HttpRequest proxyRequest) {
+        return send(env, proxyRequest, java.net.http.HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(response -> {
+                    final InputStream body = response.body();
+                    // closing the body fails a thread blocked reading it
+                    onAbort(proxyRequest, () -> {
+                        closeQuietly(body);
+                        return true;
+                    });
+                    return toHttpResponse(response, new InputStreamEntity(body, contentLengthOf(response)));
+                });
+    }
+
+    /**
+     * Send the proxy request, publishing the response body as it arrives.
+     * <p>
+     * No thread blocks reading the body, see
+     * {@link ResponseBodyWriteSubscriber}.
+     *
+     * @param env the target
+     * @param proxyRequest
+     * @return the response, its entity is a {@link PublisherEntity}
+     */
+    public CompletableFuture<HttpResponse> doExecutePublishing(Env env, HttpRequest proxyRequest) {
+        return send(env, proxyRequest, java.net.http.HttpResponse.BodyHandlers.ofPublisher())
+                .thenApply(response -> {
+                    final PublisherEntity entity = new PublisherEntity(response.body(), contentLengthOf(response));
+                    onAbort(proxyRequest, () -> {
+                        entity.abort(new IOException("Request aborted: " + env.getTargetUri()));
+                        return true;
+                    });
+                    return toHttpResponse(response, entity);
+                });
+    }
+
+    /**
+     * Send the proxy request, discarding the response body.
+     * <p>
+     * The response is completed as its headers arrive, the body is discarded
+     * in the background. The deadline timer of the request is stopped once
+     * the body has been discarded.
+     *
+     * @param env the target
+     * @param proxyRequest
+     * @return the response without entity
+     */
+    public CompletableFuture<HttpResponse> doExecuteDiscarding(Env env, HttpRequest proxyRequest) {
+        return send(env, proxyRequest, java.net.http.HttpResponse.BodyHandlers.ofPublisher())
+                .thenApply(response -> {
+                    final DiscardingSubscriber discardingSubscriber = new DiscardingSubscriber(proxyRequest);
+                    onAbort(proxyRequest, discardingSubscriber::cancel);
+                    response.body().subscribe(discardingSubscriber);
+                    return toHttpResponse(response, null);
+                });
+    }
+
+    private <T> CompletableFuture<java.net.http.HttpResponse<T>> send(Env env, HttpRequest proxyRequest,
+            java.net.http.HttpResponse.BodyHandler<T> bodyHandler) {
+        if (doLog) {
+            String msg = String.format("async httpclient execute: method: %s" + " -- proxyRequest: %s",
+                    proxyRequest.getRequestLine().getMethod(),
+                    proxyRequest.getRequestLine().getUri());
+            LOG.info(msg);
+        }
+        try {
+            Deadline deadline = ProxyRequest.deadlineOf(proxyRequest);
+            if (deadline != null && deadline.isExpired()) {
+                throw new Deadline.ExceededException(env.getTargetUri());
+            }
+            final CompletableFuture<java.net.http.HttpResponse<T>> responseFuture
+                    = proxyClient.sendAsync(toJdkRequest(env, proxyRequest, deadline), bodyHandler);
+            // the request timeout ends as the response headers arrive, the
+            // deadline timer aborts a body still streaming, too
+            onAbort(proxyRequest, () -> responseFuture.cancel(true));
+            if (deadline != null && proxyRequest instanceof ProxyRequest) {
+                ((ProxyRequest) proxyRequest).startDeadlineTimer();
+            }
+            return responseFuture;
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<java.net.http.HttpResponse<T>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Set what {@link ProxyRequest#abort()} cancels, i.e. the exchange, or the
+     * response body once the headers have arrived.
+     * <p>
+     * If the request was aborted already, the cancellable is cancelled right
+     * away.
+     */
+    private static void onAbort(HttpRequest proxyRequest, Cancellable cancellable) {
+        if (proxyRequest instanceof ProxyRequest) {
+            ((ProxyRequest) proxyRequest).setCancellable(cancellable);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ioex) {
+            LOG.log(Level.FINE, "closing aborted response body", ioex);
+        }
+    }
+
+    private java.net.http.HttpRequest toJdkRequest(Env env, HttpRequest proxyRequest, Deadline deadline) {
+        URI uri = URI.create(proxyRequest.getRequestLine().getUri());
+        if (!uri.isAbsolute()) {
+            uri = URI.create(env.getTargetHost().toURI()).resolve(uri);
+        }
+        java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder(uri)
+                .method(proxyRequest.getRequestLine().getMethod(), toBodyPublisher(proxyRequest));
+        Duration timeout = readTimeout;
+        if (deadline != null) {
+            // the request timeout ends as the response headers arrive
+            Duration remaining = Duration.ofMillis(deadline.remainingMillis());
+            timeout = timeout == null || remaining.compareTo(timeout) < 0 ? remaining : timeout;
+        }
+        if (timeout != null) {
+            builder.timeout(timeout);
+        }
+        for (Header header : proxyRequest.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private java.net.http.HttpRequest.BodyPublisher toBodyPublisher(HttpRequest proxyRequest) {
+        HttpEntity entity = proxyRequest instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) proxyRequest).getEntity()
+                : null;
+        if (entity == null) {
+            return java.net.http.HttpRequest.BodyPublishers.noBody();
+        }
+        java.net.http.HttpRequest.BodyPublisher publisher = java.net.http.HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return entity.getContent();
+            } catch (IOException ioex) {
+                throw new UncheckedIOException(ioex);
+            }
+        });
+        long contentLength = entity.getContentLength();
+        return contentLength >= 0
+                ? java.net.http.HttpRequest.BodyPublishers.fromPublisher(publisher, contentLength)
+                : publisher;
+    }
+
+    private static long contentLengthOf(java.net.http.HttpResponse<?> response) {
+        return response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1L);
+    }
+
+    private HttpResponse toHttpResponse(java.net.http.HttpResponse<?> response, AbstractHttpEntity entity) {
+        int statusCode = response.statusCode();
+        String reasonPhrase = EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH);
+        HttpResponse httpResponse = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, reasonPhrase));
+        for (Map.Entry<String, List<String>> e : response.headers().map().entrySet()) {
+            String headerName = e.getKey();
+            if (headerName.startsWith(":")) {
+                // skip HTTP/2 pseudo headers
+                continue;
+            }
+            for (String headerValue : e.getValue()) {
+                httpResponse.addHeader(headerName, headerValue);
+            }
+        }
+        if (entity != null) {
+            // flush intermediate results of a response without length, see
+            // HttpResponseProxyFactory#copyResponseEntity
+            entity.setChunked(entity.getContentLength() < 0);
+            response.headers().firstValue(HttpHeaders.CONTENT_TYPE).ifPresent(entity::setContentType);
+            response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).ifPresent(entity::setContentEncoding);
+            httpResponse.setEntity(entity);
+        }
+        if (doLog) {
+            String msg = String.format("async httpclient execute: status line %s", httpResponse.getStatusLine());
+            LOG.info(msg);
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Wait for a response, unwrapping the failure.
+     *
+     * @param responseFuture
+     * @return
+     * @throws IOException
+     */
+    static HttpResponse join(CompletableFuture<HttpResponse> responseFuture) throws IOException {
+        try {
+            return responseFuture.get();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            responseFuture.cancel(true);
+            throw new IOException("Interrupted while waiting for the target", iex);
+        } catch (ExecutionException exex) {
+            Throwable cause = unwrap(exex.getCause());
+            if (cause instanceof CancellationException) {
+                // aborted, e.g. by the deadline timer, or losing a race
+                throw new IOException("Request aborted", cause);
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Unwrap the failure of a completion stage.
+     *
+     * @param t
+     * @return
+     */
+    static Throwable unwrap(Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Discard a response body, which can be cancelled.
+     */
+    static class DiscardingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+
+        private final HttpRequest proxyRequest;
+        private volatile Flow.Subscription subscription;
+        private volatile boolean cancelled;
+
+        DiscardingSubscriber(HttpRequest proxyRequest) {
+            this.proxyRequest = proxyRequest;
+        }
+
+        /**
+         * Cancel the body, closing its connection.
+         *
+         * @return {@code true}
+         */
+        boolean cancel() {
+            cancelled = true;
+            Flow.Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                subscription.cancel();
+            } else {
+                subscription.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+        }
+
+        @Override
+        public void onComplete() {
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+        }
+    }
+
+    /**
+     * A response entity publishing its body to a single subscriber.
+     * <p>
+     * The body is not readable as stream, subscribe to it by
+     * {@link #subscribe(Flow.Subscriber)}, or {@link #discard()} it.
+     */
+    public static class PublisherEntity extends AbstractHttpEntity {
+
+        private final Flow.Publisher<List<ByteBuffer>> publisher;
+        private final long contentLength;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        private volatile Flow.Subscriber<List<ByteBuffer>> subscriber;
+        private volatile Throwable abortFailure;
+
+        PublisherEntity(Flow.Publisher<List<ByteBuffer>> publisher, long contentLength) {
+            this.publisher = publisher;
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * Subscribe to the body.
+         *
+         * @param subscriber
+         * @throws IllegalStateException if the body was already subscribed
+         */
+        public void subscribe(Flow.Subscriber<List<ByteBuffer>> subscriber) {
+            if (!subscribed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Response body already subscribed");
+            }
+            this.subscriber = subscriber;
+            publisher.subscribe(subscriber);
+            Throwable failure = abortFailure;
+            if (failure != null) {
+                // aborted while subscribing
+                subscriber.onError(failure);
+            }
+        }
+
+        /**
+         * Abort the body, failing its subscriber, which has to cancel its
+         * subscription, like {@link ResponseBodyWriteSubscriber} does.
+         *
+         * @param failure
+         */
+        void abort(Throwable failure) {
+            abortFailure = failure;
+            discard();
+            Flow.Subscriber<List<ByteBuffer>> s = subscriber;
+            if (s != null) {
+                s.onError(failure);
+            }
+        }
+
+        /**
+         * Cancel the body, unless it was subscribed, as an unsubscribed body
+         * holds its connection.
+         */
+        public void discard() {
+            if (subscribed.compareAndSet(false, true)) {
+                publisher.subscribe(new Flow.Subscriber<List<ByteBuffer>>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        subscription.cancel();
+                    }
+
+                    @Override
+                    public void onNext(List<ByteBuffer> item) {
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                    }
+
+                    @Override
+                    public void onComplete() {
+                    }
+                });
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Subscribe to the response body");
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) {
+            throw new UnsupportedOperationException("Subscribe to the response body");
+        }
+
+        /**
+         * Not streaming, thus {@link org.apache.http.util.EntityUtils} leave
+         * the body alone.
+         *
+         * @return {@code false}
+         */
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Circuit breaker of a single target host.
+ * <p>
+ * The breaker is {@link Status#CLOSED} as long as the failure rate within a
+ * window of {@link #WINDOW_MILLIS} stays below the threshold. A call slower
+ * than the slow call threshold counts as failure, too. Then the breaker is
+ * {@link Status#OPEN}, and rejects all calls. After the open duration it is
+ * {@link Status#HALF_OPEN}, and permits {@link #HALF_OPEN_TRIALS} trial calls.
+ * If all of them succeed it is closed again, otherwise it is opened again.
+ * <p>
+ * Each state is an immutable snapshot with its own counters, state
+ * transitions are done by compare-and-set. Thus calls never wait for each
+ * other.
+ *
+ * @author pi
+ */
+public class CircuitBreaker {
+
+    /**
+     * Length of the window counting calls, and failures.
+     */
+    static final long WINDOW_MILLIS = 10_000L;
+    /**
+     * Calls in a window needed before the breaker can open.
+     */
+    static final int MINIMUM_CALLS = 10;
+    /**
+     * Trial calls of a half-open breaker.
+     */
+    static final int HALF_OPEN_TRIALS = 3;
+
+    public enum Status {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final HttpHost targetHost;
+    private final int failureRatePercent;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicReference<State> state;
+
+    /**
+     * Create a closed breaker.
+     *
+     * @param targetHost
+     * @param failureRatePercent failure rate opening the breaker
+     * @param slowCallMillis calls slower than this count as failure, a
+     * negative value disables counting slow calls
+     * @param openMillis duration of the open state
+     */
+    public CircuitBreaker(HttpHost targetHost, int failureRatePercent, long slowCallMillis, long openMillis) {
+        this(targetHost, failureRatePercent, slowCallMillis, openMillis, System::nanoTime);
+    }
+
+    CircuitBreaker(HttpHost targetHost, int failureRatePercent, long slowCallMillis, long openMillis,
+            LongSupplier nanoClock) {
+        this.targetHost = targetHost;
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallNanos = slowCallMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallMillis) : -1L;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.nanoClock = nanoClock;
+        this.state = new AtomicReference<>(new State(Status.CLOSED, nanoClock.getAsLong()));
+    }
+
+    public HttpHost getTargetHost() {
+        return targetHost;
+    }
+
+    public Status getStatus() {
+        return state.get().status;
+    }
+
+    /**
+     * Ask for permission to call the target.
+     *
+     * @return {@code false} if the call has to be short-circuited
+     */
+    public boolean tryAcquire() {
+        for (;;) {
+            final State s = state.get();
+            final long now = nanoClock.getAsLong();
+            switch (s.status) {
+                case CLOSED:
+                    if (now - s.sinceNanos > TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+                        // start a new window, if another thread was faster that's fine
+                        state.compareAndSet(s, new State(Status.CLOSED, now));
+                    }
+                    return true;
+                case OPEN:
+                    if (now - s.sinceNanos < openNanos) {
+                        return false;
+                    }
+                    state.compareAndSet(s, new State(Status.HALF_OPEN, now));
+                    break;
+                default:
+                    if (s.permits.getAndUpdate(p -> p > 0 ? p - 1 : p) > 0) {
+                        return true;
+                    }
+                    // trials which never reported must not keep the breaker half-open
+                    if (now - s.sinceNanos < openNanos
+                            || !state.compareAndSet(s, new State(Status.HALF_OPEN, now))) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Record the result of a call.
+     *
+     * @param success {@code false} if the call failed
+     * @param elapsedNanos latency of the call
+     */
+    public void record(boolean success, long elapsedNanos) {
+        final boolean failure = !success || (slowCallNanos > 0 && elapsedNanos > slowCallNanos);
+        final State s = state.get();
+        switch (s.status) {
+            case CLOSED:
+                final int calls = s.calls.incrementAndGet();
+                if (failure) {
+                    final int failures = s.failures.incrementAndGet();
+                    if (calls >= MINIMUM_CALLS && failures * 100L >= (long) failureRatePercent * calls) {
+                        state.compareAndSet(s, new State(Status.OPEN, nanoClock.getAsLong()));
+                    }
+                }
+                break;
+            case HALF_OPEN:
+                if (failure) {
+                    state.compareAndSet(s, new State(Status.OPEN, nanoClock.getAsLong()));
+                } else if (s.calls.incrementAndGet() >= HALF_OPEN_TRIALS) {
+                    state.compareAndSet(s, new State(Status.CLOSED, nanoClock.getAsLong()));
+                }
+                break;
+            default:
+                // calls started before opening the breaker
+                break;
+        }
+    }
+
+    private static final class State {
+
+        final Status status;
+        final long sinceNanos;
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger permits;
+
+        State(Status status, long sinceNanos) {
+            this.status = status;
+            this.sinceNanos = sinceNanos;
+            this.permits = new AtomicInteger(status == Status.HALF_OPEN ? HALF_OPEN_TRIALS : 0);
+        }
+    }
+
+    /**
+     * Thrown instead of calling a target whose circuit breaker is open.
+     */
+    public static class OpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        OpenException(HttpHost targetHost) {
+            super(String.format("Circuit breaker open for %s", targetHost));
+        }
+    }
+}
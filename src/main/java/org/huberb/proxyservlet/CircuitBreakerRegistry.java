@@ -0,0 +1,105 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpHost;
+
+/**
+ * The circuit breakers of all target hosts.
+ *
+ * @author pi
+ */
+public class CircuitBreakerRegistry {
+
+    /**
+     * Open duration used if {@code circuitBreakerOpenDuration} is not
+     * configured.
+     */
+    static final long DEFAULT_OPEN_MILLIS = 30_000L;
+
+    private final int failureRatePercent;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final ConcurrentMap<HttpHost, CircuitBreaker> circuitBreakers;
+
+    public CircuitBreakerRegistry(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * Create a registry, taking over the circuit breakers of the registry of
+     * a former configuration.
+     * <p>
+     * An open circuit breaker stays open, thus a reload does not send
+     * requests to a failing target again. The circuit breakers taken over
+     * keep their settings, the settings of this configuration apply to new
+     * target hosts.
+     *
+     * @param config
+     * @param previous the registry of the former configuration, or
+     * {@code null}
+     */
+    public CircuitBreakerRegistry(Config config, CircuitBreakerRegistry previous) {
+        this.circuitBreakers = previous != null ? previous.circuitBreakers : new ConcurrentHashMap<>();
+        this.failureRatePercent = config.getCircuitBreakerFailureRate();
+        this.slowCallMillis = config.getCircuitBreakerSlowCall();
+        this.openMillis = config.getCircuitBreakerOpenDuration() > 0
+                ? config.getCircuitBreakerOpenDuration()
+                : DEFAULT_OPEN_MILLIS;
+    }
+
+    /**
+     * Get the circuit breaker of a target host, creating it on first use.
+     *
+     * @param targetHost
+     * @return
+     */
+    public CircuitBreaker get(HttpHost targetHost) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(targetHost);
+        if (circuitBreaker == null) {
+            circuitBreaker = circuitBreakers.computeIfAbsent(targetHost,
+                    host -> new CircuitBreaker(host, failureRatePercent, slowCallMillis, openMillis));
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Record the outcome of a target.
+     * <p>
+     * Outcomes of targets which were not called, as they were short-circuited,
+     * out of budget, or dropped, and of targets losing a race are ignored. A 5xx status counts as failure.
+     * A slow call is judged by the time until the response headers arrived,
+     * a slowly streamed body does not make the target slow.
+     *
+     * @param targetOutcome
+     */
+    public void record(TargetOutcome targetOutcome) {
+        Throwable failure = targetOutcome.getFailure();
+        if (failure instanceof CircuitBreaker.OpenException || failure instanceof Deadline.ExceededException
+                || failure instanceof Race.LostException || failure instanceof RejectedExecutionException) {
+            return;
+        }
+        boolean success = failure == null && targetOutcome.getStatusCode() < 500;
+        long latencyNanos = targetOutcome.getResponseNanos() >= 0L
+                ? targetOutcome.getResponseNanos()
+                : targetOutcome.getElapsedNanos();
+        get(targetOutcome.getTargetHost()).record(success, latencyNanos);
+    }
+}
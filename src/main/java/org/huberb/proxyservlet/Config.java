@@ -20,7 +20,6 @@ import java.util.List;
 import java.util.Properties;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import javax.servlet.ServletConfig;
 
 import org.huberb.proxyservlet.Config.Accessor;
 
@@ -44,6 +43,29 @@ public class Config {
     protected int readTimeout = -1;
     protected int connectionRequestTimeout = -1;
     protected int maxConnections = -1;
+    //---
+    protected String fanOutMode = "parallel";
+    protected int fanOutThreads = -1;
+    protected boolean doVirtualThreads = false;
+    protected boolean doNonBlockingIo = false;
+    protected boolean doAsyncTransport = false;
+    protected int mirrorQueueCapacity = -1;
+    protected String mirrorDropPolicy = "drop-newest";
+    protected int mirrorQueueTimeout = -1;
+    protected int mirrorQueueMaxAge = -1;
+    protected int requestBodyMemoryThreshold = -1;
+    protected int requestBodyMaxSize = -1;
+    protected int circuitBreakerFailureRate = -1;
+    protected int circuitBreakerSlowCall = -1;
+    protected int circuitBreakerOpenDuration = -1;
+    protected int requestDeadline = -1;
+    protected String requestDeadlineHeader = "";
+    protected int hedgeDelay = -1;
+    protected int hedgeMaxRate = -1;
+    protected String shadowCompareHeaders = "Content-Type";
+    protected int shadowSampleLogSize = -1;
+    protected String sampleKeyHeader = "";
+    protected String configFile = "";
 
     //------------------------------------------------------------------------
     public boolean isDoLog() {
@@ -143,6 +165,356 @@ public class Config {
         this.maxConnections = maxConnections;
     }
 
+    //------------------------------------------------------------------------
+    /**
+     * How a request is sent to the targets, see {@link FanOutMode}.
+     *
+     * @return
+     */
+    public String getFanOutMode() {
+        return fanOutMode;
+    }
+
+    public void setFanOutMode(String fanOutMode) {
+        this.fanOutMode = fanOutMode;
+    }
+
+    /**
+     * Number of threads dispatching proxy requests to the targets.
+     * <p>
+     * A value of {@code 0} disables fan-out, all targets are processed one
+     * after another in the calling thread. A negative value sizes the pool by
+     * the number of available processors.
+     *
+     * @return
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public void setFanOutThreads(int fanOutThreads) {
+        this.fanOutThreads = fanOutThreads;
+    }
+
+    /**
+     * Process each secondary target on its own virtual thread, if the runtime
+     * supports virtual threads.
+     * <p>
+     * Then {@code fanOutThreads} does not limit the number of threads, but
+     * {@code 0} still processes all targets sequentially.
+     *
+     * @return
+     */
+    public boolean isDoVirtualThreads() {
+        return doVirtualThreads;
+    }
+
+    public void setDoVirtualThreads(boolean doVirtualThreads) {
+        this.doVirtualThreads = doVirtualThreads;
+    }
+
+    /**
+     * Use non-blocking servlet I/O for reading the request body, and for
+     * sending the response of the primary target.
+     * <p>
+     * Requires an async supporting servlet, and fan-out threads.
+     *
+     * @return
+     */
+    public boolean isDoNonBlockingIo() {
+        return doNonBlockingIo;
+    }
+
+    public void setDoNonBlockingIo(boolean doNonBlockingIo) {
+        this.doNonBlockingIo = doNonBlockingIo;
+    }
+
+    /**
+     * Send the proxy requests by the non-blocking JDK HTTP client, instead of
+     * the blocking Apache HttpClient.
+     *
+     * @return
+     */
+    public boolean isDoAsyncTransport() {
+        return doAsyncTransport;
+    }
+
+    public void setDoAsyncTransport(boolean doAsyncTransport) {
+        this.doAsyncTransport = doAsyncTransport;
+    }
+
+    /**
+     * Maximum number of secondary targets waiting to be sent.
+     * <p>
+     * A value less than 1 does not queue the secondary targets, but hands
+     * them directly to the fan-out executor.
+     *
+     * @return
+     */
+    public int getMirrorQueueCapacity() {
+        return mirrorQueueCapacity;
+    }
+
+    public void setMirrorQueueCapacity(int mirrorQueueCapacity) {
+        this.mirrorQueueCapacity = mirrorQueueCapacity;
+    }
+
+    /**
+     * What to do with a secondary target if the mirror queue is full, one of
+     * {@code drop-newest}, {@code drop-oldest}, {@code block}, or
+     * {@code sample-down}.
+     *
+     * @return
+     * @see MirrorDropPolicy
+     */
+    public String getMirrorDropPolicy() {
+        return mirrorDropPolicy;
+    }
+
+    public void setMirrorDropPolicy(String mirrorDropPolicy) {
+        this.mirrorDropPolicy = mirrorDropPolicy;
+    }
+
+    /**
+     * Maximum wait in milliseconds of the {@code block} drop policy.
+     * <p>
+     * A negative value waits 100 ms.
+     *
+     * @return
+     */
+    public int getMirrorQueueTimeout() {
+        return mirrorQueueTimeout;
+    }
+
+    public void setMirrorQueueTimeout(int mirrorQueueTimeout) {
+        this.mirrorQueueTimeout = mirrorQueueTimeout;
+    }
+
+    /**
+     * Secondary targets queued for longer than this many milliseconds expire.
+     * <p>
+     * A negative value never expires them.
+     *
+     * @return
+     */
+    public int getMirrorQueueMaxAge() {
+        return mirrorQueueMaxAge;
+    }
+
+    public void setMirrorQueueMaxAge(int mirrorQueueMaxAge) {
+        this.mirrorQueueMaxAge = mirrorQueueMaxAge;
+    }
+
+    /**
+     * Request bodies up to this size in bytes are kept in memory, larger
+     * bodies are spilled to a temporary file.
+     * <p>
+     * A negative value uses a threshold of 64 KiB.
+     *
+     * @return
+     */
+    public int getRequestBodyMemoryThreshold() {
+        return requestBodyMemoryThreshold;
+    }
+
+    public void setRequestBodyMemoryThreshold(int requestBodyMemoryThreshold) {
+        this.requestBodyMemoryThreshold = requestBodyMemoryThreshold;
+    }
+
+    /**
+     * Maximum size in bytes of a request body.
+     * <p>
+     * A negative value does not limit the request body size.
+     *
+     * @return
+     */
+    public int getRequestBodyMaxSize() {
+        return requestBodyMaxSize;
+    }
+
+    public void setRequestBodyMaxSize(int requestBodyMaxSize) {
+        this.requestBodyMaxSize = requestBodyMaxSize;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Failure rate in percent opening the circuit breaker of a target host.
+     * <p>
+     * A negative value disables circuit breakers.
+     *
+     * @return
+     */
+    public int getCircuitBreakerFailureRate() {
+        return circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    /**
+     * Calls taking longer than this many milliseconds count as failure of a
+     * circuit breaker.
+     * <p>
+     * A negative value counts failed calls only.
+     *
+     * @return
+     */
+    public int getCircuitBreakerSlowCall() {
+        return circuitBreakerSlowCall;
+    }
+
+    public void setCircuitBreakerSlowCall(int circuitBreakerSlowCall) {
+        this.circuitBreakerSlowCall = circuitBreakerSlowCall;
+    }
+
+    /**
+     * Milliseconds an open circuit breaker short-circuits calls before trial
+     * calls are permitted.
+     * <p>
+     * A negative value uses 30 seconds.
+     *
+     * @return
+     */
+    public int getCircuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
+
+    public void setCircuitBreakerOpenDuration(int circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Milliseconds a servlet request may take, including all of its targets.
+     * <p>
+     * A negative value does not limit a servlet request, besides the timeouts.
+     *
+     * @return
+     */
+    public int getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    public void setRequestDeadline(int requestDeadline) {
+        this.requestDeadline = requestDeadline;
+    }
+
+    /**
+     * Name of a request header sending the milliseconds a servlet request may
+     * take.
+     * <p>
+     * An empty value ignores request headers.
+     *
+     * @return
+     */
+    public String getRequestDeadlineHeader() {
+        return requestDeadlineHeader;
+    }
+
+    public void setRequestDeadlineHeader(String requestDeadlineHeader) {
+        this.requestDeadlineHeader = requestDeadlineHeader;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Milliseconds to wait for the primary target before hedging a request.
+     * <p>
+     * A negative value waits for the rolling p95 latency of the primary
+     * target.
+     *
+     * @return
+     */
+    public int getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    public void setHedgeDelay(int hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Maximum percentage of requests which are hedged.
+     * <p>
+     * A negative value hedges at most 10 percent of the requests.
+     *
+     * @return
+     */
+    public int getHedgeMaxRate() {
+        return hedgeMaxRate;
+    }
+
+    public void setHedgeMaxRate(int hedgeMaxRate) {
+        this.hedgeMaxRate = hedgeMaxRate;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Comma separated names of the response headers compared in
+     * {@link FanOutMode#SHADOW} mode.
+     * <p>
+     * An empty value compares status, and body only.
+     *
+     * @return
+     */
+    public String getShadowCompareHeaders() {
+        return shadowCompareHeaders;
+    }
+
+    public void setShadowCompareHeaders(String shadowCompareHeaders) {
+        this.shadowCompareHeaders = shadowCompareHeaders;
+    }
+
+    /**
+     * Maximum number of mismatches kept as samples in
+     * {@link FanOutMode#SHADOW} mode.
+     * <p>
+     * A negative value keeps the latest 100 mismatches.
+     *
+     * @return
+     */
+    public int getShadowSampleLogSize() {
+        return shadowSampleLogSize;
+    }
+
+    public void setShadowSampleLogSize(int shadowSampleLogSize) {
+        this.shadowSampleLogSize = shadowSampleLogSize;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Name of a request header, like a user id, whose hash decides if a
+     * request is sent to a target having a {@code targetUri.NNN.sampleRate}.
+     * <p>
+     * An empty value decides randomly for each request.
+     *
+     * @return
+     */
+    public String getSampleKeyHeader() {
+        return sampleKeyHeader;
+    }
+
+    public void setSampleKeyHeader(String sampleKeyHeader) {
+        this.sampleKeyHeader = sampleKeyHeader;
+    }
+
+    //------------------------------------------------------------------------
+    /**
+     * Path of a properties file overriding the servlet init-parameters,
+     * reloaded whenever it changes.
+     * <p>
+     * An empty value uses the servlet init-parameters only.
+     *
+     * @return
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+
     public String formatConfigValues() {
         return String.format("ConfigValues%n"
                 //---
@@ -158,7 +530,38 @@ public class Config {
                 + "connectTimeout: %d, "
                 + "readTimeout: %d, "
                 + "connectionRequestTimeout: %d, "
-                + "maxConnections: %d",
+                + "maxConnections: %d%n"
+                //---
+                + "fanOutMode: %s, "
+                + "fanOutThreads: %d, "
+                + "doVirtualThreads: %s, "
+                + "doNonBlockingIo: %s, "
+                + "doAsyncTransport: %s%n"
+                //---
+                + "mirrorQueueCapacity: %d, "
+                + "mirrorDropPolicy: %s, "
+                + "mirrorQueueTimeout: %d, "
+                + "mirrorQueueMaxAge: %d%n"
+                //---
+                + "requestBodyMemoryThreshold: %d, "
+                + "requestBodyMaxSize: %d%n"
+                //---
+                + "circuitBreakerFailureRate: %d, "
+                + "circuitBreakerSlowCall: %d, "
+                + "circuitBreakerOpenDuration: %d%n"
+                //---
+                + "requestDeadline: %d, "
+                + "requestDeadlineHeader: %s%n"
+                //---
+                + "hedgeDelay: %d, "
+                + "hedgeMaxRate: %d%n"
+                //---
+                + "shadowCompareHeaders: %s, "
+                + "shadowSampleLogSize: %d%n"
+                //---
+                + "sampleKeyHeader: %s%n"
+                //---
+                + "configFile: %s",
                 //---
                 doLog,
                 doHandleCompression,
@@ -172,7 +575,38 @@ public class Config {
                 connectTimeout,
                 readTimeout,
                 connectionRequestTimeout,
-                maxConnections
+                maxConnections,
+                //---
+                fanOutMode,
+                fanOutThreads,
+                doVirtualThreads,
+                doNonBlockingIo,
+                doAsyncTransport,
+                //---
+                mirrorQueueCapacity,
+                mirrorDropPolicy,
+                mirrorQueueTimeout,
+                mirrorQueueMaxAge,
+                //---
+                requestBodyMemoryThreshold,
+                requestBodyMaxSize,
+                //---
+                circuitBreakerFailureRate,
+                circuitBreakerSlowCall,
+                circuitBreakerOpenDuration,
+                //---
+                requestDeadline,
+                requestDeadlineHeader,
+                //---
+                hedgeDelay,
+                hedgeMaxRate,
+                //---
+                shadowCompareHeaders,
+                shadowSampleLogSize,
+                //---
+                sampleKeyHeader,
+                //---
+                configFile
         );
     }
 
@@ -208,7 +642,34 @@ public class Config {
                     new Accessor<>("connectTimeout", Integer.class, config::setConnectTimeout),
                     new Accessor<>("readTimeout", Integer.class, config::setReadTimeout),
                     new Accessor<>("connectionRequestTimeout", Integer.class, config::setConnectionRequestTimeout),
-                    new Accessor<>("maxConnections", Integer.class, config::setMaxConnections)
+                    new Accessor<>("maxConnections", Integer.class, config::setMaxConnections),
+                    //---
+                    new Accessor<>("fanOutMode", String.class, config::setFanOutMode),
+                    new Accessor<>("fanOutThreads", Integer.class, config::setFanOutThreads),
+                    new Accessor<>("doVirtualThreads", Boolean.class, config::setDoVirtualThreads),
+                    new Accessor<>("doNonBlockingIo", Boolean.class, config::setDoNonBlockingIo),
+                    new Accessor<>("doAsyncTransport", Boolean.class, config::setDoAsyncTransport),
+                    //---
+                    new Accessor<>("mirrorQueueCapacity", Integer.class, config::setMirrorQueueCapacity),
+                    new Accessor<>("mirrorDropPolicy", String.class, config::setMirrorDropPolicy),
+                    new Accessor<>("mirrorQueueTimeout", Integer.class, config::setMirrorQueueTimeout),
+                    new Accessor<>("mirrorQueueMaxAge", Integer.class, config::setMirrorQueueMaxAge),
+                    new Accessor<>("requestBodyMemoryThreshold", Integer.class, config::setRequestBodyMemoryThreshold),
+                    new Accessor<>("requestBodyMaxSize", Integer.class, config::setRequestBodyMaxSize),
+                    //---
+                    new Accessor<>("circuitBreakerFailureRate", Integer.class, config::setCircuitBreakerFailureRate),
+                    new Accessor<>("circuitBreakerSlowCall", Integer.class, config::setCircuitBreakerSlowCall),
+                    new Accessor<>("circuitBreakerOpenDuration", Integer.class, config::setCircuitBreakerOpenDuration),
+                    //---
+                    new Accessor<>("requestDeadline", Integer.class, config::setRequestDeadline),
+                    new Accessor<>("requestDeadlineHeader", String.class, config::setRequestDeadlineHeader),
+                    //---
+                    new Accessor<>("hedgeDelay", Integer.class, config::setHedgeDelay),
+                    new Accessor<>("hedgeMaxRate", Integer.class, config::setHedgeMaxRate),
+                    new Accessor<>("shadowCompareHeaders", String.class, config::setShadowCompareHeaders),
+                    new Accessor<>("shadowSampleLogSize", Integer.class, config::setShadowSampleLogSize),
+                    new Accessor<>("sampleKeyHeader", String.class, config::setSampleKeyHeader),
+                    new Accessor<>("configFile", String.class, config::setConfigFile)
             );
         }
 
@@ -265,29 +726,4 @@ public class Config {
             return config;
         }
     }
-
-    /**
-     * Build {@link Config} instance from servlet init-parameters.
-     */
-    static class ConfigFromServletConfigBuilder {
-
-        ServletConfig servletConfig;
-
-        ConfigFromServletConfigBuilder servletConfig(ServletConfig servletConfig) {
-            this.servletConfig = servletConfig;
-            return this;
-        }
-
-        Config build() {
-            Config config = new Config();
-            AccessorFactory accessorFactory = new AccessorFactory(config);
-            accessorFactory.getNames().forEach(key -> {
-                String value = servletConfig.getInitParameter(key);
-                if (value != null) {
-                    accessorFactory.setKeyValue(key, value);
-                }
-            });
-            return config;
-        }
-    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import org.apache.http.client.HttpClient;
+
+/**
+ * The configuration, the targets, and the objects built from both.
+ * <p>
+ * A snapshot is never modified once it has been published. A request reads
+ * the current snapshot once, and finishes on it, even if a newer snapshot is
+ * published meanwhile.
+ *
+ * @author pi
+ */
+public class ConfigSnapshot {
+
+    private final Config config;
+    private final TargetTable targetTable;
+    private final TargetSampler targetSampler;
+    private final HttpClient proxyClient;
+    private final AsyncHttpClientExecutor asyncHttpClientExecutor;
+    private final FanOutDispatcher fanOutDispatcher;
+
+    /**
+     * Create a snapshot.
+     *
+     * @param config
+     * @param targetTable
+     * @param proxyClient
+     * @param asyncHttpClientExecutor the executor, or {@code null}
+     * @param fanOutDispatcher
+     */
+    public ConfigSnapshot(Config config, TargetTable targetTable,
+            HttpClient proxyClient, AsyncHttpClientExecutor asyncHttpClientExecutor,
+            FanOutDispatcher fanOutDispatcher) {
+        this.config = config;
+        this.targetTable = targetTable;
+        this.targetSampler = new TargetSampler(config);
+        this.proxyClient = proxyClient;
+        this.asyncHttpClientExecutor = asyncHttpClientExecutor;
+        this.fanOutDispatcher = fanOutDispatcher;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public TargetTable getTargetTable() {
+        return targetTable;
+    }
+
+    public TargetSampler getTargetSampler() {
+        return targetSampler;
+    }
+
+    public HttpClient getProxyClient() {
+        return proxyClient;
+    }
+
+    public AsyncHttpClientExecutor getAsyncHttpClientExecutor() {
+        return asyncHttpClientExecutor;
+    }
+
+    public FanOutDispatcher getFanOutDispatcher() {
+        return fanOutDispatcher;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watch a configuration file, and call back whenever it changes.
+ * <p>
+ * The directory of the file is watched by a {@link WatchService} in a daemon
+ * thread. Editors often write a file in several steps, thus events arriving
+ * within {@link #SETTLE_MILLIS} are coalesced into one call back.
+ *
+ * @author pi
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ConfigWatcher.class.getName());
+    /**
+     * Milliseconds to wait for further events, before calling back.
+     */
+    static final long SETTLE_MILLIS = 100L;
+
+    private final Path file;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Start watching a file.
+     *
+     * @param file the configuration file
+     * @param onChange called in the watcher thread after the file has changed
+     * @throws IOException if the directory of the file can not be watched
+     */
+    public ConfigWatcher(Path file, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        Path dir = this.file.getParent();
+        this.watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::watch, "config-watcher-" + this.file.getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = pollEvents(key);
+                // coalesce the events of a file written in several steps
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= pollEvents(key);
+                }
+                if (changed) {
+                    try {
+                        onChange.run();
+                    } catch (RuntimeException rtex) {
+                        LOG.log(Level.WARNING, "reloading " + file, rtex);
+                    }
+                }
+            }
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException cwsex) {
+            // closed
+        }
+    }
+
+    private boolean pollEvents(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // an overflow may hide an event of the file
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ioex) {
+            LOG.log(Level.FINE, "closing watch service", ioex);
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The point in time a servlet request has to be completed, including all of
+ * its targets.
+ * <p>
+ * The deadline is fixed when it is first looked up for a servlet request, and
+ * stored as request attribute, thus all targets share the same budget.
+ * <p>
+ * Targets still running as the deadline expires are aborted by a timer, which
+ * is owned by the servlet, see {@link #newTimer(String)}. A deadline without
+ * timer is checked before calling a target only.
+ *
+ * @author pi
+ */
+public final class Deadline {
+
+    /**
+     * Request attribute holding the deadline of a servlet request.
+     */
+    static final String ATTRIBUTE = Deadline.class.getName();
+
+    private final long expiresAtNanos;
+    private final ScheduledExecutorService timer;
+
+    Deadline(long expiresAtNanos, ScheduledExecutorService timer) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.timer = timer;
+    }
+
+    /**
+     * Create a deadline expiring after the given budget, without timer.
+     *
+     * @param budgetMillis
+     * @return
+     */
+    public static Deadline after(long budgetMillis) {
+        return after(budgetMillis, null);
+    }
+
+    /**
+     * Create a deadline expiring after the given budget.
+     *
+     * @param budgetMillis
+     * @param timer aborts running targets, or {@code null}
+     * @return
+     */
+    public static Deadline after(long budgetMillis, ScheduledExecutorService timer) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis), timer);
+    }
+
+    /**
+     * Create the timer of the deadlines of a servlet.
+     * <p>
+     * Its single thread is started on first use, shut it down when the
+     * servlet is destroyed.
+     *
+     * @param threadName
+     * @return
+     */
+    public static ScheduledThreadPoolExecutor newTimer(String threadName) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+        // most timers are cancelled as the target completes in time
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Get the deadline of a servlet request.
+     * <p>
+     * The budget is {@code requestDeadline}, or the milliseconds sent in the
+     * {@code requestDeadlineHeader}, whichever is shorter. An invalid header
+     * value is ignored.
+     *
+     * @param config
+     * @param servletRequest
+     * @return the deadline, or {@code null} if the request has no deadline
+     */
+    public static Deadline of(Config config, HttpServletRequest servletRequest) {
+        return of(config, servletRequest, null);
+    }
+
+    /**
+     * Get the deadline of a servlet request, fixing it with a timer.
+     *
+     * @param config
+     * @param servletRequest
+     * @param timer aborts running targets, or {@code null}
+     * @return the deadline, or {@code null} if the request has no deadline
+     * @see #of(Config, HttpServletRequest)
+     */
+    public static Deadline of(Config config, HttpServletRequest servletRequest, ScheduledExecutorService timer) {
+        final String headerName = config.getRequestDeadlineHeader();
+        final boolean hasHeader = headerName != null && !headerName.isEmpty();
+        if (config.getRequestDeadline() <= 0 && !hasHeader) {
+            return null;
+        }
+        Object attribute = servletRequest.getAttribute(ATTRIBUTE);
+        if (attribute instanceof Deadline) {
+            return (Deadline) attribute;
+        }
+        long budgetMillis = config.getRequestDeadline() > 0 ? config.getRequestDeadline() : Long.MAX_VALUE;
+        if (hasHeader) {
+            budgetMillis = Math.min(budgetMillis, parseMillis(servletRequest.getHeader(headerName)));
+        }
+        if (budgetMillis == Long.MAX_VALUE) {
+            return null;
+        }
+        Deadline deadline = after(budgetMillis, timer);
+        servletRequest.setAttribute(ATTRIBUTE, deadline);
+        return deadline;
+    }
+
+    private static long parseMillis(String headerValue) {
+        if (headerValue == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            long millis = Long.parseLong(headerValue.trim());
+            return millis >= 0 ? millis : Long.MAX_VALUE;
+        } catch (NumberFormatException nfex) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The remaining budget in milliseconds, {@code 0} if expired.
+     *
+     * @return
+     */
+    public long remainingMillis() {
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() <= 0L;
+    }
+
+    /**
+     * Run a task when this deadline expires.
+     *
+     * @param task
+     * @return the scheduled task, cancel it if the task is not needed anymore,
+     * or {@code null} if this deadline has no timer, or its timer is shut down
+     */
+    ScheduledFuture<?> schedule(Runnable task) {
+        if (timer == null) {
+            return null;
+        }
+        try {
+            return timer.schedule(task, expiresAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException rejex) {
+            return null;
+        }
+    }
+
+    /**
+     * Thrown instead of calling a target, if the deadline has expired.
+     */
+    public static class ExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String targetUri) {
+            super(String.format("Deadline exceeded before calling %s", targetUri));
+        }
+    }
+}
@@ -16,19 +16,23 @@
 package org.huberb.proxyservlet;
 
 import java.net.URI;
-import java.util.BitSet;
 import java.util.function.Consumer;
 
 /**
  * Encodes characters in the query or fragment part of the URI.
+ * <p>
+ * Escaped characters are written as percent triplets of their UTF-8 bytes,
+ * by a hex lookup table, thus no formatter, and no string is allocated per
+ * character.
  *
  * @author pi
  */
 class Encoding {
 
-    private static final BitSet asciiQueryChars = createBitSet();
+    private static final boolean[] asciiQueryChars = createAsciiQueryChars();
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
-    private static BitSet createBitSet() {
+    private static boolean[] createAsciiQueryChars() {
 
         /*
          * Plus alphanum
@@ -41,16 +45,16 @@ class Encoding {
         char[] cPunct = ",;:$&+=".toCharArray();
         char[] cReserved = "/@".toCharArray();
 
-        final BitSet bitSet = new BitSet(128);
+        final boolean[] chars = new boolean[128];
 
-        Consumer<char[]> charsConsumer = chars -> {
-            for (char c : chars) {
-                bitSet.set(c);
+        Consumer<char[]> charsConsumer = cs -> {
+            for (char c : cs) {
+                chars[c] = true;
             }
         };
         Consumer<String> stringConsumer = s -> {
             for (int i = 0; i < s.length(); i += 1) {
-                bitSet.set(s.charAt(i));
+                chars[s.charAt(i)] = true;
             }
         };
         stringConsumer.accept("abcdefghijklmnopqrstuvwxyz");
@@ -59,9 +63,9 @@ class Encoding {
         charsConsumer.accept(cUnreserved);
         charsConsumer.accept(cPunct);
         charsConsumer.accept(cReserved);
-        bitSet.set('%'); //leave existing percent escapes in place
+        chars['%'] = true; //leave existing percent escapes in place
 
-        return bitSet;
+        return chars;
     }
 
     private Encoding() {
@@ -79,37 +83,95 @@ class Encoding {
      * @param in example: name=value&amp;foo=bar#fragment
      * @param encodePercent determine whether percent characters need to be
      * encoded
-     * @return
+     * @return {@code in} itself if nothing needs to be escaped
      */
     static CharSequence encodeUriQuery(CharSequence in, boolean encodePercent) {
         //Note that I can't simply use URI.java to encode because it will escape pre-existing escaped things.
-        StringBuilder outBuf = null;
-        for (int i = 0; i < in.length(); i++) {
-            char c = in.charAt(i);
-            boolean escape = true;
-            if (c < 128) {
-                if (asciiQueryChars.get(c) && !(encodePercent && c == '%')) {
-                    escape = false;
-                }
-            } else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {
-                //not-ascii
-                escape = false;
+        final int i = indexOfEscape(in, encodePercent);
+        if (i < 0) {
+            return in;
+        }
+        StringBuilder outBuf = new StringBuilder(in.length() + 5 * 3);
+        outBuf.append(in, 0, i);
+        return appendEscaped(in, i, encodePercent, outBuf);
+    }
+
+    /**
+     * Encodes characters in the query or fragment part of the URI, appending
+     * to {@code outBuf}.
+     *
+     * @param in example: name=value&amp;foo=bar#fragment
+     * @param encodePercent determine whether percent characters need to be
+     * encoded
+     * @param outBuf
+     * @return {@code outBuf}
+     * @see #encodeUriQuery(CharSequence, boolean)
+     */
+    static StringBuilder encodeUriQuery(CharSequence in, boolean encodePercent, StringBuilder outBuf) {
+        final int i = indexOfEscape(in, encodePercent);
+        if (i < 0) {
+            return outBuf.append(in);
+        }
+        outBuf.append(in, 0, i);
+        return appendEscaped(in, i, encodePercent, outBuf);
+    }
+
+    private static boolean isEscaped(char c, boolean encodePercent) {
+        return c >= 128 || !asciiQueryChars[c] || (encodePercent && c == '%');
+    }
+
+    private static int indexOfEscape(CharSequence in, boolean encodePercent) {
+        for (int i = 0; i < in.length(); i += 1) {
+            if (isEscaped(in.charAt(i), encodePercent)) {
+                return i;
             }
-            if (!escape) {
-                if (outBuf != null) {
-                    outBuf.append(c);
-                }
+        }
+        return -1;
+    }
+
+    /**
+     * Append {@code in} from index {@code start} on, escaping characters as
+     * percent triplets of their UTF-8 bytes.
+     * <p>
+     * An unpaired surrogate is not encodable, it is written as {@code '?'},
+     * like {@link java.nio.charset.StandardCharsets#UTF_8} does.
+     */
+    private static StringBuilder appendEscaped(CharSequence in, int start, boolean encodePercent, StringBuilder outBuf) {
+        final int length = in.length();
+        for (int i = start; i < length; i += 1) {
+            final char c = in.charAt(i);
+            if (!isEscaped(c, encodePercent)) {
+                outBuf.append(c);
+            } else if (c < 0x80) {
+                appendPercent(outBuf, c);
+            } else if (c < 0x800) {
+                appendPercent(outBuf, 0xC0 | (c >> 6));
+                appendPercent(outBuf, 0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                appendPercent(outBuf, 0xE0 | (c >> 12));
+                appendPercent(outBuf, 0x80 | ((c >> 6) & 0x3F));
+                appendPercent(outBuf, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(in.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, in.charAt(i + 1));
+                i += 1;
+                appendPercent(outBuf, 0xF0 | (codePoint >> 18));
+                appendPercent(outBuf, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendPercent(outBuf, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendPercent(outBuf, 0x80 | (codePoint & 0x3F));
             } else {
-                //escape
-                if (outBuf == null) {
-                    outBuf = new StringBuilder(in.length() + 5 * 3);
-                    outBuf.append(in, 0, i);
-                }
-                //leading %, 0 padded, width 2, capital hex
-                outBuf.append(String.format("%%%02X", (int) c));
+                appendPercent(outBuf, '?');
             }
         }
-        return outBuf != null ? outBuf : in;
+        return outBuf;
+    }
+
+    /**
+     * Append leading %, and two capital hex digits of a byte.
+     */
+    private static void appendPercent(StringBuilder outBuf, int b) {
+        outBuf.append('%')
+                .append(HEX_DIGITS[(b >> 4) & 0x0F])
+                .append(HEX_DIGITS[b & 0x0F]);
     }
 
 }
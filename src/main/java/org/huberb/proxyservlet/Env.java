@@ -27,6 +27,7 @@ import org.apache.http.client.utils.URIUtils;
 public class Env {
 
     private static final String MULTIPROXYSERVLET = "multi-proxy-servlet";
+    private static final String COOKIE_NAME_PREFIX = "!Proxy!" + MULTIPROXYSERVLET;
 
     private final String targetUri;
     private final HttpHost targetHost;
@@ -50,7 +51,7 @@ public class Env {
      * @return
      */
     public String getCookieNamePrefix() {
-        return "!Proxy!" + MULTIPROXYSERVLET;
+        return COOKIE_NAME_PREFIX;
     }
 
     static class Builder {
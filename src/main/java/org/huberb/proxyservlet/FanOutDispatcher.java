@@ -0,0 +1,901 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+
+/**
+ * Dispatch one servlet request to all targets.
+ * <p>
+ * The secondary targets are sent to the executor, the primary target
+ * (index 0) is processed in the calling thread. Only the primary target is
+ * joined, thus the latency seen by the client is the latency of the primary
+ * target, and not the sum of the latencies of all targets.
+ * <p>
+ * In {@link FanOutMode#MIRROR} mode the secondary targets are dispatched only
+ * after the response of the primary target has been completed. Without an
+ * executor they are processed sequentially in a container thread started by
+ * the {@link AsyncContext}.
+ * <p>
+ * In {@link FanOutMode#RACE} mode all targets are sent at once, and the first
+ * target responding successfully wins the {@link Race}. It requires an
+ * executor, and uses blocking servlet I/O.
+ * <p>
+ * In {@link FanOutMode#HEDGE} mode the second target enters the race only if
+ * the primary target has not answered within the delay of the
+ * {@link HedgePolicy}.
+ * <p>
+ * In {@link FanOutMode#AGGREGATE} mode the responses of all targets are sent
+ * as parts of a {@link MultipartResponse}. Without an executor the targets are
+ * processed sequentially.
+ * <p>
+ * In {@link FanOutMode#SHADOW} mode the targets are sent as in
+ * {@link FanOutMode#PARALLEL} mode, and each secondary target is compared
+ * against the primary target by a {@link ShadowComparison}. It uses blocking
+ * servlet I/O, and reads the secondary responses in executor threads.
+ * <p>
+ * All proxy requests are created in the calling thread before dispatching,
+ * as the servlet request must not be accessed after the primary target has
+ * completed. A request body is read once into a {@link RequestBodySpool},
+ * which is replayed to every target.
+ * <p>
+ * If {@code doNonBlockingIo} is configured, the request body is read by a
+ * {@link RequestBodyReadListener}, and the primary target is processed by
+ * {@link Mediator#serviceAsync}, thus the calling thread returns immediately.
+ * <p>
+ * Mediators using an {@link AsyncHttpClientExecutor} send to the secondary
+ * targets without occupying an executor thread.
+ * <p>
+ * If {@code mirrorQueueCapacity} is configured, the secondary targets pass a
+ * bounded {@link MirrorQueue}, thus a slow secondary target can not exhaust
+ * memory.
+ * <p>
+ * If {@code circuitBreakerFailureRate} is configured, a target whose
+ * {@link CircuitBreaker} is open is not called. A secondary target is skipped,
+ * the primary target is answered with status 503.
+ * <p>
+ * If the servlet request has a {@link Deadline}, a target is not called once
+ * the deadline has expired. A secondary target is skipped, the primary target
+ * is answered with status 504.
+ *
+ * @author pi
+ */
+public class FanOutDispatcher implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(FanOutDispatcher.class.getName());
+    private final Config config;
+    private final FanOutMode fanOutMode;
+    private final ExecutorService executorService;
+    private final Function<Env, Mediator> mediatorFactory;
+    private final Consumer<TargetOutcome> outcomeConsumer;
+    private final MirrorQueue mirrorQueue;
+    private final boolean doMirrorQueue;
+    private final CircuitBreakerRegistry circuitBreakerRegistry;
+    private final HedgePolicy hedgePolicy;
+    private final ShadowStats shadowStats;
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param config
+     * @param executorService executor for the secondary targets, if
+     * {@code null} all targets are processed sequentially in the calling thread
+     * @param mediatorFactory create a {@link Mediator} for a target
+     * @param outcomeConsumer receives the outcome of each target
+     */
+    public FanOutDispatcher(Config config,
+            ExecutorService executorService,
+            Function<Env, Mediator> mediatorFactory,
+            Consumer<TargetOutcome> outcomeConsumer) {
+        this(config, executorService, mediatorFactory, outcomeConsumer, null);
+    }
+
+    /**
+     * Create a dispatcher, taking over the mirror queue, the circuit
+     * breakers, the hedge latencies, and the shadow counters of the
+     * dispatcher of a former configuration.
+     * <p>
+     * Entries queued by the former dispatcher keep draining, and the counters
+     * of the queue go on. The queue keeps its settings, even if this
+     * configuration differs; if this configuration uses no queue, the queue
+     * just drains.
+     *
+     * @param config
+     * @param executorService executor for the secondary targets, if
+     * {@code null} all targets are processed sequentially in the calling thread
+     * @param mediatorFactory create a {@link Mediator} for a target
+     * @param outcomeConsumer receives the outcome of each target
+     * @param previous the dispatcher of the former configuration, or
+     * {@code null}
+     */
+    public FanOutDispatcher(Config config,
+            ExecutorService executorService,
+            Function<Env, Mediator> mediatorFactory,
+            Consumer<TargetOutcome> outcomeConsumer,
+            FanOutDispatcher previous) {
+        this.config = config;
+        this.fanOutMode = FanOutMode.of(config.getFanOutMode());
+        this.executorService = executorService;
+        this.mediatorFactory = mediatorFactory;
+        this.outcomeConsumer = outcomeConsumer;
+        this.doMirrorQueue = config.getMirrorQueueCapacity() > 0 && isConcurrent();
+        if (previous != null && previous.mirrorQueue != null) {
+            this.mirrorQueue = previous.mirrorQueue;
+        } else {
+            this.mirrorQueue = doMirrorQueue ? createMirrorQueue(config, executorService) : null;
+        }
+        this.circuitBreakerRegistry = config.getCircuitBreakerFailureRate() > 0
+                ? new CircuitBreakerRegistry(config, previous != null ? previous.circuitBreakerRegistry : null)
+                : null;
+        this.hedgePolicy = fanOutMode == FanOutMode.HEDGE
+                ? new HedgePolicy(config, previous != null ? previous.hedgePolicy : null)
+                : null;
+        this.shadowStats = fanOutMode == FanOutMode.SHADOW
+                ? new ShadowStats(config, previous != null ? previous.shadowStats : null)
+                : null;
+    }
+
+    private static MirrorQueue createMirrorQueue(Config config, ExecutorService executorService) {
+        final int capacity = config.getMirrorQueueCapacity();
+        final int concurrency;
+        if (config.getFanOutThreads() > 0) {
+            concurrency = config.getFanOutThreads();
+        } else if (config.isDoVirtualThreads() || executorService == null) {
+            // virtual threads, or the async transport are limited by the queue only
+            concurrency = capacity;
+        } else {
+            concurrency = Runtime.getRuntime().availableProcessors();
+        }
+        return new MirrorQueue(capacity,
+                MirrorDropPolicy.of(config.getMirrorDropPolicy()),
+                config.getMirrorQueueTimeout() >= 0 ? config.getMirrorQueueTimeout() : 100L,
+                config.getMirrorQueueMaxAge(),
+                concurrency,
+                executorService != null ? executorService : Runnable::run);
+    }
+
+    /**
+     * The mirror queue, if configured, or taken over from a former
+     * dispatcher.
+     *
+     * @return the queue, or {@code null}
+     */
+    public MirrorQueue getMirrorQueue() {
+        return mirrorQueue;
+    }
+
+    /**
+     * The circuit breakers of the targets, if configured.
+     *
+     * @return the registry, or {@code null}
+     */
+    public CircuitBreakerRegistry getCircuitBreakerRegistry() {
+        return circuitBreakerRegistry;
+    }
+
+    /**
+     * The hedge policy, if in {@link FanOutMode#HEDGE} mode.
+     *
+     * @return the policy, or {@code null}
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * The comparison counters, and samples, if in {@link FanOutMode#SHADOW}
+     * mode.
+     *
+     * @return the stats, or {@code null}
+     */
+    public ShadowStats getShadowStats() {
+        return shadowStats;
+    }
+
+    /**
+     * Send the servlet request to all targets, and send the response of the
+     * primary target back to the client.
+     *
+     * @param envList the targets, the first one is the primary target
+     * @param servletRequest
+     * @param servletResponse
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void dispatch(List<Env> envList, HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException, ServletException {
+        if (envList.isEmpty()) {
+            return;
+        }
+        // fix the deadline before reading the request body
+        Deadline.of(config, servletRequest);
+        final boolean race = (fanOutMode == FanOutMode.RACE || fanOutMode == FanOutMode.HEDGE)
+                && executorService != null && envList.size() > 1;
+        final boolean aggregate = fanOutMode == FanOutMode.AGGREGATE;
+        final ShadowComparison shadowComparison = shadowStats != null && envList.size() > 1
+                ? new ShadowComparison(shadowStats, servletRequest.getRequestURI())
+                : null;
+        if (config.isDoNonBlockingIo() && executorService != null && !race && !aggregate
+                && shadowComparison == null && servletRequest.isAsyncSupported()) {
+            dispatchNonBlocking(envList, servletRequest, servletResponse);
+            return;
+        }
+        // read the request body once, for all targets
+        RequestBodySpool requestBodySpool = HttpRequestProxyFactory.hasRequestEntity(servletRequest)
+                ? RequestBodySpool.read(servletRequest.getInputStream(), config,
+                        HttpRequestProxyFactory.getContentLength(servletRequest))
+                : null;
+        try {
+            if (fanOutMode == FanOutMode.MIRROR) {
+                dispatchMirror(envList, requestBodySpool, servletRequest, servletResponse);
+            } else if (aggregate) {
+                dispatchAggregate(envList, requestBodySpool, servletRequest, servletResponse);
+            } else if (race && fanOutMode == FanOutMode.HEDGE) {
+                dispatchHedge(envList, requestBodySpool, servletRequest, servletResponse);
+            } else if (race) {
+                dispatchRace(envList, requestBodySpool, servletRequest, servletResponse);
+            } else if (!isConcurrent() || envList.size() == 1
+                    || (shadowComparison != null && executorService == null)) {
+                dispatchSequential(envList, requestBodySpool, servletRequest, servletResponse, shadowComparison);
+            } else {
+                dispatchParallel(envList, requestBodySpool, servletRequest, servletResponse, shadowComparison);
+            }
+        } finally {
+            if (requestBodySpool != null) {
+                requestBodySpool.release();
+            }
+        }
+    }
+
+    private void dispatchParallel(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+            ShadowComparison shadowComparison) throws IOException, ServletException {
+        // 1 Create all proxy requests while the servlet request is valid
+        List<Mediator> mediatorList = createMediators(envList);
+        List<HttpRequest> proxyRequestList = createProxyRequests(mediatorList, requestBodySpool, servletRequest);
+
+        // 2 Start the secondary targets
+        dispatchSecondaries(mediatorList, proxyRequestList, requestBodySpool, shadowComparison);
+
+        // 3 Process the primary target, and join on it
+        servicePrimary(mediatorList.get(0), proxyRequestList.get(0), servletRequest, servletResponse, shadowComparison);
+    }
+
+    private void dispatchMirror(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException, ServletException {
+        // 1 Snapshot the servlet request for all targets
+        List<Mediator> mediatorList = createMediators(envList);
+        List<HttpRequest> proxyRequestList = createProxyRequests(mediatorList, requestBodySpool, servletRequest);
+
+        // 2 Respond with the primary target, and complete the request
+        AsyncContext asyncContext = servletRequest.isAsyncSupported()
+                ? servletRequest.startAsync(servletRequest, servletResponse)
+                : null;
+        boolean mirrorStarted = false;
+        try {
+            try {
+                servicePrimary(mediatorList.get(0), proxyRequestList.get(0), servletRequest, servletResponse, null);
+                servletResponse.flushBuffer();
+            } finally {
+                if (asyncContext != null) {
+                    // without executor the calling thread would delay the
+                    // response, start the mirror before completing
+                    if (!isConcurrent()) {
+                        mirrorStarted = startMirror(asyncContext, mediatorList, proxyRequestList, requestBodySpool);
+                    }
+                    // complete even if the client is gone, the request would hang
+                    // until the async timeout otherwise
+                    asyncContext.complete();
+                }
+            }
+        } finally {
+            // 3 Mirror to the secondary targets, regardless of the primary outcome
+            if (isConcurrent()) {
+                dispatchSecondaries(mediatorList, proxyRequestList, requestBodySpool, null);
+            } else if (!mirrorStarted) {
+                mirrorSequential(mediatorList, proxyRequestList);
+            }
+        }
+    }
+
+    /**
+     * Mirror to the secondary targets in a container thread, thus the
+     * response completes without waiting for them.
+     *
+     * @return {@code true} if started, {@code false} if the container refused
+     */
+    private boolean startMirror(AsyncContext asyncContext, List<Mediator> mediatorList,
+            List<HttpRequest> proxyRequestList, RequestBodySpool requestBodySpool) {
+        if (mediatorList.size() == 1) {
+            return true;
+        }
+        final RequestBodySpool spool = requestBodySpool != null ? requestBodySpool.retain() : null;
+        try {
+            asyncContext.start(() -> {
+                try {
+                    mirrorSequential(mediatorList, proxyRequestList);
+                } finally {
+                    if (spool != null) {
+                        spool.release();
+                    }
+                }
+            });
+            return true;
+        } catch (IllegalStateException isex) {
+            LOG.log(Level.FINE, "starting mirror in container thread", isex);
+            if (spool != null) {
+                spool.release();
+            }
+            return false;
+        }
+    }
+
+    private void mirrorSequential(List<Mediator> mediatorList, List<HttpRequest> proxyRequestList) {
+        for (int i = 1; i < mediatorList.size(); i += 1) {
+            mirrorSequential(i, mediatorList.get(i), proxyRequestList.get(i), null);
+        }
+    }
+
+    private void dispatchRace(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException {
+        // 1 Create all proxy requests while the servlet request is valid
+        List<Mediator> mediatorList = createMediators(envList);
+        List<HttpRequest> proxyRequestList = createProxyRequests(mediatorList, requestBodySpool, servletRequest);
+        Race race = new Race(proxyRequestList);
+
+        // 2 Start all targets, the primary target in the calling thread
+        for (int i = 1; i < mediatorList.size(); i += 1) {
+            final int index = i;
+            final Mediator mediator = mediatorList.get(i);
+            final HttpRequest proxyRequest = proxyRequestList.get(i);
+            try {
+                checkTarget(mediator, proxyRequest);
+            } catch (IOException ioex) {
+                report(TargetOutcome.failed(index, mediator.getEnv(), ioex, System.nanoTime()));
+                race.forfeit(index);
+                continue;
+            }
+            final RequestBodySpool spool = requestBodySpool != null ? requestBodySpool.retain() : null;
+            final long startNanos = System.nanoTime();
+            try {
+                executorService.execute(() -> {
+                    try {
+                        report(mediator.race(index, proxyRequest, servletRequest, servletResponse, race));
+                    } finally {
+                        if (spool != null) {
+                            spool.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rejex) {
+                if (spool != null) {
+                    spool.release();
+                }
+                report(TargetOutcome.failed(index, mediator.getEnv(), rejex, startNanos));
+                race.forfeit(index);
+            }
+        }
+        try {
+            checkTarget(mediatorList.get(0), proxyRequestList.get(0));
+            report(mediatorList.get(0).race(0, proxyRequestList.get(0), servletRequest, servletResponse, race));
+        } catch (IOException ioex) {
+            report(TargetOutcome.failed(0, mediatorList.get(0).getEnv(), ioex, System.nanoTime()));
+            race.forfeit(0);
+        }
+
+        // 3 Wait until the winner has responded, losers are aborted already
+        awaitRace(race, proxyRequestList.get(0), servletResponse);
+    }
+
+    private void dispatchHedge(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException {
+        // 1 Create the proxy requests of the primary, and the hedge target
+        List<Mediator> mediatorList = createMediators(envList.subList(0, 2));
+        List<HttpRequest> proxyRequestList = createProxyRequests(mediatorList, requestBodySpool, servletRequest);
+        Race race = new Race(proxyRequestList, 1);
+        long hedgeDelayMillis = hedgePolicy.hedgeDelayMillis(envList.get(0).getTargetUri());
+
+        // 2 Start the primary target in an executor thread
+        final Mediator primary = mediatorList.get(0);
+        final HttpRequest primaryRequest = proxyRequestList.get(0);
+        final Mediator hedge = mediatorList.get(1);
+        final HttpRequest hedgeRequest = proxyRequestList.get(1);
+        boolean hedgeEntered = false;
+        try {
+            checkTarget(primary, primaryRequest);
+            final RequestBodySpool spool = requestBodySpool != null ? requestBodySpool.retain() : null;
+            try {
+                executorService.execute(() -> {
+                    try {
+                        report(primary.race(0, primaryRequest, servletRequest, servletResponse, race));
+                    } finally {
+                        if (spool != null) {
+                            spool.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rejex) {
+                if (spool != null) {
+                    spool.release();
+                }
+                // no thread for the primary target, thus no hedge either
+                report(primary.race(0, primaryRequest, servletRequest, servletResponse, race));
+                hedgeDelayMillis = -1L;
+            }
+        } catch (IOException ioex) {
+            report(TargetOutcome.failed(0, primary.getEnv(), ioex, System.nanoTime()));
+            // the primary target is skipped, send the hedge right away
+            hedgeEntered = enterHedge(race, hedge, hedgeRequest);
+            race.forfeit(0);
+            hedgeDelayMillis = -1L;
+        }
+
+        // 3 Send the hedge in the calling thread, if the primary target is slow
+        if (hedgeDelayMillis >= 0L
+                && !race.awaitArrival(hedgeDelayMillis)
+                && hedgePolicy.tryAcquire()) {
+            hedgeEntered = enterHedge(race, hedge, hedgeRequest);
+        }
+        if (hedgeEntered) {
+            report(hedge.race(1, hedgeRequest, servletRequest, servletResponse, race));
+        }
+
+        // 4 Wait until the winner has responded
+        awaitRace(race, primaryRequest, servletResponse);
+    }
+
+    private void dispatchAggregate(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException {
+        // 1 Create all proxy requests while the servlet request is valid
+        List<Mediator> mediatorList = createMediators(envList);
+        List<HttpRequest> proxyRequestList = createProxyRequests(mediatorList, requestBodySpool, servletRequest);
+        MultipartResponse multipartResponse = new MultipartResponse(servletResponse);
+        CountDownLatch completed = new CountDownLatch(mediatorList.size());
+
+        // 2 Start the secondary targets, then process the primary target
+        int unstarted = mediatorList.size();
+        try {
+            for (int i = mediatorList.size() - 1; i >= 0; i -= 1) {
+                final int index = i;
+                // the targets below are not started yet
+                unstarted = index;
+                final Mediator mediator = mediatorList.get(i);
+                final HttpRequest proxyRequest = proxyRequestList.get(i);
+                final long startNanos = System.nanoTime();
+                try {
+                    checkTarget(mediator, proxyRequest);
+                } catch (IOException ioex) {
+                    report(TargetOutcome.failed(index, mediator.getEnv(), ioex, startNanos));
+                    completed.countDown();
+                    multipartResponse.writeErrorPart(mediator.getEnv().getTargetUri(), ioex, 0L);
+                    continue;
+                }
+                if (index == 0 || executorService == null) {
+                    // the calling thread processes secondaries only if there is no executor
+                    try {
+                        report(mediator.aggregate(index, proxyRequest, multipartResponse));
+                    } finally {
+                        completed.countDown();
+                    }
+                    continue;
+                }
+                final RequestBodySpool spool = requestBodySpool != null ? requestBodySpool.retain() : null;
+                try {
+                    executorService.execute(() -> {
+                        try {
+                            report(mediator.aggregate(index, proxyRequest, multipartResponse));
+                        } finally {
+                            completed.countDown();
+                            if (spool != null) {
+                                spool.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException rejex) {
+                    if (spool != null) {
+                        spool.release();
+                    }
+                    report(TargetOutcome.failed(index, mediator.getEnv(), rejex, startNanos));
+                    completed.countDown();
+                    multipartResponse.writeErrorPart(mediator.getEnv().getTargetUri(), rejex, 0L);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client has gone: stop the started targets writing, and wait
+            // for them, as the container recycles the response
+            multipartResponse.fail();
+            for (; unstarted > 0; unstarted -= 1) {
+                completed.countDown();
+            }
+            try {
+                awaitCompleted(completed);
+            } catch (InterruptedIOException iioex) {
+                e.addSuppressed(iioex);
+            }
+            throw e;
+        }
+
+        // 3 Wait for all parts, then close the multipart body
+        awaitCompleted(completed);
+        multipartResponse.close();
+    }
+
+    private static void awaitCompleted(CountDownLatch completed) throws InterruptedIOException {
+        try {
+            completed.await();
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while aggregating targets");
+        }
+    }
+
+    private boolean enterHedge(Race race, Mediator hedge, HttpRequest hedgeRequest) {
+        try {
+            checkTarget(hedge, hedgeRequest);
+        } catch (IOException ioex) {
+            report(TargetOutcome.failed(1, hedge.getEnv(), ioex, System.nanoTime()));
+            return false;
+        }
+        return race.enter(1);
+    }
+
+    private void awaitRace(Race race, HttpRequest primaryRequest, HttpServletResponse servletResponse) throws IOException {
+        if (race.await() < 0 && !servletResponse.isCommitted()) {
+            Deadline deadline = ProxyRequest.deadlineOf(primaryRequest);
+            servletResponse.sendError(deadline != null && deadline.isExpired()
+                    ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                    : HttpServletResponse.SC_BAD_GATEWAY);
+        }
+    }
+
+    private void dispatchNonBlocking(List<Env> envList,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException {
+        final long startNanos = System.nanoTime();
+        AsyncContext asyncContext = servletRequest.startAsync(servletRequest, servletResponse);
+        // waiting for the target is limited by readTimeout, a long transfer
+        // to a slow client must not be cut off
+        asyncContext.setTimeout(0);
+        if (!HttpRequestProxyFactory.hasRequestEntity(servletRequest)) {
+            dispatchNonBlocking(envList, null, asyncContext);
+            return;
+        }
+        // 1 Read the request body as it arrives, then continue
+        RequestBodyReadListener readListener = new RequestBodyReadListener(servletRequest.getInputStream(), config,
+                HttpRequestProxyFactory.getContentLength(servletRequest));
+        readListener.getSpoolFuture().whenComplete((requestBodySpool, t) -> {
+            if (t != null) {
+                failNonBlocking(envList.get(0), asyncContext, t, startNanos);
+            } else {
+                dispatchNonBlocking(envList, requestBodySpool, asyncContext);
+            }
+        });
+        servletRequest.getInputStream().setReadListener(readListener);
+    }
+
+    private void dispatchNonBlocking(List<Env> envList, RequestBodySpool requestBodySpool, AsyncContext asyncContext) {
+        final long startNanos = System.nanoTime();
+        final List<Mediator> mediatorList;
+        final List<HttpRequest> proxyRequestList;
+        try {
+            // 2 Create all proxy requests while the servlet request is valid
+            mediatorList = createMediators(envList);
+            proxyRequestList = createProxyRequests(mediatorList, requestBodySpool,
+                    (HttpServletRequest) asyncContext.getRequest());
+        } catch (IOException | RuntimeException e) {
+            if (requestBodySpool != null) {
+                requestBodySpool.release();
+            }
+            failNonBlocking(envList.get(0), asyncContext, e, startNanos);
+            return;
+        }
+        // 3 Start the secondary targets, and the primary target
+        if (fanOutMode != FanOutMode.MIRROR) {
+            dispatchSecondaries(mediatorList, proxyRequestList, requestBodySpool, null);
+        }
+        try {
+            checkTarget(mediatorList.get(0), proxyRequestList.get(0));
+        } catch (IOException ioex) {
+            if (fanOutMode == FanOutMode.MIRROR) {
+                dispatchSecondaries(mediatorList, proxyRequestList, requestBodySpool, null);
+            }
+            if (requestBodySpool != null) {
+                requestBodySpool.release();
+            }
+            failNonBlocking(envList.get(0), asyncContext, ioex, startNanos);
+            return;
+        }
+        mediatorList.get(0).serviceAsync(0, proxyRequestList.get(0), asyncContext, executorService)
+                .whenComplete((targetOutcome, t) -> {
+                    report(outcomeOf(targetOutcome, t, 0, envList.get(0), startNanos));
+                    if (fanOutMode == FanOutMode.MIRROR) {
+                        dispatchSecondaries(mediatorList, proxyRequestList, requestBodySpool, null);
+                    }
+                    if (requestBodySpool != null) {
+                        requestBodySpool.release();
+                    }
+                });
+    }
+
+    private void failNonBlocking(Env env, AsyncContext asyncContext, Throwable t, long startNanos) {
+        report(TargetOutcome.failed(0, env, t, startNanos));
+        HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+        try {
+            if (!servletResponse.isCommitted()) {
+                if (t instanceof RequestBodySpool.TooLargeException) {
+                    servletResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, t.getMessage());
+                } else if (t instanceof CircuitBreaker.OpenException || t instanceof Deadline.ExceededException) {
+                    servletResponse.sendError(skippedStatus((IOException) t), t.getMessage());
+                } else {
+                    servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "sending error response", e);
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    private List<Mediator> createMediators(List<Env> envList) {
+        List<Mediator> mediatorList = new ArrayList<>(envList.size());
+        for (Env env : envList) {
+            mediatorList.add(mediatorFactory.apply(env));
+        }
+        return mediatorList;
+    }
+
+    private List<HttpRequest> createProxyRequests(List<Mediator> mediatorList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest) throws IOException {
+        List<HttpRequest> proxyRequestList = new ArrayList<>(mediatorList.size());
+        for (Mediator mediator : mediatorList) {
+            proxyRequestList.add(mediator.createProxyRequest(servletRequest, requestBodySpool));
+        }
+        return proxyRequestList;
+    }
+
+    /**
+     * Tell if secondary targets can be sent concurrently, either by the
+     * executor, or by an {@link AsyncHttpClientExecutor}.
+     */
+    private boolean isConcurrent() {
+        return executorService != null || config.isDoAsyncTransport();
+    }
+
+    /**
+     * Check if a target may be called, considering the deadline, and the
+     * circuit breaker of the target.
+     *
+     * @throws Deadline.ExceededException if the deadline has expired
+     * @throws CircuitBreaker.OpenException if the circuit breaker is open
+     */
+    private void checkTarget(Mediator mediator, HttpRequest proxyRequest) throws IOException {
+        Deadline deadline = ProxyRequest.deadlineOf(proxyRequest);
+        if (deadline != null && deadline.isExpired()) {
+            throw new Deadline.ExceededException(mediator.getEnv().getTargetUri());
+        }
+        if (circuitBreakerRegistry != null) {
+            HttpHost targetHost = mediator.getEnv().getTargetHost();
+            if (!circuitBreakerRegistry.get(targetHost).tryAcquire()) {
+                throw new CircuitBreaker.OpenException(targetHost);
+            }
+        }
+    }
+
+    /**
+     * Send the secondary targets to the executor, or to the
+     * {@link AsyncHttpClientExecutor}, each one holding a reference to the
+     * request body spool.
+     * <p>
+     * With a shadow comparison the responses are read in executor threads,
+     * even by the {@link AsyncHttpClientExecutor}.
+     */
+    private void dispatchSecondaries(List<Mediator> mediatorList, List<HttpRequest> proxyRequestList,
+            RequestBodySpool requestBodySpool, ShadowComparison shadowComparison) {
+        for (int i = 1; i < mediatorList.size(); i += 1) {
+            final int index = i;
+            final Mediator mediator = mediatorList.get(i);
+            final HttpRequest proxyRequest = proxyRequestList.get(i);
+            try {
+                checkTarget(mediator, proxyRequest);
+            } catch (IOException ioex) {
+                report(TargetOutcome.failed(index, mediator.getEnv(), ioex, System.nanoTime()));
+                continue;
+            }
+            final RequestBodySpool spool = requestBodySpool != null ? requestBodySpool.retain() : null;
+            final long startNanos = System.nanoTime();
+            final Supplier<CompletableFuture<TargetOutcome>> exchange = shadowComparison != null
+                    ? () -> CompletableFuture.completedFuture(mediator.mirror(index, proxyRequest, shadowComparison))
+                    : () -> mediator.mirrorAsync(index, proxyRequest);
+            if (doMirrorQueue) {
+                mirrorQueue.offer(() -> exchange.get().whenComplete((targetOutcome, t) -> {
+                    report(outcomeOf(targetOutcome, t, index, mediator.getEnv(), startNanos));
+                    if (spool != null) {
+                        spool.release();
+                    }
+                }), rejex -> {
+                    if (spool != null) {
+                        spool.release();
+                    }
+                    report(TargetOutcome.failed(index, mediator.getEnv(), rejex, startNanos));
+                });
+                continue;
+            }
+            if (shadowComparison == null && (mediator.isAsyncTransport() || executorService == null)) {
+                exchange.get().whenComplete((targetOutcome, t) -> {
+                    report(outcomeOf(targetOutcome, t, index, mediator.getEnv(), startNanos));
+                    if (spool != null) {
+                        spool.release();
+                    }
+                });
+                continue;
+            }
+            try {
+                executorService.execute(() -> {
+                    try {
+                        report(exchange.get().handle((targetOutcome, t)
+                                -> outcomeOf(targetOutcome, t, index, mediator.getEnv(), startNanos)).join());
+                    } finally {
+                        if (spool != null) {
+                            spool.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rejex) {
+                if (spool != null) {
+                    spool.release();
+                }
+                report(TargetOutcome.failed(index, mediator.getEnv(), rejex, startNanos));
+            }
+        }
+    }
+
+    private void dispatchSequential(List<Env> envList, RequestBodySpool requestBodySpool,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+            ShadowComparison shadowComparison) throws IOException, ServletException {
+        for (int i = 0; i < envList.size(); i += 1) {
+            Mediator mediator = mediatorFactory.apply(envList.get(i));
+            HttpRequest proxyRequest = mediator.createProxyRequest(servletRequest, requestBodySpool);
+            if (i == 0) {
+                servicePrimary(mediator, proxyRequest, servletRequest, servletResponse, shadowComparison);
+            } else {
+                mirrorSequential(i, mediator, proxyRequest, shadowComparison);
+            }
+        }
+    }
+
+    private void mirrorSequential(int index, Mediator mediator, HttpRequest proxyRequest,
+            ShadowComparison shadowComparison) {
+        try {
+            checkTarget(mediator, proxyRequest);
+        } catch (IOException ioex) {
+            report(TargetOutcome.failed(index, mediator.getEnv(), ioex, System.nanoTime()));
+            return;
+        }
+        report(shadowComparison != null
+                ? mediator.mirror(index, proxyRequest, shadowComparison)
+                : mediator.mirror(index, proxyRequest));
+    }
+
+    private void servicePrimary(Mediator mediator, HttpRequest proxyRequest,
+            HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+            ShadowComparison shadowComparison) throws IOException, ServletException {
+        final long startNanos = System.nanoTime();
+        try {
+            checkTarget(mediator, proxyRequest);
+        } catch (IOException ioex) {
+            if (shadowComparison != null) {
+                shadowComparison.arrive(0, mediator.getEnv().getTargetUri(), null);
+            }
+            report(TargetOutcome.failed(0, mediator.getEnv(), ioex, startNanos));
+            servletResponse.sendError(skippedStatus(ioex), ioex.getMessage());
+            return;
+        }
+        try {
+            report(shadowComparison != null
+                    ? mediator.shadow(0, proxyRequest, servletRequest, servletResponse, shadowComparison)
+                    : mediator.service(0, proxyRequest, servletRequest, servletResponse));
+        } catch (IOException ioex) {
+            report(TargetOutcome.failed(0, mediator.getEnv(), ioex, startNanos));
+            Deadline deadline = ProxyRequest.deadlineOf(proxyRequest);
+            if (deadline != null && deadline.isExpired() && !servletResponse.isCommitted()) {
+                // aborted as the deadline expired
+                servletResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                return;
+            }
+            throw ioex;
+        } catch (ServletException | RuntimeException e) {
+            report(TargetOutcome.failed(0, mediator.getEnv(), e, startNanos));
+            throw e;
+        }
+    }
+
+    /**
+     * The status answering a primary target which was not called.
+     */
+    private static int skippedStatus(IOException ioex) {
+        return ioex instanceof Deadline.ExceededException
+                ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                : HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Return the outcome of a completed target future, or a failed outcome
+     * if the future completed exceptionally.
+     */
+    private static TargetOutcome outcomeOf(TargetOutcome targetOutcome, Throwable t,
+            int index, Env env, long startNanos) {
+        if (t == null && targetOutcome != null) {
+            return targetOutcome;
+        }
+        Throwable failure = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (failure == null) {
+            failure = new IllegalStateException("Target completed without outcome");
+        }
+        return TargetOutcome.failed(index, env, failure, startNanos);
+    }
+
+    private void report(TargetOutcome targetOutcome) {
+        if (circuitBreakerRegistry != null && targetOutcome != null) {
+            circuitBreakerRegistry.record(targetOutcome);
+        }
+        if (hedgePolicy != null && targetOutcome != null) {
+            hedgePolicy.record(targetOutcome);
+        }
+        try {
+            outcomeConsumer.accept(targetOutcome);
+        } catch (RuntimeException rtex) {
+            LOG.log(Level.WARNING, "reporting target outcome", rtex);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executorService != null) {
+            executorService.shutdown();
+            try {
+                if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                    executorService.shutdownNow();
+                }
+            } catch (InterruptedException iex) {
+                executorService.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mirrorQueue != null) {
+            mirrorQueue.clear();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Create the executor processing the secondary targets.
+ *
+ * @author pi
+ */
+class FanOutExecutors {
+
+    private static final Logger LOG = Logger.getLogger(FanOutExecutors.class.getName());
+
+    private FanOutExecutors() {
+    }
+
+    /**
+     * Create the executor as configured by {@code fanOutThreads}, and
+     * {@code doVirtualThreads}.
+     * <p>
+     * Virtual threads are used only if the runtime supports them, otherwise
+     * this falls back to a fixed pool of platform threads.
+     *
+     * @param config
+     * @param namePrefix prefix of the names of platform threads
+     * @return the executor, or {@code null} if {@code fanOutThreads} is
+     * {@code 0}
+     */
+    static ExecutorService newExecutorService(Config config, String namePrefix) {
+        int nThreads = config.getFanOutThreads();
+        if (nThreads == 0) {
+            return null;
+        }
+        if (config.isDoVirtualThreads()) {
+            ExecutorService executorService = newVirtualThreadPerTaskExecutor();
+            if (executorService != null) {
+                return executorService;
+            }
+            LOG.info("Virtual threads are not supported by this runtime, using platform threads");
+        }
+        if (nThreads < 0) {
+            nThreads = Runtime.getRuntime().availableProcessors();
+        }
+        return newPlatformThreadPool(nThreads, namePrefix);
+    }
+
+    /**
+     * Create a fixed pool of daemon platform threads.
+     *
+     * @param nThreads
+     * @param namePrefix
+     * @return
+     */
+    static ExecutorService newPlatformThreadPool(int nThreads, String namePrefix) {
+        return Executors.newFixedThreadPool(nThreads, newDaemonThreadFactory(namePrefix));
+    }
+
+    /**
+     * Create a cached pool of daemon platform threads, e.g. for the JDK
+     * client of the async transport.
+     *
+     * @param namePrefix
+     * @return
+     */
+    static ExecutorService newCachedPlatformThreadPool(String namePrefix) {
+        return Executors.newCachedThreadPool(newDaemonThreadFactory(namePrefix));
+    }
+
+    private static ThreadFactory newDaemonThreadFactory(String namePrefix) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        return r -> {
+            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Call {@code Executors.newVirtualThreadPerTaskExecutor()} by reflection,
+     * as the sources target Java 8.
+     *
+     * @return the executor, or {@code null} if the runtime does not support
+     * virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException nsmex) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. a preview feature, which is not enabled
+            LOG.log(Level.FINE, "creating virtual thread executor", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Locale;
+
+/**
+ * How a request is sent to the targets.
+ *
+ * @author pi
+ */
+public enum FanOutMode {
+
+    /**
+     * Send to all targets at once, respond with the primary target.
+     */
+    PARALLEL,
+    /**
+     * Respond with the primary target, and complete the request. Then send to
+     * the secondary targets in the background.
+     */
+    MIRROR,
+    /**
+     * Send to all targets at once, respond with the first target responding
+     * successfully, and abort the other targets.
+     */
+    RACE,
+    /**
+     * Send to the primary target. If it has not answered within its p95
+     * latency, send to the next target, too. Respond with the first target
+     * responding successfully.
+     */
+    HEDGE,
+    /**
+     * Send to all targets at once, respond with the responses of all targets
+     * as {@code multipart/mixed} body, in order of completion.
+     */
+    AGGREGATE,
+    /**
+     * Send to all targets at once, respond with the primary target, and
+     * compare the responses of the secondary targets against it.
+     */
+    SHADOW;
+
+    /**
+     * Parse a configuration value, ignoring case.
+     *
+     * @param value
+     * @return the mode, or {@link #PARALLEL} if the value is unknown
+     */
+    static FanOutMode of(String value) {
+        if (value != null) {
+            String normalized = value.trim().toUpperCase(Locale.ROOT);
+            for (FanOutMode mode : values()) {
+                if (mode.name().equals(normalized)) {
+                    return mode;
+                }
+            }
+        }
+        return PARALLEL;
+    }
+}
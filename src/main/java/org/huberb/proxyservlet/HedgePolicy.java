@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide when, and how often requests are hedged.
+ * <p>
+ * A request is hedged if the primary target has not answered within its
+ * rolling p95 latency, or within the configured {@code hedgeDelay}.
+ * <p>
+ * Hedges are limited by a token bucket. Each hedged-mode request deposits
+ * {@code hedgeMaxRate} percent of a token, each hedge takes one token. Thus at
+ * most that share of requests is hedged, even if a slow target makes every
+ * request exceed its p95.
+ *
+ * @author pi
+ */
+public class HedgePolicy {
+
+    /**
+     * The tracked latency percentile.
+     */
+    static final int PERCENTILE = 95;
+    /**
+     * Hedge rate in percent used if {@code hedgeMaxRate} is not configured.
+     */
+    static final int DEFAULT_MAX_RATE = 10;
+    /**
+     * Tokens the bucket holds at most, allowing short bursts of hedges.
+     */
+    static final int MAX_TOKENS = 10;
+    private static final long MILLI_TOKENS = 1000L;
+
+    private final long hedgeDelayMillis;
+    private final long depositMilliTokens;
+    private final AtomicLong milliTokens;
+    private final ConcurrentMap<String, LatencyTracker> latencyTrackers;
+
+    public HedgePolicy(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * Create a policy, taking over the latencies, and the hedge budget of the
+     * policy of a former configuration.
+     *
+     * @param config
+     * @param previous the policy of the former configuration, or {@code null}
+     */
+    public HedgePolicy(Config config, HedgePolicy previous) {
+        this.milliTokens = previous != null ? previous.milliTokens : new AtomicLong();
+        this.latencyTrackers = previous != null ? previous.latencyTrackers : new ConcurrentHashMap<>();
+        this.hedgeDelayMillis = config.getHedgeDelay();
+        this.depositMilliTokens = (config.getHedgeMaxRate() >= 0 ? config.getHedgeMaxRate() : DEFAULT_MAX_RATE)
+                * MILLI_TOKENS / 100L;
+    }
+
+    /**
+     * Get the latency tracker of a target, creating it on first use.
+     *
+     * @param targetUri
+     * @return
+     */
+    public LatencyTracker getLatencyTracker(String targetUri) {
+        LatencyTracker latencyTracker = latencyTrackers.get(targetUri);
+        if (latencyTracker == null) {
+            latencyTracker = latencyTrackers.computeIfAbsent(targetUri, uri -> new LatencyTracker(PERCENTILE));
+        }
+        return latencyTracker;
+    }
+
+    /**
+     * Record the outcome of a target, successful outcomes only.
+     * <p>
+     * A hedge is sent if the response of the primary target has not arrived
+     * in time, thus the time until the response headers arrived is recorded,
+     * not the time streaming the body.
+     *
+     * @param targetOutcome
+     */
+    public void record(TargetOutcome targetOutcome) {
+        if (targetOutcome.isSuccess() && targetOutcome.getStatusCode() < 500
+                && targetOutcome.getResponseNanos() >= 0L) {
+            getLatencyTracker(targetOutcome.getTargetUri()).record(targetOutcome.getResponseNanos());
+        }
+    }
+
+    /**
+     * The delay after which a request to the primary target is hedged.
+     * <p>
+     * Deposits the hedge budget of this request.
+     *
+     * @param targetUri the primary target
+     * @return the delay in milliseconds, or {@code -1} if the request is not
+     * hedged, as the latency of the target is not known yet
+     */
+    public long hedgeDelayMillis(String targetUri) {
+        milliTokens.getAndUpdate(t -> Math.min(MAX_TOKENS * MILLI_TOKENS, t + depositMilliTokens));
+        if (hedgeDelayMillis > 0) {
+            return hedgeDelayMillis;
+        }
+        long percentileNanos = getLatencyTracker(targetUri).getPercentileNanos();
+        return percentileNanos >= 0 ? Math.max(1L, TimeUnit.NANOSECONDS.toMillis(percentileNanos)) : -1L;
+    }
+
+    /**
+     * Take a token for sending a hedge.
+     *
+     * @return {@code false} if the hedge budget is exhausted
+     */
+    public boolean tryAcquire() {
+        return milliTokens.getAndUpdate(t -> t >= MILLI_TOKENS ? t - MILLI_TOKENS : t) >= MILLI_TOKENS;
+    }
+}
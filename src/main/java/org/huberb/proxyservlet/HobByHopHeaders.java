@@ -15,14 +15,20 @@
  */
 package org.huberb.proxyservlet;
 
-import java.util.Arrays;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
 
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.HeaderGroup;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
 
 /**
  * Header that should not be copied.
+ * <p>
+ * These are the "hop-by-hop" headers, and the headers listed in the
+ * {@code Connection} header of a message, see RFC 7230, section 6.1.
  *
  * @author pi
  */
@@ -30,34 +36,173 @@ class HobByHopHeaders {
 
     private HobByHopHeaders() {
     }
-    
+
     /**
-     * These are the "hop-by-hop" headers that should not be copied.
+     * Tell if a header is one of the "hop-by-hop" headers that should not be
+     * copied.
      * <p>
-     * I use an HttpClient @{link HeaderGroup} class instead of
-     * {@link Set<String>} because this approach does case insensitive lookup
-     * faster.
+     * The names are classified by their length, and first character, thus
+     * each name is compared case insensitive to at most one candidate, without
+     * allocation.
+     * <ul>
+     * <li>Connection</li>
+     * <li>Keep-Alive</li>
+     * <li>Proxy-Authenticate</li>
+     * <li>Proxy-Authorization</li>
+     * <li>TE</li>
+     * <li>Trailers</li>
+     * <li>Transfer-Encoding</li>
+     * <li>Upgrade</li>
+     * </ul>
      *
+     * @param name
+     * @return
      * @see http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html.
      */
-    private static final HeaderGroup hopByHopHeaders;
-
-    static {
-        hopByHopHeaders = new HeaderGroup();
-        Arrays.asList(
-                "Connection",
-                "Keep-Alive",
-                "Proxy-Authenticate",
-                "Proxy-Authorization",
-                "TE",
-                "Trailers",
-                "Transfer-Encoding",
-                "Upgrade")
-                .forEach(header -> hopByHopHeaders.addHeader(new BasicHeader(header, null)));
+    static boolean containsHeader(String name) {
+        switch (name.length()) {
+            case 2:
+                return name.equalsIgnoreCase("TE");
+            case 7:
+                return name.equalsIgnoreCase("Upgrade");
+            case 8:
+                return name.equalsIgnoreCase("Trailers");
+            case 10:
+                final char c = name.charAt(0);
+                return c == 'C' || c == 'c'
+                        ? name.equalsIgnoreCase(HttpHeaders.CONNECTION)
+                        : name.equalsIgnoreCase("Keep-Alive");
+            case 17:
+                return name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING);
+            case 18:
+                return name.equalsIgnoreCase(HttpHeaders.PROXY_AUTHENTICATE);
+            case 19:
+                return name.equalsIgnoreCase(HttpHeaders.PROXY_AUTHORIZATION);
+            default:
+                return false;
+        }
     }
 
-    static boolean containsHeader(String name) {
-        return hopByHopHeaders.containsHeader(name);
+    /**
+     * Tell if a header should not be copied.
+     *
+     * @param name
+     * @param connectionTokens the tokens of the {@code Connection} header of
+     * the message
+     * @return
+     */
+    static boolean containsHeader(String name, ConnectionTokens connectionTokens) {
+        return containsHeader(name) || connectionTokens.contains(name);
     }
 
+    /**
+     * The header names listed in the {@code Connection} header of a message.
+     * <p>
+     * The tokens are parsed once for each message. The tokens of a servlet
+     * request are stored as request attribute like the {@link Deadline}, thus
+     * they are parsed once for all targets.
+     */
+    static final class ConnectionTokens {
+
+        /**
+         * Request attribute holding the tokens of a servlet request.
+         */
+        static final String ATTRIBUTE = ConnectionTokens.class.getName();
+
+        /**
+         * No {@code Connection} header, or no tokens.
+         */
+        static final ConnectionTokens NONE = new ConnectionTokens(new String[0]);
+
+        private final String[] tokens;
+
+        private ConnectionTokens(String[] tokens) {
+            this.tokens = tokens;
+        }
+
+        /**
+         * Get the tokens of a servlet request.
+         *
+         * @param servletRequest
+         * @return
+         */
+        static ConnectionTokens of(HttpServletRequest servletRequest) {
+            Object attribute = servletRequest.getAttribute(ATTRIBUTE);
+            if (attribute instanceof ConnectionTokens) {
+                return (ConnectionTokens) attribute;
+            }
+            List<String> tokenList = null;
+            Enumeration<String> values = servletRequest.getHeaders(HttpHeaders.CONNECTION);
+            while (values != null && values.hasMoreElements()) {
+                tokenList = parse(values.nextElement(), tokenList);
+            }
+            ConnectionTokens connectionTokens = of(tokenList);
+            servletRequest.setAttribute(ATTRIBUTE, connectionTokens);
+            return connectionTokens;
+        }
+
+        /**
+         * Get the tokens of a proxy request, or response.
+         *
+         * @param message
+         * @return
+         */
+        static ConnectionTokens of(HttpMessage message) {
+            List<String> tokenList = null;
+            for (Header header : message.getHeaders(HttpHeaders.CONNECTION)) {
+                tokenList = parse(header.getValue(), tokenList);
+            }
+            return of(tokenList);
+        }
+
+        private static ConnectionTokens of(List<String> tokenList) {
+            return tokenList == null || tokenList.isEmpty()
+                    ? NONE
+                    : new ConnectionTokens(tokenList.toArray(new String[0]));
+        }
+
+        /**
+         * Add the comma separated tokens of a header value.
+         */
+        private static List<String> parse(String value, List<String> tokenList) {
+            if (value == null) {
+                return tokenList;
+            }
+            int start = 0;
+            while (start <= value.length()) {
+                int end = value.indexOf(',', start);
+                if (end < 0) {
+                    end = value.length();
+                }
+                String token = value.substring(start, end).trim();
+                if (!token.isEmpty()) {
+                    if (tokenList == null) {
+                        tokenList = new ArrayList<>(2);
+                    }
+                    tokenList.add(token);
+                }
+                start = end + 1;
+            }
+            return tokenList;
+        }
+
+        /**
+         * Tell if a header is listed.
+         *
+         * @param name
+         * @return
+         */
+        boolean contains(String name) {
+            for (String token : tokens) {
+                if (token.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int size() {
+            return tokens.length;
+        }
+    }
 }
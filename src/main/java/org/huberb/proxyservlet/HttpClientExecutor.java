@@ -24,6 +24,7 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
 
 /**
  * Execute an HTTP request/response via {@link HttpClient}.
@@ -37,13 +38,39 @@ public class HttpClientExecutor implements AutoCloseable {
     private final Config config;
     private final Env env;
     private final HttpClient proxyClient;
+    private final boolean ownsProxyClient;
 
+    /**
+     * Create an executor using its own {@link HttpClient}, which is shut down
+     * by {@link #close()}.
+     *
+     * @param config
+     * @param env
+     */
     public HttpClientExecutor(Config config, Env env) {
+        this(config, env, new HttpClientFactory(config).createHttpClient(), true);
+    }
+
+    /**
+     * Create an executor using a shared {@link HttpClient}.
+     * <p>
+     * The shared client is left open by {@link #close()}, it is owned by the
+     * caller.
+     *
+     * @param config
+     * @param env
+     * @param proxyClient
+     */
+    public HttpClientExecutor(Config config, Env env, HttpClient proxyClient) {
+        this(config, env, proxyClient, false);
+    }
+
+    private HttpClientExecutor(Config config, Env env, HttpClient proxyClient, boolean ownsProxyClient) {
         this.config = config;
         this.doLog = config.isDoLog();
         this.env = env;
-        this.proxyClient = new HttpClientFactory(config).createHttpClient();
-
+        this.proxyClient = proxyClient;
+        this.ownsProxyClient = ownsProxyClient;
     }
 
     public HttpResponse doExecute(HttpServletRequest servletRequest, HttpRequest proxyRequest) throws IOException {
@@ -54,8 +81,31 @@ public class HttpClientExecutor implements AutoCloseable {
                     proxyRequest.getRequestLine().getUri());
             LOG.info(msg);
         }
+        return execute(proxyRequest);
+    }
+
+    /**
+     * Execute the proxy request without accessing the servlet request.
+     *
+     * @param proxyRequest
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse doExecute(HttpRequest proxyRequest) throws IOException {
+        if (doLog) {
+            String msg = String.format("httpclient execute: method: %s" + " -- proxyRequest: %s",
+                    proxyRequest.getRequestLine().getMethod(),
+                    proxyRequest.getRequestLine().getUri());
+            LOG.info(msg);
+        }
+        return execute(proxyRequest);
+    }
 
-        HttpResponse httpResponse = proxyClient.execute(env.getTargetHost(), proxyRequest);
+    private HttpResponse execute(HttpRequest proxyRequest) throws IOException {
+        Deadline deadline = ProxyRequest.deadlineOf(proxyRequest);
+        HttpResponse httpResponse = deadline != null
+                ? executeWithin(deadline, (ProxyRequest) proxyRequest)
+                : proxyClient.execute(env.getTargetHost(), proxyRequest);
         if (doLog) {
             String msg = String.format("httpclient execute: status line %s", httpResponse.getStatusLine());
             LOG.info(msg);
@@ -63,8 +113,28 @@ public class HttpClientExecutor implements AutoCloseable {
         return httpResponse;
     }
 
+    /**
+     * Execute the proxy request within the remaining budget of its deadline.
+     * <p>
+     * The timeouts are limited by the remaining budget, and the proxy request
+     * is aborted as the deadline expires, even while its response is read.
+     */
+    private HttpResponse executeWithin(Deadline deadline, ProxyRequest proxyRequest) throws IOException {
+        long remainingMillis = deadline.remainingMillis();
+        if (remainingMillis <= 0L) {
+            throw new Deadline.ExceededException(env.getTargetUri());
+        }
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(new HttpClientFactory(config).buildRequestConfig(remainingMillis));
+        proxyRequest.startDeadlineTimer();
+        return proxyClient.execute(env.getTargetHost(), proxyRequest, context);
+    }
+
     @Override
     public void close() throws Exception {
+        if (!ownsProxyClient) {
+            return;
+        }
         if (proxyClient instanceof Closeable) {
             try {
                 ((Closeable) proxyClient).close();
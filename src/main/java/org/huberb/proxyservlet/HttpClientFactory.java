@@ -15,11 +15,21 @@
  */
 package org.huberb.proxyservlet;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 /**
  * Create a {@link HttpClient} instance.
@@ -28,6 +38,17 @@ import org.apache.http.impl.client.HttpClientBuilder;
  */
 public class HttpClientFactory {
 
+    /**
+     * Pool size used if {@code maxConnections} is not configured.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS = 100;
+    /**
+     * Pooled connections idle for longer are closed, by the evictor of a
+     * client owning its pool, or by {@link #createIdleConnectionEvictor}
+     * for a shared pool.
+     */
+    static final long MAX_IDLE_SECONDS = 60L;
+
     //---
     protected boolean doHandleCompression = false;
     protected boolean doHandleRedirects = false;
@@ -58,13 +79,50 @@ public class HttpClientFactory {
      * @return
      */
     public HttpClient createHttpClient() {
+        return createHttpClient(createConnectionManager());
+    }
+
+    /**
+     * Create a {@link HttpClient} using the given connection manager.
+     * <p>
+     * Closing the returned client shuts down the connection manager, too.
+     *
+     * @param connectionManager
+     * @return
+     */
+    public HttpClient createHttpClient(HttpClientConnectionManager connectionManager) {
+        return createHttpClientBuilder(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Create a {@link HttpClient} sharing the given connection manager, e.g.
+     * with the client of a former configuration.
+     * <p>
+     * Closing the returned client does not shut down the connection manager,
+     * thus pooled connections survive a reload of the configuration.
+     * <p>
+     * A client sharing its pool does not evict idle connections, the owner
+     * of the pool runs a {@link #createIdleConnectionEvictor}.
+     *
+     * @param connectionManager
+     * @return
+     */
+    public HttpClient createSharingHttpClient(HttpClientConnectionManager connectionManager) {
+        return createHttpClientBuilder(connectionManager)
+                .setConnectionManagerShared(true)
+                .build();
+    }
+
+    private HttpClientBuilder createHttpClientBuilder(HttpClientConnectionManager connectionManager) {
         HttpClientBuilder clientBuilder = HttpClientBuilder
                 .create()
+                .setConnectionManager(connectionManager)
                 .setDefaultRequestConfig(buildRequestConfig())
                 .setDefaultSocketConfig(buildSocketConfig());
 
-        clientBuilder.setMaxConnTotal(maxConnections);
-        clientBuilder.setMaxConnPerRoute(maxConnections);
         if (!doHandleCompression) {
             clientBuilder.disableContentCompression();
         }
@@ -72,7 +130,59 @@ public class HttpClientFactory {
         if (useSystemProperties) {
             clientBuilder = clientBuilder.useSystemProperties();
         }
-        return clientBuilder.build();
+        return clientBuilder;
+    }
+
+    /**
+     * Create an evictor closing expired connections, and connections idle for
+     * longer than {@link #MAX_IDLE_SECONDS} of a shared pool.
+     * <p>
+     * The evictor is not started, its owner starts, and shuts it down.
+     *
+     * @param connectionManager
+     * @return
+     */
+    public IdleConnectionEvictor createIdleConnectionEvictor(HttpClientConnectionManager connectionManager) {
+        return new IdleConnectionEvictor(connectionManager,
+                MAX_IDLE_SECONDS, TimeUnit.SECONDS,
+                MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a connection pool intended to be shared by all requests, and all
+     * targets.
+     *
+     * @return
+     */
+    public PoolingHttpClientConnectionManager createConnectionManager() {
+        SSLConnectionSocketFactory sslConnectionSocketFactory = useSystemProperties
+                ? SSLConnectionSocketFactory.getSystemSocketFactory()
+                : SSLConnectionSocketFactory.getSocketFactory();
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslConnectionSocketFactory)
+                .build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        configureConnectionManager(connectionManager);
+        return connectionManager;
+    }
+
+    /**
+     * Apply pool size, and socket config to a connection pool.
+     * <p>
+     * Pooled connections are kept, the socket config applies to new
+     * connections.
+     *
+     * @param connectionManager
+     */
+    public void configureConnectionManager(PoolingHttpClientConnectionManager connectionManager) {
+        int poolSize = maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSize);
+        SocketConfig socketConfig = buildSocketConfig();
+        if (socketConfig != null) {
+            connectionManager.setDefaultSocketConfig(socketConfig);
+        }
     }
 
     /**
@@ -91,6 +201,29 @@ public class HttpClientFactory {
                 .build();
     }
 
+    /**
+     * Build the request config of a proxy request having a deadline.
+     * <p>
+     * Leasing a connection, connecting, and waiting for data are each limited
+     * by the remaining budget, besides the configured timeouts.
+     *
+     * @param remainingMillis the remaining budget of the proxy request
+     * @return
+     */
+    protected RequestConfig buildRequestConfig(long remainingMillis) {
+        int budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, remainingMillis));
+        return RequestConfig.copy(buildRequestConfig())
+                .setConnectTimeout(limitTimeout(connectTimeout, budget))
+                .setSocketTimeout(limitTimeout(readTimeout, budget))
+                .setConnectionRequestTimeout(limitTimeout(connectionRequestTimeout, budget))
+                .build();
+    }
+
+    private static int limitTimeout(int timeout, int budget) {
+        // 0, and negative values are infinite timeouts
+        return timeout > 0 ? Math.min(timeout, budget) : budget;
+    }
+
     /**
      * Sub-classes can override specific behaviour of
      * {@link org.apache.http.config.SocketConfig}.
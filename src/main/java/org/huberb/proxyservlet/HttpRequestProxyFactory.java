@@ -19,13 +19,10 @@ import java.io.IOException;
 import java.util.Enumeration;
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.message.BasicHttpRequest;
 
 /**
  *
@@ -39,6 +36,7 @@ public class HttpRequestProxyFactory {
     protected boolean doPreserveCookies = false;
     protected boolean doForwardIP = false;
     protected boolean doSendUrlFragment = false;
+    private final Config config;
     private final Env env;
 
     public HttpRequestProxyFactory(Config config, Env env) {
@@ -47,88 +45,75 @@ public class HttpRequestProxyFactory {
         this.doPreserveCookies = config.isDoPreserveCookies();
         this.doForwardIP = config.isDoForwardIP();
         this.doSendUrlFragment = config.isDoSendUrlFragment();
+        this.config = config;
         this.env = env;
     }
 
     public HttpRequest createHttpRequest(HttpServletRequest servletRequest) throws IOException {
+        return createHttpRequest(servletRequest, null);
+    }
+
+    /**
+     * Create the proxy request, replaying the request body from a spool.
+     * <p>
+     * The proxy request is a {@link ProxyRequest} carrying the
+     * {@link Deadline} of the servlet request.
+     *
+     * @param servletRequest
+     * @param requestBodySpool the spooled request body, if {@code null} the
+     * request body is streamed from the servlet request
+     * @return
+     * @throws IOException
+     */
+    public HttpRequest createHttpRequest(HttpServletRequest servletRequest, RequestBodySpool requestBodySpool) throws IOException {
         String method = servletRequest.getMethod();
         String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
-        HttpRequest proxyRequest;
-        //spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body.
-        if (servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null
-                || servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
+        ProxyRequest proxyRequest;
+        if (requestBodySpool != null) {
+            ProxyRequest.WithEntity eProxyRequest = new ProxyRequest.WithEntity(method, proxyRequestUri);
+            eProxyRequest.setEntity(requestBodySpool.createEntity());
+            proxyRequest = eProxyRequest;
+        } else if (hasRequestEntity(servletRequest)) {
             proxyRequest = newProxyRequestWithEntity(method, proxyRequestUri, servletRequest);
         } else {
-            proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+            proxyRequest = new ProxyRequest(method, proxyRequestUri);
         }
+        proxyRequest.setDeadline(Deadline.of(config, servletRequest));
         copyRequestHeaders(servletRequest, proxyRequest);
         setXForwardedForHeader(servletRequest, proxyRequest);
 
         return proxyRequest;
     }
 
-    //------------------------------------------------------------------------
     /**
-     * Reads the request URI from {@code servletRequest} and rewrites it,
-     * considering targetUri. It's used to make the new request.
+     * Check if the servlet request has a message body.
      *
      * @param servletRequest
      * @return
      */
-    private String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
-        StringBuilder uri = new StringBuilder(500);
-        uri.append(env.getTargetUri());
-        // Handle the path given to the servlet
-        String pathInfo = rewritePathInfoFromRequest(servletRequest);
-        if (pathInfo != null) {//ex: /my/path.html
-            // getPathInfo() returns decoded string, so we need encodeUriQuery to encode "%" characters
-            uri.append(Encoding.encodeUriQuery(pathInfo, true));
-        }
-        // Handle the query string & fragment
-        String queryString = servletRequest.getQueryString();//ex:(following '?'): name=value&foo=bar#fragment
-        String fragment = null;
-        //split off fragment from queryString, updating queryString if found
-        if (queryString != null) {
-            int fragIdx = queryString.indexOf('#');
-            if (fragIdx >= 0) {
-                fragment = queryString.substring(fragIdx + 1);
-                queryString = queryString.substring(0, fragIdx);
-            }
-        }
-
-        queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
-        if (queryString != null && queryString.length() > 0) {
-            uri.append('?');
-            // queryString is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-            uri.append(Encoding.encodeUriQuery(queryString, false));
-        }
-
-        if (doSendUrlFragment && fragment != null) {
-            uri.append('#');
-            // fragment is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-            uri.append(Encoding.encodeUriQuery(fragment, false));
-        }
-        return uri.toString();
-    }
-
-    private String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
-        return queryString;
+    static boolean hasRequestEntity(HttpServletRequest servletRequest) {
+        //spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body.
+        return servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null
+                || servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
     }
 
+    //------------------------------------------------------------------------
     /**
-     * Allow overrides of
-     * {@link javax.servlet.http.HttpServletRequest#getPathInfo()}. Useful when
-     * url-pattern of servlet-mapping (web.xml) requires manipulation.
+     * Reads the request URI from {@code servletRequest} and rewrites it,
+     * considering targetUri. It's used to make the new request.
+     * <p>
+     * The path info, query, and fragment are rewritten once for all targets,
+     * see {@link RequestUriRewrite}.
      *
      * @param servletRequest
      * @return
      */
-    private String rewritePathInfoFromRequest(HttpServletRequest servletRequest) {
-        return servletRequest.getPathInfo();
+    private String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
+        return RequestUriRewrite.of(servletRequest, doSendUrlFragment).rewriteRequestUri(env);
     }
 
-    private HttpRequest newProxyRequestWithEntity(String method, String proxyRequestUri, HttpServletRequest servletRequest) throws IOException {
-        HttpEntityEnclosingRequest eProxyRequest = new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+    private ProxyRequest newProxyRequestWithEntity(String method, String proxyRequestUri, HttpServletRequest servletRequest) throws IOException {
+        ProxyRequest.WithEntity eProxyRequest = new ProxyRequest.WithEntity(method, proxyRequestUri);
         // Add the input entity (streamed)
         //  note: we don't bother ensuring we close the servletInputStream since the container handles it
         eProxyRequest.setEntity(new InputStreamEntity(servletRequest.getInputStream(), getContentLength(servletRequest)));
@@ -136,7 +121,7 @@ public class HttpRequestProxyFactory {
     }
     // Get the header value as a long in order to more correctly proxy very large requests
 
-    private long getContentLength(HttpServletRequest request) {
+    static long getContentLength(HttpServletRequest request) {
         String contentLengthHeader = request.getHeader("Content-Length");
         if (contentLengthHeader != null) {
             return Long.parseLong(contentLengthHeader);
@@ -155,9 +140,11 @@ public class HttpRequestProxyFactory {
         // Get an Enumeration of all of the header names sent by the client
         @SuppressWarnings("unchecked")
         Enumeration<String> enumerationOfHeaderNames = servletRequest.getHeaderNames();
+        // Headers listed in the Connection header are hop-by-hop, too
+        HobByHopHeaders.ConnectionTokens connectionTokens = HobByHopHeaders.ConnectionTokens.of(servletRequest);
         while (enumerationOfHeaderNames.hasMoreElements()) {
             String headerName = enumerationOfHeaderNames.nextElement();
-            copyRequestHeader(servletRequest, proxyRequest, headerName);
+            copyRequestHeader(servletRequest, proxyRequest, headerName, connectionTokens);
         }
     }
 
@@ -168,14 +155,15 @@ public class HttpRequestProxyFactory {
      * @param servletRequest
      * @param proxyRequest
      * @param headerName
+     * @param connectionTokens the headers listed in the Connection header
      */
     private void copyRequestHeader(HttpServletRequest servletRequest, HttpRequest proxyRequest,
-            String headerName) {
+            String headerName, HobByHopHeaders.ConnectionTokens connectionTokens) {
         //Instead the content-length is effectively set via InputStreamEntity
         if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
             return;
         }
-        if (HobByHopHeaders.containsHeader(headerName)) {
+        if (HobByHopHeaders.containsHeader(headerName, connectionTokens)) {
             return;
         }
         // If compression is handled in the servlet, apache http client needs to
@@ -214,22 +202,82 @@ public class HttpRequestProxyFactory {
      * @return
      */
     private String getRealCookie(String cookieValue) {
-        StringBuilder escapedCookie = new StringBuilder();
-        String[] cookies = cookieValue.split("[;,]");
-        for (String cookie : cookies) {
-            String[] cookieSplit = cookie.split("=");
-            if (cookieSplit.length == 2) {
-                String cookieName = cookieSplit[0].trim();
-                if (cookieName.startsWith(env.getCookieNamePrefix())) {
-                    cookieName = cookieName.substring(env.getCookieNamePrefix().length());
-                    if (escapedCookie.length() > 0) {
-                        escapedCookie.append("; ");
-                    }
-                    escapedCookie.append(cookieName).append("=").append(cookieSplit[1].trim());
+        return getRealCookie(cookieValue, env.getCookieNamePrefix());
+    }
+
+    /**
+     * Rewrite the cookies sent by the client in a single pass.
+     * <p>
+     * Cookies are separated by {@code ;}, or {@code ,}. The value of a cookie
+     * may contain {@code =}, and is kept as is, a quoted value may contain
+     * separators, too. Cookies having the prefix are written without the
+     * prefix into one buffer, other cookies are dropped.
+     *
+     * @param cookieValue the value of a {@code Cookie} header
+     * @param cookieNamePrefix
+     * @return the proxied cookies, or an empty string
+     */
+    static String getRealCookie(String cookieValue, String cookieNamePrefix) {
+        final int length = cookieValue.length();
+        final int prefixLength = cookieNamePrefix.length();
+        StringBuilder escapedCookie = null;
+        int i = 0;
+        while (i < length) {
+            char c = cookieValue.charAt(i);
+            // skip separators, and whitespace before the name
+            if (c == ';' || c == ',' || isWhitespace(c)) {
+                i += 1;
+                continue;
+            }
+            final int nameStart = i;
+            while (i < length && (c = cookieValue.charAt(i)) != '=' && c != ';' && c != ',') {
+                i += 1;
+            }
+            if (i == length || c != '=') {
+                // a cookie without value
+                continue;
+            }
+            final int nameEnd = trimEnd(cookieValue, nameStart, i);
+            i += 1;
+            while (i < length && isWhitespace(cookieValue.charAt(i))) {
+                i += 1;
+            }
+            final int valueStart = i;
+            boolean quoted = false;
+            while (i < length) {
+                c = cookieValue.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && (c == ';' || c == ',')) {
+                    break;
+                }
+                i += 1;
+            }
+            final int valueEnd = trimEnd(cookieValue, valueStart, i);
+            if (nameEnd - nameStart > prefixLength
+                    && cookieValue.regionMatches(nameStart, cookieNamePrefix, 0, prefixLength)) {
+                if (escapedCookie == null) {
+                    escapedCookie = new StringBuilder(length);
+                } else {
+                    escapedCookie.append("; ");
                 }
+                escapedCookie.append(cookieValue, nameStart + prefixLength, nameEnd)
+                        .append('=')
+                        .append(cookieValue, valueStart, valueEnd);
             }
         }
-        return escapedCookie.toString();
+        return escapedCookie != null ? escapedCookie.toString() : "";
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int trimEnd(String s, int start, int end) {
+        while (end > start && isWhitespace(s.charAt(end - 1))) {
+            end -= 1;
+        }
+        return end;
     }
 
     private void setXForwardedForHeader(HttpServletRequest servletRequest,
@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpCookie;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -36,18 +38,68 @@ public class HttpResponseProxyFactory {
 
     protected boolean doPreserveCookies = false;
     protected boolean doHandleCompression = false;
+    protected boolean doSendUrlFragment = false;
 
     private final Env env;
 
     public HttpResponseProxyFactory(Config config, Env env) {
         this.doPreserveCookies = config.isDoPreserveCookies();
         this.doHandleCompression = config.isDoHandleCompression();
+        this.doSendUrlFragment = config.isDoSendUrlFragment();
         this.env = env;
     }
 
     public void sendResponse(HttpServletRequest servletRequest,
             HttpServletResponse servletResponse,
             HttpResponse proxyResponse) throws IOException {
+        if (sendResponseHead(servletRequest, servletResponse, proxyResponse)) {
+            // Send the content to the client
+            copyResponseEntity(proxyResponse, servletResponse);
+        }
+    }
+
+    /**
+     * Send the proxy response as part of a multipart response.
+     * <p>
+     * Content type, encoding, and length of the entity are sent as part
+     * headers, other headers of the proxy response are not sent.
+     *
+     * @param multipartResponse
+     * @param proxyResponse
+     * @param elapsedNanos the latency of the proxy response
+     * @throws IOException
+     */
+    public void sendResponsePart(MultipartResponse multipartResponse,
+            HttpResponse proxyResponse, long elapsedNanos) throws IOException {
+        Map<String, String> partHeaders = new LinkedHashMap<>();
+        HttpEntity entity = proxyResponse.getEntity();
+        if (entity != null) {
+            if (entity.getContentType() != null) {
+                partHeaders.put(HttpHeaders.CONTENT_TYPE, entity.getContentType().getValue());
+            }
+            if (entity.getContentEncoding() != null) {
+                partHeaders.put(HttpHeaders.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+            }
+            if (entity.getContentLength() >= 0) {
+                partHeaders.put(HttpHeaders.CONTENT_LENGTH, String.valueOf(entity.getContentLength()));
+            }
+        }
+        multipartResponse.writePart(env.getTargetUri(), proxyResponse.getStatusLine().getStatusCode(), elapsedNanos,
+                partHeaders, entity != null ? entity.getContent() : null);
+    }
+
+    /**
+     * Send status and headers of the proxy response, but not the entity.
+     *
+     * @param servletRequest
+     * @param servletResponse
+     * @param proxyResponse
+     * @return {@code true} if the entity of the proxy response has to be sent,
+     * too
+     */
+    public boolean sendResponseHead(HttpServletRequest servletRequest,
+            HttpServletResponse servletResponse,
+            HttpResponse proxyResponse) {
         // Process the response:
         // Pass the response code. This method with the "reason phrase" is deprecated but it's the
         //   only way to pass the reason along too.
@@ -65,10 +117,9 @@ public class HttpResponseProxyFactory {
             // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
             // Don't send body entity/content!
             servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
-        } else {
-            // Send the content to the client
-            copyResponseEntity(proxyResponse, servletResponse);
+            return false;
         }
+        return true;
     }
 
     /**
@@ -80,8 +131,10 @@ public class HttpResponseProxyFactory {
      */
     private void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
             HttpServletResponse servletResponse) {
+        // Headers listed in the Connection header are hop-by-hop, too
+        HobByHopHeaders.ConnectionTokens connectionTokens = HobByHopHeaders.ConnectionTokens.of(proxyResponse);
         for (Header header : proxyResponse.getAllHeaders()) {
-            copyResponseHeader(servletRequest, servletResponse, header);
+            copyResponseHeader(servletRequest, servletResponse, header, connectionTokens);
         }
     }
 
@@ -92,11 +145,12 @@ public class HttpResponseProxyFactory {
      * @param servletRequest
      * @param servletResponse
      * @param header
+     * @param connectionTokens the headers listed in the Connection header
      */
     private void copyResponseHeader(HttpServletRequest servletRequest,
-            HttpServletResponse servletResponse, Header header) {
+            HttpServletResponse servletResponse, Header header, HobByHopHeaders.ConnectionTokens connectionTokens) {
         String headerName = header.getName();
-        if (HobByHopHeaders.containsHeader(headerName)) {
+        if (HobByHopHeaders.containsHeader(headerName, connectionTokens)) {
             return;
         }
         String headerValue = header.getValue();
@@ -115,43 +169,19 @@ public class HttpResponseProxyFactory {
      * For a redirect response from the target server, this translates
      * {@code theUrl} to redirect to and translates it to one the original
      * client can use.
+     * <p>
+     * The servlet url is derived once for all targets, see
+     * {@link RequestUriRewrite}.
      *
      * @param servletRequest
      * @param theUrl
      * @return
      */
     private String rewriteUrlFromResponse(HttpServletRequest servletRequest, String theUrl) {
-        //TODO document example paths
-        final String targetUri = env.getTargetUri();
-        if (theUrl.startsWith(targetUri)) {
-            /*
-             * The URL points back to the back-end server.
-             * Instead of returning it verbatim we replace the target path with our
-             * source path in a way that should instruct the original client to
-             * request the URL pointed through this Proxy.
-             * We do this by taking the current request and rewriting the path part
-             * using this servlet's absolute path and the path from the returned URL
-             * after the base target URL.
-             */
-            StringBuffer curUrl = servletRequest.getRequestURL();//no query
-            int pos;
-            // Skip the protocol part
-            if ((pos = curUrl.indexOf("://")) >= 0) {
-                // Skip the authority part
-                // + 3 to skip the separator between protocol and authority
-                if ((pos = curUrl.indexOf("/", pos + 3)) >= 0) {
-                    // Trim everything after the authority part.
-                    curUrl.setLength(pos);
-                }
-            }
-            // Context path starts with a / if it is not blank
-            curUrl.append(servletRequest.getContextPath());
-            // Servlet path starts with a / if it is not blank
-            curUrl.append(servletRequest.getServletPath());
-            curUrl.append(theUrl, targetUri.length(), theUrl.length());
-            return curUrl.toString();
+        if (!theUrl.startsWith(env.getTargetUri())) {
+            return theUrl;
         }
-        return theUrl;
+        return RequestUriRewrite.of(servletRequest, doSendUrlFragment).rewriteResponseUrl(env, theUrl);
     }
 
     /**
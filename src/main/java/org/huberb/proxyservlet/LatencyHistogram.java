@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram of a target, recorded without locks.
+ * <p>
+ * Latencies are recorded in microseconds into log-linear buckets, like an HDR
+ * histogram: each power of two is split into {@link #SUB_BUCKETS} linear
+ * sub-buckets, thus a percentile is off by at most 1/8 of its value.
+ * Latencies above {@link #MAX_MICROS} are recorded into the last bucket. Each
+ * bucket is a {@link LongAdder}, so threads recording the same bucket do not
+ * contend.
+ * <p>
+ * A {@link Snapshot} copies the buckets. Buckets are read one after the
+ * other, thus a snapshot taken while recording may be off by the latencies
+ * recorded meanwhile.
+ *
+ * @author pi
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of linear sub-buckets of each power of two.
+     */
+    static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    /**
+     * Highest latency recorded exactly, about 71 minutes.
+     */
+    static final long MAX_MICROS = (1L << 32) - 1L;
+    /**
+     * Number of buckets.
+     */
+    static final int BUCKETS = bucketIndex(MAX_MICROS) + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0L);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i += 1) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param elapsedNanos
+     */
+    public void record(long elapsedNanos) {
+        final long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        buckets[bucketIndex(Math.min(micros, MAX_MICROS))].increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    /**
+     * Copy the current counts.
+     *
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = copyCounts(counts);
+        return new Snapshot(counts, count, totalMicros.sum(), maxMicros.get());
+    }
+
+    /**
+     * Copy the current counts into an array, without allocating.
+     *
+     * @param counts an array of at least {@link #BUCKETS} elements
+     * @return the number of recorded latencies
+     */
+    public long copyCounts(long[] counts) {
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        return count;
+    }
+
+    /**
+     * The sum of all recorded latencies.
+     *
+     * @return
+     */
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    /**
+     * The bucket of a latency.
+     * <p>
+     * Latencies below {@link #SUB_BUCKETS} have a bucket each. Above, the
+     * highest bit selects the power of two, and the next
+     * {@link #SUB_BUCKET_BITS} bits select the sub-bucket.
+     *
+     * @param micros a latency from {@code 0} to {@link #MAX_MICROS}
+     * @return
+     */
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The lowest latency of a bucket.
+     *
+     * @param index
+     * @return
+     */
+    static long lowestMicros(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * The highest latency of a bucket.
+     *
+     * @param index
+     * @return
+     */
+    static long highestMicros(int index) {
+        return index + 1 < BUCKETS ? lowestMicros(index + 1) - 1L : MAX_MICROS;
+    }
+
+    /**
+     * Counts of a histogram at a point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * The number of recorded latencies.
+         *
+         * @return
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The sum of all recorded latencies.
+         *
+         * @return
+         */
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * The number of latencies up to a bound, like the cumulative bucket
+         * of a Prometheus histogram.
+         *
+         * @param micros the upper bound
+         * @return
+         */
+        public long getCountAtOrBelow(long micros) {
+            long n = 0L;
+            for (int i = 0; i < counts.length && highestMicros(i) <= micros; i += 1) {
+                n += counts[i];
+            }
+            return n;
+        }
+
+        /**
+         * A percentile of the recorded latencies.
+         *
+         * @param percentile from {@code 0} to {@code 100}, like {@code 99.9}
+         * @return the highest latency of the bucket holding the percentile,
+         * but not above the maximum, or {@code -1} if nothing was recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0L) {
+                return -1L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+            long n = 0L;
+            for (int i = 0; i < counts.length; i += 1) {
+                n += counts[i];
+                if (n >= rank) {
+                    return Math.min(highestMicros(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+    }
+}
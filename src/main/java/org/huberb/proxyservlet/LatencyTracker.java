@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling latency percentile of a target.
+ * <p>
+ * The latest {@link #SAMPLES} latencies are kept in a ring buffer. The
+ * percentile is recomputed every {@link #RECOMPUTE_EVERY} samples by the
+ * recording thread, thus reading it is a volatile read only.
+ *
+ * @author pi
+ */
+public class LatencyTracker {
+
+    /**
+     * Size of the ring buffer.
+     */
+    static final int SAMPLES = 256;
+    /**
+     * Samples needed before a percentile is known.
+     */
+    static final int MIN_SAMPLES = 20;
+    /**
+     * Recompute the percentile every that many samples.
+     */
+    static final int RECOMPUTE_EVERY = 16;
+
+    private final int percentile;
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong count = new AtomicLong();
+    private volatile long percentileNanos = -1L;
+
+    /**
+     * Create a tracker.
+     *
+     * @param percentile the tracked percentile, like {@code 95}
+     */
+    public LatencyTracker(int percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Record the latency of a successful call.
+     *
+     * @param elapsedNanos
+     */
+    public void record(long elapsedNanos) {
+        final long n = count.getAndIncrement() + 1;
+        samples.set((int) ((n - 1) % SAMPLES), elapsedNanos);
+        if (n == MIN_SAMPLES || (n > MIN_SAMPLES && n % RECOMPUTE_EVERY == 0)) {
+            recompute((int) Math.min(n, SAMPLES));
+        }
+    }
+
+    /**
+     * The tracked percentile of the latest latencies.
+     *
+     * @return the percentile in nanoseconds, or {@code -1} if there are not
+     * enough samples yet
+     */
+    public long getPercentileNanos() {
+        return percentileNanos;
+    }
+
+    private void recompute(int size) {
+        final long[] sorted = new long[size];
+        for (int i = 0; i < size; i += 1) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        percentileNanos = sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+}
@@ -17,12 +17,23 @@ package org.huberb.proxyservlet;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.AbortableHttpRequest;
 import org.apache.http.util.EntityUtils;
 
@@ -33,12 +44,70 @@ import org.apache.http.util.EntityUtils;
  */
 public class Mediator {
 
+    private static final Logger LOG = Logger.getLogger(Mediator.class.getName());
     private final Config config;
     private final Env env;
+    private final HttpClient proxyClient;
+    private final AsyncHttpClientExecutor asyncHttpClientExecutor;
+    private final TargetMetrics targetMetrics;
 
+    /**
+     * Create a mediator using a new {@link HttpClient} for each proxy request.
+     *
+     * @param config
+     * @param env
+     */
     public Mediator(Config config, Env env) {
+        this(config, env, null);
+    }
+
+    /**
+     * Create a mediator using a shared {@link HttpClient}.
+     *
+     * @param config
+     * @param env
+     * @param proxyClient the shared client, if {@code null} a new client is
+     * created for each proxy request
+     */
+    public Mediator(Config config, Env env, HttpClient proxyClient) {
+        this(config, env, proxyClient, null);
+    }
+
+    /**
+     * Create a mediator using a shared {@link HttpClient}, or a shared
+     * {@link AsyncHttpClientExecutor}.
+     *
+     * @param config
+     * @param env
+     * @param proxyClient the shared client, if {@code null} a new client is
+     * created for each proxy request
+     * @param asyncHttpClientExecutor if not {@code null} it is used instead of
+     * the {@link HttpClient}
+     */
+    public Mediator(Config config, Env env, HttpClient proxyClient, AsyncHttpClientExecutor asyncHttpClientExecutor) {
+        this(config, env, proxyClient, asyncHttpClientExecutor, null);
+    }
+
+    /**
+     * Create a mediator using a shared {@link HttpClient}, or a shared
+     * {@link AsyncHttpClientExecutor}, counting the bytes sent to, and
+     * received from the target.
+     *
+     * @param config
+     * @param env
+     * @param proxyClient the shared client, if {@code null} a new client is
+     * created for each proxy request
+     * @param asyncHttpClientExecutor if not {@code null} it is used instead of
+     * the {@link HttpClient}
+     * @param targetMetrics the metrics of the target, or {@code null}
+     */
+    public Mediator(Config config, Env env, HttpClient proxyClient, AsyncHttpClientExecutor asyncHttpClientExecutor,
+            TargetMetrics targetMetrics) {
         this.config = config;
         this.env = env;
+        this.proxyClient = proxyClient;
+        this.asyncHttpClientExecutor = asyncHttpClientExecutor;
+        this.targetMetrics = targetMetrics;
     }
 
     /**
@@ -53,36 +122,517 @@ public class Mediator {
     public void service(int i, HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException, ServletException {
 
         // 1 Create the proxy request
-        HttpRequest proxyRequest = new HttpRequestProxyFactory(config, env).createHttpRequest(servletRequest);
+        HttpRequest proxyRequest = createProxyRequest(servletRequest);
+
+        service(i, proxyRequest, servletRequest, servletResponse);
+    }
 
+    /**
+     * Create the proxy request for this target.
+     * <p>
+     * The proxy request holds copies of all request values needed later on, so
+     * it can be executed after the servlet request has been recycled.
+     *
+     * @param servletRequest
+     * @return
+     * @throws IOException
+     */
+    public HttpRequest createProxyRequest(HttpServletRequest servletRequest) throws IOException {
+        return createProxyRequest(servletRequest, null);
+    }
+
+    /**
+     * Create the proxy request for this target, replaying the request body
+     * from a spool.
+     *
+     * @param servletRequest
+     * @param requestBodySpool the spooled request body, or {@code null}
+     * @return
+     * @throws IOException
+     */
+    public HttpRequest createProxyRequest(HttpServletRequest servletRequest, RequestBodySpool requestBodySpool) throws IOException {
+        return new HttpRequestProxyFactory(config, env).createHttpRequest(servletRequest, requestBodySpool);
+    }
+
+    /**
+     * Send an already created proxy request to target, and process the
+     * response.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param servletRequest
+     * @param servletResponse
+     * @return the outcome of this target
+     * @throws IOException
+     * @throws ServletException
+     */
+    public TargetOutcome service(int i, HttpRequest proxyRequest, HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException, ServletException {
+        final long startNanos = System.nanoTime();
         HttpResponse proxyResponse = null;
-        try (HttpClientExecutor httpClientExecutor = new HttpClientExecutor(config, env)) {
+        try (HttpClientExecutor httpClientExecutor = isAsyncTransport() ? null : createHttpClientExecutor()) {
             // 2 Execute the proxy request
-            proxyResponse = httpClientExecutor.doExecute(servletRequest, proxyRequest);
+            proxyResponse = execute(httpClientExecutor, proxyRequest);
+            final long arrivalNanos = System.nanoTime();
 
             // 3 Send the response 
             if (sendTheHttpResponse(i)) {
                 new HttpResponseProxyFactory(config, env).sendResponse(servletRequest, servletResponse, proxyResponse);
+            } else {
+                discardEntity(proxyResponse.getEntity());
             }
+            return TargetOutcome.completed(i, env, proxyResponse.getStatusLine().getStatusCode(), startNanos, arrivalNanos);
         } catch (Exception e) {
             if (sendTheHttpResponse(i)) {
                 handleRequestException(proxyRequest, proxyResponse, e);
             }
+            return TargetOutcome.failed(i, env, e, startNanos);
         } finally {
             // make sure the entire entity was consumed, so the connection is released
             if (proxyResponse != null) {
                 EntityUtils.consumeQuietly(proxyResponse.getEntity());
             }
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
             //Note: Don't need to close servlet outputStream:
             // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
         }
     }
 
+    /**
+     * Send an already created proxy request to target, process the response,
+     * and digest it for a {@link ShadowComparison}.
+     * <p>
+     * The response of the primary target is digested while it is sent to the
+     * client, the response of a secondary target while it is consumed. The
+     * target arrives at the comparison in any case.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param servletRequest
+     * @param servletResponse
+     * @param shadowComparison
+     * @return the outcome of this target
+     * @throws IOException
+     * @throws ServletException
+     */
+    public TargetOutcome shadow(int i, HttpRequest proxyRequest, HttpServletRequest servletRequest,
+            HttpServletResponse servletResponse, ShadowComparison shadowComparison) throws IOException, ServletException {
+        final long startNanos = System.nanoTime();
+        HttpResponse proxyResponse = null;
+        ResponseDigest responseDigest = null;
+        try (HttpClientExecutor httpClientExecutor = isAsyncTransport() ? null : createHttpClientExecutor()) {
+            // 2 Execute the proxy request
+            proxyResponse = execute(httpClientExecutor, proxyRequest);
+            final long arrivalNanos = System.nanoTime();
+
+            // 3 Send the response, digesting it as it passes
+            responseDigest = shadowComparison.digest(proxyResponse);
+            if (sendTheHttpResponse(i)) {
+                new HttpResponseProxyFactory(config, env).sendResponse(servletRequest, servletResponse, proxyResponse);
+            }
+            responseDigest.consume();
+            return TargetOutcome.completed(i, env, proxyResponse.getStatusLine().getStatusCode(), startNanos, arrivalNanos);
+        } catch (Exception e) {
+            if (sendTheHttpResponse(i)) {
+                handleRequestException(proxyRequest, proxyResponse, e);
+            }
+            return TargetOutcome.failed(i, env, e, startNanos);
+        } finally {
+            shadowComparison.arrive(i, env.getTargetUri(), responseDigest);
+            if (proxyResponse != null) {
+                EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            }
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+        }
+    }
+
+    /**
+     * Send an already created proxy request to a target racing other targets.
+     * <p>
+     * The response is sent to the client only if this target wins the
+     * {@link Race}, otherwise the proxy request is aborted. This method never
+     * throws.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param servletRequest
+     * @param servletResponse
+     * @param race
+     * @return the outcome of this target
+     */
+    public TargetOutcome race(int i, HttpRequest proxyRequest, HttpServletRequest servletRequest,
+            HttpServletResponse servletResponse, Race race) {
+        final long startNanos = System.nanoTime();
+        HttpResponse proxyResponse = null;
+        boolean arrived = false;
+        try (HttpClientExecutor httpClientExecutor = isAsyncTransport() ? null : createHttpClientExecutor()) {
+            // 2 Execute the proxy request
+            proxyResponse = execute(httpClientExecutor, proxyRequest);
+            final long arrivalNanos = System.nanoTime();
+
+            // 3 Send the response, if this target won, an error response is
+            // held until the race is decided
+            arrived = true;
+            if (race.arrive(i, proxyResponse) || race.awaitDecision(i)) {
+                new HttpResponseProxyFactory(config, env).sendResponse(servletRequest, servletResponse, proxyResponse);
+            } else {
+                abortProxyRequest(proxyRequest, proxyResponse);
+            }
+            return TargetOutcome.completed(i, env, proxyResponse.getStatusLine().getStatusCode(), startNanos, arrivalNanos);
+        } catch (Exception e) {
+            if (!arrived) {
+                race.arrive(i, null);
+            }
+            return TargetOutcome.failed(i, env,
+                    race.isLost(i) ? new Race.LostException(race.getWinner()) : e, startNanos);
+        } finally {
+            if (proxyResponse != null) {
+                EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            }
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+            race.finish(i);
+        }
+    }
+
+    /**
+     * Send an already created proxy request to a target, and write its
+     * response as part of a multipart response.
+     * <p>
+     * A target failing before its response arrived is written as error part.
+     * This method never throws.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param multipartResponse
+     * @return the outcome of this target
+     */
+    public TargetOutcome aggregate(int i, HttpRequest proxyRequest, MultipartResponse multipartResponse) {
+        final long startNanos = System.nanoTime();
+        HttpResponse proxyResponse = null;
+        try (HttpClientExecutor httpClientExecutor = isAsyncTransport() ? null : createHttpClientExecutor()) {
+            // 2 Execute the proxy request
+            proxyResponse = execute(httpClientExecutor, proxyRequest);
+            final long arrivalNanos = System.nanoTime();
+
+            // 3 Send the response as part
+            new HttpResponseProxyFactory(config, env).sendResponsePart(multipartResponse, proxyResponse,
+                    arrivalNanos - startNanos);
+            return TargetOutcome.completed(i, env, proxyResponse.getStatusLine().getStatusCode(), startNanos, arrivalNanos);
+        } catch (Exception e) {
+            if (proxyResponse == null) {
+                try {
+                    multipartResponse.writeErrorPart(env.getTargetUri(), e, System.nanoTime() - startNanos);
+                } catch (IOException ioex) {
+                    LOG.log(Level.FINE, "writing error part", ioex);
+                }
+            } else {
+                try {
+                    abortProxyRequest(proxyRequest, proxyResponse);
+                } catch (IOException ioex) {
+                    LOG.log(Level.FINE, "aborting proxy request", ioex);
+                }
+            }
+            return TargetOutcome.failed(i, env, e, startNanos);
+        } finally {
+            if (proxyResponse != null) {
+                EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            }
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+        }
+    }
+
+    /**
+     * Send an already created proxy request to a secondary target, discarding
+     * the response.
+     * <p>
+     * This method does not access any servlet objects, and never throws.
+     *
+     * @param i
+     * @param proxyRequest
+     * @return the outcome of this target
+     */
+    public TargetOutcome mirror(int i, HttpRequest proxyRequest) {
+        final long startNanos = System.nanoTime();
+        try {
+            return service(i, proxyRequest, null, null);
+        } catch (IOException | ServletException | RuntimeException e) {
+            return TargetOutcome.failed(i, env, e, startNanos);
+        }
+    }
+
+    /**
+     * Send an already created proxy request to a secondary target, digesting
+     * the response for a {@link ShadowComparison}.
+     * <p>
+     * This method does not access any servlet objects, and never throws.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param shadowComparison
+     * @return the outcome of this target
+     */
+    public TargetOutcome mirror(int i, HttpRequest proxyRequest, ShadowComparison shadowComparison) {
+        final long startNanos = System.nanoTime();
+        try {
+            return shadow(i, proxyRequest, null, null, shadowComparison);
+        } catch (IOException | ServletException | RuntimeException e) {
+            return TargetOutcome.failed(i, env, e, startNanos);
+        }
+    }
+
+    /**
+     * Send an already created proxy request to a secondary target, discarding
+     * the response, without blocking the calling thread.
+     * <p>
+     * If this mediator does not use an {@link AsyncHttpClientExecutor} the
+     * request is sent by {@link #mirror(int, HttpRequest)} in the calling
+     * thread.
+     *
+     * @param i
+     * @param proxyRequest
+     * @return the outcome of this target, never completed exceptionally
+     */
+    public CompletableFuture<TargetOutcome> mirrorAsync(int i, HttpRequest proxyRequest) {
+        if (!isAsyncTransport()) {
+            return CompletableFuture.completedFuture(mirror(i, proxyRequest));
+        }
+        final long startNanos = System.nanoTime();
+        return asyncHttpClientExecutor.doExecuteDiscarding(env, proxyRequest)
+                .handle((proxyResponse, t) -> {
+                    if (t != null) {
+                        return TargetOutcome.failed(i, env, AsyncHttpClientExecutor.unwrap(t), startNanos);
+                    }
+                    final long arrivalNanos = System.nanoTime();
+                    // the discarded response body is not counted
+                    countBytes(proxyRequest, proxyResponse);
+                    return TargetOutcome.completed(i, env, proxyResponse.getStatusLine().getStatusCode(), startNanos, arrivalNanos);
+                });
+    }
+
+    /**
+     * Send an already created proxy request to the primary target, and
+     * process the response using non-blocking servlet I/O.
+     * <p>
+     * The proxy request is executed in an executor thread, and the response
+     * entity is copied by a {@link ResponseEntityWriteListener}, which reads
+     * the target in executor threads. Sent by the
+     * {@link AsyncHttpClientExecutor} the response body is copied by a
+     * {@link ResponseBodyWriteSubscriber}, thus no thread at all waits for the
+     * target, or for the client. The async context is completed when the
+     * response has been sent.
+     *
+     * @param i
+     * @param proxyRequest
+     * @param asyncContext the started async context of the servlet request
+     * @param executor runs the blocking parts, i.e. waiting for the target
+     * @return the outcome of this target, never completed exceptionally
+     */
+    public CompletableFuture<TargetOutcome> serviceAsync(int i, HttpRequest proxyRequest,
+            AsyncContext asyncContext, Executor executor) {
+        final long startNanos = System.nanoTime();
+        final CompletableFuture<TargetOutcome> outcomeFuture = new CompletableFuture<>();
+        if (isAsyncTransport()) {
+            asyncHttpClientExecutor.doExecutePublishing(env, proxyRequest).whenComplete((proxyResponse, t) -> {
+                if (t != null) {
+                    completeAsync(i, proxyRequest, null, null, asyncContext, -1,
+                            AsyncHttpClientExecutor.unwrap(t), startNanos, -1L, outcomeFuture);
+                } else {
+                    respondAsync(i, proxyRequest, proxyResponse, null, asyncContext, executor,
+                            startNanos, System.nanoTime(), outcomeFuture);
+                }
+            });
+            return outcomeFuture;
+        }
+        try {
+            executor.execute(() -> executeAsync(i, proxyRequest, asyncContext, executor, startNanos, outcomeFuture));
+        } catch (RejectedExecutionException rejex) {
+            completeAsync(i, proxyRequest, null, null, asyncContext, -1, rejex, startNanos, -1L, outcomeFuture);
+        }
+        return outcomeFuture;
+    }
+
+    private void executeAsync(int i, HttpRequest proxyRequest, AsyncContext asyncContext, Executor executor,
+            long startNanos, CompletableFuture<TargetOutcome> outcomeFuture) {
+        HttpClientExecutor httpClientExecutor = createHttpClientExecutor();
+        HttpResponse proxyResponse;
+        try {
+            // 2 Execute the proxy request
+            proxyResponse = httpClientExecutor.doExecute(proxyRequest);
+        } catch (IOException | RuntimeException e) {
+            completeAsync(i, proxyRequest, null, httpClientExecutor, asyncContext, -1, e, startNanos, -1L, outcomeFuture);
+            return;
+        }
+        respondAsync(i, proxyRequest, proxyResponse, httpClientExecutor, asyncContext, executor,
+                startNanos, System.nanoTime(), outcomeFuture);
+    }
+
+    private void respondAsync(int i, HttpRequest proxyRequest, HttpResponse proxyResponse,
+            HttpClientExecutor httpClientExecutor, AsyncContext asyncContext, Executor executor,
+            long startNanos, long arrivalNanos, CompletableFuture<TargetOutcome> outcomeFuture) {
+        try {
+            countBytes(proxyRequest, proxyResponse);
+            final int statusCode = proxyResponse.getStatusLine().getStatusCode();
+
+            // 3 Send status and headers, then the entity as the client is ready
+            HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+            boolean sendEntity = new HttpResponseProxyFactory(config, env).sendResponseHead(
+                    (HttpServletRequest) asyncContext.getRequest(), servletResponse, proxyResponse);
+            HttpEntity entity = proxyResponse.getEntity();
+            if (!sendEntity || entity == null) {
+                completeAsync(i, proxyRequest, proxyResponse, httpClientExecutor, asyncContext, statusCode, null,
+                        startNanos, arrivalNanos, outcomeFuture);
+                return;
+            }
+            ServletOutputStream servletOutputStream = servletResponse.getOutputStream();
+            if (entity instanceof AsyncHttpClientExecutor.PublisherEntity) {
+                ResponseBodyWriteSubscriber writeSubscriber = new ResponseBodyWriteSubscriber(
+                        servletOutputStream, entity.isChunked());
+                writeSubscriber.getCompletion().whenComplete((v, t) -> {
+                    if (targetMetrics != null) {
+                        targetMetrics.addBytesReceived(writeSubscriber.getBytesWritten());
+                    }
+                    completeAsync(i, proxyRequest, proxyResponse,
+                            httpClientExecutor, asyncContext, statusCode, t, startNanos, arrivalNanos, outcomeFuture);
+                });
+                servletOutputStream.setWriteListener(writeSubscriber);
+                ((AsyncHttpClientExecutor.PublisherEntity) entity).subscribe(writeSubscriber);
+                return;
+            }
+            ResponseEntityWriteListener writeListener = new ResponseEntityWriteListener(
+                    entity, servletOutputStream, executor, config.isDoHandleCompression());
+            writeListener.getCompletion().whenComplete((v, t) -> completeAsync(i, proxyRequest, proxyResponse,
+                    httpClientExecutor, asyncContext, statusCode, t, startNanos, arrivalNanos, outcomeFuture));
+            servletOutputStream.setWriteListener(writeListener);
+        } catch (Exception e) {
+            completeAsync(i, proxyRequest, proxyResponse, httpClientExecutor, asyncContext, -1, e, startNanos, arrivalNanos, outcomeFuture);
+        }
+    }
+
+    private void completeAsync(int i, HttpRequest proxyRequest, HttpResponse proxyResponse,
+            HttpClientExecutor httpClientExecutor, AsyncContext asyncContext,
+            int statusCode, Throwable failure, long startNanos, long arrivalNanos,
+            CompletableFuture<TargetOutcome> outcomeFuture) {
+        try {
+            if (failure != null) {
+                abortProxyRequest(proxyRequest, proxyResponse);
+                HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+                if (!servletResponse.isCommitted()) {
+                    Deadline deadline = ProxyRequest.deadlineOf(proxyRequest);
+                    servletResponse.sendError(deadline != null && deadline.isExpired()
+                            ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                            : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } else if (proxyResponse != null) {
+                // make sure the entire entity was consumed, so the connection is released
+                EntityUtils.consumeQuietly(proxyResponse.getEntity());
+            }
+            if (proxyResponse != null && proxyResponse.getEntity() instanceof AsyncHttpClientExecutor.PublisherEntity) {
+                ((AsyncHttpClientExecutor.PublisherEntity) proxyResponse.getEntity()).discard();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "completing non-blocking proxy request", e);
+        } finally {
+            ProxyRequest.stopDeadlineTimer(proxyRequest);
+            if (httpClientExecutor != null) {
+                try {
+                    httpClientExecutor.close();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "closing HttpClient", e);
+                }
+            }
+            asyncContext.complete();
+            outcomeFuture.complete(failure != null
+                    ? TargetOutcome.failed(i, env, failure, startNanos)
+                    : TargetOutcome.completed(i, env, statusCode, startNanos, arrivalNanos));
+        }
+    }
+
+    private HttpResponse execute(HttpClientExecutor httpClientExecutor, HttpRequest proxyRequest) throws IOException {
+        HttpResponse proxyResponse = httpClientExecutor != null
+                ? httpClientExecutor.doExecute(proxyRequest)
+                : AsyncHttpClientExecutor.join(asyncHttpClientExecutor.doExecute(env, proxyRequest));
+        countBytes(proxyRequest, proxyResponse);
+        return proxyResponse;
+    }
+
+    /**
+     * Count the request body as sent, and the response body as it is read.
+     */
+    private void countBytes(HttpRequest proxyRequest, HttpResponse proxyResponse) {
+        if (targetMetrics == null) {
+            return;
+        }
+        if (proxyRequest instanceof HttpEntityEnclosingRequest) {
+            HttpEntity requestEntity = ((HttpEntityEnclosingRequest) proxyRequest).getEntity();
+            if (requestEntity != null && requestEntity.getContentLength() > 0L) {
+                targetMetrics.addBytesSent(requestEntity.getContentLength());
+            }
+        }
+        if (proxyResponse.getEntity() instanceof AsyncHttpClientExecutor.PublisherEntity) {
+            // counted as written, see #respondAsync
+            return;
+        }
+        proxyResponse.setEntity(targetMetrics.countBytesReceived(proxyResponse.getEntity()));
+    }
+
+    private HttpClientExecutor createHttpClientExecutor() {
+        return proxyClient != null
+                ? new HttpClientExecutor(config, env, proxyClient)
+                : new HttpClientExecutor(config, env);
+    }
+
+    /**
+     * Tell if this mediator sends the proxy requests by an
+     * {@link AsyncHttpClientExecutor}.
+     *
+     * @return
+     */
+    public boolean isAsyncTransport() {
+        return asyncHttpClientExecutor != null;
+    }
+
+    Env getEnv() {
+        return env;
+    }
+
     protected boolean sendTheHttpResponse(int i) {
         return i == 0;
     }
 
     protected void handleRequestException(HttpRequest proxyRequest, HttpResponse proxyResonse, Exception e) throws ServletException, IOException {
+        abortProxyRequest(proxyRequest, proxyResonse);
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof ServletException) {
+            throw (ServletException) e;
+        }
+        //noinspection ConstantConditions
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        throw new RuntimeException(Mediator.class.getSimpleName(), e);
+    }
+
+    /**
+     * Read the response entity of a secondary target to its end, so it is
+     * counted, and its connection can be reused.
+     */
+    private static void discardEntity(HttpEntity entity) throws IOException {
+        if (entity == null || !entity.isStreaming()) {
+            return;
+        }
+        try (InputStream is = entity.getContent()) {
+            if (is == null) {
+                return;
+            }
+            byte[] buffer = new byte[4 * 1024];
+            while (is.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+
+    private void abortProxyRequest(HttpRequest proxyRequest, HttpResponse proxyResonse) throws IOException {
         //abort request, according to best practice with HttpClient
         if (proxyRequest instanceof AbortableHttpRequest) {
             AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
@@ -95,16 +645,5 @@ public class Mediator {
         if (proxyResonse instanceof Closeable) {
             ((Closeable) proxyResonse).close();
         }
-        if (e instanceof RuntimeException) {
-            throw (RuntimeException) e;
-        }
-        if (e instanceof ServletException) {
-            throw (ServletException) e;
-        }
-        //noinspection ConstantConditions
-        if (e instanceof IOException) {
-            throw (IOException) e;
-        }
-        throw new RuntimeException(Mediator.class.getSimpleName(), e);
     }
 }
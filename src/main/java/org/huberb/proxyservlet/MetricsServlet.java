@@ -0,0 +1,275 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Expose the metrics of all {@link MultiProxyingServlet}s of the web
+ * application in the Prometheus text format.
+ * <p>
+ * Each initialized proxy servlet registers itself as servlet context
+ * attribute, its metrics are labelled by its servlet name. The exposition is
+ * rendered by a {@link PrometheusTextWriter} kept across scrapes, so
+ * scraping allocates almost nothing. Scrapes are served one at a time.
+ * <p>
+ * The comparison counters of {@link FanOutMode#SHADOW} mode are exposed, the
+ * sample log of its mismatches is read by
+ * {@link MultiProxyingServlet#getShadowStats()} of the same attribute.
+ *
+ * @author pi
+ */
+public class MetricsServlet extends HttpServlet {
+
+    /**
+     * Initial size of the exposition buffer in bytes.
+     */
+    static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Upper bounds of the latency histogram buckets: powers of two from 256
+     * microseconds to about 67 seconds. They are bucket edges of the
+     * {@link LatencyHistogram}, thus the cumulative counts are exact.
+     */
+    static final long[] LATENCY_BOUNDS_MICROS;
+    private static final int[] LATENCY_BOUND_BUCKETS;
+
+    static {
+        LATENCY_BOUNDS_MICROS = new long[19];
+        LATENCY_BOUND_BUCKETS = new int[LATENCY_BOUNDS_MICROS.length];
+        for (int i = 0; i < LATENCY_BOUNDS_MICROS.length; i += 1) {
+            LATENCY_BOUNDS_MICROS[i] = 1L << (i + 8);
+            LATENCY_BOUND_BUCKETS[i] = LatencyHistogram.bucketIndex(LATENCY_BOUNDS_MICROS[i]);
+        }
+    }
+
+    private static final String SERVLET = "servlet";
+    private static final String TARGET = "target";
+    private static final String REQUESTS = "multiproxy_target_requests_total";
+    private static final String ERRORS = "multiproxy_target_errors_total";
+    private static final String SENT_BYTES = "multiproxy_target_sent_bytes_total";
+    private static final String RECEIVED_BYTES = "multiproxy_target_received_bytes_total";
+    private static final String LATENCY = "multiproxy_target_latency_seconds";
+    private static final String POOL_CONNECTIONS = "multiproxy_pool_connections";
+    private static final String POOL_MAX_CONNECTIONS = "multiproxy_pool_max_connections";
+    private static final String POOL_PENDING = "multiproxy_pool_pending_requests";
+    private static final String MIRROR_QUEUE_DEPTH = "multiproxy_mirror_queue_depth";
+    private static final String MIRROR_QUEUE_ENQUEUED = "multiproxy_mirror_queue_enqueued_total";
+    private static final String MIRROR_QUEUE_DROPPED = "multiproxy_mirror_queue_dropped_total";
+    private static final String MIRROR_QUEUE_EXPIRED = "multiproxy_mirror_queue_expired_total";
+    private static final String SHADOW_COMPARED = "multiproxy_shadow_compared_total";
+    private static final String SHADOW_MATCHED = "multiproxy_shadow_matched_total";
+    private static final String SHADOW_MISMATCHES = "multiproxy_shadow_mismatches_total";
+    private static final String SHADOW_INCOMPLETE = "multiproxy_shadow_incomplete_total";
+
+    private final PrometheusTextWriter writer = new PrometheusTextWriter(INITIAL_BUFFER_SIZE);
+    private final long[] counts = new long[LatencyHistogram.BUCKETS];
+    private final List<MultiProxyingServlet> proxies = new ArrayList<>();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        synchronized (writer) {
+            render(getServletContext());
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType(PrometheusTextWriter.CONTENT_TYPE);
+            resp.setContentLength(writer.size());
+            writer.writeTo(resp.getOutputStream());
+        }
+    }
+
+    /**
+     * Render the metrics of all proxy servlets of a servlet context.
+     * <p>
+     * The caller must hold the lock of the writer.
+     *
+     * @param servletContext
+     * @return the writer holding the exposition
+     */
+    PrometheusTextWriter render(ServletContext servletContext) {
+        proxies.clear();
+        Enumeration<String> names = servletContext.getAttributeNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            if (name.startsWith(MultiProxyingServlet.METRICS_ATTRIBUTE_PREFIX)) {
+                Object attribute = servletContext.getAttribute(name);
+                if (attribute instanceof MultiProxyingServlet) {
+                    proxies.add((MultiProxyingServlet) attribute);
+                }
+            }
+        }
+        writer.reset();
+        renderTargets();
+        renderPools();
+        renderMirrorQueues();
+        renderShadowStats();
+        proxies.clear();
+        return writer;
+    }
+
+    private void renderTargets() {
+        writer.family(REQUESTS, "counter", "Requests sent to a target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            for (TargetMetrics metrics : proxy.getTargetMetricsRegistry().values()) {
+                targetSample(REQUESTS, "", proxy, metrics).value(metrics.getRequests());
+            }
+        }
+        writer.family(ERRORS, "counter", "Requests to a target failing, or answered with status 5xx.");
+        for (MultiProxyingServlet proxy : proxies) {
+            for (TargetMetrics metrics : proxy.getTargetMetricsRegistry().values()) {
+                targetSample(ERRORS, "", proxy, metrics).value(metrics.getErrors());
+            }
+        }
+        writer.family(SENT_BYTES, "counter", "Request body bytes sent to a target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            for (TargetMetrics metrics : proxy.getTargetMetricsRegistry().values()) {
+                targetSample(SENT_BYTES, "", proxy, metrics).value(metrics.getBytesSent());
+            }
+        }
+        writer.family(RECEIVED_BYTES, "counter", "Response body bytes received from a target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            for (TargetMetrics metrics : proxy.getTargetMetricsRegistry().values()) {
+                targetSample(RECEIVED_BYTES, "", proxy, metrics).value(metrics.getBytesReceived());
+            }
+        }
+        writer.family(LATENCY, "histogram", "Latency of the responses of a target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            for (TargetMetrics metrics : proxy.getTargetMetricsRegistry().values()) {
+                renderLatency(proxy, metrics);
+            }
+        }
+    }
+
+    private void renderLatency(MultiProxyingServlet proxy, TargetMetrics metrics) {
+        LatencyHistogram latencyHistogram = metrics.getLatencyHistogram();
+        final long count = latencyHistogram.copyCounts(counts);
+        long cumulative = 0L;
+        int bucket = 0;
+        for (int i = 0; i < LATENCY_BOUNDS_MICROS.length; i += 1) {
+            for (; bucket < LATENCY_BOUND_BUCKETS[i]; bucket += 1) {
+                cumulative += counts[bucket];
+            }
+            targetSample(LATENCY, "_bucket", proxy, metrics)
+                    .labelSeconds("le", LATENCY_BOUNDS_MICROS[i])
+                    .value(cumulative);
+        }
+        targetSample(LATENCY, "_bucket", proxy, metrics).label("le", "+Inf").value(count);
+        targetSample(LATENCY, "_sum", proxy, metrics).valueSeconds(latencyHistogram.getTotalMicros());
+        targetSample(LATENCY, "_count", proxy, metrics).value(count);
+    }
+
+    private PrometheusTextWriter targetSample(String name, String suffix, MultiProxyingServlet proxy, TargetMetrics metrics) {
+        return writer.sample(name, suffix)
+                .label(SERVLET, proxy.getServletName())
+                .label(TARGET, metrics.getTargetUri());
+    }
+
+    private void renderPools() {
+        writer.family(POOL_CONNECTIONS, "gauge", "Connections of the pool by state.");
+        for (MultiProxyingServlet proxy : proxies) {
+            PoolStats poolStats = proxy.getPoolStats();
+            writer.sample(POOL_CONNECTIONS).label(SERVLET, proxy.getServletName()).label("state", "leased")
+                    .value(poolStats.getLeased());
+            writer.sample(POOL_CONNECTIONS).label(SERVLET, proxy.getServletName()).label("state", "available")
+                    .value(poolStats.getAvailable());
+        }
+        writer.family(POOL_PENDING, "gauge", "Requests waiting for a connection of the pool.");
+        for (MultiProxyingServlet proxy : proxies) {
+            writer.sample(POOL_PENDING).label(SERVLET, proxy.getServletName())
+                    .value(proxy.getPoolStats().getPending());
+        }
+        writer.family(POOL_MAX_CONNECTIONS, "gauge", "Maximum connections of the pool.");
+        for (MultiProxyingServlet proxy : proxies) {
+            writer.sample(POOL_MAX_CONNECTIONS).label(SERVLET, proxy.getServletName())
+                    .value(proxy.getPoolStats().getMax());
+        }
+    }
+
+    private void renderMirrorQueues() {
+        writer.family(MIRROR_QUEUE_DEPTH, "gauge", "Secondary targets waiting in the mirror queue.");
+        for (MultiProxyingServlet proxy : proxies) {
+            MirrorQueue mirrorQueue = proxy.getMirrorQueue();
+            if (mirrorQueue != null) {
+                writer.sample(MIRROR_QUEUE_DEPTH).label(SERVLET, proxy.getServletName()).value(mirrorQueue.size());
+            }
+        }
+        writer.family(MIRROR_QUEUE_ENQUEUED, "counter", "Secondary targets queued since the servlet was initialized.");
+        for (MultiProxyingServlet proxy : proxies) {
+            MirrorQueue mirrorQueue = proxy.getMirrorQueue();
+            if (mirrorQueue != null) {
+                writer.sample(MIRROR_QUEUE_ENQUEUED).label(SERVLET, proxy.getServletName()).value(mirrorQueue.getEnqueued());
+            }
+        }
+        writer.family(MIRROR_QUEUE_DROPPED, "counter", "Secondary targets dropped by the mirror queue.");
+        for (MultiProxyingServlet proxy : proxies) {
+            MirrorQueue mirrorQueue = proxy.getMirrorQueue();
+            if (mirrorQueue != null) {
+                writer.sample(MIRROR_QUEUE_DROPPED).label(SERVLET, proxy.getServletName()).value(mirrorQueue.getDropped());
+            }
+        }
+        writer.family(MIRROR_QUEUE_EXPIRED, "counter", "Secondary targets expired in the mirror queue.");
+        for (MultiProxyingServlet proxy : proxies) {
+            MirrorQueue mirrorQueue = proxy.getMirrorQueue();
+            if (mirrorQueue != null) {
+                writer.sample(MIRROR_QUEUE_EXPIRED).label(SERVLET, proxy.getServletName()).value(mirrorQueue.getExpired());
+            }
+        }
+    }
+
+    private void renderShadowStats() {
+        writer.family(SHADOW_COMPARED, "counter", "Responses of secondary targets compared in shadow mode.");
+        for (MultiProxyingServlet proxy : proxies) {
+            ShadowStats shadowStats = proxy.getShadowStats();
+            if (shadowStats != null) {
+                writer.sample(SHADOW_COMPARED).label(SERVLET, proxy.getServletName()).value(shadowStats.getCompared());
+            }
+        }
+        writer.family(SHADOW_MATCHED, "counter", "Responses of secondary targets equal to the primary target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            ShadowStats shadowStats = proxy.getShadowStats();
+            if (shadowStats != null) {
+                writer.sample(SHADOW_MATCHED).label(SERVLET, proxy.getServletName()).value(shadowStats.getMatched());
+            }
+        }
+        writer.family(SHADOW_MISMATCHES, "counter", "Responses of secondary targets differing from the primary target.");
+        for (MultiProxyingServlet proxy : proxies) {
+            ShadowStats shadowStats = proxy.getShadowStats();
+            if (shadowStats != null) {
+                writer.sample(SHADOW_MISMATCHES).label(SERVLET, proxy.getServletName()).label("kind", "status")
+                        .value(shadowStats.getStatusMismatches());
+                writer.sample(SHADOW_MISMATCHES).label(SERVLET, proxy.getServletName()).label("kind", "headers")
+                        .value(shadowStats.getHeaderMismatches());
+                writer.sample(SHADOW_MISMATCHES).label(SERVLET, proxy.getServletName()).label("kind", "body")
+                        .value(shadowStats.getBodyMismatches());
+            }
+        }
+        writer.family(SHADOW_INCOMPLETE, "counter", "Responses of secondary targets not comparable.");
+        for (MultiProxyingServlet proxy : proxies) {
+            ShadowStats shadowStats = proxy.getShadowStats();
+            if (shadowStats != null) {
+                writer.sample(SHADOW_INCOMPLETE).label(SERVLET, proxy.getServletName()).value(shadowStats.getIncomplete());
+            }
+        }
+    }
+}
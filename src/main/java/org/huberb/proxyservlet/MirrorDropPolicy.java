@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Locale;
+
+/**
+ * What a {@link MirrorQueue} does with a secondary target if it is full.
+ *
+ * @author pi
+ */
+public enum MirrorDropPolicy {
+
+    /**
+     * Drop the new secondary target.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest queued secondary target, and queue the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Wait up to {@code mirrorQueueTimeout} for a free slot, then drop the new
+     * secondary target.
+     */
+    BLOCK,
+    /**
+     * Drop new secondary targets with a probability growing from 0 when the
+     * queue is half full, to 1 when the queue is full.
+     */
+    SAMPLE_DOWN;
+
+    /**
+     * Parse a configuration value like {@code drop-oldest}, ignoring case.
+     *
+     * @param value
+     * @return the policy, or {@link #DROP_NEWEST} if the value is unknown
+     */
+    static MirrorDropPolicy of(String value) {
+        if (value != null) {
+            String normalized = value.trim().replace('-', '_').toUpperCase(Locale.ROOT);
+            for (MirrorDropPolicy policy : values()) {
+                if (policy.name().equals(normalized)) {
+                    return policy;
+                }
+            }
+        }
+        return DROP_NEWEST;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue between the servlet, and the workers sending to the
+ * secondary targets.
+ * <p>
+ * The queue never holds more than {@code capacity} secondary targets, a full
+ * queue applies its {@link MirrorDropPolicy}. A dropped target releases its
+ * resources, e.g. the request body spool, immediately. Thus a slow mirror
+ * costs neither memory, nor latency of the primary target.
+ * <p>
+ * The queue is lock-free, its size is reserved by compare-and-set. At most
+ * {@code concurrency} drainers process the queue. A drainer waiting for an
+ * asynchronous exchange keeps its slot, but not its thread.
+ *
+ * @author pi
+ */
+public class MirrorQueue {
+
+    private static final Logger LOG = Logger.getLogger(MirrorQueue.class.getName());
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final MirrorDropPolicy dropPolicy;
+    private final long timeoutNanos;
+    private final long maxAgeNanos;
+    private final int concurrency;
+    private final Executor executor;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger drainers = new AtomicInteger();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Create a queue.
+     *
+     * @param capacity maximum number of queued secondary targets
+     * @param dropPolicy applied if the queue is full
+     * @param timeoutMillis maximum wait of {@link MirrorDropPolicy#BLOCK}
+     * @param maxAgeMillis secondary targets queued for longer are dropped, a
+     * negative value never drops them
+     * @param concurrency maximum number of secondary targets in flight
+     * @param executor runs the drainers
+     */
+    public MirrorQueue(int capacity, MirrorDropPolicy dropPolicy, long timeoutMillis, long maxAgeMillis,
+            int concurrency, Executor executor) {
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis));
+        this.maxAgeNanos = maxAgeMillis >= 0 ? TimeUnit.MILLISECONDS.toNanos(maxAgeMillis) : -1L;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a secondary target.
+     *
+     * @param task starts the exchange, the returned future completes when the
+     * exchange is done
+     * @param onDrop called instead of the task if the secondary target is
+     * dropped, or expires
+     * @return {@code true} if queued
+     */
+    public boolean offer(Supplier<? extends CompletableFuture<?>> task, Consumer<RejectedExecutionException> onDrop) {
+        Entry entry = new Entry(task, onDrop, System.nanoTime());
+        if (dropPolicy == MirrorDropPolicy.SAMPLE_DOWN && !sample()) {
+            drop(entry, "Mirror queue sampled down");
+            return false;
+        }
+        if (!tryReserve() && !reserveFull(entry)) {
+            return false;
+        }
+        queue.offer(entry);
+        enqueued.increment();
+        startDrainer();
+        return true;
+    }
+
+    /**
+     * Apply the drop policy of a full queue.
+     *
+     * @return {@code true} if a slot was reserved for the entry
+     */
+    private boolean reserveFull(Entry entry) {
+        switch (dropPolicy) {
+            case DROP_OLDEST:
+                while (!tryReserve()) {
+                    Entry oldest = queue.poll();
+                    if (oldest != null) {
+                        size.decrementAndGet();
+                        drop(oldest, "Mirror queue dropped oldest");
+                    } else {
+                        // the slots are reserved, but not offered yet
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                }
+                return true;
+            case BLOCK:
+                final long deadline = entry.enqueuedNanos + timeoutNanos;
+                while (!tryReserve()) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        drop(entry, "Mirror queue full");
+                        return false;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                return true;
+            default:
+                drop(entry, "Mirror queue full");
+                return false;
+        }
+    }
+
+    private boolean tryReserve() {
+        int n;
+        do {
+            n = size.get();
+            if (n >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Admit with a probability decreasing linearly from 1 at the half-full
+     * watermark, to 0 when full.
+     */
+    private boolean sample() {
+        final int watermark = capacity / 2;
+        final int n = size.get();
+        if (n < watermark) {
+            return true;
+        }
+        return ThreadLocalRandom.current().nextInt(capacity - watermark) >= n - watermark;
+    }
+
+    private void drop(Entry entry, String reason) {
+        dropped.increment();
+        entry.reject(reason);
+    }
+
+    private void startDrainer() {
+        if (tryAcquireDrainer()) {
+            runDrainer();
+        }
+    }
+
+    private boolean tryAcquireDrainer() {
+        int n;
+        do {
+            n = drainers.get();
+            if (n >= concurrency) {
+                return false;
+            }
+        } while (!drainers.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    private void runDrainer() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException rejex) {
+            // the executor is shut down, the queued entries are dropped by clear()
+            drainers.decrementAndGet();
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                drainers.decrementAndGet();
+                // an entry offered between poll, and decrement needs a drainer
+                if (queue.isEmpty() || !tryAcquireDrainer()) {
+                    return;
+                }
+                continue;
+            }
+            size.decrementAndGet();
+            if (maxAgeNanos >= 0 && System.nanoTime() - entry.enqueuedNanos > maxAgeNanos) {
+                expired.increment();
+                entry.reject("Mirror queue entry expired");
+                continue;
+            }
+            CompletableFuture<?> future;
+            try {
+                future = entry.task.get();
+            } catch (RuntimeException rtex) {
+                LOG.log(Level.WARNING, "starting secondary target", rtex);
+                // the drop callback releases what the entry holds, e.g. the request body
+                entry.reject("Starting secondary target failed: " + rtex);
+                continue;
+            }
+            if (!future.isDone()) {
+                // keep the drainer slot, but not the thread
+                future.whenComplete((v, t) -> runDrainer());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop all queued secondary targets, e.g. on shutdown.
+     */
+    public void clear() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            size.decrementAndGet();
+            drop(entry, "Mirror queue cleared");
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public String formatCounters() {
+        return String.format("Mirror queue: size %d, enqueued %d, dropped %d, expired %d",
+                size(), getEnqueued(), getDropped(), getExpired());
+    }
+
+    private static class Entry {
+
+        final Supplier<? extends CompletableFuture<?>> task;
+        final Consumer<RejectedExecutionException> onDrop;
+        final long enqueuedNanos;
+
+        Entry(Supplier<? extends CompletableFuture<?>> task, Consumer<RejectedExecutionException> onDrop, long enqueuedNanos) {
+            this.task = task;
+            this.onDrop = onDrop;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+
+        void reject(String reason) {
+            try {
+                onDrop.accept(new RejectedExecutionException(reason));
+            } catch (RuntimeException rtex) {
+                LOG.log(Level.WARNING, "dropping secondary target", rtex);
+            }
+        }
+    }
+}
@@ -15,34 +15,357 @@
  */
 package org.huberb.proxyservlet;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
 /**
+ * Send each request to multiple targets.
+ * <p>
+ * The configuration is read from the servlet init-parameters, overridden by
+ * the optional {@code configFile}. Whenever the file changes, a new
+ * {@link ConfigSnapshot} is published. Requests in flight finish on the
+ * snapshot they started with. The connection pool, the fan-out executor,
+ * the JDK client of the async transport, the deadline timer, and the mirror
+ * queue are kept across reloads.
  *
  * @author pi
  */
 public class MultiProxyingServlet extends HttpServlet {
 
     private static final Logger LOG = Logger.getLogger(MultiProxyingServlet.class.getName());
+    private static final String TARGET_URI = "targetUri";
+    /**
+     * Prefix of the servlet context attribute, holding each initialized
+     * servlet by its name, for the {@link MetricsServlet}.
+     */
+    public static final String METRICS_ATTRIBUTE_PREFIX = MultiProxyingServlet.class.getName() + ".";
     protected boolean doLog;
+    /**
+     * The configuration at initialization, providing the settings which are
+     * not reloaded.
+     */
     private Config config;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private IdleConnectionEvictor idleConnectionEvictor;
+    private ExecutorService fanOutExecutorService;
+    private ScheduledExecutorService deadlineTimer;
+    private ExecutorService asyncTransportExecutorService;
+    private java.net.http.HttpClient asyncProxyClient;
+    private final TargetMetricsRegistry targetMetricsRegistry = new TargetMetricsRegistry();
+    private volatile ConfigSnapshot snapshot;
+    private ConfigWatcher configWatcher;
 
     @Override
     public void init() throws ServletException {
-        this.config = new Config.ConfigFromServletConfigBuilder()
-                .servletConfig(this.getServletConfig())
+        String configFile = getServletConfig().getInitParameter("configFile");
+        Path configFilePath = configFile != null && !configFile.trim().isEmpty()
+                ? Paths.get(configFile.trim())
+                : null;
+        final Properties props;
+        try {
+            props = loadProperties(configFilePath);
+        } catch (IOException ioex) {
+            throw new ServletException("Cannot read " + configFilePath, ioex);
+        }
+        this.config = new Config.ConfigFromPropertiesBuilder()
+                .props(props)
+                .build();
+        // one pool shared by all requests, all targets, and all snapshots
+        HttpClientFactory httpClientFactory = new HttpClientFactory(config);
+        this.connectionManager = httpClientFactory.createConnectionManager();
+        // the clients share the pool, thus they do not evict its connections
+        this.idleConnectionEvictor = httpClientFactory.createIdleConnectionEvictor(connectionManager);
+        this.idleConnectionEvictor.start();
+        this.fanOutExecutorService = createFanOutExecutorService();
+        this.deadlineTimer = Deadline.newTimer(getServletName() + "-deadline");
+        if (config.isDoAsyncTransport()) {
+            // one JDK client shared by all snapshots, its threads are released on destroy
+            this.asyncTransportExecutorService = FanOutExecutors.newCachedPlatformThreadPool(
+                    getServletName() + "-async-transport-");
+            this.asyncProxyClient = AsyncHttpClientExecutor.createHttpClient(config, asyncTransportExecutorService);
+        }
+        try {
+            publish(createSnapshot(props, null));
+        } catch (IllegalArgumentException iaex) {
+            throw new ServletException(iaex);
+        }
+        getServletContext().setAttribute(METRICS_ATTRIBUTE_PREFIX + getServletName(), this);
+        if (configFilePath != null) {
+            try {
+                this.configWatcher = new ConfigWatcher(configFilePath, () -> reload(configFilePath));
+            } catch (IOException ioex) {
+                LOG.log(Level.WARNING, "Cannot watch " + configFilePath + ", it is not reloaded", ioex);
+            }
+        }
+    }
+
+    /**
+     * Read the servlet init-parameters, overridden by the configuration file.
+     * <p>
+     * If the file defines targets, they replace the targets of the
+     * init-parameters.
+     *
+     * @param configFilePath the file, or {@code null}
+     * @return
+     * @throws IOException
+     */
+    Properties loadProperties(Path configFilePath) throws IOException {
+        Properties props = new Properties();
+        ServletConfig servletConfig = getServletConfig();
+        servletConfig.getInitParameterNames().asIterator().forEachRemaining(name -> {
+            String value = servletConfig.getInitParameter(name);
+            if (value != null) {
+                props.setProperty(name, value);
+            }
+        });
+        if (configFilePath == null) {
+            return props;
+        }
+        Properties fileProps = new Properties();
+        try (InputStream is = Files.newInputStream(configFilePath)) {
+            fileProps.load(is);
+        }
+        if (fileProps.stringPropertyNames().stream().anyMatch(name -> name.startsWith(TARGET_URI))) {
+            props.stringPropertyNames().stream()
+                    .filter(name -> name.startsWith(TARGET_URI))
+                    .forEach(props::remove);
+        }
+        props.putAll(fileProps);
+        return props;
+    }
+
+    /**
+     * Reload the configuration file, and publish a new snapshot.
+     * <p>
+     * If the file is invalid, the current snapshot is kept.
+     *
+     * @param configFilePath
+     */
+    synchronized void reload(Path configFilePath) {
+        ConfigSnapshot current = this.snapshot;
+        if (current == null) {
+            // destroyed
+            return;
+        }
+        final ConfigSnapshot reloaded;
+        try {
+            reloaded = createSnapshot(loadProperties(configFilePath), current);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Cannot reload " + configFilePath + ", keeping the current configuration", e);
+            return;
+        }
+        publish(reloaded);
+        // requests in flight go on using the shared pool
+        closeProxyClient(current.getProxyClient());
+    }
+
+    /**
+     * Create a snapshot from properties.
+     * <p>
+     * The settings {@code fanOutThreads}, {@code doVirtualThreads}, and
+     * {@code doAsyncTransport} are taken from the initial configuration, as
+     * the executor, and the JDK client are kept. The dispatcher takes over
+     * the mirror queue of the current snapshot.
+     *
+     * @param props
+     * @param current the current snapshot, or {@code null} at initialization
+     * @return
+     * @throws IllegalArgumentException if a target uri is invalid
+     */
+    ConfigSnapshot createSnapshot(Properties props, ConfigSnapshot current) {
+        Config snapshotConfig = new Config.ConfigFromPropertiesBuilder()
+                .props(props)
                 .build();
-        LOG.info(this.config::formatConfigValues);
-        this.doLog = this.config.isDoLog();
+        snapshotConfig.setFanOutThreads(config.getFanOutThreads());
+        snapshotConfig.setDoVirtualThreads(config.isDoVirtualThreads());
+        snapshotConfig.setDoAsyncTransport(config.isDoAsyncTransport());
+        TargetTable targetTable = createTargetTable(props);
+        if (FanOutMode.of(snapshotConfig.getFanOutMode()) == FanOutMode.HEDGE && targetTable.size() > 2) {
+            LOG.warning(String.format("Fan-out mode hedge uses the first 2 targets only, "
+                    + "ignoring %d further targets", targetTable.size() - 2));
+        }
+
+        HttpClientFactory httpClientFactory = new HttpClientFactory(snapshotConfig);
+        httpClientFactory.configureConnectionManager(connectionManager);
+        HttpClient proxyClient = httpClientFactory.createSharingHttpClient(connectionManager);
+        final AsyncHttpClientExecutor snapshotAsyncHttpClientExecutor = asyncProxyClient != null
+                ? new AsyncHttpClientExecutor(snapshotConfig, asyncProxyClient)
+                : null;
+        FanOutDispatcher fanOutDispatcher = new FanOutDispatcher(
+                snapshotConfig,
+                fanOutExecutorService,
+                env -> new Mediator(snapshotConfig, env, proxyClient, snapshotAsyncHttpClientExecutor,
+                        targetMetricsRegistry.get(env.getTargetUri())),
+                this::recordTargetOutcome,
+                current != null ? current.getFanOutDispatcher() : null);
+        return new ConfigSnapshot(snapshotConfig, targetTable, proxyClient,
+                snapshotAsyncHttpClientExecutor, fanOutDispatcher);
+    }
+
+    private void publish(ConfigSnapshot snapshot) {
+        LOG.info(snapshot.getConfig()::formatConfigValues);
+        this.doLog = snapshot.getConfig().isDoLog();
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * The current snapshot.
+     *
+     * @return the snapshot, or {@code null} if not initialized
+     */
+    ConfigSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(METRICS_ATTRIBUTE_PREFIX + getServletName());
+        if (this.configWatcher != null) {
+            this.configWatcher.close();
+        }
+        final ConfigSnapshot current;
+        synchronized (this) {
+            current = this.snapshot;
+            this.snapshot = null;
+        }
+        // stop the secondary targets before shutting down the client
+        if (current != null) {
+            FanOutDispatcher fanOutDispatcher = current.getFanOutDispatcher();
+            fanOutDispatcher.close();
+            if (fanOutDispatcher.getMirrorQueue() != null) {
+                LOG.info(fanOutDispatcher.getMirrorQueue()::formatCounters);
+            }
+            if (fanOutDispatcher.getShadowStats() != null) {
+                LOG.info(fanOutDispatcher.getShadowStats()::formatCounters);
+            }
+            closeProxyClient(current.getProxyClient());
+        }
+        for (TargetMetrics.Snapshot targetMetricsSnapshot : targetMetricsRegistry.snapshot()) {
+            LOG.info(targetMetricsSnapshot.formatMetrics());
+        }
+        if (this.deadlineTimer != null) {
+            this.deadlineTimer.shutdownNow();
+        }
+        if (this.asyncTransportExecutorService != null) {
+            // the JDK client stops its selector thread once it is unreferenced
+            this.asyncProxyClient = null;
+            this.asyncTransportExecutorService.shutdownNow();
+        }
+        if (this.idleConnectionEvictor != null) {
+            this.idleConnectionEvictor.shutdown();
+        }
+        if (this.connectionManager != null) {
+            this.connectionManager.shutdown();
+        }
+        super.destroy();
+    }
+
+    private static void closeProxyClient(HttpClient proxyClient) {
+        if (proxyClient instanceof Closeable) {
+            try {
+                ((Closeable) proxyClient).close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "While destroying servlet, shutting down HttpClient", e);
+            }
+        }
+    }
+
+    /**
+     * Create the executor processing the secondary targets.
+     * <p>
+     * Sub-classes can override this method for supplying a different
+     * executor.
+     *
+     * @return the executor, or {@code null} for processing all targets
+     * sequentially
+     */
+    protected ExecutorService createFanOutExecutorService() {
+        return FanOutExecutors.newExecutorService(config, getServletName() + "-fan-out-");
+    }
+
+    /**
+     * The metrics of all targets, kept across configuration reloads.
+     *
+     * @return
+     */
+    public TargetMetricsRegistry getTargetMetricsRegistry() {
+        return targetMetricsRegistry;
+    }
+
+    /**
+     * The statistics of the connection pool.
+     *
+     * @return
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * The mirror queue of the current configuration.
+     *
+     * @return the queue, or {@code null} if not configured
+     */
+    public MirrorQueue getMirrorQueue() {
+        ConfigSnapshot current = this.snapshot;
+        return current != null ? current.getFanOutDispatcher().getMirrorQueue() : null;
+    }
+
+    /**
+     * The shadow statistics of the current configuration.
+     * <p>
+     * The sample log of the latest mismatches is read by
+     * {@link ShadowStats#getSamples()} of this servlet, registered as servlet
+     * context attribute.
+     *
+     * @return the statistics, or {@code null} if not in {@code shadow} mode
+     */
+    public ShadowStats getShadowStats() {
+        ConfigSnapshot current = this.snapshot;
+        return current != null ? current.getFanOutDispatcher().getShadowStats() : null;
+    }
+
+    private void recordTargetOutcome(TargetOutcome targetOutcome) {
+        if (targetOutcome != null) {
+            targetMetricsRegistry.record(targetOutcome);
+        }
+        reportTargetOutcome(targetOutcome);
+    }
+
+    /**
+     * Report the outcome of a single target.
+     *
+     * @param targetOutcome
+     */
+    protected void reportTargetOutcome(TargetOutcome targetOutcome) {
+        if (doLog) {
+            LOG.info(targetOutcome.formatOutcome());
+        } else if (!targetOutcome.isSuccess()) {
+            LOG.warning(targetOutcome.formatOutcome());
+        }
     }
 
     @Override
@@ -56,37 +379,54 @@ public class MultiProxyingServlet extends HttpServlet {
     }
 
     void process(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        String uriPrefix = String.format("%s://%s:%d%s",
-                req.getScheme(),
-                req.getLocalName(), req.getLocalPort(),
-                req.getContextPath()
-        );
-        List<String> targetUriList = createTargetUriList(uriPrefix);
-        for (int i = 0; i < targetUriList.size(); i += 1) {
-            String targetUri = targetUriList.get(i);
-            if (doLog) {
-                String msg = String.format("Processing %d: targetUri %s", i, targetUri);
+        // the request finishes on this snapshot, even if the configuration is reloaded
+        final ConfigSnapshot current = this.snapshot;
+        TargetTable targetTable = current.getTargetTable();
+        TargetSampler targetSampler = current.getTargetSampler();
+        final boolean doLogRequest = current.getConfig().isDoLog();
+        Env[] targets = targetTable.getTargets(req);
+        List<Env> envList = new ArrayList<>(targets.length);
+        for (int i = 0; i < targets.length; i += 1) {
+            Env env = targets[i];
+            // the primary target is always sent
+            if (i > 0 && !targetSampler.isSampled(targetTable.getSampleRate(i), req)) {
+                if (doLogRequest) {
+                    String msg = String.format("Skipping %d: targetUri %s not sampled", i, env.getTargetUri());
+                    LOG.info(msg);
+                }
+                continue;
+            }
+            if (doLogRequest) {
+                String msg = String.format("Processing %d: targetUri %s", i, env.getTargetUri());
                 LOG.info(msg);
             }
-            Env env = new Env.Builder().targetUri(targetUri).build();
-            new Mediator(config, env).service(i, req, resp);
+            envList.add(env);
+        }
+        // fix the deadline, its timer aborts targets running too long
+        Deadline.of(current.getConfig(), req, deadlineTimer);
+        try {
+            current.getFanOutDispatcher().dispatch(envList, req, resp);
+        } catch (RequestBodySpool.TooLargeException tlex) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, tlex.getMessage());
         }
     }
 
-    List<String> createTargetUriList(String uriPrefix) {
-        List<String> l = new ArrayList<>();
-        l.addAll(new ParameterValueFactory()
-                .setupTargetUrisFromServletInitParameter(this.getServletConfig()));
-        if (l.isEmpty()) {
-            l.addAll(createDefaultTargetUriList(uriPrefix));
+    /**
+     * Create the table of targets from the properties.
+     *
+     * @param props
+     * @return
+     */
+    TargetTable createTargetTable(Properties props) {
+        ParameterValueFactory parameterValueFactory = new ParameterValueFactory();
+        List<String> targetUriList = parameterValueFactory.setupTargetUrisFromProperties(props);
+        if (targetUriList.isEmpty()) {
+            return new TargetTable(createDefaultTargetUriList(), Collections.emptyList());
         }
-
-        return l.stream()
-                .map(s -> s.startsWith("/") ? uriPrefix + s : s)
-                .collect(Collectors.toList());
+        return new TargetTable(targetUriList, parameterValueFactory.setupSampleRatesFromProperties(props));
     }
 
-    List<String> createDefaultTargetUriList(String uriPrefix) {
+    List<String> createDefaultTargetUriList() {
         return Arrays.asList(
                 "/multiproxyingservlet/a.html",
                 "/multiproxyingservlet/b.html",
@@ -94,8 +434,6 @@ public class MultiProxyingServlet extends HttpServlet {
                 "/multiproxyingservlet/d.html",
                 "/multiproxyingservlet/e.html",
                 "/multiproxyingservlet/f.html"
-        ).stream()
-                .map(s -> uriPrefix + s)
-                .collect(Collectors.toList());
+        );
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@code multipart/mixed} response aggregating the responses of all
+ * targets.
+ * <p>
+ * Each target writes its part as soon as its response arrives, thus the parts
+ * are in order of completion. Targets take turns by a lock, and the body of a
+ * part is streamed through a fixed buffer, thus no body is buffered as a
+ * whole.
+ * <p>
+ * Each part carries the headers {@link #TARGET_URI},
+ * {@link #TARGET_STATUS}, and {@link #TARGET_LATENCY}. A target failing
+ * before its response arrived is written as part without body, having the
+ * header {@link #TARGET_ERROR}. The truncated part of a target failing while
+ * its body is read is followed by such a part, too.
+ * <p>
+ * Once writing has failed, e.g. as the client has gone, or the response is
+ * marked failed by {@link #fail()}, further writes throw an
+ * {@link IOException} without touching the servlet response.
+ *
+ * @author pi
+ */
+public class MultipartResponse {
+
+    public static final String TARGET_URI = "X-Target-Uri";
+    public static final String TARGET_STATUS = "X-Target-Status";
+    public static final String TARGET_LATENCY = "X-Target-Latency";
+    public static final String TARGET_ERROR = "X-Target-Error";
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final HttpServletResponse servletResponse;
+    private final String boundary;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean failed;
+
+    /**
+     * Start the multipart response, setting status, and content type.
+     *
+     * @param servletResponse
+     */
+    public MultipartResponse(HttpServletResponse servletResponse) {
+        this.servletResponse = servletResponse;
+        this.boundary = UUID.randomUUID().toString().replace("-", "");
+        servletResponse.setStatus(HttpServletResponse.SC_OK);
+        servletResponse.setContentType("multipart/mixed; boundary=" + boundary);
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * Write the part of a target.
+     * <p>
+     * If reading the body fails, e.g. as the target resets the connection,
+     * the part is ended, and followed by a part without body, having the
+     * header {@link #TARGET_ERROR}. The response stays usable for the other
+     * targets.
+     *
+     * @param targetUri
+     * @param statusCode the status of the target response
+     * @param elapsedNanos the latency of the target response
+     * @param headers further part headers, like content type
+     * @param body the body of the part, or {@code null}
+     * @throws IOException if reading the body, or writing the response fails
+     */
+    public void writePart(String targetUri, int statusCode, long elapsedNanos,
+            Map<String, String> headers, InputStream body) throws IOException {
+        IOException readFailure = null;
+        lock.lock();
+        try {
+            checkNotFailed();
+            final OutputStream os = servletResponse.getOutputStream();
+            os.write(partHead(targetUri, statusCode, elapsedNanos, headers));
+            if (body != null) {
+                byte[] buffer = new byte[10 * 1024];
+                while (true) {
+                    final int read;
+                    try {
+                        read = body.read(buffer);
+                    } catch (IOException ioex) {
+                        // the target has failed, not the client
+                        readFailure = ioex;
+                        break;
+                    }
+                    if (read == -1) {
+                        break;
+                    }
+                    os.write(buffer, 0, read);
+                }
+            }
+            // end the part, even if the target response is truncated
+            os.write(CRLF);
+            if (readFailure != null) {
+                os.write(partHead(targetUri, HttpServletResponse.SC_BAD_GATEWAY, elapsedNanos,
+                        Collections.singletonMap(TARGET_ERROR, errorMessage(readFailure))));
+                os.write(CRLF);
+            }
+            os.flush();
+        } catch (IOException ioex) {
+            failed = true;
+            throw ioex;
+        } finally {
+            lock.unlock();
+        }
+        if (readFailure != null) {
+            throw readFailure;
+        }
+    }
+
+    /**
+     * Write the part of a target failing before its response arrived.
+     *
+     * @param targetUri
+     * @param failure
+     * @param elapsedNanos
+     * @throws IOException
+     */
+    public void writeErrorPart(String targetUri, Throwable failure, long elapsedNanos) throws IOException {
+        final int statusCode;
+        if (failure instanceof Deadline.ExceededException) {
+            statusCode = HttpServletResponse.SC_GATEWAY_TIMEOUT;
+        } else if (failure instanceof CircuitBreaker.OpenException) {
+            statusCode = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        } else {
+            statusCode = HttpServletResponse.SC_BAD_GATEWAY;
+        }
+        writePart(targetUri, statusCode, elapsedNanos,
+                Collections.singletonMap(TARGET_ERROR, errorMessage(failure)), null);
+    }
+
+    /**
+     * Write the closing boundary, after all parts have been written.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            checkNotFailed();
+            final OutputStream os = servletResponse.getOutputStream();
+            os.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+        } catch (IOException ioex) {
+            failed = true;
+            throw ioex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark the response failed, thus targets still running stop writing
+     * their parts.
+     */
+    public void fail() {
+        failed = true;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (failed) {
+            throw new IOException("Multipart response has failed");
+        }
+    }
+
+    private static String errorMessage(Throwable failure) {
+        return failure.getMessage() != null ? failure.getMessage() : failure.getClass().getName();
+    }
+
+    private byte[] partHead(String targetUri, int statusCode, long elapsedNanos, Map<String, String> headers) {
+        StringBuilder sb = new StringBuilder(256)
+                .append("--").append(boundary).append("\r\n");
+        appendHeader(sb, TARGET_URI, targetUri);
+        appendHeader(sb, TARGET_STATUS, String.valueOf(statusCode));
+        appendHeader(sb, TARGET_LATENCY, String.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            appendHeader(sb, header.getKey(), header.getValue());
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void appendHeader(StringBuilder sb, String name, String value) {
+        sb.append(name).append(": ");
+        // a header value must not end the header section
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            sb.append(c == '\r' || c == '\n' ? ' ' : c);
+        }
+        sb.append("\r\n");
+    }
+}
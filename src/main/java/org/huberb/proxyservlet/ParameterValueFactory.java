@@ -23,7 +23,6 @@ import java.util.Properties;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
-import javax.servlet.ServletConfig;
 
 /**
  *
@@ -34,20 +33,21 @@ public class ParameterValueFactory {
     private static final String TARGET_URI = "targetUri";
     private static final String TARGET_URIS = "targetUris";
     private static final String TARGET_URI_DOT = "targetUri.";
+    private static final String DOT_SAMPLE_RATE = ".sampleRate";
 
     /**
-     * Extract parameters from servlet init parameters.
+     * Extract parameters from properties.
      *
-     * @param servletConfig
+     * @param props
      * @return
      */
-    public List<String> setupTargetUrisFromServletInitParameter(ServletConfig servletConfig) {
-        UnaryOperator<String> f1 = servletConfig::getInitParameter;
+    public List<String> setupTargetUrisFromProperties(Properties props) {
+        UnaryOperator<String> f1 = props::getProperty;
         Supplier<List<String>> supp1 = () -> {
             List<String> l = new ArrayList<>();
-            servletConfig.getInitParameterNames().asIterator().forEachRemaining(key -> {
-                if (key != null && !key.isEmpty()) {
-                    l.add(key);
+            props.keySet().forEach(key -> {
+                if (key != null && key instanceof String) {
+                    l.add((String) key);
                 }
             });
             return l;
@@ -56,12 +56,13 @@ public class ParameterValueFactory {
     }
 
     /**
-     * Extract parameters from properties.
+     * Extract the sample rates of the targets from properties.
      *
      * @param props
-     * @return
+     * @return the sample rates, in the order of
+     * {@link #setupTargetUrisFromProperties(Properties)}
      */
-    public List<String> setupTargetUrisFromProperties(Properties props) {
+    public List<Double> setupSampleRatesFromProperties(Properties props) {
         UnaryOperator<String> f1 = props::getProperty;
         Supplier<List<String>> supp1 = () -> {
             List<String> l = new ArrayList<>();
@@ -72,7 +73,7 @@ public class ParameterValueFactory {
             });
             return l;
         };
-        return setupTargetUrisFromFunction(f1, supp1);
+        return setupSampleRatesFromFunction(f1, supp1);
     }
 
     protected List<String> setupTargetUrisFromFunction(UnaryOperator<String> f1, Supplier<List<String>> supp1) {
@@ -117,6 +118,61 @@ public class ParameterValueFactory {
 
     }
 
+    /**
+     * The sample rate of each target, like {@code targetUri.NNN.sampleRate}.
+     * <p>
+     * Only targets defined as {@code targetUri.NNN} have a sample rate, all
+     * other targets have sample rate 1.
+     */
+    protected List<Double> setupSampleRatesFromFunction(UnaryOperator<String> f1, Supplier<List<String>> supp1) {
+        List<Double> sampleRates = new ArrayList<>();
+
+        // single targetUri value
+        Optional.ofNullable(f1.apply(TARGET_URI))
+                .ifPresent(paramValue -> sampleRates.add(1.0));
+
+        // multi targetUri values in single parameter
+        Optional.ofNullable(f1.apply(TARGET_URIS))
+                .ifPresent(paramValue -> Stream.of(paramValue.split(","))
+                .filter(singleParamValue -> !singleParamValue.trim().isEmpty())
+                .forEach(singleParamValue -> sampleRates.add(1.0)));
+
+        // multi targetUri values in multiple parameter names,
+        // like targetUri.NNN, having targetUri.NNN.sampleRate
+        List<OrderElement> l = new ArrayList<>();
+        for (String parameterName : supp1.get()) {
+            if (parameterName.startsWith(TARGET_URI_DOT)) {
+                try {
+                    int order = Integer.parseInt(parameterName.substring(TARGET_URI_DOT.length()));
+                    String value = f1.apply(parameterName);
+                    if (value != null && !value.isBlank()) {
+                        String sampleRate = f1.apply(parameterName + DOT_SAMPLE_RATE);
+                        l.add(new OrderElement(order, sampleRate != null ? sampleRate : "1"));
+                    }
+                } catch (NumberFormatException nfex) {
+                    // continue
+                }
+            }
+        }
+
+        OrderElement.buildSortedList(l).forEach(sampleRate -> sampleRates.add(parseSampleRate(sampleRate)));
+        return sampleRates;
+    }
+
+    /**
+     * Parse a sample rate, limited to the range 0 to 1.
+     *
+     * @return the sample rate, or 1 if the value is not a number
+     */
+    static double parseSampleRate(String value) {
+        try {
+            double sampleRate = Double.parseDouble(value.trim());
+            return Double.isNaN(sampleRate) ? 1.0 : Math.max(0.0, Math.min(1.0, sampleRate));
+        } catch (NumberFormatException nfex) {
+            return 1.0;
+        }
+    }
+
     static class OrderElement {
 
         final int order;
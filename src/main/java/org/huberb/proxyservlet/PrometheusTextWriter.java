@@ -0,0 +1,297 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Render metrics in the Prometheus text exposition format.
+ * <p>
+ * Samples are encoded straight into a byte buffer, numbers are written digit
+ * by digit. The buffer grows to the size of the largest exposition, and is
+ * kept by {@link #reset()}, thus rendering allocates nothing once it has
+ * warmed up. A writer is not thread-safe.
+ * <p>
+ * Write a sample by {@link #sample(String)}, any number of
+ * {@link #label(String, String)}, and a value, like
+ * {@code sample("requests_total").label("target", uri).value(42)}.
+ *
+ * @author pi
+ */
+public class PrometheusTextWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    private byte[] buffer;
+    private int length;
+    private boolean labelsOpen;
+
+    /**
+     * Create a writer.
+     *
+     * @param initialCapacity the initial size of the buffer in bytes
+     */
+    public PrometheusTextWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(64, initialCapacity)];
+    }
+
+    /**
+     * Discard the rendered text, keeping the buffer.
+     */
+    public void reset() {
+        length = 0;
+        labelsOpen = false;
+    }
+
+    /**
+     * The length of the rendered text in bytes.
+     *
+     * @return
+     */
+    public int size() {
+        return length;
+    }
+
+    /**
+     * The current size of the buffer in bytes.
+     *
+     * @return
+     */
+    int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Write the {@code HELP}, and {@code TYPE} lines of a metric family.
+     *
+     * @param name
+     * @param type like {@code counter}, {@code gauge}, or {@code histogram}
+     * @param help
+     * @return
+     */
+    public PrometheusTextWriter family(String name, String type, String help) {
+        ascii("# HELP ").ascii(name).ascii(" ");
+        for (int i = 0; i < help.length(); i += 1) {
+            char c = help.charAt(i);
+            if (c == '\\') {
+                ascii("\\\\");
+            } else if (c == '\n') {
+                ascii("\\n");
+            } else {
+                utf8(c);
+            }
+        }
+        ascii("\n# TYPE ").ascii(name).ascii(" ").ascii(type).ascii("\n");
+        return this;
+    }
+
+    /**
+     * Start a sample.
+     *
+     * @param name the metric name, like {@code multiproxy_target_requests_total}
+     * @return
+     */
+    public PrometheusTextWriter sample(String name) {
+        labelsOpen = false;
+        return ascii(name);
+    }
+
+    /**
+     * Start a sample, its name having a suffix like {@code _bucket}.
+     *
+     * @param name
+     * @param suffix
+     * @return
+     */
+    public PrometheusTextWriter sample(String name, String suffix) {
+        return sample(name).ascii(suffix);
+    }
+
+    /**
+     * Add a label to the current sample.
+     *
+     * @param name
+     * @param value escaped as needed
+     * @return
+     */
+    public PrometheusTextWriter label(String name, String value) {
+        openLabel(name);
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                ascii("\\\\");
+            } else if (c == '"') {
+                ascii("\\\"");
+            } else if (c == '\n') {
+                ascii("\\n");
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8(Character.toCodePoint(c, value.charAt(i + 1)));
+                i += 1;
+            } else {
+                utf8(c);
+            }
+        }
+        ensure(1);
+        buffer[length++] = '"';
+        return this;
+    }
+
+    /**
+     * Add a label holding a duration in seconds, like the {@code le} label of
+     * a histogram bucket.
+     *
+     * @param name
+     * @param micros
+     * @return
+     */
+    public PrometheusTextWriter labelSeconds(String name, long micros) {
+        openLabel(name);
+        seconds(micros);
+        ensure(1);
+        buffer[length++] = '"';
+        return this;
+    }
+
+    /**
+     * End the current sample with a value.
+     *
+     * @param value
+     * @return
+     */
+    public PrometheusTextWriter value(long value) {
+        closeLabels();
+        number(value);
+        return ascii("\n");
+    }
+
+    /**
+     * End the current sample with a duration in seconds.
+     *
+     * @param micros
+     * @return
+     */
+    public PrometheusTextWriter valueSeconds(long micros) {
+        closeLabels();
+        seconds(micros);
+        return ascii("\n");
+    }
+
+    /**
+     * Write the rendered text.
+     *
+     * @param os
+     * @throws IOException
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(buffer, 0, length);
+    }
+
+    private void openLabel(String name) {
+        ascii(labelsOpen ? "," : "{");
+        labelsOpen = true;
+        ascii(name).ascii("=\"");
+    }
+
+    private void closeLabels() {
+        if (labelsOpen) {
+            ascii("}");
+            labelsOpen = false;
+        }
+        ascii(" ");
+    }
+
+    /**
+     * Write seconds with six decimals.
+     */
+    private void seconds(long micros) {
+        if (micros < 0L) {
+            ascii("-");
+            micros = -micros;
+        }
+        number(micros / MICROS_PER_SECOND);
+        ensure(7);
+        buffer[length++] = '.';
+        long fraction = micros % MICROS_PER_SECOND;
+        for (int i = 6; i > 0; i -= 1) {
+            buffer[length + i - 1] = (byte) ('0' + fraction % 10L);
+            fraction /= 10L;
+        }
+        length += 6;
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (value < 0L) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10L; v /= 10L) {
+            digits += 1;
+        }
+        for (int i = digits; i > 0; i -= 1) {
+            buffer[length + i - 1] = (byte) ('0' + value % 10L);
+            value /= 10L;
+        }
+        length += digits;
+    }
+
+    private PrometheusTextWriter ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i += 1) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    private void utf8(int codePoint) {
+        ensure(4);
+        if (codePoint < 0x80) {
+            buffer[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[length++] = (byte) (0xc0 | (codePoint >> 6));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            // an unpaired surrogate is replaced
+            if (Character.isSurrogate((char) codePoint)) {
+                buffer[length++] = '?';
+                return;
+            }
+            buffer[length++] = (byte) (0xe0 | (codePoint >> 12));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void ensure(int n) {
+        if (length + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * A proxy request which can be aborted while it is executed.
+ * <p>
+ * Unlike {@link org.apache.http.client.methods.HttpRequestBase} the request
+ * uri is kept as is, and not parsed into a {@link java.net.URI}.
+ * <p>
+ * The proxy request carries the {@link Deadline} of its servlet request. It
+ * is aborted as the deadline expires.
+ *
+ * @author pi
+ */
+public class ProxyRequest extends AbstractExecutionAwareRequest {
+
+    private final RequestLine requestLine;
+    private Deadline deadline;
+    private volatile ScheduledFuture<?> deadlineTimer;
+
+    public ProxyRequest(String method, String uri) {
+        this.requestLine = new BasicRequestLine(method, uri, HttpVersion.HTTP_1_1);
+    }
+
+    @Override
+    public RequestLine getRequestLine() {
+        return requestLine;
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return requestLine.getProtocolVersion();
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get the deadline of any proxy request.
+     *
+     * @param proxyRequest
+     * @return the deadline, or {@code null} if the request has no deadline
+     */
+    static Deadline deadlineOf(HttpRequest proxyRequest) {
+        return proxyRequest instanceof ProxyRequest ? ((ProxyRequest) proxyRequest).deadline : null;
+    }
+
+    /**
+     * Abort this request as its deadline expires.
+     */
+    void startDeadlineTimer() {
+        if (deadline != null && deadlineTimer == null) {
+            deadlineTimer = deadline.schedule(this::abort);
+        }
+    }
+
+    /**
+     * Stop the deadline timer, as the response has been processed.
+     *
+     * @param proxyRequest any proxy request
+     */
+    static void stopDeadlineTimer(HttpRequest proxyRequest) {
+        if (proxyRequest instanceof ProxyRequest) {
+            ScheduledFuture<?> timer = ((ProxyRequest) proxyRequest).deadlineTimer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return requestLine.toString();
+    }
+
+    /**
+     * A proxy request sending a request body.
+     */
+    public static class WithEntity extends ProxyRequest implements HttpEntityEnclosingRequest {
+
+        private HttpEntity entity;
+
+        public WithEntity(String method, String uri) {
+            super(method, uri);
+        }
+
+        @Override
+        public boolean expectContinue() {
+            final Header expect = getFirstHeader(HTTP.EXPECT_DIRECTIVE);
+            return expect != null && HTTP.EXPECT_CONTINUE.equalsIgnoreCase(expect.getValue());
+        }
+
+        @Override
+        public void setEntity(HttpEntity entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public HttpEntity getEntity() {
+            return entity;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * Coordinate targets racing for the response of one servlet request.
+ * <p>
+ * The first target responding successfully wins, and the proxy requests of
+ * all other targets are aborted. If no target responds successfully, the
+ * target which received the most recent error response wins, thus its error
+ * response is sent to the client. A target receiving an error response holds
+ * it by {@link #awaitDecision(int)} until the race is decided.
+ * <p>
+ * The race is done as soon as the winner has sent its response, or all
+ * targets have finished without a winner.
+ * <p>
+ * A hedged race starts with fewer targets, and lets another target
+ * {@link #enter(int)} later, as long as no started target has received its
+ * response.
+ *
+ * @author pi
+ */
+public class Race {
+
+    private final List<HttpRequest> proxyRequestList;
+    private final AtomicInteger winner = new AtomicInteger(-1);
+    /**
+     * Started targets which have not received their response yet.
+     */
+    private final AtomicInteger pending;
+    /**
+     * Started targets which have not finished yet.
+     */
+    private final AtomicInteger running;
+    private final CompletableFuture<Void> arrival = new CompletableFuture<>();
+    private final CompletableFuture<Integer> decision = new CompletableFuture<>();
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+    /**
+     * The target holding the most recent error response, guarded by this.
+     */
+    private int latestError = -1;
+
+    /**
+     * Create a race of all targets.
+     *
+     * @param proxyRequestList the proxy requests of all targets, indexed by
+     * target
+     */
+    public Race(List<HttpRequest> proxyRequestList) {
+        this(proxyRequestList, proxyRequestList.size());
+    }
+
+    /**
+     * Create a race of the first targets, other targets may enter later.
+     *
+     * @param proxyRequestList the proxy requests of all targets, indexed by
+     * target
+     * @param started the number of targets started right away
+     */
+    public Race(List<HttpRequest> proxyRequestList, int started) {
+        this.proxyRequestList = proxyRequestList;
+        this.pending = new AtomicInteger(started);
+        this.running = new AtomicInteger(started);
+    }
+
+    /**
+     * Let another target enter the race.
+     *
+     * @param i the target
+     * @return {@code false} if a started target has already received its
+     * response, then the target must not be started
+     */
+    public boolean enter(int i) {
+        running.incrementAndGet();
+        if (winner.get() < 0 && pending.getAndUpdate(p -> p > 0 ? p + 1 : p) > 0) {
+            return true;
+        }
+        finish(i);
+        return false;
+    }
+
+    /**
+     * A target received its response, or failed.
+     * <p>
+     * A target receiving an error response before the race is decided does
+     * not win right away, it has to {@link #awaitDecision(int)}.
+     *
+     * @param i the target
+     * @param proxyResponse the response, or {@code null} if the target failed
+     * @return {@code true} if the target won, and has to send its response
+     */
+    public boolean arrive(int i, HttpResponse proxyResponse) {
+        final boolean success = proxyResponse != null && proxyResponse.getStatusLine().getStatusCode() < 500;
+        final int decided;
+        synchronized (this) {
+            final boolean last = pending.decrementAndGet() == 0;
+            arrival.complete(null);
+            if (proxyResponse != null && !success && winner.get() < 0) {
+                latestError = i;
+            }
+            final int candidate = success ? i : latestError;
+            decided = (success || last) && candidate >= 0 && winner.compareAndSet(-1, candidate)
+                    ? candidate
+                    : -1;
+        }
+        if (decided >= 0) {
+            abortOthers(decided);
+            decision.complete(decided);
+        }
+        return decided == i;
+    }
+
+    /**
+     * Wait until the race is decided, if the target holds an error response.
+     *
+     * @param i the target
+     * @return {@code true} if the error response of the target won, and has
+     * to be sent
+     */
+    public boolean awaitDecision(int i) {
+        synchronized (this) {
+            if (latestError != i && winner.get() != i) {
+                return false;
+            }
+        }
+        return decision.join() == i;
+    }
+
+    /**
+     * A target finished, having sent its response if it won.
+     *
+     * @param i the target
+     */
+    public void finish(int i) {
+        if (running.decrementAndGet() == 0 || winner.get() == i) {
+            done.complete(winner.get());
+        }
+    }
+
+    /**
+     * A target was not sent at all.
+     *
+     * @param i the target
+     */
+    public void forfeit(int i) {
+        arrive(i, null);
+        finish(i);
+    }
+
+    /**
+     * The winning target.
+     *
+     * @return the target, or {@code -1} if no target has won yet
+     */
+    public int getWinner() {
+        return winner.get();
+    }
+
+    /**
+     * Tell if another target won.
+     *
+     * @param i the target
+     * @return
+     */
+    public boolean isLost(int i) {
+        final int w = winner.get();
+        return w >= 0 && w != i;
+    }
+
+    /**
+     * Wait until a started target received its response, or failed.
+     *
+     * @param timeoutMillis
+     * @return {@code false} if no target arrived within the timeout
+     */
+    public boolean awaitArrival(long timeoutMillis) {
+        try {
+            arrival.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException toex) {
+            return false;
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (ExecutionException exex) {
+            return true;
+        }
+    }
+
+    /**
+     * Wait until the race is done.
+     *
+     * @return the winning target, or {@code -1} if no target won
+     */
+    public int await() {
+        return done.join();
+    }
+
+    private void abortOthers(int i) {
+        for (int j = 0; j < proxyRequestList.size(); j += 1) {
+            HttpRequest proxyRequest = proxyRequestList.get(j);
+            if (j != i && proxyRequest instanceof AbortableHttpRequest) {
+                ((AbortableHttpRequest) proxyRequest).abort();
+            }
+        }
+    }
+
+    /**
+     * Outcome of a target aborted as another target won the race.
+     */
+    public static class LostException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LostException(int winner) {
+            super(String.format("Aborted, target %d won the race", winner));
+        }
+    }
+}
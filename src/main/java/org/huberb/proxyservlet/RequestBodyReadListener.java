@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * Read a request body using non-blocking servlet I/O.
+ * <p>
+ * The body is read only while the container has data available, thus no
+ * container thread waits for a slow client. The completed body is delivered as
+ * {@link RequestBodySpool} by {@link #getSpoolFuture()}.
+ *
+ * @author pi
+ */
+public class RequestBodyReadListener implements ReadListener {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private final ServletInputStream inputStream;
+    private final RequestBodySpool.Writer writer;
+    private final CompletableFuture<RequestBodySpool> spoolFuture = new CompletableFuture<>();
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /**
+     * Create a listener, which has to be registered by
+     * {@link ServletInputStream#setReadListener(ReadListener)}.
+     *
+     * @param inputStream
+     * @param config provides memory and disk thresholds
+     */
+    public RequestBodyReadListener(ServletInputStream inputStream, Config config) {
+        this(inputStream, config, -1L);
+    }
+
+    /**
+     * Create a listener for a body of known length.
+     *
+     * @param inputStream
+     * @param config provides memory and disk thresholds
+     * @param contentLength the announced length, or {@code -1} if unknown
+     */
+    public RequestBodyReadListener(ServletInputStream inputStream, Config config, long contentLength) {
+        this.inputStream = inputStream;
+        this.writer = new RequestBodySpool.Writer(config, contentLength);
+    }
+
+    /**
+     * The spooled request body, completed exceptionally if reading fails, or
+     * the body is too large.
+     *
+     * @return
+     */
+    public CompletableFuture<RequestBodySpool> getSpoolFuture() {
+        return spoolFuture;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        // read only as long as it does not block
+        int read;
+        while (inputStream.isReady() && (read = inputStream.read(chunk)) != -1) {
+            writer.write(chunk, 0, read);
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        try {
+            spoolFuture.complete(writer.finish());
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            spoolFuture.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        writer.abort();
+        spoolFuture.completeExceptionally(t);
+    }
+}
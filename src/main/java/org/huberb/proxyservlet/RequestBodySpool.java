@@ -0,0 +1,458 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Read a request body once, and replay it to every target.
+ * <p>
+ * Small bodies are kept in a heap buffer, large bodies are spilled to a
+ * temporary file, which is memory-mapped. A body of known length gets a buffer
+ * of its size, or is spilled right away, a body of unknown length gets a
+ * pooled buffer of the memory threshold. Each target gets a repeatable
+ * {@link HttpEntity} reading from the same buffer without copying it.
+ * <p>
+ * A spool is shared by all targets of a request, thus it is reference
+ * counted. The buffer is given back, and the temporary file is deleted, when
+ * the last reference is released. The mapping of the file is freed by the
+ * garbage collector.
+ *
+ * @author pi
+ */
+public class RequestBodySpool {
+
+    private static final Logger LOG = Logger.getLogger(RequestBodySpool.class.getName());
+    /**
+     * Memory threshold used if {@code requestBodyMemoryThreshold} is not
+     * configured.
+     */
+    static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int SPILL_CHUNK_SIZE = 8 * 1024;
+    private static final Queue<byte[]> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_BUFFERS = new AtomicInteger();
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] heapBuffer;
+    private final boolean pooled;
+    private final MappedByteBuffer mappedBuffer;
+    private final Path spillFile;
+    private final int length;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private RequestBodySpool(byte[] heapBuffer, boolean pooled, MappedByteBuffer mappedBuffer, Path spillFile, int length) {
+        this.heapBuffer = heapBuffer;
+        this.pooled = pooled;
+        this.mappedBuffer = mappedBuffer;
+        this.spillFile = spillFile;
+        this.length = length;
+    }
+
+    /**
+     * Read the complete request body.
+     *
+     * @param in the request body
+     * @param config provides memory and disk thresholds
+     * @return a spool holding one reference
+     * @throws IOException if reading fails, or the body exceeds
+     * {@code requestBodyMaxSize}
+     */
+    static RequestBodySpool read(InputStream in, Config config) throws IOException {
+        return read(in, config, -1L);
+    }
+
+    /**
+     * Read the complete request body of a known length.
+     *
+     * @param in the request body
+     * @param config provides memory and disk thresholds
+     * @param contentLength the announced length, or {@code -1} if unknown
+     * @return a spool holding one reference
+     * @throws IOException if reading fails, or the body exceeds
+     * {@code requestBodyMaxSize}
+     */
+    static RequestBodySpool read(InputStream in, Config config, long contentLength) throws IOException {
+        Writer writer = new Writer(config, contentLength);
+        try {
+            writer.readFrom(in);
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    static byte[] acquireBuffer(int size) {
+        byte[] buffer = BUFFER_POOL.poll();
+        if (buffer != null) {
+            POOLED_BUFFERS.decrementAndGet();
+            if (buffer.length == size) {
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    static void releaseBuffer(byte[] buffer) {
+        if (POOLED_BUFFERS.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            BUFFER_POOL.offer(buffer);
+        } else {
+            POOLED_BUFFERS.decrementAndGet();
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ioex) {
+            LOG.log(Level.WARNING, "deleting request body spool file " + path, ioex);
+        }
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isSpilled() {
+        return mappedBuffer != null;
+    }
+
+    /**
+     * Add a reference, e.g. for a target processed in another thread.
+     *
+     * @return this spool
+     */
+    public RequestBodySpool retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Request body spool already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Release a reference, the last release frees the buffer.
+     */
+    public void release() {
+        if (refCount.decrementAndGet() == 0) {
+            if (pooled) {
+                releaseBuffer(heapBuffer);
+            }
+            // the mapping is left to the garbage collector, as a target may
+            // still read it, e.g. the JDK client after an early response
+            if (spillFile != null) {
+                deleteQuietly(spillFile);
+            }
+        }
+    }
+
+    /**
+     * Create a repeatable entity replaying the spooled body.
+     *
+     * @return
+     */
+    public HttpEntity createEntity() {
+        return new SpoolEntity();
+    }
+
+    private ByteBuffer duplicateBuffer() {
+        return mappedBuffer != null
+                ? mappedBuffer.duplicate()
+                : ByteBuffer.wrap(heapBuffer, 0, length);
+    }
+
+    /**
+     * Append a request body in chunks, e.g. as delivered by a
+     * {@link javax.servlet.ReadListener}.
+     * <p>
+     * A writer is used by a single thread at a time. It yields a spool by
+     * {@link #finish()}, or discards all data by {@link #abort()}.
+     */
+    static class Writer {
+
+        private final int memoryThreshold;
+        private final long maxSize;
+        private final boolean pooled;
+        private byte[] buffer;
+        private int bufferLength;
+        private long total;
+        private Path spillFile;
+        private FileChannel fileChannel;
+
+        Writer(Config config) {
+            this(config, -1L);
+        }
+
+        /**
+         * Create a writer for a body of known length.
+         * <p>
+         * A body up to the memory threshold gets a buffer of its length, a
+         * larger body is spilled without filling a heap buffer first.
+         *
+         * @param config
+         * @param contentLength the announced length, or {@code -1} if unknown
+         */
+        Writer(Config config, long contentLength) {
+            this.memoryThreshold = config.getRequestBodyMemoryThreshold() >= 0
+                    ? config.getRequestBodyMemoryThreshold()
+                    : DEFAULT_MEMORY_THRESHOLD;
+            this.maxSize = config.getRequestBodyMaxSize() >= 0
+                    ? config.getRequestBodyMaxSize()
+                    : Integer.MAX_VALUE;
+            this.pooled = contentLength < 0;
+            if (pooled) {
+                this.buffer = acquireBuffer(memoryThreshold);
+            } else if (contentLength <= memoryThreshold) {
+                this.buffer = contentLength > 0 ? new byte[(int) contentLength] : EMPTY;
+            } else {
+                this.buffer = null;
+            }
+        }
+
+        /**
+         * Append the remaining content of a stream.
+         * <p>
+         * The heap buffer is filled directly from the stream, a chunk buffer
+         * is allocated only if the body exceeds the memory threshold.
+         *
+         * @param in
+         * @throws IOException
+         */
+        void readFrom(InputStream in) throws IOException {
+            while (fileChannel == null && buffer != null && bufferLength < buffer.length) {
+                int read = in.read(buffer, bufferLength, buffer.length - bufferLength);
+                if (read == -1) {
+                    return;
+                }
+                bufferLength += read;
+                total += read;
+                checkMaxSize();
+            }
+            if (fileChannel == null && buffer != null && !pooled) {
+                // a buffer of the announced length is full, expect the end
+                int b = in.read();
+                if (b == -1) {
+                    return;
+                }
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            byte[] chunk = new byte[SPILL_CHUNK_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                write(chunk, 0, read);
+            }
+        }
+
+        /**
+         * Append a chunk.
+         *
+         * @param b
+         * @param off
+         * @param len
+         * @throws IOException if writing the spill file fails, or the body
+         * exceeds {@code requestBodyMaxSize}
+         */
+        void write(byte[] b, int off, int len) throws IOException {
+            total += len;
+            checkMaxSize();
+            if (fileChannel == null) {
+                if (buffer != null && bufferLength + len <= buffer.length) {
+                    System.arraycopy(b, off, buffer, bufferLength, len);
+                    bufferLength += len;
+                    return;
+                }
+                spill();
+            }
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+
+        private void checkMaxSize() throws TooLargeException {
+            if (total > maxSize) {
+                throw new TooLargeException(maxSize);
+            }
+        }
+
+        private void spill() throws IOException {
+            spillFile = Files.createTempFile("request-body-", ".spool");
+            fileChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (buffer != null) {
+                writeFully(ByteBuffer.wrap(buffer, 0, bufferLength));
+            }
+        }
+
+        private void writeFully(ByteBuffer bb) throws IOException {
+            while (bb.hasRemaining()) {
+                fileChannel.write(bb);
+            }
+        }
+
+        /**
+         * Complete the body.
+         *
+         * @return a spool holding one reference
+         * @throws IOException if mapping the spill file fails
+         */
+        RequestBodySpool finish() throws IOException {
+            if (fileChannel == null) {
+                RequestBodySpool spool = new RequestBodySpool(buffer != null ? buffer : EMPTY, pooled,
+                        null, null, bufferLength);
+                buffer = null;
+                return spool;
+            }
+            MappedByteBuffer mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, total);
+            // the spool owns the spill file from now on
+            Path spooledFile = spillFile;
+            spillFile = null;
+            abort();
+            return new RequestBodySpool(null, false, mappedBuffer, spooledFile, (int) total);
+        }
+
+        /**
+         * Discard the body, can be called more than once.
+         */
+        void abort() {
+            if (buffer != null && pooled) {
+                releaseBuffer(buffer);
+            }
+            buffer = null;
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException ioex) {
+                    LOG.log(Level.WARNING, "closing request body spool file " + spillFile, ioex);
+                }
+                fileChannel = null;
+            }
+            if (spillFile != null) {
+                deleteQuietly(spillFile);
+                spillFile = null;
+            }
+        }
+    }
+
+    /**
+     * Thrown if a request body exceeds the configured maximum size.
+     */
+    public static class TooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long maxSize) {
+            super(String.format("Request body exceeds %d bytes", maxSize));
+        }
+    }
+
+    /**
+     * Entity replaying the spooled body.
+     */
+    class SpoolEntity extends AbstractHttpEntity {
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (mappedBuffer == null) {
+                return new ByteArrayInputStream(heapBuffer, 0, length);
+            }
+            return new ByteBufferInputStream(duplicateBuffer());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            if (mappedBuffer == null) {
+                outStream.write(heapBuffer, 0, length);
+            } else {
+                WritableByteChannel channel = Channels.newChannel(outStream);
+                ByteBuffer bb = duplicateBuffer();
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+            outStream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * {@link InputStream} reading from a private view of a buffer.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer bb;
+
+        ByteBufferInputStream(ByteBuffer bb) {
+            this.bb = bb;
+        }
+
+        @Override
+        public int read() {
+            return bb.hasRemaining() ? bb.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!bb.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, bb.remaining());
+            bb.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return bb.remaining();
+        }
+    }
+}
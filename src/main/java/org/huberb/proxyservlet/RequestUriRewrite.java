@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The request dependent parts of rewriting uris of a servlet request, shared
+ * by all targets.
+ * <p>
+ * The proxy request uri of a target is its target uri, followed by the
+ * encoded path info, query, and fragment of the servlet request. The target
+ * uri is resolved once by the {@link TargetTable}, the rest is rewritten
+ * once for each servlet request, and stored as request attribute like the
+ * {@link Deadline}, thus the rewriting cost does not grow with the number of
+ * targets.
+ * <p>
+ * The url of the servlet, used to rewrite redirects of a target, is
+ * derived lazily, as most responses have no uri to rewrite.
+ *
+ * @author pi
+ */
+public final class RequestUriRewrite {
+
+    /**
+     * Request attribute holding the rewrite of a servlet request.
+     */
+    static final String ATTRIBUTE = RequestUriRewrite.class.getName();
+
+    private final HttpServletRequest servletRequest;
+    private final boolean doSendUrlFragment;
+    private final String suffix;
+    private volatile String servletUrl;
+
+    RequestUriRewrite(HttpServletRequest servletRequest, boolean doSendUrlFragment) {
+        this.servletRequest = servletRequest;
+        this.doSendUrlFragment = doSendUrlFragment;
+        this.suffix = rewriteSuffix(servletRequest, doSendUrlFragment);
+    }
+
+    /**
+     * Get the rewrite of a servlet request.
+     *
+     * @param servletRequest
+     * @param doSendUrlFragment
+     * @return
+     */
+    public static RequestUriRewrite of(HttpServletRequest servletRequest, boolean doSendUrlFragment) {
+        Object attribute = servletRequest.getAttribute(ATTRIBUTE);
+        if (attribute instanceof RequestUriRewrite) {
+            RequestUriRewrite requestUriRewrite = (RequestUriRewrite) attribute;
+            if (requestUriRewrite.doSendUrlFragment == doSendUrlFragment) {
+                return requestUriRewrite;
+            }
+        }
+        RequestUriRewrite requestUriRewrite = new RequestUriRewrite(servletRequest, doSendUrlFragment);
+        servletRequest.setAttribute(ATTRIBUTE, requestUriRewrite);
+        return requestUriRewrite;
+    }
+
+    /**
+     * The encoded path info, query, and fragment of the servlet request.
+     *
+     * @return ex: {@code /my/path.html?name=value&foo=bar}, or an empty string
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * The proxy request uri of a target.
+     *
+     * @param env the target
+     * @return
+     */
+    public String rewriteRequestUri(Env env) {
+        return suffix.isEmpty() ? env.getTargetUri() : env.getTargetUri().concat(suffix);
+    }
+
+    /**
+     * For a redirect response from the target server, this translates
+     * {@code theUrl} to redirect to and translates it to one the original
+     * client can use.
+     *
+     * @param env the target
+     * @param theUrl
+     * @return
+     */
+    public String rewriteResponseUrl(Env env, String theUrl) {
+        final String targetUri = env.getTargetUri();
+        if (theUrl.startsWith(targetUri)) {
+            /*
+             * The URL points back to the back-end server.
+             * Instead of returning it verbatim we replace the target path with our
+             * source path in a way that should instruct the original client to
+             * request the URL pointed through this Proxy.
+             * We do this by taking the current request and rewriting the path part
+             * using this servlet's absolute path and the path from the returned URL
+             * after the base target URL.
+             */
+            final String url = getServletUrl();
+            return new StringBuilder(url.length() + theUrl.length() - targetUri.length())
+                    .append(url)
+                    .append(theUrl, targetUri.length(), theUrl.length())
+                    .toString();
+        }
+        return theUrl;
+    }
+
+    /**
+     * The absolute url of the servlet, without path info, and query.
+     *
+     * @return ex: {@code http://localhost:8080/context/servlet}
+     */
+    String getServletUrl() {
+        String url = servletUrl;
+        if (url == null) {
+            url = rewriteServletUrl(servletRequest);
+            servletUrl = url;
+        }
+        return url;
+    }
+
+    private static String rewriteSuffix(HttpServletRequest servletRequest, boolean doSendUrlFragment) {
+        // Handle the path given to the servlet
+        final String pathInfo = servletRequest.getPathInfo();//ex: /my/path.html
+        // Handle the query string & fragment
+        final String queryString = servletRequest.getQueryString();//ex:(following '?'): name=value&foo=bar#fragment
+        if (pathInfo == null && (queryString == null || queryString.isEmpty())) {
+            return "";
+        }
+        StringBuilder uri = new StringBuilder(
+                (pathInfo != null ? pathInfo.length() : 0) + (queryString != null ? queryString.length() + 1 : 0) + 16);
+        if (pathInfo != null) {
+            // getPathInfo() returns decoded string, so we need encodeUriQuery to encode "%" characters
+            Encoding.encodeUriQuery(pathInfo, true, uri);
+        }
+        if (queryString != null) {
+            //split off fragment from queryString
+            final int fragIdx = queryString.indexOf('#');
+            final int queryEnd = fragIdx >= 0 ? fragIdx : queryString.length();
+            if (queryEnd > 0) {
+                uri.append('?');
+                // queryString is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
+                Encoding.encodeUriQuery(fragIdx >= 0 ? queryString.subSequence(0, queryEnd) : queryString, false, uri);
+            }
+            if (doSendUrlFragment && fragIdx >= 0) {
+                uri.append('#');
+                // fragment is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
+                Encoding.encodeUriQuery(queryString.subSequence(fragIdx + 1, queryString.length()), false, uri);
+            }
+        }
+        return uri.toString();
+    }
+
+    private static String rewriteServletUrl(HttpServletRequest servletRequest) {
+        StringBuffer curUrl = servletRequest.getRequestURL();//no query
+        int pos;
+        // Skip the protocol part
+        if ((pos = curUrl.indexOf("://")) >= 0) {
+            // Skip the authority part
+            // + 3 to skip the separator between protocol and authority
+            if ((pos = curUrl.indexOf("/", pos + 3)) >= 0) {
+                // Trim everything after the authority part.
+                curUrl.setLength(pos);
+            }
+        }
+        // Context path starts with a / if it is not blank
+        curUrl.append(servletRequest.getContextPath());
+        // Servlet path starts with a / if it is not blank
+        curUrl.append(servletRequest.getServletPath());
+        return curUrl.toString();
+    }
+}
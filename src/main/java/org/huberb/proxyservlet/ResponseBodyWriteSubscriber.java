@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Copy a response body published by the JDK client to the client using
+ * non-blocking servlet I/O.
+ * <p>
+ * Unlike {@link ResponseEntityWriteListener} no thread blocks reading the
+ * target: the next part of the body is requested only after the previous one
+ * was written, and writing continues only as long as
+ * {@link ServletOutputStream#isReady()}. Thus a slow client slows down the
+ * target, instead of buffering its body.
+ * <p>
+ * The subscriber is driven by both, the JDK client delivering the body, and
+ * the container calling {@link #onWritePossible()}. Only one of them copies at
+ * a time, the other one leaves its work to the copying thread.
+ * <p>
+ * {@link #getCompletion()} is completed after the last byte is written, or
+ * completed exceptionally if copying fails.
+ *
+ * @author pi
+ */
+public class ResponseBodyWriteSubscriber implements Flow.Subscriber<List<ByteBuffer>>, WriteListener {
+
+    private final ServletOutputStream outputStream;
+    private final boolean flushChunks;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    // buffers received from the target, but not yet written to the client
+    private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean requested = new AtomicBoolean();
+    // number of drain calls missed by the copying thread
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile Flow.Subscription subscription;
+    private volatile boolean writePossible;
+    private volatile boolean received;
+    private volatile long bytesWritten;
+
+    /**
+     * Create a subscriber, which has to be registered by
+     * {@link ServletOutputStream#setWriteListener(WriteListener)}, and
+     * subscribed to the body.
+     *
+     * @param outputStream the output stream of the servlet response
+     * @param flushChunks flush each part of the body, e.g. for SSE
+     */
+    public ResponseBodyWriteSubscriber(ServletOutputStream outputStream, boolean flushChunks) {
+        this.outputStream = outputStream;
+        this.flushChunks = flushChunks;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * The bytes written to the client so far.
+     *
+     * @return
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        pending.addAll(item);
+        requested.set(false);
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        received = true;
+        drain();
+    }
+
+    @Override
+    public void onWritePossible() {
+        writePossible = true;
+        drain();
+    }
+
+    /**
+     * Fail on an error of either the target, or the client.
+     *
+     * @param t
+     */
+    @Override
+    public void onError(Throwable t) {
+        completion.completeExceptionally(t);
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            copy();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Copy until the pending buffers are exhausted, or the client is not
+     * ready.
+     */
+    private void copy() {
+        Flow.Subscription s = subscription;
+        if (s == null || !writePossible || completion.isDone()) {
+            return;
+        }
+        try {
+            while (outputStream.isReady()) {
+                ByteBuffer buffer = pending.poll();
+                if (buffer == null) {
+                    if (received) {
+                        completion.complete(null);
+                    } else if (requested.compareAndSet(false, true)) {
+                        s.request(1);
+                    }
+                    return;
+                }
+                write(buffer);
+                if (flushChunks && pending.isEmpty() && outputStream.isReady()) {
+                    outputStream.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        int n = buffer.remaining();
+        if (buffer.hasArray()) {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+        } else {
+            byte[] b = new byte[n];
+            buffer.get(b);
+            outputStream.write(b, 0, n);
+        }
+        bytesWritten += n;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Streaming digest of a target response.
+ * <p>
+ * Status code, and the selected headers are kept as they are. The entity of
+ * the response is replaced by a wrapper, digesting the body by SHA-256 while
+ * it passes to the client, or while it is consumed. Thus a body is never
+ * buffered, no matter its size.
+ *
+ * @author pi
+ */
+public class ResponseDigest {
+
+    /**
+     * What differs between two responses.
+     */
+    public enum Mismatch {
+        STATUS,
+        HEADERS,
+        BODY
+    }
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private final int statusCode;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final MessageDigest messageDigest;
+    private final DigestingEntity digestingEntity;
+    private volatile boolean complete;
+    private byte[] bodyDigest;
+
+    /**
+     * Start digesting a response, replacing its entity.
+     *
+     * @param proxyResponse
+     * @param headerNames the names of the headers to compare
+     */
+    public ResponseDigest(HttpResponse proxyResponse, Collection<String> headerNames) {
+        this.statusCode = proxyResponse.getStatusLine().getStatusCode();
+        for (String headerName : headerNames) {
+            Header[] values = proxyResponse.getHeaders(headerName);
+            if (values.length > 0) {
+                StringBuilder sb = new StringBuilder(values[0].getValue());
+                for (int i = 1; i < values.length; i += 1) {
+                    sb.append(", ").append(values[i].getValue());
+                }
+                headers.put(headerName, sb.toString());
+            }
+        }
+        this.messageDigest = newMessageDigest();
+        HttpEntity entity = proxyResponse.getEntity();
+        if (entity != null) {
+            this.digestingEntity = new DigestingEntity(entity);
+            proxyResponse.setEntity(digestingEntity);
+        } else {
+            this.digestingEntity = null;
+            this.complete = true;
+        }
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(ALGORITHM, e);
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Digest the part of the body not read yet, e.g. the body of a secondary
+     * target, which is not sent to the client.
+     *
+     * @throws IOException
+     */
+    public void consume() throws IOException {
+        if (complete) {
+            return;
+        }
+        InputStream is = digestingEntity.getContent();
+        if (is == null) {
+            complete = true;
+            return;
+        }
+        byte[] buffer = new byte[10 * 1024];
+        while (is.read(buffer) != -1) {
+            // digested while reading
+        }
+    }
+
+    /**
+     * Tell if the body has been read completely, only then the digest of the
+     * body is comparable.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The digest of the body.
+     *
+     * @return the digest, or {@code null} if the body has not been read
+     * completely
+     */
+    public synchronized byte[] getBodyDigest() {
+        if (bodyDigest == null && complete) {
+            bodyDigest = messageDigest.digest();
+        }
+        return bodyDigest;
+    }
+
+    /**
+     * Compare this response with another one.
+     *
+     * @param other
+     * @return the mismatches, empty if both responses are equal
+     */
+    public Set<Mismatch> compare(ResponseDigest other) {
+        Set<Mismatch> mismatches = EnumSet.noneOf(Mismatch.class);
+        if (statusCode != other.statusCode) {
+            mismatches.add(Mismatch.STATUS);
+        }
+        if (!headers.equals(other.headers)) {
+            mismatches.add(Mismatch.HEADERS);
+        }
+        if (!Arrays.equals(getBodyDigest(), other.getBodyDigest())) {
+            mismatches.add(Mismatch.BODY);
+        }
+        return mismatches;
+    }
+
+    /**
+     * Entity handing out one digesting stream, however often its content is
+     * accessed.
+     */
+    private class DigestingEntity extends HttpEntityWrapper {
+
+        private InputStream content;
+
+        DigestingEntity(HttpEntity wrappedEntity) {
+            super(wrappedEntity);
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (content == null) {
+                InputStream is = wrappedEntity.getContent();
+                content = is != null ? new DigestingInputStream(is) : null;
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            // copy by the digesting stream, the wrapped entity would bypass it
+            InputStream is = getContent();
+            if (is == null) {
+                return;
+            }
+            byte[] buffer = new byte[10 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                outStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private class DigestingInputStream extends FilterInputStream {
+
+        DigestingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                messageDigest.update((byte) b);
+            } else {
+                complete = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                messageDigest.update(b, off, read);
+            } else if (read == -1) {
+                complete = true;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are digested, too
+            byte[] buffer = new byte[(int) Math.min(n, 1024L)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Copy a response entity to the client using non-blocking servlet I/O.
+ * <p>
+ * Each time the client can accept data, the copying continues in an executor
+ * thread, as reading the entity blocks on the target. It writes only as long
+ * as {@link ServletOutputStream#isReady()}, then it returns, and the container
+ * calls {@link #onWritePossible()} once the client has caught up. Thus no
+ * thread waits for a slow client, but an executor thread waits for a slow
+ * target. See {@link ResponseBodyWriteSubscriber} for a body sent by the JDK
+ * client.
+ * <p>
+ * {@link #getCompletion()} is completed after the last byte is written, or
+ * completed exceptionally if copying fails.
+ *
+ * @author pi
+ */
+public class ResponseEntityWriteListener implements WriteListener {
+
+    private static final int BUFFER_SIZE = 10 * 1024;
+    private final InputStream inputStream;
+    private final ServletOutputStream outputStream;
+    private final Executor executor;
+    private final boolean flushChunks;
+    private final boolean doHandleCompression;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // bytes read from the entity, but not yet written to the client
+    private int pending;
+
+    /**
+     * Create a listener, which has to be registered by
+     * {@link ServletOutputStream#setWriteListener(WriteListener)}.
+     *
+     * @param entity the entity of the proxy response
+     * @param outputStream the output stream of the servlet response
+     * @param executor runs the blocking reads of the entity
+     * @param doHandleCompression
+     * @throws IOException
+     */
+    public ResponseEntityWriteListener(HttpEntity entity, ServletOutputStream outputStream,
+            Executor executor, boolean doHandleCompression) throws IOException {
+        this.inputStream = entity.getContent();
+        this.outputStream = outputStream;
+        this.executor = executor;
+        // flush intermediate results of chunked responses -- needed for SSE
+        this.flushChunks = entity.isChunked();
+        this.doHandleCompression = doHandleCompression;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public void onWritePossible() {
+        try {
+            executor.execute(this::copy);
+        } catch (RejectedExecutionException rejex) {
+            completion.completeExceptionally(rejex);
+        }
+    }
+
+    /**
+     * Copy until the entity is exhausted, or the client is not ready.
+     * <p>
+     * The container calls {@link #onWritePossible()} only after
+     * {@link ServletOutputStream#isReady()} returned {@code false}, thus at
+     * most one copy is active at a time.
+     */
+    void copy() {
+        try {
+            while (outputStream.isReady()) {
+                if (pending == 0) {
+                    pending = inputStream.read(buffer);
+                    if (pending == -1) {
+                        completion.complete(null);
+                        return;
+                    }
+                    continue;
+                }
+                outputStream.write(buffer, 0, pending);
+                pending = 0;
+                // see HttpResponseProxyFactory#copyResponseEntity for the
+                // available() issue of compressed streams
+                if (flushChunks
+                        && (doHandleCompression || inputStream.available() == 0)
+                        && outputStream.isReady()) {
+                    outputStream.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        completion.completeExceptionally(t);
+    }
+}
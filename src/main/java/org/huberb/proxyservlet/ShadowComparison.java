@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * The comparison of one servlet request in {@link FanOutMode#SHADOW} mode.
+ * <p>
+ * Each target arrives with the {@link ResponseDigest} of its response. A
+ * secondary target is compared as soon as both, it and the primary target
+ * have arrived, no matter which one arrives first.
+ *
+ * @author pi
+ */
+public class ShadowComparison {
+
+    private final ShadowStats shadowStats;
+    private final String requestUri;
+    private final CompletableFuture<ResponseDigest> primary = new CompletableFuture<>();
+
+    /**
+     * Create the comparison of a servlet request.
+     *
+     * @param shadowStats records the result of each secondary target
+     * @param requestUri the servlet request, logged with mismatches
+     */
+    public ShadowComparison(ShadowStats shadowStats, String requestUri) {
+        this.shadowStats = shadowStats;
+        this.requestUri = requestUri;
+    }
+
+    /**
+     * Start digesting the response of a target.
+     *
+     * @param proxyResponse
+     * @return the digest, replacing the entity of the response
+     */
+    public ResponseDigest digest(HttpResponse proxyResponse) {
+        return new ResponseDigest(proxyResponse, shadowStats.getCompareHeaders());
+    }
+
+    /**
+     * A target has completed.
+     * <p>
+     * Each target must arrive exactly once, the primary target even if it was
+     * not called.
+     *
+     * @param i the index of the target
+     * @param targetUri
+     * @param responseDigest the digest, or {@code null} if the target failed
+     */
+    public void arrive(int i, String targetUri, ResponseDigest responseDigest) {
+        if (i == 0) {
+            primary.complete(responseDigest);
+            return;
+        }
+        primary.thenAccept(primaryDigest -> {
+            if (primaryDigest == null || !primaryDigest.isComplete()
+                    || responseDigest == null || !responseDigest.isComplete()) {
+                shadowStats.recordIncomplete();
+            } else {
+                shadowStats.record(requestUri, targetUri, primaryDigest, responseDigest);
+            }
+        });
+    }
+}
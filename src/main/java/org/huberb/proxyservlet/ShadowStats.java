@@ -0,0 +1,258 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Counters, and a bounded sample log of the comparisons in
+ * {@link FanOutMode#SHADOW} mode.
+ * <p>
+ * The counters are shared by all requests. The sample log keeps the latest
+ * mismatches only, thus shadowing at full volume costs constant memory.
+ *
+ * @author pi
+ */
+public class ShadowStats {
+
+    private static final Logger LOG = Logger.getLogger(ShadowStats.class.getName());
+    /**
+     * Size of the sample log if {@code shadowSampleLogSize} is not configured.
+     */
+    static final int DEFAULT_SAMPLE_LOG_SIZE = 100;
+
+    private final List<String> compareHeaders;
+    private final int sampleLogSize;
+    private final Deque<Sample> samples;
+    private final LongAdder compared;
+    private final LongAdder matched;
+    private final LongAdder statusMismatches;
+    private final LongAdder headerMismatches;
+    private final LongAdder bodyMismatches;
+    private final LongAdder incomplete;
+
+    /**
+     * Create the stats.
+     *
+     * @param config
+     */
+    public ShadowStats(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * Create the stats, going on with the counters, and the sample log of
+     * the stats of a former configuration.
+     * <p>
+     * The compared headers, and the size of the sample log are taken from
+     * this configuration.
+     *
+     * @param config
+     * @param previous the stats of the former configuration, or {@code null}
+     */
+    public ShadowStats(Config config, ShadowStats previous) {
+        String headers = config.getShadowCompareHeaders();
+        this.compareHeaders = headers == null || headers.trim().isEmpty()
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(Arrays.stream(headers.split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .collect(Collectors.toList()));
+        this.sampleLogSize = config.getShadowSampleLogSize() >= 0
+                ? config.getShadowSampleLogSize()
+                : DEFAULT_SAMPLE_LOG_SIZE;
+        if (previous != null) {
+            this.samples = previous.samples;
+            this.compared = previous.compared;
+            this.matched = previous.matched;
+            this.statusMismatches = previous.statusMismatches;
+            this.headerMismatches = previous.headerMismatches;
+            this.bodyMismatches = previous.bodyMismatches;
+            this.incomplete = previous.incomplete;
+        } else {
+            this.samples = new ArrayDeque<>(Math.min(sampleLogSize, DEFAULT_SAMPLE_LOG_SIZE));
+            this.compared = new LongAdder();
+            this.matched = new LongAdder();
+            this.statusMismatches = new LongAdder();
+            this.headerMismatches = new LongAdder();
+            this.bodyMismatches = new LongAdder();
+            this.incomplete = new LongAdder();
+        }
+    }
+
+    /**
+     * The names of the response headers to compare.
+     *
+     * @return
+     */
+    public List<String> getCompareHeaders() {
+        return compareHeaders;
+    }
+
+    /**
+     * Compare the response of a secondary target against the response of the
+     * primary target.
+     *
+     * @param requestUri
+     * @param targetUri the secondary target
+     * @param primary
+     * @param secondary
+     * @return the mismatches, empty if both responses are equal
+     */
+    public Set<ResponseDigest.Mismatch> record(String requestUri, String targetUri,
+            ResponseDigest primary, ResponseDigest secondary) {
+        Set<ResponseDigest.Mismatch> mismatches = primary.compare(secondary);
+        compared.increment();
+        if (mismatches.isEmpty()) {
+            matched.increment();
+            return mismatches;
+        }
+        if (mismatches.contains(ResponseDigest.Mismatch.STATUS)) {
+            statusMismatches.increment();
+        }
+        if (mismatches.contains(ResponseDigest.Mismatch.HEADERS)) {
+            headerMismatches.increment();
+        }
+        if (mismatches.contains(ResponseDigest.Mismatch.BODY)) {
+            bodyMismatches.increment();
+        }
+        Sample sample = new Sample(System.currentTimeMillis(), requestUri, targetUri, mismatches,
+                primary.getStatusCode(), secondary.getStatusCode());
+        LOG.log(Level.FINE, sample::formatSample);
+        if (sampleLogSize > 0) {
+            synchronized (samples) {
+                // the log may be larger, if taken over from a former configuration
+                while (samples.size() >= sampleLogSize) {
+                    samples.pollFirst();
+                }
+                samples.offerLast(sample);
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Count a secondary target not comparable, as the primary, or the
+     * secondary target failed, or a body was not read completely.
+     */
+    public void recordIncomplete() {
+        incomplete.increment();
+    }
+
+    /**
+     * The latest mismatches, oldest first.
+     *
+     * @return a copy of the sample log
+     */
+    public List<Sample> getSamples() {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+
+    public long getCompared() {
+        return compared.sum();
+    }
+
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    public long getStatusMismatches() {
+        return statusMismatches.sum();
+    }
+
+    public long getHeaderMismatches() {
+        return headerMismatches.sum();
+    }
+
+    public long getBodyMismatches() {
+        return bodyMismatches.sum();
+    }
+
+    public long getIncomplete() {
+        return incomplete.sum();
+    }
+
+    public String formatCounters() {
+        return String.format("Shadow comparison: compared %d, matched %d, "
+                + "status mismatches %d, header mismatches %d, body mismatches %d, incomplete %d",
+                getCompared(), getMatched(),
+                getStatusMismatches(), getHeaderMismatches(), getBodyMismatches(), getIncomplete());
+    }
+
+    /**
+     * A mismatch between a secondary, and the primary target.
+     */
+    public static class Sample {
+
+        private final long timestampMillis;
+        private final String requestUri;
+        private final String targetUri;
+        private final Set<ResponseDigest.Mismatch> mismatches;
+        private final int primaryStatusCode;
+        private final int statusCode;
+
+        Sample(long timestampMillis, String requestUri, String targetUri, Set<ResponseDigest.Mismatch> mismatches,
+                int primaryStatusCode, int statusCode) {
+            this.timestampMillis = timestampMillis;
+            this.requestUri = requestUri;
+            this.targetUri = targetUri;
+            this.mismatches = mismatches;
+            this.primaryStatusCode = primaryStatusCode;
+            this.statusCode = statusCode;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        public String getRequestUri() {
+            return requestUri;
+        }
+
+        public String getTargetUri() {
+            return targetUri;
+        }
+
+        public Set<ResponseDigest.Mismatch> getMismatches() {
+            return mismatches;
+        }
+
+        public int getPrimaryStatusCode() {
+            return primaryStatusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String formatSample() {
+            return String.format("Shadow mismatch %s: request %s, target %s, status %d, primary status %d",
+                    mismatches, requestUri, targetUri, statusCode, primaryStatusCode);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Throughput counters, and latency histogram of a single target.
+ * <p>
+ * All counters are {@link LongAdder}s, thus recording takes no lock, and
+ * threads sending to the same target do not contend. Read them by
+ * {@link #snapshot()}.
+ *
+ * @author pi
+ */
+public class TargetMetrics {
+
+    private final String targetUri;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+    public TargetMetrics(String targetUri) {
+        this.targetUri = targetUri;
+    }
+
+    public String getTargetUri() {
+        return targetUri;
+    }
+
+    /**
+     * Record the outcome of a target.
+     * <p>
+     * Every outcome counts as request. Failed outcomes, and status 5xx count
+     * as error, except targets losing a race. The latency, the time until the
+     * response headers arrived, is recorded for targets which responded. The
+     * time streaming the body depends on the client, and its size, rather than
+     * on the target.
+     *
+     * @param targetOutcome
+     */
+    public void record(TargetOutcome targetOutcome) {
+        requests.increment();
+        Throwable failure = targetOutcome.getFailure();
+        if (failure instanceof Race.LostException) {
+            return;
+        }
+        if (failure != null || targetOutcome.getStatusCode() >= 500) {
+            errors.increment();
+        }
+        if (targetOutcome.getStatusCode() >= 0 && targetOutcome.getResponseNanos() >= 0L) {
+            latencyHistogram.record(targetOutcome.getResponseNanos());
+        }
+    }
+
+    /**
+     * Count the bytes of a request body sent to the target.
+     *
+     * @param n
+     */
+    public void addBytesSent(long n) {
+        bytesSent.add(n);
+    }
+
+    /**
+     * Count the bytes of a response body received from the target.
+     *
+     * @param n
+     */
+    public void addBytesReceived(long n) {
+        bytesReceived.add(n);
+    }
+
+    /**
+     * Wrap a response entity, counting its bytes as they are read.
+     * <p>
+     * Closing the content passes through, a body discarded by closing it is
+     * not counted, as reading it here would hold the connection until the
+     * whole body arrived.
+     *
+     * @param entity the response entity, or {@code null}
+     * @return the counting entity, or {@code null}
+     */
+    public HttpEntity countBytesReceived(HttpEntity entity) {
+        return entity != null ? new CountingEntity(entity) : null;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /**
+     * Copy the current counters.
+     *
+     * @return
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(targetUri,
+                requests.sum(),
+                errors.sum(),
+                bytesSent.sum(),
+                bytesReceived.sum(),
+                latencyHistogram.snapshot());
+    }
+
+    /**
+     * Counters of a target at a point in time.
+     */
+    public static class Snapshot {
+
+        private final String targetUri;
+        private final long requests;
+        private final long errors;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final LatencyHistogram.Snapshot latencies;
+
+        Snapshot(String targetUri, long requests, long errors, long bytesSent, long bytesReceived,
+                LatencyHistogram.Snapshot latencies) {
+            this.targetUri = targetUri;
+            this.requests = requests;
+            this.errors = errors;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.latencies = latencies;
+        }
+
+        public String getTargetUri() {
+            return targetUri;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public LatencyHistogram.Snapshot getLatencies() {
+            return latencies;
+        }
+
+        public String formatMetrics() {
+            return String.format("Metrics targetUri %s: requests %d, errors %d, bytes sent %d, received %d, "
+                    + "latency p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                    targetUri,
+                    requests,
+                    errors,
+                    bytesSent,
+                    bytesReceived,
+                    latencies.getPercentileMicros(50.0),
+                    latencies.getPercentileMicros(99.0),
+                    latencies.getPercentileMicros(99.9),
+                    latencies.getMaxMicros());
+        }
+    }
+
+    private class CountingEntity extends HttpEntityWrapper {
+
+        private InputStream content;
+
+        CountingEntity(HttpEntity wrappedEntity) {
+            super(wrappedEntity);
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (content == null) {
+                InputStream is = wrappedEntity.getContent();
+                content = is != null ? new CountingInputStream(is) : null;
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            // copy by the counting stream, the wrapped entity would bypass it
+            InputStream is = getContent();
+            if (is == null) {
+                return;
+            }
+            byte[] buffer = new byte[10 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                outStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                bytesReceived.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                bytesReceived.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesReceived.add(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The metrics of all targets.
+ * <p>
+ * Metrics are kept by target uri, thus they survive a configuration reload
+ * for targets which are still configured.
+ *
+ * @author pi
+ */
+public class TargetMetricsRegistry {
+
+    private final ConcurrentMap<String, TargetMetrics> targetMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * Get the metrics of a target, creating them on first use.
+     *
+     * @param targetUri
+     * @return
+     */
+    public TargetMetrics get(String targetUri) {
+        TargetMetrics metrics = targetMetrics.get(targetUri);
+        if (metrics == null) {
+            metrics = targetMetrics.computeIfAbsent(targetUri, TargetMetrics::new);
+        }
+        return metrics;
+    }
+
+    /**
+     * Record the outcome of a target.
+     *
+     * @param targetOutcome
+     */
+    public void record(TargetOutcome targetOutcome) {
+        get(targetOutcome.getTargetUri()).record(targetOutcome);
+    }
+
+    /**
+     * The metrics of all targets, in no particular order.
+     *
+     * @return a live view
+     */
+    public Collection<TargetMetrics> values() {
+        return targetMetrics.values();
+    }
+
+    /**
+     * Copy the current metrics of all targets.
+     *
+     * @return the snapshots, ordered by target uri
+     */
+    public List<TargetMetrics.Snapshot> snapshot() {
+        List<TargetMetrics.Snapshot> snapshots = new ArrayList<>(targetMetrics.size());
+        for (TargetMetrics metrics : targetMetrics.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        snapshots.sort((s1, s2) -> s1.getTargetUri().compareTo(s2.getTargetUri()));
+        return snapshots;
+    }
+}
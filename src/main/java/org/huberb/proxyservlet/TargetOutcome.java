@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Outcome of sending a proxy request to a single target.
+ *
+ * @author pi
+ */
+public class TargetOutcome {
+
+    private final int index;
+    private final String targetUri;
+    private final HttpHost targetHost;
+    private final int statusCode;
+    private final Throwable failure;
+    private final long elapsedNanos;
+    private final long responseNanos;
+
+    TargetOutcome(int index, String targetUri, HttpHost targetHost, int statusCode, Throwable failure,
+            long elapsedNanos, long responseNanos) {
+        this.index = index;
+        this.targetUri = targetUri;
+        this.targetHost = targetHost;
+        this.statusCode = statusCode;
+        this.failure = failure;
+        this.elapsedNanos = elapsedNanos;
+        this.responseNanos = responseNanos;
+    }
+
+    static TargetOutcome completed(int index, Env env, int statusCode, long startNanos) {
+        return completed(index, env, statusCode, startNanos, System.nanoTime());
+    }
+
+    /**
+     * A target which responded.
+     *
+     * @param index
+     * @param env
+     * @param statusCode
+     * @param startNanos sending the proxy request started
+     * @param arrivalNanos the response headers arrived
+     * @return
+     */
+    static TargetOutcome completed(int index, Env env, int statusCode, long startNanos, long arrivalNanos) {
+        return new TargetOutcome(index, env.getTargetUri(), env.getTargetHost(), statusCode, null,
+                System.nanoTime() - startNanos, arrivalNanos - startNanos);
+    }
+
+    static TargetOutcome failed(int index, Env env, Throwable failure, long startNanos) {
+        return new TargetOutcome(index, env.getTargetUri(), env.getTargetHost(), -1, failure,
+                System.nanoTime() - startNanos, -1L);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getTargetUri() {
+        return targetUri;
+    }
+
+    public HttpHost getTargetHost() {
+        return targetHost;
+    }
+
+    /**
+     * The status code of the target response, or {@code -1} if the target did
+     * not respond.
+     *
+     * @return
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * The time until the response was completely processed, including
+     * streaming its body.
+     *
+     * @return
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * The time until the response headers arrived, or {@code -1} if the
+     * target did not respond.
+     *
+     * @return
+     */
+    public long getResponseNanos() {
+        return responseNanos;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    public String formatOutcome() {
+        return String.format("Outcome %d: targetUri %s, status %d, elapsed %d ms%s",
+                index,
+                targetUri,
+                statusCode,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                failure != null ? ", failure " + failure : "");
+    }
+}
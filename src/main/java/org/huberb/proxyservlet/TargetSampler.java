@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.ThreadLocalRandom;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decide if a request is sent to a secondary target, by the sample rate of
+ * the target.
+ * <p>
+ * Without a sample key the decision is drawn from a thread-local random
+ * source, thus request threads share no lock. With {@code sampleKeyHeader}
+ * the decision is derived from a hash of the header value, e.g. a user id,
+ * thus a user is either always, or never sent to a target. As the hash is
+ * the same for all targets, a user sampled at a lower rate is sampled at any
+ * higher rate, too.
+ *
+ * @author pi
+ */
+public class TargetSampler {
+
+    private final String sampleKeyHeader;
+
+    /**
+     * Create a sampler.
+     *
+     * @param config
+     */
+    public TargetSampler(Config config) {
+        String header = config.getSampleKeyHeader();
+        this.sampleKeyHeader = header != null && !header.trim().isEmpty() ? header.trim() : null;
+    }
+
+    /**
+     * Decide if a request is sent to a target.
+     *
+     * @param sampleRate the sample rate of the target, from 0 to 1
+     * @param servletRequest
+     * @return {@code true} if the request is sent to the target
+     */
+    public boolean isSampled(double sampleRate, HttpServletRequest servletRequest) {
+        if (sampleRate >= 1.0) {
+            return true;
+        }
+        if (sampleRate <= 0.0) {
+            return false;
+        }
+        String sampleKey = sampleKeyHeader != null ? servletRequest.getHeader(sampleKeyHeader) : null;
+        double p = sampleKey != null
+                ? fraction(sampleKey)
+                : ThreadLocalRandom.current().nextDouble();
+        return p < sampleRate;
+    }
+
+    /**
+     * Map a sample key uniformly to the range from 0 inclusive to 1
+     * exclusive.
+     */
+    static double fraction(String sampleKey) {
+        // FNV-1a, then the finalizer of MurmurHash3, spreading similar keys
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sampleKey.length(); i += 1) {
+            h ^= sampleKey.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+}
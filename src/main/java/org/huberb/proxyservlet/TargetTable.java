@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The targets of the servlet, resolved once, instead of for each request.
+ * <p>
+ * Absolute target uris are resolved to {@link Env} objects when the table is
+ * created. Target uris starting with {@code /} are relative to the servlet
+ * container, they are resolved once for each uri prefix, i.e. scheme, local
+ * name, local port, and context path of a request. At most
+ * {@link #MAX_URI_PREFIXES} uri prefixes are cached, others are resolved for
+ * each request.
+ * <p>
+ * The resolved arrays are shared by all requests, and must not be modified.
+ *
+ * @author pi
+ */
+public class TargetTable {
+
+    /**
+     * Maximum number of cached uri prefixes.
+     */
+    static final int MAX_URI_PREFIXES = 16;
+
+    private final List<String> targetUris;
+    private final double[] sampleRates;
+    private final boolean relative;
+    private final Env[] absoluteTargets;
+    private final Map<String, Env[]> targetsByUriPrefix = new ConcurrentHashMap<>();
+
+    /**
+     * Create the table.
+     *
+     * @param targetUris the target uris, the first one is the primary target
+     * @param sampleRates the sample rate of each target, missing sample rates
+     * are 1
+     * @throws IllegalArgumentException if an absolute target uri is invalid
+     */
+    public TargetTable(List<String> targetUris, List<Double> sampleRates) {
+        this.targetUris = Collections.unmodifiableList(new ArrayList<>(targetUris));
+        this.sampleRates = new double[targetUris.size()];
+        for (int i = 0; i < this.sampleRates.length; i += 1) {
+            this.sampleRates[i] = i < sampleRates.size() ? sampleRates.get(i) : 1.0;
+        }
+        this.relative = targetUris.stream().anyMatch(s -> s.startsWith("/"));
+        this.absoluteTargets = relative ? null : resolve("");
+    }
+
+    /**
+     * The number of targets.
+     *
+     * @return
+     */
+    public int size() {
+        return targetUris.size();
+    }
+
+    /**
+     * The sample rate of a target.
+     *
+     * @param i the index of the target
+     * @return
+     */
+    public double getSampleRate(int i) {
+        return sampleRates[i];
+    }
+
+    /**
+     * The targets of a servlet request.
+     *
+     * @param servletRequest
+     * @return the targets, must not be modified
+     * @throws IllegalArgumentException if a target uri is invalid
+     */
+    public Env[] getTargets(HttpServletRequest servletRequest) {
+        if (!relative) {
+            return absoluteTargets;
+        }
+        return getTargets(uriPrefix(servletRequest));
+    }
+
+    /**
+     * The targets resolved against an uri prefix.
+     *
+     * @param uriPrefix
+     * @return the targets, must not be modified
+     * @throws IllegalArgumentException if a target uri is invalid
+     */
+    Env[] getTargets(String uriPrefix) {
+        if (!relative) {
+            return absoluteTargets;
+        }
+        Env[] targets = targetsByUriPrefix.get(uriPrefix);
+        if (targets == null) {
+            targets = resolve(uriPrefix);
+            if (targetsByUriPrefix.size() < MAX_URI_PREFIXES) {
+                targetsByUriPrefix.putIfAbsent(uriPrefix, targets);
+            }
+        }
+        return targets;
+    }
+
+    private Env[] resolve(String uriPrefix) {
+        Env[] targets = new Env[targetUris.size()];
+        for (int i = 0; i < targets.length; i += 1) {
+            String targetUri = targetUris.get(i);
+            targets[i] = new Env.Builder()
+                    .targetUri(targetUri.startsWith("/") ? uriPrefix + targetUri : targetUri)
+                    .build();
+        }
+        return targets;
+    }
+
+    static String uriPrefix(HttpServletRequest servletRequest) {
+        return new StringBuilder(64)
+                .append(servletRequest.getScheme())
+                .append("://")
+                .append(servletRequest.getLocalName())
+                .append(':')
+                .append(servletRequest.getLocalPort())
+                .append(servletRequest.getContextPath())
+                .toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
+import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+@WireMockTest
+public class AsyncHttpClientExecutorTest {
+
+    @Test
+    /*default*/ void testDoExecute_get(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        WireMock.stubFor(get("/async-get")
+                .willReturn(ok()
+                        .withHeader("Content-Type", "text/plain")
+                        .withHeader("X-Target", "a")
+                        .withBody("a-content")));
+        Env env = new Env.Builder().targetUri(baseUrl + "/async-get").build();
+
+        AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config());
+        HttpResponse httpResponse = AsyncHttpClientExecutor.join(
+                instance.doExecute(env, new BasicHttpRequest("GET", "/async-get")));
+
+        assertEquals(200, httpResponse.getStatusLine().getStatusCode());
+        assertEquals("OK", httpResponse.getStatusLine().getReasonPhrase());
+        assertEquals("a", httpResponse.getFirstHeader("X-Target").getValue());
+        assertEquals("text/plain", httpResponse.getEntity().getContentType().getValue());
+        assertEquals("a-content", EntityUtils.toString(httpResponse.getEntity()));
+    }
+
+    @Test
+    /*default*/ void testDoExecute_post(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        WireMock.stubFor(post("/async-post").willReturn(ok().withBody("b-content")));
+        Env env = new Env.Builder().targetUri(baseUrl + "/async-post").build();
+        String body = "name=value";
+        RequestBodySpool spool = RequestBodySpool.read(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), new Config());
+        BasicHttpEntityEnclosingRequest proxyRequest = new BasicHttpEntityEnclosingRequest("POST", baseUrl + "/async-post");
+        proxyRequest.setEntity(spool.createEntity());
+        // restricted headers are set by the JDK client
+        proxyRequest.addHeader("Content-Length", "" + body.length());
+
+        AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config());
+        HttpResponse httpResponse = AsyncHttpClientExecutor.join(instance.doExecute(env, proxyRequest));
+        spool.release();
+
+        assertEquals("b-content", EntityUtils.toString(httpResponse.getEntity()));
+        List<LoggedRequest> requests = WireMock.findAll(postRequestedFor(urlEqualTo("/async-post")));
+        assertEquals(1, requests.size());
+        assertEquals(body, requests.get(0).getBodyAsString());
+    }
+
+    @Test
+    /*default*/ void testCreateHttpClient_executor(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        WireMock.stubFor(get("/async-executor").willReturn(ok().withBody("c-content")));
+        Env env = new Env.Builder().targetUri(baseUrl + "/async-executor").build();
+        ExecutorService executorService = FanOutExecutors.newCachedPlatformThreadPool("test-async-transport-");
+        try {
+            java.net.http.HttpClient proxyClient = AsyncHttpClientExecutor.createHttpClient(new Config(), executorService);
+            assertSame(executorService, proxyClient.executor().orElse(null));
+
+            AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config(), proxyClient);
+            HttpResponse httpResponse = AsyncHttpClientExecutor.join(
+                    instance.doExecute(env, new BasicHttpRequest("GET", "/async-executor")));
+            assertEquals("c-content", EntityUtils.toString(httpResponse.getEntity()));
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertTrue(executorService.isShutdown());
+    }
+
+    @Test
+    /*default*/ void testDoExecuteDiscarding(WireMockRuntimeInfo wmRuntimeInfo) throws IOException {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        WireMock.stubFor(get("/async-discard").willReturn(WireMock.status(404).withBody("not-found")));
+        Env env = new Env.Builder().targetUri(baseUrl + "/async-discard").build();
+
+        AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config());
+        HttpResponse httpResponse = AsyncHttpClientExecutor.join(
+                instance.doExecuteDiscarding(env, new BasicHttpRequest("GET", "/async-discard")));
+
+        assertEquals(404, httpResponse.getStatusLine().getStatusCode());
+        assertNull(httpResponse.getEntity());
+    }
+
+    @Test
+    /*default*/ void testDoExecute_deadline_aborts_streaming_body() throws Exception {
+        ScheduledExecutorService timer = Deadline.newTimer("test-deadline");
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // a target sending its headers in time, but not its body
+            CompletableFuture<Void> dribbling = CompletableFuture.runAsync(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        // skip the request head
+                    }
+                    OutputStream os = socket.getOutputStream();
+                    os.write("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\nslow".getBytes(StandardCharsets.ISO_8859_1));
+                    os.flush();
+                    // wait until the client has gone, at most a few seconds
+                    socket.setSoTimeout(3000);
+                    while (reader.read() != -1) {
+                        // discard
+                    }
+                } catch (IOException ioex) {
+                    // the client has reset the connection, or is still reading
+                }
+            });
+            Env env = new Env.Builder().targetUri("http://localhost:" + serverSocket.getLocalPort() + "/slow").build();
+            ProxyRequest proxyRequest = new ProxyRequest("GET", "/slow");
+            proxyRequest.setDeadline(Deadline.after(200L, timer));
+
+            AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config());
+            long startMillis = System.currentTimeMillis();
+            HttpResponse httpResponse = AsyncHttpClientExecutor.join(instance.doExecute(env, proxyRequest));
+            assertThrows(IOException.class, () -> EntityUtils.toByteArray(httpResponse.getEntity()));
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            assertTrue(elapsedMillis < 2000, "elapsed " + elapsedMillis);
+            dribbling.get(5, TimeUnit.SECONDS);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test
+    /*default*/ void testDoExecute_connection_refused() throws IOException {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        Env env = new Env.Builder().targetUri("http://localhost:" + port + "/refused").build();
+
+        AsyncHttpClientExecutor instance = new AsyncHttpClientExecutor(new Config());
+        CompletableFuture<HttpResponse> responseFuture = instance.doExecute(env, new BasicHttpRequest("GET", "/refused"));
+        assertThrows(IOException.class, () -> AsyncHttpClientExecutor.join(responseFuture));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.huberb.proxyservlet.CircuitBreaker.Status;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class CircuitBreakerTest {
+
+    final HttpHost targetHost = new HttpHost("localhost", 8080);
+    final AtomicLong nanos = new AtomicLong();
+
+    @Test
+    /*default*/ void testRecord_opens_at_failure_rate() {
+        CircuitBreaker instance = new CircuitBreaker(targetHost, 50, -1, 1000, nanos::get);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i += 1) {
+            assertTrue(instance.tryAcquire());
+            instance.record(i % 2 == 0, 0);
+        }
+        assertEquals(Status.CLOSED, instance.getStatus());
+
+        instance.record(false, 0);
+        assertAll(
+                () -> assertEquals(Status.OPEN, instance.getStatus()),
+                () -> assertFalse(instance.tryAcquire())
+        );
+    }
+
+    @Test
+    /*default*/ void testRecord_slow_calls_count_as_failure() {
+        CircuitBreaker instance = new CircuitBreaker(targetHost, 100, 10, 1000, nanos::get);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+            instance.record(true, TimeUnit.MILLISECONDS.toNanos(11));
+        }
+        assertEquals(Status.OPEN, instance.getStatus());
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_window_is_rolled() {
+        CircuitBreaker instance = new CircuitBreaker(targetHost, 50, -1, 1000, nanos::get);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i += 1) {
+            instance.record(false, 0);
+        }
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(CircuitBreaker.WINDOW_MILLIS + 1));
+        assertTrue(instance.tryAcquire());
+        instance.record(false, 0);
+
+        assertEquals(Status.CLOSED, instance.getStatus());
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_half_open_closes_after_trials() {
+        CircuitBreaker instance = open(new CircuitBreaker(targetHost, 50, -1, 1000, nanos::get));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        for (int i = 0; i < CircuitBreaker.HALF_OPEN_TRIALS; i += 1) {
+            assertTrue(instance.tryAcquire());
+        }
+        assertAll(
+                () -> assertEquals(Status.HALF_OPEN, instance.getStatus()),
+                () -> assertFalse(instance.tryAcquire())
+        );
+        for (int i = 0; i < CircuitBreaker.HALF_OPEN_TRIALS; i += 1) {
+            instance.record(true, 0);
+        }
+        assertAll(
+                () -> assertEquals(Status.CLOSED, instance.getStatus()),
+                () -> assertTrue(instance.tryAcquire())
+        );
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_half_open_reopens_on_failure() {
+        CircuitBreaker instance = open(new CircuitBreaker(targetHost, 50, -1, 1000, nanos::get));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertTrue(instance.tryAcquire());
+        instance.record(false, 0);
+        assertAll(
+                () -> assertEquals(Status.OPEN, instance.getStatus()),
+                () -> assertFalse(instance.tryAcquire())
+        );
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_half_open_trials_expire() {
+        CircuitBreaker instance = open(new CircuitBreaker(targetHost, 50, -1, 1000, nanos::get));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        for (int i = 0; i < CircuitBreaker.HALF_OPEN_TRIALS; i += 1) {
+            assertTrue(instance.tryAcquire());
+        }
+        assertFalse(instance.tryAcquire());
+
+        // the trials never reported, permit new trials
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertTrue(instance.tryAcquire());
+    }
+
+    @Test
+    /*default*/ void testRegistry_ignores_short_circuited_outcomes() {
+        Config config = new Config();
+        config.setCircuitBreakerFailureRate(50);
+        CircuitBreakerRegistry instance = new CircuitBreakerRegistry(config);
+        Env env = new Env.Builder().targetUri("http://localhost:8080/a").build();
+
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+            instance.record(TargetOutcome.failed(1, env, new CircuitBreaker.OpenException(targetHost), 0L));
+        }
+        assertEquals(Status.CLOSED, instance.get(targetHost).getStatus());
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+            instance.record(TargetOutcome.completed(1, env, 503, 0L));
+        }
+        assertEquals(Status.OPEN, instance.get(targetHost).getStatus());
+    }
+
+    @Test
+    /*default*/ void testRegistry_slow_call_time_to_response() {
+        Config config = new Config();
+        config.setCircuitBreakerFailureRate(50);
+        config.setCircuitBreakerSlowCall(1000);
+        CircuitBreakerRegistry instance = new CircuitBreakerRegistry(config);
+        Env env = new Env.Builder().targetUri("http://localhost:8080/a").build();
+
+        // the headers arrived at once, streaming the body took seconds
+        long startNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(5);
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+            instance.record(TargetOutcome.completed(1, env, 200, startNanos, startNanos));
+        }
+        assertEquals(Status.CLOSED, instance.get(targetHost).getStatus());
+    }
+
+    private CircuitBreaker open(CircuitBreaker circuitBreaker) {
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+            circuitBreaker.record(false, 0);
+        }
+        assertEquals(Status.OPEN, circuitBreaker.getStatus());
+        return circuitBreaker;
+    }
+}
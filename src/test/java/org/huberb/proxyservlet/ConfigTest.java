@@ -50,6 +50,36 @@ public class ConfigTest {
                 .put("readTimeout", "2")
                 .put("connectionRequestTimeout", "3")
                 .put("maxConnections", "4")
+                //---
+                .put("fanOutMode", "mirror")
+                .put("fanOutThreads", "5")
+                .put("doVirtualThreads", "true")
+                .put("doNonBlockingIo", "true")
+                .put("doAsyncTransport", "true")
+                //---
+                .put("mirrorQueueCapacity", "8")
+                .put("mirrorDropPolicy", "drop-oldest")
+                .put("mirrorQueueTimeout", "9")
+                .put("mirrorQueueMaxAge", "10")
+                .put("requestBodyMemoryThreshold", "6")
+                .put("requestBodyMaxSize", "7")
+                //---
+                .put("circuitBreakerFailureRate", "50")
+                .put("circuitBreakerSlowCall", "11")
+                .put("circuitBreakerOpenDuration", "12")
+                //---
+                .put("requestDeadline", "13")
+                .put("requestDeadlineHeader", "X-Request-Timeout")
+                //---
+                .put("hedgeDelay", "14")
+                .put("hedgeMaxRate", "15")
+                //---
+                .put("shadowCompareHeaders", "Content-Type,ETag")
+                .put("shadowSampleLogSize", "16")
+                //---
+                .put("sampleKeyHeader", "X-User-Id")
+                //---
+                .put("configFile", "/etc/proxy.properties")
                 .build();
 
         Config config = new Config.ConfigFromPropertiesBuilder()
@@ -67,7 +97,37 @@ public class ConfigTest {
                 () -> assertEquals(1, config.getConnectTimeout()),
                 () -> assertEquals(2, config.getReadTimeout()),
                 () -> assertEquals(3, config.getConnectionRequestTimeout()),
-                () -> assertEquals(4, config.getMaxConnections())
+                () -> assertEquals(4, config.getMaxConnections()),
+                //---
+                () -> assertEquals("mirror", config.getFanOutMode()),
+                () -> assertEquals(5, config.getFanOutThreads()),
+                () -> assertTrue(config.isDoVirtualThreads()),
+                () -> assertTrue(config.isDoNonBlockingIo()),
+                () -> assertTrue(config.isDoAsyncTransport()),
+                //---
+                () -> assertEquals(8, config.getMirrorQueueCapacity()),
+                () -> assertEquals("drop-oldest", config.getMirrorDropPolicy()),
+                () -> assertEquals(9, config.getMirrorQueueTimeout()),
+                () -> assertEquals(10, config.getMirrorQueueMaxAge()),
+                () -> assertEquals(6, config.getRequestBodyMemoryThreshold()),
+                () -> assertEquals(7, config.getRequestBodyMaxSize()),
+                //---
+                () -> assertEquals(50, config.getCircuitBreakerFailureRate()),
+                () -> assertEquals(11, config.getCircuitBreakerSlowCall()),
+                () -> assertEquals(12, config.getCircuitBreakerOpenDuration()),
+                //---
+                () -> assertEquals(13, config.getRequestDeadline()),
+                () -> assertEquals("X-Request-Timeout", config.getRequestDeadlineHeader()),
+                //---
+                () -> assertEquals(14, config.getHedgeDelay()),
+                () -> assertEquals(15, config.getHedgeMaxRate()),
+                //---
+                () -> assertEquals("Content-Type,ETag", config.getShadowCompareHeaders()),
+                () -> assertEquals(16, config.getShadowSampleLogSize()),
+                //---
+                () -> assertEquals("X-User-Id", config.getSampleKeyHeader()),
+                //---
+                () -> assertEquals("/etc/proxy.properties", config.getConfigFile())
         );
     }
 
@@ -85,7 +145,37 @@ public class ConfigTest {
         "connectTimeout: -1",
         "readTimeout: -1",
         "connectionRequestTimeout: -1",
-        "maxConnections: -1",})
+        "maxConnections: -1",
+        //---
+        "fanOutMode: parallel",
+        "fanOutThreads: -1",
+        "doVirtualThreads: false",
+        "doNonBlockingIo: false",
+        "doAsyncTransport: false",
+        //---
+        "mirrorQueueCapacity: -1",
+        "mirrorDropPolicy: drop-newest",
+        "mirrorQueueTimeout: -1",
+        "mirrorQueueMaxAge: -1",
+        "requestBodyMemoryThreshold: -1",
+        "requestBodyMaxSize: -1",
+        //---
+        "circuitBreakerFailureRate: -1",
+        "circuitBreakerSlowCall: -1",
+        "circuitBreakerOpenDuration: -1",
+        //---
+        "requestDeadline: -1",
+        "requestDeadlineHeader: ",
+        //---
+        "hedgeDelay: -1",
+        "hedgeMaxRate: -1",
+        //---
+        "shadowCompareHeaders: Content-Type",
+        "shadowSampleLogSize: -1",
+        //---
+        "sampleKeyHeader: ",
+        //---
+        "configFile: ",})
     /*default*/ void testFormatConfigValues(String expectedConfigNameValue) {
         Config config = new Config();
         String s = config.formatConfigValues();
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class ConfigWatcherTest {
+
+    private Path dir;
+
+    @BeforeEach
+    /*default*/ void setUp() throws IOException {
+        dir = Files.createTempDirectory("config-watcher");
+    }
+
+    @AfterEach
+    /*default*/ void tearDown() throws IOException {
+        for (Path path : new Path[]{dir.resolve("proxy.properties"), dir.resolve("other.properties"), dir}) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    /*default*/ void testChange() throws Exception {
+        Path file = dir.resolve("proxy.properties");
+        Files.write(file, "doLog=false\n".getBytes(StandardCharsets.ISO_8859_1));
+        Semaphore changes = new Semaphore(0);
+        try (ConfigWatcher configWatcher = new ConfigWatcher(file, changes::release)) {
+            assertEquals(file.toAbsolutePath(), configWatcher.getFile());
+
+            Files.write(file, "doLog=true\n".getBytes(StandardCharsets.ISO_8859_1));
+            assertTrue(changes.tryAcquire(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    /*default*/ void testChange_otherFile() throws Exception {
+        Path file = dir.resolve("proxy.properties");
+        Files.write(file, "doLog=false\n".getBytes(StandardCharsets.ISO_8859_1));
+        Semaphore changes = new Semaphore(0);
+        try (ConfigWatcher configWatcher = new ConfigWatcher(file, changes::release)) {
+            Files.write(dir.resolve("other.properties"), "doLog=true\n".getBytes(StandardCharsets.ISO_8859_1));
+            assertFalse(changes.tryAcquire(1, TimeUnit.SECONDS));
+        }
+    }
+}
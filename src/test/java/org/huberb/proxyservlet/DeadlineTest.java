@@ -0,0 +1,116 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class DeadlineTest {
+
+    @Test
+    /*default*/ void testOf_not_configured() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        assertNull(Deadline.of(new Config(), servletRequest));
+    }
+
+    @ParameterizedTest
+    @CsvSource(value = {
+        "-1, 500, 500",
+        "1000, 500, 500",
+        "300, 500, 300",
+        "300, , 300",
+        "300, abc, 300",
+        "300, -5, 300",})
+    /*default*/ void testOf_budget(int requestDeadline, String headerValue, long expectedBudgetMillis) {
+        Config config = new Config();
+        config.setRequestDeadline(requestDeadline);
+        config.setRequestDeadlineHeader("X-Request-Timeout");
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getHeader("X-Request-Timeout")).thenReturn(headerValue);
+
+        Deadline deadline = Deadline.of(config, servletRequest);
+        assertNotNull(deadline);
+        long remainingMillis = deadline.remainingMillis();
+        assertTrue(remainingMillis <= expectedBudgetMillis && remainingMillis > expectedBudgetMillis - 100,
+                "remaining " + remainingMillis);
+    }
+
+    @Test
+    /*default*/ void testOf_header_missing() {
+        Config config = new Config();
+        config.setRequestDeadlineHeader("X-Request-Timeout");
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        assertNull(Deadline.of(config, servletRequest));
+    }
+
+    @Test
+    /*default*/ void testOf_request_attribute() {
+        Config config = new Config();
+        config.setRequestDeadline(1000);
+        Deadline deadline = Deadline.after(10L);
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getAttribute(Deadline.ATTRIBUTE)).thenReturn(deadline);
+
+        assertSame(deadline, Deadline.of(config, servletRequest));
+    }
+
+    @Test
+    /*default*/ void testIsExpired() {
+        Deadline expired = Deadline.after(0L);
+        Deadline pending = Deadline.after(60_000L);
+        assertAll(
+                () -> assertTrue(expired.isExpired()),
+                () -> assertEquals(0L, expired.remainingMillis()),
+                () -> assertFalse(pending.isExpired())
+        );
+    }
+
+    @Test
+    /*default*/ void testSchedule() throws Exception {
+        ScheduledExecutorService timer = Deadline.newTimer("test-deadline");
+        CountDownLatch expired = new CountDownLatch(1);
+        try {
+            assertNotNull(Deadline.after(10L, timer).schedule(expired::countDown));
+            assertTrue(expired.await(5, TimeUnit.SECONDS));
+        } finally {
+            timer.shutdownNow();
+        }
+        assertAll(
+                () -> assertNull(Deadline.after(10L).schedule(expired::countDown)),
+                () -> assertNull(Deadline.after(10L, timer).schedule(expired::countDown))
+        );
+    }
+}
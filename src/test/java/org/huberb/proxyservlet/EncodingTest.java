@@ -16,12 +16,14 @@
 package org.huberb.proxyservlet;
 
 import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  *
@@ -38,6 +40,7 @@ public class EncodingTest {
     /*default*/ void testEncodeUriQuery_non_escaping(String s) {
         assertEquals(s, Encoding.encodeUriQuery(s, false).toString());
         assertEquals(s, Encoding.encodeUriQuery(s, true).toString());
+        assertSame(s, Encoding.encodeUriQuery(s, false));
     }
 
     @ParameterizedTest
@@ -54,8 +57,30 @@ public class EncodingTest {
                 Arguments.of("AAA!%22$%&/()=%5B%5DBBB", "AAA!\"$%&/()=[]BBB"),
                 Arguments.of("AAA%3C%3E%7C,.-_:;%23'+*+'%60BBB", "AAA<>|,.-_:;#'+*+'`BBB"),
                 Arguments.of("AAA/BBB", "AAA/BBB"),
-                Arguments.of("AAA-BBB", "AAA-BBB")
+                Arguments.of("AAA-BBB", "AAA-BBB"),
+                // UTF-8 percent triplets
+                Arguments.of("%C3%A4%C3%B6%C3%BC", "\u00e4\u00f6\u00fc"),
+                Arguments.of("%C2%A0", "\u00a0"),
+                Arguments.of("%E2%82%AC", "\u20ac"),
+                Arguments.of("%F0%9F%98%80", "\ud83d\ude00"),
+                // unpaired surrogate
+                Arguments.of("A%3FB", "A\ud83dB")
         );
     }
 
+    @Test
+    /*default*/ void testEncodeUriQuery_percent() {
+        assertEquals("a%20b", Encoding.encodeUriQuery("a%20b", false).toString());
+        assertEquals("a%2520b", Encoding.encodeUriQuery("a%20b", true).toString());
+    }
+
+    @Test
+    /*default*/ void testEncodeUriQuery_append() {
+        StringBuilder sb = new StringBuilder("http://localhost/?");
+        assertSame(sb, Encoding.encodeUriQuery("a=b c", false, sb));
+        assertEquals("http://localhost/?a=b%20c", sb.toString());
+        Encoding.encodeUriQuery("&d=e", false, sb);
+        assertEquals("http://localhost/?a=b%20c&d=e", sb.toString());
+    }
+
 }
@@ -0,0 +1,813 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.apache.http.HttpRequest;
+import org.huberb.proxyservlet.MediatorTest.ByteArrayServletOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.Mockito;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class FanOutDispatcherTest {
+
+    @RegisterExtension
+    static WireMockExtension wmExtension = WireMockExtension.newInstance()
+            .options(wireMockConfig().dynamicPort())
+            .build();
+
+    static final int DELAY_MILLIS = 400;
+
+    @Test
+    /*default*/ void testDispatch_parallel() throws Exception {
+        List<Env> envList = setupTargets("/parallel", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+
+        long elapsedMillis;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                new Config(),
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(new Config(), env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            long startMillis = System.currentTimeMillis();
+            instance.dispatch(envList, createServletRequest("/parallel"), createServletResponse(basos));
+            elapsedMillis = System.currentTimeMillis() - startMillis;
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        // closing the dispatcher waits for the secondary targets
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        long sumOfTargetMillis = l.stream()
+                .mapToLong(o -> TimeUnit.NANOSECONDS.toMillis(o.getElapsedNanos()))
+                .sum();
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertTrue(l.stream().allMatch(TargetOutcome::isSuccess)),
+                () -> assertTrue(l.stream().allMatch(o -> o.getStatusCode() == 200)),
+                () -> assertTrue(elapsedMillis < sumOfTargetMillis - DELAY_MILLIS,
+                        "elapsed " + elapsedMillis + ", sum " + sumOfTargetMillis)
+        );
+    }
+
+    @Test
+    /*default*/ void testMirrorQueue_taken_over() {
+        Config config = new Config();
+        config.setMirrorQueueCapacity(4);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        FanOutDispatcher first = new FanOutDispatcher(config, executorService,
+                env -> new Mediator(config, env), outcome -> {
+                });
+        assertNotNull(first.getMirrorQueue());
+
+        FanOutDispatcher reloaded = new FanOutDispatcher(config, executorService,
+                env -> new Mediator(config, env), outcome -> {
+                }, first);
+        assertSame(first.getMirrorQueue(), reloaded.getMirrorQueue());
+
+        // the queue drains, even if the reloaded configuration uses none
+        Config noQueueConfig = new Config();
+        try (FanOutDispatcher noQueue = new FanOutDispatcher(noQueueConfig, executorService,
+                env -> new Mediator(noQueueConfig, env), outcome -> {
+                }, reloaded)) {
+            assertSame(first.getMirrorQueue(), noQueue.getMirrorQueue());
+        }
+        assertNull(new FanOutDispatcher(noQueueConfig, executorService,
+                env -> new Mediator(noQueueConfig, env), outcome -> {
+                }).getMirrorQueue());
+    }
+
+    @Test
+    /*default*/ void testDispatch_async_transport() throws Exception {
+        List<Env> envList = setupTargets("/async-transport", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setDoAsyncTransport(true);
+        AsyncHttpClientExecutor asyncHttpClientExecutor = new AsyncHttpClientExecutor(config);
+        CountDownLatch completed = new CountDownLatch(3);
+
+        // no executor, the secondary targets are sent by the async client
+        long elapsedMillis;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                null,
+                env -> new Mediator(config, env, null, asyncHttpClientExecutor),
+                outcome -> {
+                    outcomes.add(outcome);
+                    completed.countDown();
+                });
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            long startMillis = System.currentTimeMillis();
+            instance.dispatch(envList, createServletRequest("/async-transport"), createServletResponse(basos));
+            elapsedMillis = System.currentTimeMillis() - startMillis;
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        long sumOfTargetMillis = l.stream()
+                .mapToLong(o -> TimeUnit.NANOSECONDS.toMillis(o.getElapsedNanos()))
+                .sum();
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertTrue(l.stream().allMatch(o -> o.getStatusCode() == 200)),
+                () -> assertTrue(elapsedMillis < sumOfTargetMillis - DELAY_MILLIS,
+                        "elapsed " + elapsedMillis + ", sum " + sumOfTargetMillis)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_async_transport_failed() throws Exception {
+        List<Env> envList = setupTargets("/async-transport-failed", 2);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setDoAsyncTransport(true);
+        AsyncHttpClientExecutor asyncHttpClientExecutor = new AsyncHttpClientExecutor(config);
+        IOException failure = new IOException("Connection reset");
+
+        // a target future completing exceptionally is reported as failed outcome
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                null,
+                env -> new Mediator(config, env, null, asyncHttpClientExecutor) {
+                    @Override
+                    public CompletableFuture<TargetOutcome> mirrorAsync(int i, HttpRequest proxyRequest) {
+                        CompletableFuture<TargetOutcome> future = new CompletableFuture<>();
+                        future.completeExceptionally(failure);
+                        return future;
+                    }
+                },
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, createServletRequest("/async-transport-failed"), createServletResponse(basos));
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(2, l.size()),
+                () -> assertTrue(l.stream().allMatch(Objects::nonNull)),
+                () -> assertEquals(1, l.stream().filter(o -> o.getFailure() == failure).count())
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_sequential() throws Exception {
+        List<Env> envList = setupTargets("/sequential", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                new Config(),
+                null,
+                env -> new Mediator(new Config(), env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, createServletRequest("/sequential"), createServletResponse(basos));
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(
+                        l.get(0).getIndex(), l.get(1).getIndex(), l.get(2).getIndex()))
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_deadline() throws Exception {
+        List<Env> envList = setupTargets("/deadline", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setRequestDeadline(DELAY_MILLIS / 2);
+
+        ScheduledExecutorService timer = Deadline.newTimer("test-deadline");
+        long elapsedMillis;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                null,
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            HttpServletRequest servletRequest = createServletRequest("/deadline");
+            // the container keeps the deadline fixed by the servlet
+            when(servletRequest.getAttribute(Deadline.ATTRIBUTE)).thenReturn(Deadline.after(DELAY_MILLIS / 2, timer));
+            HttpServletResponse servletResponse = createServletResponse(basos);
+            long startMillis = System.currentTimeMillis();
+            instance.dispatch(envList, servletRequest, servletResponse);
+            elapsedMillis = System.currentTimeMillis() - startMillis;
+
+            verify(servletResponse, times(1)).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        } finally {
+            timer.shutdownNow();
+        }
+        // the primary target is aborted, the secondary targets are skipped
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertTrue(l.stream().noneMatch(TargetOutcome::isSuccess)),
+                () -> assertTrue(l.get(1).getFailure() instanceof Deadline.ExceededException),
+                () -> assertTrue(l.get(2).getFailure() instanceof Deadline.ExceededException),
+                () -> assertTrue(elapsedMillis < DELAY_MILLIS, "elapsed " + elapsedMillis)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_race() throws Exception {
+        List<Env> envList = setupTargets("/race", DELAY_MILLIS, 0, DELAY_MILLIS);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("race");
+
+        long elapsedMillis;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            long startMillis = System.currentTimeMillis();
+            instance.dispatch(envList, createServletRequest("/race"), createServletResponse(basos));
+            elapsedMillis = System.currentTimeMillis() - startMillis;
+
+            assertEquals("content-1", basos.baos.toString("UTF-8"));
+        }
+        // the slower targets are aborted
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertTrue(l.stream().filter(o -> o.getIndex() == 1).allMatch(TargetOutcome::isSuccess)),
+                () -> assertTrue(l.stream().filter(o -> o.getIndex() != 1)
+                        .allMatch(o -> o.getFailure() instanceof Race.LostException)),
+                () -> assertTrue(elapsedMillis < DELAY_MILLIS, "elapsed " + elapsedMillis)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_hedge() throws Exception {
+        List<Env> envList = setupTargets("/hedge", DELAY_MILLIS, 0);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("hedge");
+        config.setHedgeDelay(DELAY_MILLIS / 4);
+        config.setHedgeMaxRate(100);
+
+        long elapsedMillis;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            long startMillis = System.currentTimeMillis();
+            instance.dispatch(envList, createServletRequest("/hedge"), createServletResponse(basos));
+            elapsedMillis = System.currentTimeMillis() - startMillis;
+
+            assertEquals("content-1", basos.baos.toString("UTF-8"));
+        }
+        // the slow primary target is hedged, and aborted
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(2, l.size()),
+                () -> assertTrue(l.stream().filter(o -> o.getIndex() == 0)
+                        .allMatch(o -> o.getFailure() instanceof Race.LostException)),
+                () -> assertTrue(elapsedMillis < DELAY_MILLIS, "elapsed " + elapsedMillis)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_hedge_not_needed() throws Exception {
+        List<Env> envList = setupTargets("/no-hedge", 0, 0);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("hedge");
+        config.setHedgeDelay(DELAY_MILLIS);
+        config.setHedgeMaxRate(100);
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, createServletRequest("/no-hedge"), createServletResponse(basos));
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(1, l.size()),
+                () -> assertTrue(l.get(0).isSuccess())
+        );
+        wmExtension.verify(0, getRequestedFor(urlEqualTo("/no-hedge/1")));
+    }
+
+    @Test
+    /*default*/ void testDispatch_aggregate() throws Exception {
+        List<Env> envList = setupTargets("/aggregate", DELAY_MILLIS, 0, DELAY_MILLIS / 2);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("aggregate");
+
+        String body;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, createServletRequest("/aggregate"), createServletResponse(basos));
+            body = basos.baos.toString("UTF-8");
+        }
+        // the parts are in order of completion
+        int index1 = body.indexOf("content-1");
+        int index2 = body.indexOf("content-2");
+        int index0 = body.indexOf("content-0");
+        assertAll(
+                () -> assertEquals(3, outcomes.size()),
+                () -> assertTrue(outcomes.stream().allMatch(TargetOutcome::isSuccess)),
+                () -> assertTrue(index1 >= 0 && index1 < index2 && index2 < index0, body),
+                () -> assertTrue(body.contains(MultipartResponse.TARGET_URI + ": " + envList.get(1).getTargetUri()), body),
+                () -> assertTrue(body.contains(MultipartResponse.TARGET_STATUS + ": 200"), body),
+                () -> assertTrue(body.trim().endsWith("--"), body)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_aggregate_target_reset() throws Exception {
+        List<Env> envList = setupTargets("/aggregate-reset", 0, 0);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("aggregate");
+
+        String body;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            // a target resetting the connection in the middle of its body
+            CompletableFuture<Void> resetting = CompletableFuture.runAsync(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        // skip the request head
+                    }
+                    OutputStream os = socket.getOutputStream();
+                    os.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 100\r\n\r\n"
+                            + "truncated").getBytes(StandardCharsets.ISO_8859_1));
+                    os.flush();
+                    socket.setSoLinger(true, 0);
+                } catch (IOException ioex) {
+                    throw new UncheckedIOException(ioex);
+                }
+            });
+            envList.add(1, new Env.Builder()
+                    .targetUri("http://localhost:" + serverSocket.getLocalPort() + "/aggregate-reset/reset")
+                    .build());
+            try (FanOutDispatcher instance = new FanOutDispatcher(
+                    config,
+                    Executors.newFixedThreadPool(2),
+                    env -> new Mediator(config, env),
+                    outcomes::add);
+                    ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+                instance.dispatch(envList, createServletRequest("/aggregate-reset"), createServletResponse(basos));
+                body = basos.baos.toString("UTF-8");
+            }
+            resetting.get(5, TimeUnit.SECONDS);
+        }
+        // the truncated part is followed by an error part, the other parts are intact
+        assertAll(
+                () -> assertEquals(3, outcomes.size()),
+                () -> assertEquals(1, outcomes.stream().filter(o -> !o.isSuccess()).count()),
+                () -> assertTrue(body.contains("truncated\r\n"), body),
+                () -> assertTrue(body.contains(MultipartResponse.TARGET_ERROR + ": "), body),
+                () -> assertTrue(body.contains("content-0"), body),
+                () -> assertTrue(body.contains("content-1"), body),
+                () -> assertTrue(body.trim().endsWith("--"), body)
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_aggregate_client_gone() throws Exception {
+        List<Env> envList = setupTargets("/aggregate-gone", 0, 0, 0);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("aggregate");
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        // the secondaries are rejected, and their error parts fail
+        executorService.shutdown();
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                executorService,
+                env -> new Mediator(config, env),
+                outcomes::add)) {
+            assertThrows(IOException.class, () -> instance.dispatch(envList,
+                    createServletRequest("/aggregate-gone"),
+                    createServletResponse(new MultipartResponseTest.FailingServletOutputStream())));
+        }
+        // the calling thread stopped at the first failing part
+        assertEquals(1, outcomes.size());
+    }
+
+    @Test
+    /*default*/ void testDispatch_shadow() throws Exception {
+        String baseUrl = wmExtension.getRuntimeInfo().getHttpBaseUrl();
+        List<Env> envList = new ArrayList<>();
+        String[] bodies = {"content", "content", "other"};
+        for (int i = 0; i < bodies.length; i += 1) {
+            String uri = "/shadow/" + i;
+            wmExtension.stubFor(get(uri).willReturn(ok().withBody(bodies[i])));
+            envList.add(new Env.Builder().targetUri(baseUrl + uri).build());
+        }
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("shadow");
+
+        ShadowStats shadowStats;
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            shadowStats = instance.getShadowStats();
+            instance.dispatch(envList, createServletRequest("/shadow"), createServletResponse(basos));
+
+            assertEquals("content", basos.baos.toString("UTF-8"));
+        }
+        // the secondary targets are compared once the executor has terminated
+        List<ShadowStats.Sample> samples = shadowStats.getSamples();
+        assertAll(
+                () -> assertEquals(3, outcomes.size()),
+                () -> assertEquals(2, shadowStats.getCompared()),
+                () -> assertEquals(1, shadowStats.getMatched()),
+                () -> assertEquals(1, shadowStats.getBodyMismatches()),
+                () -> assertEquals(0, shadowStats.getIncomplete()),
+                () -> assertEquals(1, samples.size()),
+                () -> assertEquals(envList.get(2).getTargetUri(), samples.get(0).getTargetUri())
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_mirror() throws Exception {
+        List<Env> envList = setupTargets("/mirror", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("mirror");
+
+        HttpServletRequest servletRequest = createServletRequest("/mirror");
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        when(servletRequest.isAsyncSupported()).thenReturn(true);
+        when(servletRequest.startAsync(any(), any())).thenReturn(asyncContext);
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            HttpServletResponse servletResponse = createServletResponse(basos);
+            instance.dispatch(envList, servletRequest, servletResponse);
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+            verify(servletResponse, times(1)).flushBuffer();
+            verify(asyncContext, times(1)).complete();
+        }
+        // the secondary targets are dispatched after the primary target completed
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(3, l.size()),
+                () -> assertEquals(0, l.get(0).getIndex()),
+                () -> assertTrue(l.stream().allMatch(TargetOutcome::isSuccess))
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_mirror_sequential() throws Exception {
+        List<Env> envList = setupTargets("/mirror-sequential", 3);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("mirror");
+
+        HttpServletRequest servletRequest = createServletRequest("/mirror-sequential");
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        when(servletRequest.isAsyncSupported()).thenReturn(true);
+        when(servletRequest.startAsync(any(), any())).thenReturn(asyncContext);
+        List<Runnable> started = new ArrayList<>();
+        Mockito.doAnswer(invocation -> started.add((Runnable) invocation.getArguments()[0]))
+                .when(asyncContext).start(any());
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                null,
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, servletRequest, createServletResponse(basos));
+
+            // the calling thread returns without waiting for the secondary targets
+            verify(asyncContext, times(1)).complete();
+            assertEquals(1, outcomes.size());
+            assertEquals(1, started.size());
+
+            started.get(0).run();
+        }
+        assertAll(
+                () -> assertEquals(3, outcomes.size()),
+                () -> assertTrue(outcomes.stream().allMatch(TargetOutcome::isSuccess))
+        );
+    }
+
+    @Test
+    /*default*/ void testDispatch_mirror_client_gone() throws Exception {
+        List<Env> envList = setupTargets("/mirror-client-gone", 2);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        Config config = new Config();
+        config.setFanOutMode("mirror");
+
+        HttpServletRequest servletRequest = createServletRequest("/mirror-client-gone");
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        when(servletRequest.isAsyncSupported()).thenReturn(true);
+        when(servletRequest.startAsync(any(), any())).thenReturn(asyncContext);
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(config, env),
+                outcomes::add);
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            HttpServletResponse servletResponse = createServletResponse(basos);
+            Mockito.doThrow(new IOException("Broken pipe")).when(servletResponse).flushBuffer();
+            assertThrows(IOException.class, () -> instance.dispatch(envList, servletRequest, servletResponse));
+
+            // the async context is completed, and the secondary target is sent anyway
+            verify(asyncContext, times(1)).complete();
+        }
+        assertEquals(2, outcomes.size());
+    }
+
+    @Test
+    /*default*/ void testDispatch_post_body_reaches_every_target() throws Exception {
+        String baseUrl = wmExtension.getRuntimeInfo().getHttpBaseUrl();
+        String body = "name=value&foo=bar";
+        List<Env> envList = new ArrayList<>();
+        for (int i = 0; i < 3; i += 1) {
+            String uri = "/post/" + i;
+            wmExtension.stubFor(post(uri).willReturn(ok().withBody("content-" + i)));
+            envList.add(new Env.Builder().targetUri(baseUrl + uri).build());
+        }
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getMethod()).thenReturn("POST");
+        when(servletRequest.getRequestURI()).thenReturn("/post");
+        HeaderStore hs = new HeaderStore()
+                .put("Content-Length", "" + body.length());
+        when(servletRequest.getHeaderNames()).thenReturn(hs.getHeaderNames());
+        when(servletRequest.getHeader("Content-Length")).thenReturn(hs.getHeader("Content-Length"));
+        when(servletRequest.getHeaders("Content-Length")).thenReturn(hs.getHeaderNames("Content-Length"));
+        when(servletRequest.getInputStream()).thenReturn(new ByteArrayServletInputStream(body.getBytes("UTF-8")));
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                new Config(),
+                Executors.newFixedThreadPool(2),
+                env -> new Mediator(new Config(), env),
+                outcome -> {
+                });
+                ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            instance.dispatch(envList, servletRequest, createServletResponse(basos));
+
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+        }
+        for (int i = 0; i < 3; i += 1) {
+            List<LoggedRequest> requests = wmExtension.findAll(postRequestedFor(urlEqualTo("/post/" + i)));
+            assertEquals(1, requests.size());
+            assertEquals(body, requests.get(0).getBodyAsString());
+        }
+    }
+
+    @Test
+    /*default*/ void testDispatch_non_blocking() throws Exception {
+        Config config = new Config();
+        config.setDoNonBlockingIo(true);
+        dispatchNonBlocking(config, "/non-blocking", env -> new Mediator(config, env));
+    }
+
+    @Test
+    /*default*/ void testDispatch_non_blocking_async_transport() throws Exception {
+        Config config = new Config();
+        config.setDoNonBlockingIo(true);
+        config.setDoAsyncTransport(true);
+        AsyncHttpClientExecutor asyncHttpClientExecutor = new AsyncHttpClientExecutor(config);
+        dispatchNonBlocking(config, "/non-blocking-async",
+                env -> new Mediator(config, env, null, asyncHttpClientExecutor));
+    }
+
+    void dispatchNonBlocking(Config config, String path, Function<Env, Mediator> mediatorFactory) throws Exception {
+        String baseUrl = wmExtension.getRuntimeInfo().getHttpBaseUrl();
+        String body = "name=value&foo=bar";
+        List<Env> envList = new ArrayList<>();
+        for (int i = 0; i < 2; i += 1) {
+            String uri = path + "/" + i;
+            wmExtension.stubFor(post(uri).willReturn(ok().withBody("content-" + i)));
+            envList.add(new Env.Builder().targetUri(baseUrl + uri).build());
+        }
+
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getMethod()).thenReturn("POST");
+        when(servletRequest.getRequestURI()).thenReturn(path);
+        HeaderStore hs = new HeaderStore()
+                .put("Content-Length", "" + body.length());
+        when(servletRequest.getHeaderNames()).thenReturn(hs.getHeaderNames());
+        when(servletRequest.getHeader("Content-Length")).thenReturn(hs.getHeader("Content-Length"));
+        when(servletRequest.getHeaders("Content-Length")).thenReturn(hs.getHeaderNames("Content-Length"));
+        when(servletRequest.getInputStream()).thenReturn(new ByteArrayServletInputStream(body.getBytes("UTF-8")));
+        when(servletRequest.isAsyncSupported()).thenReturn(true);
+
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        when(servletRequest.startAsync(any(), any())).thenReturn(asyncContext);
+        when(asyncContext.getRequest()).thenReturn(servletRequest);
+        Queue<TargetOutcome> outcomes = new ConcurrentLinkedQueue<>();
+        CountDownLatch completed = new CountDownLatch(2);
+
+        try (FanOutDispatcher instance = new FanOutDispatcher(
+                config,
+                Executors.newFixedThreadPool(2),
+                mediatorFactory,
+                outcome -> {
+                    outcomes.add(outcome);
+                    completed.countDown();
+                });
+                ByteArrayServletOutputStream basos = new NonBlockingServletOutputStream()) {
+            HttpServletResponse servletResponse = createServletResponse(basos);
+            when(asyncContext.getResponse()).thenReturn(servletResponse);
+            instance.dispatch(envList, servletRequest, servletResponse);
+
+            // the primary target is reported after the async context is completed
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            assertEquals("content-0", basos.baos.toString("UTF-8"));
+            verify(asyncContext, times(1)).complete();
+        }
+        List<TargetOutcome> l = new ArrayList<>(outcomes);
+        assertAll(
+                () -> assertEquals(2, l.size()),
+                () -> assertTrue(l.stream().allMatch(TargetOutcome::isSuccess))
+        );
+        for (int i = 0; i < 2; i += 1) {
+            List<LoggedRequest> requests = wmExtension.findAll(postRequestedFor(urlEqualTo(path + "/" + i)));
+            assertEquals(1, requests.size());
+            assertEquals(body, requests.get(0).getBodyAsString());
+        }
+    }
+
+    List<Env> setupTargets(String path, int n) {
+        int[] delayMillis = new int[n];
+        Arrays.fill(delayMillis, DELAY_MILLIS);
+        return setupTargets(path, delayMillis);
+    }
+
+    List<Env> setupTargets(String path, int... delayMillis) {
+        String baseUrl = wmExtension.getRuntimeInfo().getHttpBaseUrl();
+        List<Env> envList = new ArrayList<>();
+        for (int i = 0; i < delayMillis.length; i += 1) {
+            String uri = path + "/" + i;
+            wmExtension.stubFor(get(uri)
+                    .willReturn(ok().withBody("content-" + i).withFixedDelay(delayMillis[i])));
+            envList.add(new Env.Builder().targetUri(baseUrl + uri).build());
+        }
+        return envList;
+    }
+
+    HttpServletRequest createServletRequest(String uri) {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getMethod()).thenReturn("GET");
+        when(servletRequest.getRequestURI()).thenReturn(uri);
+        when(servletRequest.getProtocol()).thenReturn("HTTP/1.1");
+        HeaderStore hs = new HeaderStore();
+        when(servletRequest.getHeaderNames()).thenReturn(hs.getHeaderNames());
+        when(servletRequest.getHeader(anyString())).thenReturn(null);
+        return servletRequest;
+    }
+
+    HttpServletResponse createServletResponse(ByteArrayServletOutputStream basos) throws Exception {
+        HttpServletResponse servletResponse = Mockito.mock(HttpServletResponse.class);
+        when(servletResponse.getOutputStream()).thenReturn(basos);
+        return servletResponse;
+    }
+
+    static class ByteArrayServletInputStream extends ServletInputStream {
+
+        final ByteArrayInputStream bais;
+
+        ByteArrayServletInputStream(byte[] content) {
+            this.bais = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return bais.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                readListener.onDataAvailable();
+                readListener.onAllDataRead();
+            } catch (IOException ioex) {
+                readListener.onError(ioex);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return bais.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return bais.read(b, off, len);
+        }
+    }
+
+    static class NonBlockingServletOutputStream extends ByteArrayServletOutputStream {
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException ioex) {
+                writeListener.onError(ioex);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class FanOutExecutorsTest {
+
+    @Test
+    /*default*/ void testNewExecutorService_sequential() {
+        Config config = new Config();
+        config.setFanOutThreads(0);
+        config.setDoVirtualThreads(true);
+        assertNull(FanOutExecutors.newExecutorService(config, "test-"));
+    }
+
+    @Test
+    /*default*/ void testNewExecutorService_platform_threads() throws Exception {
+        Config config = new Config();
+        config.setFanOutThreads(2);
+        ExecutorService executorService = FanOutExecutors.newExecutorService(config, "test-fan-out-");
+        try {
+            Thread t = CompletableFuture.supplyAsync(Thread::currentThread, executorService).get(5, TimeUnit.SECONDS);
+            assertTrue(t.getName().startsWith("test-fan-out-"), t.getName());
+            assertTrue(t.isDaemon());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    /*default*/ void testNewExecutorService_virtual_threads() throws Exception {
+        Config config = new Config();
+        config.setDoVirtualThreads(true);
+        ExecutorService executorService = FanOutExecutors.newExecutorService(config, "test-fan-out-");
+        assertNotNull(executorService);
+        try {
+            Thread t = CompletableFuture.supplyAsync(Thread::currentThread, executorService).get(5, TimeUnit.SECONDS);
+            // falls back to platform threads on runtimes without virtual threads
+            assertEquals(isVirtualThreadSupported(), isVirtual(t), t.toString());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    boolean isVirtualThreadSupported() {
+        return FanOutExecutors.newVirtualThreadPerTaskExecutor() != null;
+    }
+
+    boolean isVirtual(Thread t) throws Exception {
+        try {
+            Method method = Thread.class.getMethod("isVirtual");
+            return (Boolean) method.invoke(t);
+        } catch (NoSuchMethodException nsmex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class HedgePolicyTest {
+
+    final Env env = new Env.Builder().targetUri("http://localhost:8080/a").build();
+
+    @Test
+    /*default*/ void testHedgeDelayMillis_configured() {
+        Config config = new Config();
+        config.setHedgeDelay(50);
+        HedgePolicy instance = new HedgePolicy(config);
+        assertEquals(50L, instance.hedgeDelayMillis(env.getTargetUri()));
+    }
+
+    @Test
+    /*default*/ void testHedgeDelayMillis_percentile() {
+        HedgePolicy instance = new HedgePolicy(new Config());
+        assertEquals(-1L, instance.hedgeDelayMillis(env.getTargetUri()));
+
+        long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(30);
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i += 1) {
+            instance.record(TargetOutcome.completed(0, env, 200, startNanos));
+        }
+        long hedgeDelayMillis = instance.hedgeDelayMillis(env.getTargetUri());
+        assertTrue(hedgeDelayMillis >= 30L && hedgeDelayMillis < 1000L, "delay " + hedgeDelayMillis);
+    }
+
+    @Test
+    /*default*/ void testRecord_time_to_response() {
+        HedgePolicy instance = new HedgePolicy(new Config());
+
+        // the headers arrived after 30 ms, streaming the body took seconds
+        long startNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(5);
+        long arrivalNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(30);
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i += 1) {
+            instance.record(TargetOutcome.completed(0, env, 200, startNanos, arrivalNanos));
+        }
+        long hedgeDelayMillis = instance.hedgeDelayMillis(env.getTargetUri());
+        assertTrue(hedgeDelayMillis >= 30L && hedgeDelayMillis < 1000L, "delay " + hedgeDelayMillis);
+    }
+
+    @Test
+    /*default*/ void testHedgeDelayMillis_previous() {
+        HedgePolicy previous = new HedgePolicy(new Config());
+        long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(30);
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i += 1) {
+            previous.record(TargetOutcome.completed(0, env, 200, startNanos));
+        }
+
+        // the latencies are taken over on reload
+        HedgePolicy instance = new HedgePolicy(new Config(), previous);
+        long hedgeDelayMillis = instance.hedgeDelayMillis(env.getTargetUri());
+        assertTrue(hedgeDelayMillis >= 30L && hedgeDelayMillis < 1000L, "delay " + hedgeDelayMillis);
+    }
+
+    @Test
+    /*default*/ void testRecord_ignores_failures() {
+        HedgePolicy instance = new HedgePolicy(new Config());
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i += 1) {
+            instance.record(TargetOutcome.completed(0, env, 503, System.nanoTime()));
+            instance.record(TargetOutcome.failed(0, env, new RuntimeException(), System.nanoTime()));
+        }
+        assertEquals(-1L, instance.hedgeDelayMillis(env.getTargetUri()));
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_rate_is_capped() {
+        Config config = new Config();
+        config.setHedgeMaxRate(50);
+        HedgePolicy instance = new HedgePolicy(config);
+
+        int hedges = 0;
+        for (int i = 0; i < 100; i += 1) {
+            instance.hedgeDelayMillis(env.getTargetUri());
+            if (instance.tryAcquire()) {
+                hedges += 1;
+            }
+        }
+        assertEquals(50, hedges);
+    }
+
+    @Test
+    /*default*/ void testTryAcquire_no_budget() {
+        Config config = new Config();
+        config.setHedgeMaxRate(0);
+        HedgePolicy instance = new HedgePolicy(config);
+        instance.hedgeDelayMillis(env.getTargetUri());
+        assertFalse(instance.tryAcquire());
+    }
+}
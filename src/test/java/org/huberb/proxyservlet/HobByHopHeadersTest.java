@@ -15,11 +15,24 @@
  */
 package org.huberb.proxyservlet;
 
+import java.util.Arrays;
+import java.util.Collections;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.Mockito;
 
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  *
@@ -31,7 +44,18 @@ public class HobByHopHeadersTest {
     @ValueSource(strings = {
         "SomeName",
         "Length",
-        "X-Headername"
+        "X-Headername",
+        "",
+        "T",
+        "TF",
+        "Upgrades",
+        "Trailer",
+        "Connectio_",
+        "Keep-Alivx",
+        "Content-Length",
+        "Transfer-Encodinh",
+        "Proxy-Authorizatio",
+        "Proxy-Authorizations"
     })
     /*default*/ void testContainsHeader_false(String name) {
         assertFalse(HobByHopHeaders.containsHeader(name));
@@ -46,10 +70,58 @@ public class HobByHopHeadersTest {
         "TE",
         "Trailers",
         "Transfer-Encoding",
-        "Upgrade"
+        "Upgrade",
+        "connection",
+        "KEEP-ALIVE",
+        "te",
+        "transfer-encoding"
     })
     /*default*/ void testContainsHeader_true(String name) {
         assertTrue(HobByHopHeaders.containsHeader(name));
     }
 
+    @Test
+    /*default*/ void testConnectionTokens_response() {
+        BasicHttpResponse response = new BasicHttpResponse(null, 200, "OK");
+        response.addHeader("Connection", " X-A ,, x-b");
+        response.addHeader("Connection", "close");
+        HobByHopHeaders.ConnectionTokens connectionTokens = HobByHopHeaders.ConnectionTokens.of(response);
+        assertAll(
+                () -> assertEquals(3, connectionTokens.size()),
+                () -> assertTrue(connectionTokens.contains("x-a")),
+                () -> assertTrue(connectionTokens.contains("X-B")),
+                () -> assertTrue(HobByHopHeaders.containsHeader("X-A", connectionTokens)),
+                () -> assertTrue(HobByHopHeaders.containsHeader("Upgrade", connectionTokens)),
+                () -> assertFalse(HobByHopHeaders.containsHeader("X-C", connectionTokens))
+        );
+    }
+
+    @Test
+    /*default*/ void testConnectionTokens_none() {
+        BasicHttpResponse response = new BasicHttpResponse(null, 200, "OK");
+        assertSame(HobByHopHeaders.ConnectionTokens.NONE, HobByHopHeaders.ConnectionTokens.of(response));
+        response.addHeader("Connection", " , ");
+        assertSame(HobByHopHeaders.ConnectionTokens.NONE, HobByHopHeaders.ConnectionTokens.of(response));
+    }
+
+    @Test
+    /*default*/ void testConnectionTokens_request() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getHeaders("Connection"))
+                .thenReturn(Collections.enumeration(Arrays.asList("keep-alive, X-A")));
+        HobByHopHeaders.ConnectionTokens connectionTokens = HobByHopHeaders.ConnectionTokens.of(servletRequest);
+        assertEquals(2, connectionTokens.size());
+        assertTrue(connectionTokens.contains("X-A"));
+        verify(servletRequest, times(1)).setAttribute(HobByHopHeaders.ConnectionTokens.ATTRIBUTE, connectionTokens);
+    }
+
+    @Test
+    /*default*/ void testConnectionTokens_request_attribute() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getAttribute(HobByHopHeaders.ConnectionTokens.ATTRIBUTE))
+                .thenReturn(HobByHopHeaders.ConnectionTokens.NONE);
+        assertSame(HobByHopHeaders.ConnectionTokens.NONE, HobByHopHeaders.ConnectionTokens.of(servletRequest));
+        verify(servletRequest, times(0)).getHeaders("Connection");
+    }
+
 }
@@ -16,6 +16,7 @@
 package org.huberb.proxyservlet;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
 import javax.servlet.http.HttpServletRequest;
 
 import com.github.tomakehurst.wiremock.client.WireMock;
@@ -24,6 +25,8 @@ import com.github.tomakehurst.wiremock.junit5.WireMockTest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.BasicRequestLine;
 import org.apache.http.util.EntityUtils;
@@ -33,8 +36,11 @@ import org.mockito.Mockito;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.ok;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
@@ -107,4 +113,74 @@ public class HttpClientExecutorTest {
         assertEquals(responseADashContent, content);
     }
 
+    @Test
+    public void testSharedHttpClient(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        String uriASlash = "/aShared";
+        String responseADashContent = "a-content";
+
+        WireMock.stubFor(get(uriASlash)
+                .willReturn(ok().withBody(responseADashContent)));
+
+        Config config = new Config();
+        Env env = new Env.Builder().targetUri(baseUrl + uriASlash).build();
+        HttpClientFactory httpClientFactory = new HttpClientFactory(config);
+        PoolingHttpClientConnectionManager connectionManager = httpClientFactory.createConnectionManager();
+        HttpClient proxyClient = httpClientFactory.createHttpClient(connectionManager);
+
+        for (int i = 0; i < 3; i += 1) {
+            HttpRequest proxyRequest = new BasicHttpRequest(
+                    new BasicRequestLine("GET", uriASlash,
+                            new ProtocolVersion("HTTP", 1, 1)
+                    )
+            );
+            // closing the executor must not shut down the shared client
+            try (HttpClientExecutor instance = new HttpClientExecutor(config, env, proxyClient)) {
+                HttpResponse httpResponse = instance.doExecute(proxyRequest);
+                assertEquals(200, httpResponse.getStatusLine().getStatusCode());
+                assertEquals(responseADashContent, EntityUtils.toString(httpResponse.getEntity()));
+            }
+        }
+        // the connection is kept in the pool for reuse
+        assertEquals(1, connectionManager.getTotalStats().getAvailable());
+        connectionManager.shutdown();
+    }
+
+    @Test
+    public void testDeadlineExceededBeforeCalling(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        String uriASlash = "/aExpired";
+        WireMock.stubFor(get(uriASlash)
+                .willReturn(ok().withBody("a-content")));
+
+        Env env = new Env.Builder().targetUri(baseUrl + uriASlash).build();
+        ProxyRequest proxyRequest = new ProxyRequest("GET", uriASlash);
+        proxyRequest.setDeadline(Deadline.after(0L));
+        try (HttpClientExecutor instance = new HttpClientExecutor(new Config(), env)) {
+            assertThrows(Deadline.ExceededException.class, () -> instance.doExecute(proxyRequest));
+        }
+        WireMock.verify(0, getRequestedFor(urlEqualTo(uriASlash)));
+    }
+
+    @Test
+    public void testDeadlineAbortsSlowTarget(WireMockRuntimeInfo wmRuntimeInfo) throws Exception {
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        String uriASlash = "/aSlow";
+        WireMock.stubFor(get(uriASlash)
+                .willReturn(ok().withBody("a-content").withFixedDelay(2000)));
+
+        Env env = new Env.Builder().targetUri(baseUrl + uriASlash).build();
+        ProxyRequest proxyRequest = new ProxyRequest("GET", uriASlash);
+        ScheduledExecutorService timer = Deadline.newTimer("test-deadline");
+        proxyRequest.setDeadline(Deadline.after(200L, timer));
+        long startMillis = System.currentTimeMillis();
+        try (HttpClientExecutor instance = new HttpClientExecutor(new Config(), env)) {
+            assertThrows(IOException.class, () -> instance.doExecute(proxyRequest));
+        } finally {
+            timer.shutdownNow();
+        }
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        assertTrue(elapsedMillis < 1000, "elapsed " + elapsedMillis);
+    }
+
 }
@@ -15,10 +15,17 @@
  */
 package org.huberb.proxyservlet;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  *
@@ -33,4 +40,37 @@ public class HttpClientFactoryTest {
         assertNotNull(result);
     }
 
+    @Test
+    /*default*/ void testCreateConnectionManager_default() {
+        HttpClientFactory instance = new HttpClientFactory(new Config());
+        PoolingHttpClientConnectionManager result = instance.createConnectionManager();
+        assertEquals(HttpClientFactory.DEFAULT_MAX_CONNECTIONS, result.getMaxTotal());
+        assertEquals(HttpClientFactory.DEFAULT_MAX_CONNECTIONS, result.getDefaultMaxPerRoute());
+        result.shutdown();
+    }
+
+    @Test
+    /*default*/ void testCreateConnectionManager_maxConnections() {
+        Config config = new Config();
+        config.setMaxConnections(7);
+        HttpClientFactory instance = new HttpClientFactory(config);
+        PoolingHttpClientConnectionManager result = instance.createConnectionManager();
+        assertEquals(7, result.getMaxTotal());
+        assertEquals(7, result.getDefaultMaxPerRoute());
+        result.shutdown();
+    }
+
+    @Test
+    /*default*/ void testCreateIdleConnectionEvictor() throws InterruptedException {
+        HttpClientFactory instance = new HttpClientFactory(new Config());
+        PoolingHttpClientConnectionManager connectionManager = instance.createConnectionManager();
+        IdleConnectionEvictor idleConnectionEvictor = instance.createIdleConnectionEvictor(connectionManager);
+        assertFalse(idleConnectionEvictor.isRunning());
+        idleConnectionEvictor.start();
+        assertTrue(idleConnectionEvictor.isRunning());
+        idleConnectionEvictor.shutdown();
+        idleConnectionEvictor.awaitTermination(1, TimeUnit.SECONDS);
+        assertFalse(idleConnectionEvictor.isRunning());
+        connectionManager.shutdown();
+    }
 }
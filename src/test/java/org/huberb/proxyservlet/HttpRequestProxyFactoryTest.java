@@ -16,10 +16,14 @@
 package org.huberb.proxyservlet;
 
 import java.io.IOException;
+import java.util.stream.Stream;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.http.HttpRequest;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -72,4 +76,43 @@ public class HttpRequestProxyFactoryTest {
         assertEquals("http://localhost/targetUri", httpRequest.getRequestLine().getUri());
     }
 
+    @ParameterizedTest
+    @MethodSource()
+    /*default*/ void testGetRealCookie(String expected, String cookieValue) {
+        assertEquals(expected, HttpRequestProxyFactory.getRealCookie(cookieValue, "!P!"));
+    }
+
+    static Stream<Arguments> testGetRealCookie() {
+        return Stream.of(
+                Arguments.of("", ""),
+                Arguments.of("", "a=1; b=2"),
+                Arguments.of("a=1", "!P!a=1"),
+                Arguments.of("a=1; b=2", "!P!a=1; local=0; !P!b=2"),
+                Arguments.of("a=1; b=2", " !P!a = 1 ,!P!b=2 ;"),
+                Arguments.of("a=x=y==", "!P!a=x=y=="),
+                Arguments.of("a=\"x; y, z\"; b=2", "!P!a=\"x; y, z\"; !P!b=2"),
+                Arguments.of("a=", "!P!a="),
+                Arguments.of("b=2", "!P!a; !P!=1; !P!b=2"),
+                Arguments.of("a=1", "!P!a=1; !P!b")
+        );
+    }
+
+    @Test
+    /*default*/ void test_createHttpRequest_Cookie() throws IOException {
+        Env env = new Env.Builder().targetUri("http://localhost/targetUri").build();
+        Config config = new Config();
+        config.setDoPreserveCookies(false);
+        HttpRequestProxyFactory instance = new HttpRequestProxyFactory(config, env);
+
+        HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+        when(servletRequest.getMethod()).thenReturn("GET");
+        String cookieValue = env.getCookieNamePrefix() + "JSESSIONID=ABC; local=1";
+        HeaderStore hs = new HeaderStore()
+                .put("Cookie", cookieValue);
+        when(servletRequest.getHeaderNames()).thenReturn(hs.getHeaderNames());
+        when(servletRequest.getHeaders("Cookie")).thenReturn(hs.getHeaderNames("Cookie"));
+
+        HttpRequest httpRequest = instance.createHttpRequest(servletRequest);
+        assertEquals("JSESSIONID=ABC", httpRequest.getFirstHeader("Cookie").getValue());
+    }
 }
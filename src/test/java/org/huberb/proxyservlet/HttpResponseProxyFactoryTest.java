@@ -73,6 +73,24 @@ public class HttpResponseProxyFactoryTest {
         verify(servletResponse, times(0)).addHeader(headerNameTransferEncoding, headerNameTransferEncoding);
     }
 
+    @Test
+    /*default*/ void testSendResponse_connection_tokens() throws IOException {
+        HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+        HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+        HttpResponse proxyResponse = new DefaultHttpResponseFactory()
+                .newHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                        200,
+                        new BasicHttpContext());
+        proxyResponse.addHeader("Connection", "close, X-Hop");
+        proxyResponse.addHeader("x-hop", "value1");
+        proxyResponse.addHeader("X-End-To-End", "value2");
+        instance.sendResponse(servletRequest, servletResponse, proxyResponse);
+
+        verify(servletResponse, times(0)).addHeader("Connection", "close, X-Hop");
+        verify(servletResponse, times(0)).addHeader("x-hop", "value1");
+        verify(servletResponse, times(1)).addHeader("X-End-To-End", "value2");
+    }
+
     @ParameterizedTest
     @MethodSource
     /*default*/ void testSendResponse_vary_status(int statusCode, String statusMessage) throws IOException {
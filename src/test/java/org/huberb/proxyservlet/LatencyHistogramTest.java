@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    /*default*/ void testBucketIndex() {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i += 1) {
+            final int index = i;
+            long lowest = LatencyHistogram.lowestMicros(index);
+            long highest = LatencyHistogram.highestMicros(index);
+            assertAll(
+                    () -> assertEquals(index, LatencyHistogram.bucketIndex(lowest), "lowest of " + index),
+                    () -> assertEquals(index, LatencyHistogram.bucketIndex(highest), "highest of " + index),
+                    // relative error of a bucket is at most 1/8
+                    () -> assertTrue(highest - lowest <= lowest / LatencyHistogram.SUB_BUCKETS, "width of " + index)
+            );
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(LatencyHistogram.MAX_MICROS));
+    }
+
+    @Test
+    /*default*/ void testSnapshot_empty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertAll(
+                () -> assertEquals(0L, snapshot.getCount()),
+                () -> assertEquals(-1L, snapshot.getPercentileMicros(99.0))
+        );
+    }
+
+    @Test
+    /*default*/ void testSnapshot_percentiles() {
+        LatencyHistogram instance = new LatencyHistogram();
+        // 1..1000 ms
+        for (int i = 1; i <= 1000; i += 1) {
+            instance.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = instance.snapshot();
+        assertAll(
+                () -> assertEquals(1000L, snapshot.getCount()),
+                () -> assertEquals(1_000_000L, snapshot.getMaxMicros()),
+                () -> assertEquals(500_500_000L, snapshot.getTotalMicros()),
+                () -> assertWithin(500_000L, snapshot.getPercentileMicros(50.0)),
+                () -> assertWithin(990_000L, snapshot.getPercentileMicros(99.0)),
+                () -> assertEquals(1_000_000L, snapshot.getPercentileMicros(100.0)),
+                () -> assertEquals(1000L, snapshot.getCountAtOrBelow(LatencyHistogram.MAX_MICROS)),
+                () -> assertEquals(0L, snapshot.getCountAtOrBelow(999L))
+        );
+    }
+
+    @Test
+    /*default*/ void testRecord_aboveMax() {
+        LatencyHistogram instance = new LatencyHistogram();
+        instance.record(TimeUnit.DAYS.toNanos(1));
+        LatencyHistogram.Snapshot snapshot = instance.snapshot();
+        assertAll(
+                () -> assertEquals(1L, snapshot.getCount()),
+                () -> assertEquals(TimeUnit.DAYS.toMicros(1), snapshot.getMaxMicros()),
+                () -> assertEquals(LatencyHistogram.MAX_MICROS, snapshot.getPercentileMicros(50.0))
+        );
+    }
+
+    private static void assertWithin(long expectedMicros, long actualMicros) {
+        assertTrue(actualMicros >= expectedMicros && actualMicros <= expectedMicros + expectedMicros / 8,
+                "expected " + expectedMicros + ", actual " + actualMicros);
+    }
+}
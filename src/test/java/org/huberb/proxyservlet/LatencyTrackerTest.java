@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ *
+ * @author pi
+ */
+public class LatencyTrackerTest {
+
+    @Test
+    /*default*/ void testGetPercentileNanos_not_enough_samples() {
+        LatencyTracker instance = new LatencyTracker(95);
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES - 1; i += 1) {
+            instance.record(1L);
+        }
+        assertEquals(-1L, instance.getPercentileNanos());
+    }
+
+    @Test
+    /*default*/ void testGetPercentileNanos() {
+        LatencyTracker instance = new LatencyTracker(95);
+        // 1..96 ms, the percentile is recomputed at the 96th sample
+        for (int i = 1; i <= 96; i += 1) {
+            instance.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(92), instance.getPercentileNanos());
+    }
+
+    @Test
+    /*default*/ void testGetPercentileNanos_rolling() {
+        LatencyTracker instance = new LatencyTracker(95);
+        for (int i = 0; i < LatencyTracker.SAMPLES; i += 1) {
+            instance.record(TimeUnit.MILLISECONDS.toNanos(1000));
+        }
+        // the slow samples are overwritten
+        for (int i = 0; i < LatencyTracker.SAMPLES; i += 1) {
+            instance.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), instance.getPercentileNanos());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Drive an uri at a constant rate by a fixed number of workers.
+ * <p>
+ * Each worker sends its requests on a fixed schedule, and waits for each
+ * response before sending the next one. The latency of a request is measured
+ * from its scheduled start, not from the moment it was actually sent, thus a
+ * stalled proxy delays the following requests, and their waiting time is
+ * recorded, too. This corrects the coordinated omission of a closed loop
+ * load generator.
+ * <p>
+ * A share of {@code errorRate} requests is sent with query {@code fail=true},
+ * which the backends answer with status 500.
+ *
+ * @author pi
+ */
+class LoadGenerator {
+
+    private final HttpClient client;
+    private final int concurrency;
+    private final double requestsPerSecond;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final double errorRate;
+
+    /**
+     * Create a load generator.
+     *
+     * @param client a client allowing {@code concurrency} connections
+     * @param concurrency the number of workers
+     * @param requestsPerSecond the rate of all workers
+     * @param warmupMillis requests scheduled during warm up are not recorded
+     * @param durationMillis the measured duration
+     * @param errorRate share of requests asking the backends for an error
+     */
+    LoadGenerator(HttpClient client, int concurrency, double requestsPerSecond,
+            long warmupMillis, long durationMillis, double errorRate) {
+        this.client = client;
+        this.concurrency = concurrency;
+        this.requestsPerSecond = requestsPerSecond;
+        this.warmupNanos = TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Send requests to an uri, until warm up, and measured duration are over.
+     *
+     * @param uri
+     * @return the measured requests
+     * @throws InterruptedException
+     */
+    Result run(String uri) throws InterruptedException {
+        final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final AtomicLong sequence = new AtomicLong();
+        final long intervalNanos = (long) (concurrency * TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        final long startNanos = System.nanoTime();
+        final long measureNanos = startNanos + warmupNanos;
+        final long endNanos = measureNanos + durationNanos;
+
+        List<Thread> workers = new ArrayList<>(concurrency);
+        for (int w = 0; w < concurrency; w += 1) {
+            // spread the workers over one interval
+            final long firstNanos = startNanos + intervalNanos * w / concurrency;
+            Thread worker = new Thread(() -> {
+                for (long scheduledNanos = firstNanos; scheduledNanos < endNanos; scheduledNanos += intervalNanos) {
+                    long waitNanos = scheduledNanos - System.nanoTime();
+                    if (waitNanos > 0L) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                    final int statusCode = send(uri, isError(sequence.getAndIncrement()));
+                    if (scheduledNanos >= measureNanos) {
+                        latencyHistogram.record(System.nanoTime() - scheduledNanos);
+                        if (statusCode < 0) {
+                            failures.increment();
+                        } else if (statusCode >= 500) {
+                            errors.increment();
+                        }
+                    }
+                }
+            }, "load-generator-" + w);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsedNanos = System.nanoTime() - measureNanos;
+        return new Result(latencyHistogram.snapshot(), errors.sum(), failures.sum(), elapsedNanos);
+    }
+
+    /**
+     * Tell if a request asks for an error, spreading the errors evenly.
+     *
+     * @param n the sequence number of the request
+     * @return
+     */
+    boolean isError(long n) {
+        return Math.floor((n + 1) * errorRate) > Math.floor(n * errorRate);
+    }
+
+    private int send(String uri, boolean error) {
+        HttpGet httpGet = new HttpGet(error ? uri + "?fail=true" : uri);
+        try {
+            HttpResponse httpResponse = client.execute(httpGet);
+            try {
+                return httpResponse.getStatusLine().getStatusCode();
+            } finally {
+                EntityUtils.consume(httpResponse.getEntity());
+            }
+        } catch (IOException ioex) {
+            httpGet.abort();
+            return -1;
+        }
+    }
+
+    /**
+     * The measured requests of a run.
+     */
+    static class Result {
+
+        private final LatencyHistogram.Snapshot latencies;
+        private final long errors;
+        private final long failures;
+        private final long elapsedNanos;
+
+        Result(LatencyHistogram.Snapshot latencies, long errors, long failures, long elapsedNanos) {
+            this.latencies = latencies;
+            this.errors = errors;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        LatencyHistogram.Snapshot getLatencies() {
+            return latencies;
+        }
+
+        long getRequests() {
+            return latencies.getCount();
+        }
+
+        /**
+         * Requests answered with status 5xx.
+         *
+         * @return
+         */
+        long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Requests failing without response.
+         *
+         * @return
+         */
+        long getFailures() {
+            return failures;
+        }
+
+        double getThroughput() {
+            return elapsedNanos > 0L
+                    ? latencies.getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos
+                    : 0.0;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Load test of the proxy servlets in an embedded Tomcat, sending to local
+ * WireMock backends.
+ * <p>
+ * Enabled by system property {@code loadTest=true}, like
+ * {@code mvn test -Dtest=LoadTest -DloadTest=true}. For each fan-out degree a
+ * {@link MultiProxyingServlet} is started with that many targets, and driven
+ * by each concurrency. With fan-out degree 1 the single target
+ * {@link ProxyServlet} is driven, too, as baseline. The results are appended
+ * to the report, see {@link LoadTestReport}.
+ * <p>
+ * The runs are configured by system properties, see {@link Settings}. Init
+ * parameters of the {@link MultiProxyingServlet} are passed as
+ * {@code loadTest.init.<name>}, like {@code -DloadTest.init.fanOutMode=mirror}.
+ *
+ * @author pi
+ */
+@EnabledIfSystemProperty(named = "loadTest", matches = "true")
+public class LoadTest {
+
+    private static final Logger LOG = Logger.getLogger(LoadTest.class.getName());
+    private static final String CONTEXT_PATH = "/proxyservlet";
+    private static final String PAYLOAD = "/payload";
+
+    private static Settings settings;
+    private static WireMockServer backends;
+
+    @BeforeAll
+    static void setUpBackends() {
+        settings = Settings.fromSystemProperties();
+        int maxConcurrency = Collections.max(settings.concurrencies);
+        int maxFanOut = Collections.max(settings.fanOuts);
+        backends = new WireMockServer(wireMockConfig()
+                .dynamicPort()
+                .containerThreads(Math.max(64, maxConcurrency * maxFanOut + 16))
+                .jettyAcceptors(Math.max(2, Runtime.getRuntime().availableProcessors() / 2))
+                .asynchronousResponseEnabled(true)
+                .asynchronousResponseThreads(Math.max(16, Runtime.getRuntime().availableProcessors() * 2))
+                .disableRequestJournal());
+        backends.start();
+
+        byte[] payload = new byte[settings.payloadBytes];
+        Arrays.fill(payload, (byte) 'a');
+        backends.stubFor(get(urlPathMatching("/t[0-9]+" + PAYLOAD))
+                .atPriority(5)
+                .willReturn(delayed(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/octet-stream")
+                        .withBody(payload))));
+        backends.stubFor(get(urlPathMatching("/t[0-9]+" + PAYLOAD))
+                .withQueryParam("fail", equalTo("true"))
+                .atPriority(1)
+                .willReturn(delayed(aResponse()
+                        .withStatus(500))));
+    }
+
+    private static ResponseDefinitionBuilder delayed(ResponseDefinitionBuilder response) {
+        return settings.latencySigma > 0.0
+                ? response.withLogNormalRandomDelay(settings.latencyMillis, settings.latencySigma)
+                : response.withFixedDelay((int) settings.latencyMillis);
+    }
+
+    @AfterAll
+    static void tearDownBackends() {
+        if (backends != null) {
+            backends.stop();
+        }
+    }
+
+    @Test
+    /*default*/ void testLoad() throws Exception {
+        try (LoadTestReport report = new LoadTestReport(settings.report)) {
+            for (int fanOut : settings.fanOuts) {
+                Tomcat tomcat = startProxy(fanOut);
+                try {
+                    String baseUrl = "http://localhost:" + tomcat.getConnector().getLocalPort() + CONTEXT_PATH;
+                    for (int concurrency : settings.concurrencies) {
+                        run(report, "multi-proxy-servlet", fanOut, concurrency, baseUrl + "/multi" + PAYLOAD);
+                        if (fanOut == 1) {
+                            run(report, "proxy-servlet", fanOut, concurrency, baseUrl + "/single" + PAYLOAD);
+                        }
+                    }
+                } finally {
+                    tomcat.stop();
+                    tomcat.destroy();
+                }
+            }
+        }
+    }
+
+    private void run(LoadTestReport report, String servlet, int fanOut, int concurrency, String uri) throws Exception {
+        try (CloseableHttpClient client = HttpClients.custom()
+                .setMaxConnTotal(concurrency)
+                .setMaxConnPerRoute(concurrency)
+                .build()) {
+            LoadGenerator loadGenerator = new LoadGenerator(client, concurrency,
+                    settings.workerRate * concurrency, settings.warmupMillis, settings.durationMillis,
+                    settings.errorRate);
+            LoadGenerator.Result result = loadGenerator.run(uri);
+            String line = report.format(servlet, fanOut, settings, concurrency, result);
+            LOG.info(line);
+            report.write(servlet, fanOut, settings, concurrency, result);
+            assertTrue(result.getRequests() > 0, line);
+        }
+    }
+
+    /**
+     * Start Tomcat serving a {@link MultiProxyingServlet} sending to
+     * {@code fanOut} targets at {@code /multi/*}, and a {@link ProxyServlet}
+     * sending to the first target at {@code /single/*}.
+     */
+    private Tomcat startProxy(int fanOut) throws IOException, LifecycleException {
+        int maxConcurrency = Collections.max(settings.concurrencies);
+        Path baseDir = Files.createTempDirectory("load-test-tomcat");
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        tomcat.getConnector().setProperty("maxThreads", String.valueOf(Math.max(200, maxConcurrency + 16)));
+        tomcat.getConnector().setProperty("acceptCount", String.valueOf(maxConcurrency));
+        Context context = tomcat.addContext(CONTEXT_PATH, new File(baseDir.toFile(), "webapp").getAbsolutePath());
+
+        String targetUris = IntStream.range(0, fanOut)
+                .mapToObj(i -> "http://localhost:" + backends.port() + "/t" + i)
+                .collect(Collectors.joining(","));
+        Wrapper multi = Tomcat.addServlet(context, "multi-proxy-servlet", new MultiProxyingServlet());
+        multi.addInitParameter("targetUris", targetUris);
+        multi.addInitParameter("maxConnections", String.valueOf(maxConcurrency * fanOut));
+        multi.addInitParameter("doLog", "false");
+        for (Map.Entry<String, String> initParameter : settings.initParameters.entrySet()) {
+            multi.addInitParameter(initParameter.getKey(), initParameter.getValue());
+        }
+        multi.setAsyncSupported(true);
+        context.addServletMappingDecoded("/multi/*", "multi-proxy-servlet");
+
+        Wrapper single = Tomcat.addServlet(context, "proxy-servlet", new ProxyServlet());
+        single.addInitParameter(ProxyServlet.P_TARGET_URI, "http://localhost:" + backends.port() + "/t0");
+        single.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, String.valueOf(maxConcurrency));
+        single.addInitParameter(ProxyServlet.P_LOG, "false");
+        context.addServletMappingDecoded("/single/*", "proxy-servlet");
+
+        new File(baseDir.toFile(), "webapp").mkdirs();
+        tomcat.start();
+        return tomcat;
+    }
+
+    /**
+     * Settings of the load test, read from system properties.
+     */
+    static class Settings {
+
+        /**
+         * Fan-out degrees, {@code loadTest.fanOut}, default
+         * {@code 1,2,4,8,16,32}.
+         */
+        List<Integer> fanOuts;
+        /**
+         * Numbers of concurrent clients, {@code loadTest.concurrency},
+         * default {@code 1,8,64,512}.
+         */
+        List<Integer> concurrencies;
+        /**
+         * Requests per second of each client, {@code loadTest.workerRate},
+         * default {@code 50}.
+         */
+        double workerRate;
+        /**
+         * Backend latency in milliseconds, {@code loadTest.latencyMillis},
+         * default {@code 10}.
+         */
+        long latencyMillis;
+        /**
+         * If greater than {@code 0} the backend latency is log-normal
+         * distributed, having median {@code latencyMillis}, and this sigma,
+         * {@code loadTest.latencySigma}, default {@code 0}.
+         */
+        double latencySigma;
+        /**
+         * Size of the backend responses, {@code loadTest.payloadBytes},
+         * default {@code 4096}.
+         */
+        int payloadBytes;
+        /**
+         * Share of requests answered with status 500,
+         * {@code loadTest.errorRate}, default {@code 0}.
+         */
+        double errorRate;
+        long warmupMillis;
+        long durationMillis;
+        Path report;
+        Map<String, String> initParameters;
+
+        static Settings fromSystemProperties() {
+            Settings settings = new Settings();
+            settings.fanOuts = intList(System.getProperty("loadTest.fanOut", "1,2,4,8,16,32"));
+            settings.concurrencies = intList(System.getProperty("loadTest.concurrency", "1,8,64,512"));
+            settings.workerRate = Double.parseDouble(System.getProperty("loadTest.workerRate", "50"));
+            settings.latencyMillis = Long.parseLong(System.getProperty("loadTest.latencyMillis", "10"));
+            settings.latencySigma = Double.parseDouble(System.getProperty("loadTest.latencySigma", "0"));
+            settings.payloadBytes = Integer.parseInt(System.getProperty("loadTest.payloadBytes", "4096"));
+            settings.errorRate = Double.parseDouble(System.getProperty("loadTest.errorRate", "0"));
+            settings.warmupMillis = 1000L * Long.parseLong(System.getProperty("loadTest.warmupSeconds", "5"));
+            settings.durationMillis = 1000L * Long.parseLong(System.getProperty("loadTest.durationSeconds", "20"));
+            settings.report = Paths.get(System.getProperty("loadTest.report", "target/load-test/report.jsonl"));
+            settings.initParameters = new TreeMap<>();
+            final String prefix = "loadTest.init.";
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith(prefix)) {
+                    settings.initParameters.put(name.substring(prefix.length()), System.getProperty(name));
+                }
+            }
+            return settings;
+        }
+
+        private static List<Integer> intList(String csv) {
+            List<Integer> ints = new ArrayList<>();
+            for (String s : csv.split(",")) {
+                if (!s.trim().isEmpty()) {
+                    ints.add(Integer.valueOf(s.trim()));
+                }
+            }
+            return ints;
+        }
+    }
+}
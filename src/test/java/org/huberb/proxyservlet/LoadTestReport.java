@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Append the results of a load test as JSON lines, one object per run.
+ * <p>
+ * The file is appended, thus runs of several releases on the same machine
+ * can be compared.
+ *
+ * @author pi
+ */
+class LoadTestReport implements AutoCloseable {
+
+    private final BufferedWriter writer;
+    private final String runId = Instant.now().toString();
+
+    LoadTestReport(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Write the result of a run.
+     *
+     * @param servlet the servlet under test
+     * @param fanOut the number of targets
+     * @param settings the backend, and load settings of the run
+     * @param concurrency
+     * @param result
+     * @throws IOException
+     */
+    void write(String servlet, int fanOut, LoadTest.Settings settings, int concurrency,
+            LoadGenerator.Result result) throws IOException {
+        writer.write(format(servlet, fanOut, settings, concurrency, result));
+        writer.newLine();
+        writer.flush();
+    }
+
+    String format(String servlet, int fanOut, LoadTest.Settings settings, int concurrency,
+            LoadGenerator.Result result) {
+        LatencyHistogram.Snapshot latencies = result.getLatencies();
+        return String.format(Locale.ROOT, "{\"runId\":\"%s\",\"java\":\"%s\",\"processors\":%d,"
+                + "\"servlet\":\"%s\",\"fanOut\":%d,\"concurrency\":%d,\"requestsPerSecond\":%.1f,"
+                + "\"latencyMillis\":%d,\"latencySigma\":%.2f,\"payloadBytes\":%d,\"errorRate\":%.4f,"
+                + "\"requests\":%d,\"errors\":%d,\"failures\":%d,\"throughput\":%.1f,"
+                + "\"p50Micros\":%d,\"p90Micros\":%d,\"p99Micros\":%d,\"p999Micros\":%d,\"maxMicros\":%d}",
+                runId,
+                System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(),
+                servlet,
+                fanOut,
+                concurrency,
+                settings.workerRate * concurrency,
+                settings.latencyMillis,
+                settings.latencySigma,
+                settings.payloadBytes,
+                settings.errorRate,
+                result.getRequests(),
+                result.getErrors(),
+                result.getFailures(),
+                result.getThroughput(),
+                latencies.getPercentileMicros(50.0),
+                latencies.getPercentileMicros(90.0),
+                latencies.getPercentileMicros(99.0),
+                latencies.getPercentileMicros(99.9),
+                latencies.getMaxMicros());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -25,6 +25,7 @@ import javax.servlet.http.HttpServletResponse;
 import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
 import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
 import java.util.stream.Stream;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
@@ -102,6 +103,36 @@ public class MediatorTest {
         }
     }
 
+    @Test
+    /*default*/ void testMirrorCountsBytes() throws Exception {
+        WireMockRuntimeInfo wmRuntimeInfo = wmExtension.getRuntimeInfo();
+
+        String baseUrl = wmRuntimeInfo.getHttpBaseUrl();
+        String uriBSlash = "/bGET";
+        wmExtension.stubFor(get(uriBSlash)
+                .willReturn(ok().withBody("b-content")));
+
+        Env env = new Env.Builder().targetUri(baseUrl + uriBSlash).build();
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getMethod()).thenReturn("GET");
+        when(servletRequest.getRequestURI()).thenReturn(uriBSlash);
+        when(servletRequest.getProtocol()).thenReturn("HTTP/1.1");
+        HeaderStore hs = new HeaderStore();
+        when(servletRequest.getHeaderNames()).thenReturn(hs.getHeaderNames());
+        when(servletRequest.getHeader(anyString())).thenReturn(null);
+
+        Config config = new Config();
+        TargetMetrics targetMetrics = new TargetMetrics(env.getTargetUri());
+        try (CloseableHttpClient proxyClient = (CloseableHttpClient) new HttpClientFactory(config).createHttpClient()) {
+            Mediator instance = new Mediator(config, env, proxyClient, null, targetMetrics);
+            TargetOutcome targetOutcome = instance.mirror(1, instance.createProxyRequest(servletRequest));
+
+            assertTrue(targetOutcome.isSuccess(), targetOutcome.formatOutcome());
+        }
+        // the discarded body of a secondary target is counted, too
+        assertEquals("b-content".length(), targetMetrics.snapshot().getBytesReceived());
+    }
+
     static Stream<Arguments> testServiceWithHttpGet() {
         return Stream.of(
                 Arguments.of(200, "OK"),
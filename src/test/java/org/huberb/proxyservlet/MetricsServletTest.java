@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.huberb.proxyservlet.ResponseDigestTest.consumed;
+import static org.huberb.proxyservlet.ResponseDigestTest.createResponse;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class MetricsServletTest {
+
+    @Test
+    /*default*/ void testLatencyBounds() {
+        for (int i = 0; i < MetricsServlet.LATENCY_BOUNDS_MICROS.length; i += 1) {
+            long bound = MetricsServlet.LATENCY_BOUNDS_MICROS[i];
+            // each bound is the lowest latency of a bucket
+            assertEquals(bound, LatencyHistogram.lowestMicros(LatencyHistogram.bucketIndex(bound)));
+        }
+    }
+
+    @Test
+    /*default*/ void testRender() throws Exception {
+        final String servletName = "multi-proxy-servlet";
+        final String attributeName = MultiProxyingServlet.METRICS_ATTRIBUTE_PREFIX + servletName;
+        ServletContext servletContext = Mockito.mock(ServletContext.class);
+        ServletConfig servletConfig = Mockito.mock(ServletConfig.class);
+        when(servletConfig.getServletName()).thenReturn(servletName);
+        when(servletConfig.getServletContext()).thenReturn(servletContext);
+        when(servletConfig.getInitParameterNames()).thenReturn(Collections.enumeration(
+                Arrays.asList("targetUri.1", "fanOutThreads")));
+        when(servletConfig.getInitParameter("targetUri.1")).thenReturn("http://localhost/a");
+        when(servletConfig.getInitParameter("fanOutThreads")).thenReturn("0");
+
+        MultiProxyingServlet proxy = new MultiProxyingServlet();
+        proxy.init(servletConfig);
+        try {
+            Env env = new Env.Builder().targetUri("http://localhost/a").build();
+            long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(3);
+            proxy.getTargetMetricsRegistry().record(TargetOutcome.completed(0, env, 200, startNanos));
+            proxy.getTargetMetricsRegistry().record(TargetOutcome.completed(0, env, 502, startNanos));
+
+            when(servletContext.getAttributeNames()).thenReturn(Collections.enumeration(
+                    Arrays.asList("other", attributeName)));
+            when(servletContext.getAttribute(attributeName)).thenReturn(proxy);
+            MetricsServlet instance = new MetricsServlet();
+            String s = render(instance, servletContext);
+
+            String labels = "servlet=\"multi-proxy-servlet\",target=\"http://localhost/a\"";
+            assertAll(
+                    () -> assertTrue(s.contains("# TYPE multiproxy_target_requests_total counter\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_requests_total{" + labels + "} 2\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_errors_total{" + labels + "} 1\n"), s),
+                    () -> assertTrue(s.contains("# TYPE multiproxy_target_latency_seconds histogram\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_latency_seconds_bucket{" + labels + ",le=\"0.002048\"} 0\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_latency_seconds_bucket{" + labels + ",le=\"67.108864\"} 2\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_latency_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_target_latency_seconds_count{" + labels + "} 2\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_pool_connections{servlet=\"multi-proxy-servlet\",state=\"leased\"} 0\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_pool_max_connections{servlet=\"multi-proxy-servlet\"} 100\n"), s),
+                    // no mirror queue, and no shadow mode configured
+                    () -> assertTrue(!s.contains("multiproxy_mirror_queue_depth{"), s),
+                    () -> assertTrue(!s.contains("multiproxy_shadow_compared_total{"), s)
+            );
+        } finally {
+            proxy.destroy();
+        }
+    }
+
+    @Test
+    /*default*/ void testRender_shadow() throws Exception {
+        final String servletName = "shadow-proxy-servlet";
+        final String attributeName = MultiProxyingServlet.METRICS_ATTRIBUTE_PREFIX + servletName;
+        ServletContext servletContext = Mockito.mock(ServletContext.class);
+        ServletConfig servletConfig = Mockito.mock(ServletConfig.class);
+        when(servletConfig.getServletName()).thenReturn(servletName);
+        when(servletConfig.getServletContext()).thenReturn(servletContext);
+        when(servletConfig.getInitParameterNames()).thenReturn(Collections.enumeration(
+                Arrays.asList("targetUri.1", "targetUri.2", "fanOutMode", "fanOutThreads")));
+        when(servletConfig.getInitParameter("targetUri.1")).thenReturn("http://localhost/a");
+        when(servletConfig.getInitParameter("targetUri.2")).thenReturn("http://localhost/b");
+        when(servletConfig.getInitParameter("fanOutMode")).thenReturn("shadow");
+        when(servletConfig.getInitParameter("fanOutThreads")).thenReturn("0");
+
+        MultiProxyingServlet proxy = new MultiProxyingServlet();
+        proxy.init(servletConfig);
+        try {
+            ShadowStats shadowStats = proxy.getShadowStats();
+            ResponseDigest primary = consumed(createResponse(200, "content"));
+            shadowStats.record("/a", "http://localhost/b", primary, consumed(createResponse(200, "content")));
+            shadowStats.record("/b", "http://localhost/b", primary, consumed(createResponse(500, "other")));
+            shadowStats.recordIncomplete();
+
+            when(servletContext.getAttributeNames()).thenReturn(Collections.enumeration(
+                    Arrays.asList(attributeName)));
+            when(servletContext.getAttribute(attributeName)).thenReturn(proxy);
+            MetricsServlet instance = new MetricsServlet();
+            String s = render(instance, servletContext);
+
+            // the sample log is read by the proxy servlet of the servlet context attribute
+            MultiProxyingServlet attribute = (MultiProxyingServlet) servletContext.getAttribute(attributeName);
+            String labels = "servlet=\"shadow-proxy-servlet\"";
+            assertAll(
+                    () -> assertTrue(s.contains("# TYPE multiproxy_shadow_compared_total counter\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_compared_total{" + labels + "} 2\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_matched_total{" + labels + "} 1\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_mismatches_total{" + labels + ",kind=\"status\"} 1\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_mismatches_total{" + labels + ",kind=\"headers\"} 0\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_mismatches_total{" + labels + ",kind=\"body\"} 1\n"), s),
+                    () -> assertTrue(s.contains("multiproxy_shadow_incomplete_total{" + labels + "} 1\n"), s),
+                    () -> assertEquals(1, attribute.getShadowStats().getSamples().size()),
+                    () -> assertEquals("/b", attribute.getShadowStats().getSamples().get(0).getRequestUri())
+            );
+        } finally {
+            proxy.destroy();
+        }
+    }
+
+    private static String render(MetricsServlet instance, ServletContext servletContext) throws Exception {
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        instance.render(servletContext).writeTo(baos);
+        return new String(baos.toByteArray(), java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
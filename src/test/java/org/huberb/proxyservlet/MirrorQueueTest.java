@@ -0,0 +1,192 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class MirrorQueueTest {
+
+    final ManualExecutor executor = new ManualExecutor();
+    final List<String> started = new ArrayList<>();
+    final List<String> rejected = new ArrayList<>();
+
+    @Test
+    /*default*/ void testOffer_drop_newest() {
+        MirrorQueue instance = new MirrorQueue(2, MirrorDropPolicy.DROP_NEWEST, 0, -1, 1, executor);
+        assertTrue(offer(instance, "a"));
+        assertTrue(offer(instance, "b"));
+        assertFalse(offer(instance, "c"));
+        executor.runAll();
+
+        assertAll(
+                () -> assertEquals(Arrays.asList("a", "b"), started),
+                () -> assertEquals(Arrays.asList("c: Mirror queue full"), rejected),
+                () -> assertEquals(2, instance.getEnqueued()),
+                () -> assertEquals(1, instance.getDropped()),
+                () -> assertEquals(0, instance.size())
+        );
+    }
+
+    @Test
+    /*default*/ void testOffer_drop_oldest() {
+        MirrorQueue instance = new MirrorQueue(2, MirrorDropPolicy.DROP_OLDEST, 0, -1, 1, executor);
+        assertTrue(offer(instance, "a"));
+        assertTrue(offer(instance, "b"));
+        assertTrue(offer(instance, "c"));
+        executor.runAll();
+
+        assertAll(
+                () -> assertEquals(Arrays.asList("b", "c"), started),
+                () -> assertEquals(Arrays.asList("a: Mirror queue dropped oldest"), rejected),
+                () -> assertEquals(3, instance.getEnqueued()),
+                () -> assertEquals(1, instance.getDropped())
+        );
+    }
+
+    @Test
+    /*default*/ void testOffer_block_times_out() {
+        MirrorQueue instance = new MirrorQueue(1, MirrorDropPolicy.BLOCK, 50, -1, 1, executor);
+        assertTrue(offer(instance, "a"));
+        long startMillis = System.currentTimeMillis();
+        assertFalse(offer(instance, "b"));
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        assertTrue(elapsedMillis >= 50, "elapsed " + elapsedMillis);
+        assertEquals(Arrays.asList("b: Mirror queue full"), rejected);
+    }
+
+    @Test
+    /*default*/ void testOffer_sample_down() {
+        MirrorQueue instance = new MirrorQueue(10, MirrorDropPolicy.SAMPLE_DOWN, 0, -1, 1, executor);
+        for (int i = 0; i < 100; i += 1) {
+            offer(instance, "" + i);
+        }
+        // below the half-full watermark everything is admitted, never more than capacity
+        assertAll(
+                () -> assertTrue(instance.size() >= 5 && instance.size() <= 10, "size " + instance.size()),
+                () -> assertEquals(100, instance.getEnqueued() + instance.getDropped())
+        );
+    }
+
+    @Test
+    /*default*/ void testDrain_expired() throws InterruptedException {
+        MirrorQueue instance = new MirrorQueue(2, MirrorDropPolicy.DROP_NEWEST, 0, 1, 1, executor);
+        assertTrue(offer(instance, "a"));
+        Thread.sleep(10);
+        executor.runAll();
+
+        assertAll(
+                () -> assertEquals(Arrays.asList(), started),
+                () -> assertEquals(Arrays.asList("a: Mirror queue entry expired"), rejected),
+                () -> assertEquals(1, instance.getExpired())
+        );
+    }
+
+    @Test
+    /*default*/ void testDrain_async_keeps_slot() {
+        MirrorQueue instance = new MirrorQueue(10, MirrorDropPolicy.DROP_NEWEST, 0, -1, 1, executor);
+        CompletableFuture<Void> exchange = new CompletableFuture<>();
+        instance.offer(() -> {
+            started.add("a");
+            return exchange;
+        }, rejex -> rejected.add("a"));
+        assertTrue(offer(instance, "b"));
+        executor.runAll();
+        // the only drainer waits for the exchange of a
+        assertEquals(Arrays.asList("a"), started);
+
+        exchange.complete(null);
+        executor.runAll();
+        assertEquals(Arrays.asList("a", "b"), started);
+    }
+
+    @Test
+    /*default*/ void testDrain_task_fails() {
+        MirrorQueue instance = new MirrorQueue(2, MirrorDropPolicy.DROP_NEWEST, 0, -1, 1, executor);
+        instance.offer(() -> {
+            throw new IllegalStateException("broken");
+        }, rejex -> rejected.add("a: " + rejex.getMessage()));
+        assertTrue(offer(instance, "b"));
+        executor.runAll();
+
+        // the failed entry is rejected, thus it releases what it holds
+        assertAll(
+                () -> assertEquals(Arrays.asList("b"), started),
+                () -> assertEquals(1, rejected.size()),
+                () -> assertTrue(rejected.get(0).startsWith("a: Starting secondary target failed"), rejected.get(0)),
+                () -> assertEquals(0, instance.size())
+        );
+    }
+
+    @Test
+    /*default*/ void testClear() {
+        MirrorQueue instance = new MirrorQueue(2, MirrorDropPolicy.DROP_NEWEST, 0, -1, 1, executor);
+        assertTrue(offer(instance, "a"));
+        instance.clear();
+        executor.runAll();
+
+        assertAll(
+                () -> assertEquals(Arrays.asList(), started),
+                () -> assertEquals(Arrays.asList("a: Mirror queue cleared"), rejected),
+                () -> assertEquals(0, instance.size())
+        );
+    }
+
+    boolean offer(MirrorQueue instance, String name) {
+        return instance.offer(() -> {
+            started.add(name);
+            return CompletableFuture.completedFuture(null);
+        }, (RejectedExecutionException rejex) -> rejected.add(name + ": " + rejex.getMessage()));
+    }
+
+    /**
+     * Run tasks only when asked to.
+     */
+    static class ManualExecutor implements Executor {
+
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
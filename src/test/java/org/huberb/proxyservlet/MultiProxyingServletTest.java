@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.apache.http.HttpHost;
+import org.huberb.proxyservlet.CircuitBreaker.Status;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class MultiProxyingServletTest {
+
+    private Path dir;
+
+    @BeforeEach
+    /*default*/ void setUp() throws IOException {
+        dir = Files.createTempDirectory("multi-proxying-servlet");
+    }
+
+    @AfterEach
+    /*default*/ void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("proxy.properties"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    /*default*/ void testReload_keeps_open_circuit_breaker() throws Exception {
+        Path file = dir.resolve("proxy.properties");
+        Files.write(file, "circuitBreakerFailureRate=50\n".getBytes(StandardCharsets.ISO_8859_1));
+        ServletConfig servletConfig = Mockito.mock(ServletConfig.class);
+        when(servletConfig.getServletName()).thenReturn("multi-proxy-servlet");
+        when(servletConfig.getServletContext()).thenReturn(Mockito.mock(ServletContext.class));
+        when(servletConfig.getInitParameterNames()).thenAnswer(invocation -> Collections.enumeration(
+                Arrays.asList("targetUri.1", "fanOutThreads", "configFile")));
+        when(servletConfig.getInitParameter("targetUri.1")).thenReturn("http://localhost/a");
+        when(servletConfig.getInitParameter("fanOutThreads")).thenReturn("0");
+        when(servletConfig.getInitParameter("configFile")).thenReturn(file.toString());
+
+        MultiProxyingServlet instance = new MultiProxyingServlet();
+        instance.init(servletConfig);
+        try {
+            ConfigSnapshot initial = instance.getSnapshot();
+            HttpHost targetHost = new HttpHost("localhost");
+            CircuitBreaker circuitBreaker = initial.getFanOutDispatcher().getCircuitBreakerRegistry().get(targetHost);
+            for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i += 1) {
+                circuitBreaker.record(false, 0L);
+            }
+            assertEquals(Status.OPEN, circuitBreaker.getStatus());
+
+            Files.write(file, "circuitBreakerFailureRate=60\n".getBytes(StandardCharsets.ISO_8859_1));
+            instance.reload(file);
+
+            ConfigSnapshot reloaded = instance.getSnapshot();
+            assertAll(
+                    () -> assertNotSame(initial, reloaded),
+                    () -> assertEquals(60, reloaded.getConfig().getCircuitBreakerFailureRate()),
+                    () -> assertEquals(Status.OPEN, reloaded.getFanOutDispatcher()
+                            .getCircuitBreakerRegistry().get(targetHost).getStatus())
+            );
+        } finally {
+            instance.destroy();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpHost;
+import org.huberb.proxyservlet.MediatorTest.ByteArrayServletOutputStream;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class MultipartResponseTest {
+
+    @Test
+    /*default*/ void testWritePart() throws IOException {
+        try (ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            HttpServletResponse servletResponse = createServletResponse(basos);
+            MultipartResponse instance = new MultipartResponse(servletResponse);
+            String boundary = instance.getBoundary();
+            verify(servletResponse).setContentType("multipart/mixed; boundary=" + boundary);
+
+            instance.writePart("http://localhost/a", 200, TimeUnit.MILLISECONDS.toNanos(12),
+                    Collections.singletonMap("Content-Type", "text/plain"),
+                    new ByteArrayInputStream("content-a".getBytes(StandardCharsets.UTF_8)));
+            instance.close();
+
+            String expected = "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/a\r\n"
+                    + "X-Target-Status: 200\r\n"
+                    + "X-Target-Latency: 12\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "\r\n"
+                    + "content-a\r\n"
+                    + "--" + boundary + "--\r\n";
+            assertEquals(expected, basos.baos.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    /*default*/ void testWriteErrorPart() throws IOException {
+        try (ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            MultipartResponse instance = new MultipartResponse(createServletResponse(basos));
+            String boundary = instance.getBoundary();
+
+            instance.writeErrorPart("http://localhost/b",
+                    new CircuitBreaker.OpenException(new HttpHost("localhost")), 0L);
+            instance.writeErrorPart("http://localhost/c", new IOException("broken\r\nX-Evil: 1"), 0L);
+
+            String expected = "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/b\r\n"
+                    + "X-Target-Status: 503\r\n"
+                    + "X-Target-Latency: 0\r\n"
+                    + "X-Target-Error: Circuit breaker open for http://localhost\r\n"
+                    + "\r\n"
+                    + "\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/c\r\n"
+                    + "X-Target-Status: 502\r\n"
+                    + "X-Target-Latency: 0\r\n"
+                    + "X-Target-Error: broken  X-Evil: 1\r\n"
+                    + "\r\n"
+                    + "\r\n";
+            assertEquals(expected, basos.baos.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    /*default*/ void testWritePart_failed() throws IOException {
+        HttpServletResponse servletResponse = createServletResponse(new FailingServletOutputStream());
+        MultipartResponse instance = new MultipartResponse(servletResponse);
+        assertFalse(instance.isFailed());
+
+        assertThrows(IOException.class, () -> instance.writeErrorPart("http://localhost/a", new IOException(), 0L));
+        assertTrue(instance.isFailed());
+        // later writes do not touch the response
+        assertThrows(IOException.class, () -> instance.writeErrorPart("http://localhost/b", new IOException(), 0L));
+        assertThrows(IOException.class, () -> instance.close());
+        verify(servletResponse, times(1)).getOutputStream();
+    }
+
+    @Test
+    /*default*/ void testWritePart_target_reset() throws IOException {
+        try (ByteArrayServletOutputStream basos = new ByteArrayServletOutputStream()) {
+            MultipartResponse instance = new MultipartResponse(createServletResponse(basos));
+            String boundary = instance.getBoundary();
+            InputStream truncated = new SequenceInputStream(
+                    new ByteArrayInputStream("conte".getBytes(StandardCharsets.UTF_8)),
+                    new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("Connection reset");
+                }
+            });
+
+            assertThrows(IOException.class, () -> instance.writePart("http://localhost/a", 200, 0L,
+                    Collections.emptyMap(), truncated));
+            // the response is still usable by the other targets
+            assertFalse(instance.isFailed());
+            instance.writePart("http://localhost/b", 200, 0L, Collections.emptyMap(),
+                    new ByteArrayInputStream("content-b".getBytes(StandardCharsets.UTF_8)));
+            instance.close();
+
+            String expected = "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/a\r\n"
+                    + "X-Target-Status: 200\r\n"
+                    + "X-Target-Latency: 0\r\n"
+                    + "\r\n"
+                    + "conte\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/a\r\n"
+                    + "X-Target-Status: 502\r\n"
+                    + "X-Target-Latency: 0\r\n"
+                    + "X-Target-Error: Connection reset\r\n"
+                    + "\r\n"
+                    + "\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "X-Target-Uri: http://localhost/b\r\n"
+                    + "X-Target-Status: 200\r\n"
+                    + "X-Target-Latency: 0\r\n"
+                    + "\r\n"
+                    + "content-b\r\n"
+                    + "--" + boundary + "--\r\n";
+            assertEquals(expected, basos.baos.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    /*default*/ void testFail() throws IOException {
+        HttpServletResponse servletResponse = createServletResponse(new ByteArrayServletOutputStream());
+        MultipartResponse instance = new MultipartResponse(servletResponse);
+        instance.fail();
+        assertThrows(IOException.class, () -> instance.writeErrorPart("http://localhost/a", new IOException(), 0L));
+        verify(servletResponse, times(0)).getOutputStream();
+    }
+
+    HttpServletResponse createServletResponse(ByteArrayServletOutputStream basos) throws IOException {
+        HttpServletResponse servletResponse = Mockito.mock(HttpServletResponse.class);
+        when(servletResponse.getOutputStream()).thenReturn(basos);
+        return servletResponse;
+    }
+
+    /**
+     * The output stream of a client having gone.
+     */
+    static class FailingServletOutputStream extends ByteArrayServletOutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+    }
+}
@@ -19,17 +19,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
-import java.util.Vector;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
-import javax.servlet.ServletConfig;
 
 import org.junit.jupiter.api.Test;
-import org.mockito.Mockito;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.mockito.Mockito.when;
 
 /**
  *
@@ -37,37 +33,6 @@ import static org.mockito.Mockito.when;
  */
 public class ParameterValueFactoryTest {
 
-    @Test
-    /*default*/ void testSetupTargetUrisFromServletInitParameter() {
-        ServletConfig servletConfig = Mockito.mock(ServletConfig.class);
-        when(servletConfig.getInitParameter("targetUri")).thenReturn("targetUriValue1");
-        // targetUris
-        when(servletConfig.getInitParameter("targetUris")).thenReturn("targetUrisValue1, targetUrisValue2 ,targetUrisValue3");
-        // targetUri.
-        when(servletConfig.getInitParameter("targetUri.1")).thenReturn("targetUriDotValue1");
-        when(servletConfig.getInitParameter("targetUri.2")).thenReturn("targetUriDotValue2");
-        when(servletConfig.getInitParameter("targetUri.3")).thenReturn("targetUriDotValue3");
-        when(servletConfig.getInitParameterNames()).thenReturn(
-                new Vector<String>(
-                        Arrays.asList("targetUri", "targetUris", "targetUri.1", "targetUri.2", "targetUri.3"))
-                        .elements()
-        );
-        ParameterValueFactory instance = new ParameterValueFactory();
-        List<String> result = instance.setupTargetUrisFromServletInitParameter(servletConfig);
-        assertAll(
-                () -> assertEquals(7, result.size()),
-                () -> assertEquals("targetUriValue1", result.get(0)),
-                // targetUris
-                () -> assertEquals("targetUrisValue1", result.get(1)),
-                () -> assertEquals("targetUrisValue2", result.get(2)),
-                () -> assertEquals("targetUrisValue3", result.get(3)),
-                // targetUri.
-                () -> assertEquals("targetUriDotValue1", result.get(4)),
-                () -> assertEquals("targetUriDotValue2", result.get(5)),
-                () -> assertEquals("targetUriDotValue3", result.get(6))
-        );
-    }
-
     @Test
     /*default*/ void testSetupTargetUrisFromProperties() {
         Properties props = new PropertiesBuilder(new Properties())
@@ -167,4 +132,37 @@ public class ParameterValueFactoryTest {
         );
     }
 
+    @Test
+    /*default*/ void testSetupSampleRatesFromProperties() {
+        Properties props = new PropertiesBuilder(new Properties())
+                .put("targetUri", "targetUriValue1")
+                .put("targetUris", "targetUrisValue1, targetUrisValue2")
+                .put("targetUri.1", "targetUriDotValue1")
+                .put("targetUri.2", "targetUriDotValue2")
+                .put("targetUri.2.sampleRate", "0.05")
+                .put("targetUri.3", "targetUriDotValue3")
+                .put("targetUri.3.sampleRate", "2")
+                .put("targetUri.4", "targetUriDotValue4")
+                .put("targetUri.4.sampleRate", "none")
+                .build();
+        ParameterValueFactory instance = new ParameterValueFactory();
+        List<String> targetUris = instance.setupTargetUrisFromProperties(props);
+        List<Double> result = instance.setupSampleRatesFromProperties(props);
+        assertAll(
+                () -> assertEquals(targetUris.size(), result.size()),
+                () -> assertEquals(Arrays.asList(1.0, 1.0, 1.0, 1.0, 0.05, 1.0, 1.0), result)
+        );
+    }
+
+    @Test
+    /*default*/ void testParseSampleRate() {
+        assertAll(
+                () -> assertEquals(0.25, ParameterValueFactory.parseSampleRate(" 0.25 ")),
+                () -> assertEquals(0.0, ParameterValueFactory.parseSampleRate("-1")),
+                () -> assertEquals(1.0, ParameterValueFactory.parseSampleRate("1.5")),
+                () -> assertEquals(1.0, ParameterValueFactory.parseSampleRate("NaN")),
+                () -> assertEquals(1.0, ParameterValueFactory.parseSampleRate(""))
+        );
+    }
+
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ *
+ * @author pi
+ */
+public class PrometheusTextWriterTest {
+
+    @Test
+    /*default*/ void testSample() throws IOException {
+        PrometheusTextWriter instance = new PrometheusTextWriter(64);
+        instance.family("requests_total", "counter", "Requests sent.")
+                .sample("requests_total").label("target", "http://localhost/a").value(42L);
+        instance.sample("requests_total").value(-7L);
+        instance.sample("latency_seconds", "_sum").valueSeconds(1_234_567L);
+        instance.sample("latency_seconds", "_bucket").labelSeconds("le", 256L).value(0L);
+
+        assertEquals("# HELP requests_total Requests sent.\n"
+                + "# TYPE requests_total counter\n"
+                + "requests_total{target=\"http://localhost/a\"} 42\n"
+                + "requests_total -7\n"
+                + "latency_seconds_sum 1.234567\n"
+                + "latency_seconds_bucket{le=\"0.000256\"} 0\n",
+                toString(instance));
+    }
+
+    @Test
+    /*default*/ void testLabel_escaped() throws IOException {
+        PrometheusTextWriter instance = new PrometheusTextWriter(64);
+        instance.sample("m").label("a", "q\"b\\n\n\u00fc\u20ac\ud83d\ude00").label("b", "").value(Long.MAX_VALUE);
+
+        assertEquals("m{a=\"q\\\"b\\\\n\\n\u00fc\u20ac\ud83d\ude00\",b=\"\"} 9223372036854775807\n", toString(instance));
+    }
+
+    @Test
+    /*default*/ void testReset_keepsBuffer() throws IOException {
+        PrometheusTextWriter instance = new PrometheusTextWriter(64);
+        for (int i = 0; i < 100; i += 1) {
+            instance.sample("requests_total").label("target", "http://localhost/" + i).value(i);
+        }
+        final int capacity = instance.capacity();
+        instance.reset();
+        assertEquals(0, instance.size());
+        instance.sample("m").value(1L);
+        assertEquals("m 1\n", toString(instance));
+        assertEquals(capacity, instance.capacity());
+    }
+
+    private static String toString(PrometheusTextWriter instance) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        instance.writeTo(baos);
+        assertEquals(instance.size(), baos.size());
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
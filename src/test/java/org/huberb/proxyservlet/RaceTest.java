@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class RaceTest {
+
+    final ProxyRequest p0 = new ProxyRequest("GET", "/0");
+    final ProxyRequest p1 = new ProxyRequest("GET", "/1");
+    final ProxyRequest p2 = new ProxyRequest("GET", "/2");
+    final List<HttpRequest> proxyRequestList = Arrays.asList(p0, p1, p2);
+
+    @Test
+    /*default*/ void testArrive_first_success_wins() {
+        Race instance = new Race(proxyRequestList);
+        assertFalse(instance.arrive(2, response(503)));
+        assertTrue(instance.arrive(1, response(200)));
+        assertFalse(instance.arrive(0, response(200)));
+
+        assertAll(
+                () -> assertEquals(1, instance.getWinner()),
+                () -> assertTrue(instance.isLost(0)),
+                () -> assertFalse(instance.isLost(1)),
+                () -> assertTrue(p0.isAborted()),
+                () -> assertFalse(p1.isAborted()),
+                () -> assertTrue(p2.isAborted())
+        );
+    }
+
+    @Test
+    /*default*/ void testArrive_last_error_response_wins() {
+        Race instance = new Race(proxyRequestList);
+        instance.forfeit(0);
+        assertFalse(instance.arrive(1, response(500)));
+        assertTrue(instance.arrive(2, response(502)));
+        instance.finish(1);
+        instance.finish(2);
+
+        assertEquals(2, instance.await());
+    }
+
+    @Test
+    /*default*/ void testAwaitDecision_held_error_response_wins() {
+        Race instance = new Race(proxyRequestList);
+        assertFalse(instance.arrive(0, response(503)));
+        assertFalse(instance.arrive(1, response(500)));
+
+        // the last target failed, the most recent error response wins
+        assertFalse(instance.arrive(2, null));
+        assertAll(
+                () -> assertEquals(1, instance.getWinner()),
+                () -> assertFalse(instance.awaitDecision(0)),
+                () -> assertTrue(instance.awaitDecision(1)),
+                () -> assertFalse(instance.awaitDecision(2)),
+                () -> assertTrue(p0.isAborted()),
+                () -> assertFalse(p1.isAborted())
+        );
+    }
+
+    @Test
+    /*default*/ void testAwaitDecision_success_wins() throws Exception {
+        Race instance = new Race(proxyRequestList);
+        assertFalse(instance.arrive(0, response(503)));
+        CompletableFuture<Boolean> held = CompletableFuture.supplyAsync(() -> instance.awaitDecision(0));
+        instance.forfeit(1);
+        assertFalse(held.isDone());
+
+        assertTrue(instance.arrive(2, response(200)));
+        assertFalse(held.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    /*default*/ void testAwait_no_winner() {
+        Race instance = new Race(proxyRequestList);
+        instance.forfeit(0);
+        instance.forfeit(1);
+        instance.forfeit(2);
+
+        assertEquals(-1, instance.await());
+    }
+
+    @Test
+    /*default*/ void testAwait_done_when_winner_finished() {
+        Race instance = new Race(proxyRequestList);
+        assertTrue(instance.arrive(0, response(200)));
+        instance.finish(0);
+
+        // the aborted targets did not finish yet
+        assertEquals(0, instance.await());
+    }
+
+    private static HttpResponse response(int statusCode) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "");
+    }
+}
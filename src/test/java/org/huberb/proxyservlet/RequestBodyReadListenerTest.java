@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class RequestBodyReadListenerTest {
+
+    @Test
+    /*default*/ void testRead_chunks_as_available() throws Exception {
+        ChunkedServletInputStream sis = new ChunkedServletInputStream("Hello", ", ", "World");
+        RequestBodyReadListener instance = new RequestBodyReadListener(sis, new Config());
+
+        // the container calls onDataAvailable each time a chunk arrives
+        for (int i = 0; i < 3; i += 1) {
+            instance.onDataAvailable();
+            assertFalse(instance.getSpoolFuture().isDone());
+            sis.arrive();
+        }
+        instance.onDataAvailable();
+        instance.onAllDataRead();
+
+        RequestBodySpool spool = instance.getSpoolFuture().get();
+        assertEquals("Hello, World", EntityUtils.toString(spool.createEntity(), StandardCharsets.UTF_8));
+        spool.release();
+    }
+
+    @Test
+    /*default*/ void testRead_too_large() throws Exception {
+        Config config = new Config();
+        config.setRequestBodyMaxSize(8);
+        ChunkedServletInputStream sis = new ChunkedServletInputStream("Hello", ", ", "World");
+        RequestBodyReadListener instance = new RequestBodyReadListener(sis, config);
+
+        instance.onDataAvailable();
+        sis.arrive();
+        instance.onDataAvailable();
+        sis.arrive();
+        IOException ioex = assertThrows(IOException.class, () -> instance.onDataAvailable());
+        // the container calls onError with the exception thrown by onDataAvailable
+        instance.onError(ioex);
+
+        ExecutionException exex = assertThrows(ExecutionException.class, () -> instance.getSpoolFuture().get());
+        assertTrue(exex.getCause() instanceof RequestBodySpool.TooLargeException);
+    }
+
+    /**
+     * Deliver one chunk at a time, not being ready until the next chunk
+     * arrives.
+     */
+    static class ChunkedServletInputStream extends ServletInputStream {
+
+        final byte[][] chunks;
+        int chunkIndex;
+        int pos;
+        boolean ready = true;
+
+        ChunkedServletInputStream(String... chunks) {
+            this.chunks = new byte[chunks.length][];
+            for (int i = 0; i < chunks.length; i += 1) {
+                this.chunks[i] = chunks[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        void arrive() {
+            chunkIndex += 1;
+            pos = 0;
+            ready = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return chunkIndex >= chunks.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (isFinished()) {
+                return -1;
+            }
+            byte[] chunk = chunks[chunkIndex];
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            if (pos == chunk.length) {
+                ready = false;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class RequestBodySpoolTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 15, 16})
+    /*default*/ void testRead_in_memory(int length) throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(length);
+
+        RequestBodySpool instance = RequestBodySpool.read(new ByteArrayInputStream(content), config);
+        assertFalse(instance.isSpilled());
+        assertEquals(length, instance.getLength());
+        assertReplayable(content, instance.createEntity());
+        instance.release();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {17, 100 * 1024})
+    /*default*/ void testRead_spilled(int length) throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(length);
+
+        RequestBodySpool instance = RequestBodySpool.read(new ByteArrayInputStream(content), config);
+        assertTrue(instance.isSpilled());
+        assertEquals(length, instance.getLength());
+        assertReplayable(content, instance.createEntity());
+        instance.release();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 16, 17, 100 * 1024})
+    /*default*/ void testRead_content_length(int length) throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(length);
+
+        RequestBodySpool instance = RequestBodySpool.read(new ByteArrayInputStream(content), config, length);
+        assertEquals(length > 16, instance.isSpilled());
+        assertEquals(length, instance.getLength());
+        assertReplayable(content, instance.createEntity());
+        instance.release();
+    }
+
+    @Test
+    /*default*/ void testRead_content_length_mismatch() throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(12);
+
+        // more than announced
+        RequestBodySpool longer = RequestBodySpool.read(new ByteArrayInputStream(content), config, 8);
+        assertTrue(longer.isSpilled());
+        assertReplayable(content, longer.createEntity());
+        longer.release();
+
+        // less than announced
+        RequestBodySpool shorter = RequestBodySpool.read(new ByteArrayInputStream(content), config, 100);
+        assertEquals(12, shorter.getLength());
+        assertReplayable(content, shorter.createEntity());
+        shorter.release();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {8, 1024})
+    /*default*/ void testRead_too_large(int memoryThreshold) {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(memoryThreshold);
+        config.setRequestBodyMaxSize(100);
+        byte[] content = createContent(101);
+
+        assertThrows(RequestBodySpool.TooLargeException.class,
+                () -> RequestBodySpool.read(new ByteArrayInputStream(content), config));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 16, 17, 1024})
+    /*default*/ void testWriter_chunks(int length) throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(length);
+
+        RequestBodySpool.Writer writer = new RequestBodySpool.Writer(config);
+        for (int off = 0; off < length; off += 5) {
+            writer.write(content, off, Math.min(5, length - off));
+        }
+        RequestBodySpool instance = writer.finish();
+        assertEquals(length > 16, instance.isSpilled());
+        assertEquals(length, instance.getLength());
+        assertReplayable(content, instance.createEntity());
+        instance.release();
+    }
+
+    @Test
+    /*default*/ void testWriter_too_large() throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        config.setRequestBodyMaxSize(20);
+        byte[] content = createContent(10);
+
+        RequestBodySpool.Writer writer = new RequestBodySpool.Writer(config);
+        writer.write(content, 0, 10);
+        writer.write(content, 0, 10);
+        assertThrows(RequestBodySpool.TooLargeException.class, () -> writer.write(content, 0, 1));
+        writer.abort();
+        writer.abort();
+    }
+
+    @Test
+    /*default*/ void testRetainRelease() throws IOException {
+        RequestBodySpool instance = RequestBodySpool.read(new ByteArrayInputStream(createContent(10)), new Config());
+        instance.retain();
+        instance.release();
+        instance.release();
+        assertThrows(IllegalStateException.class, () -> instance.retain());
+    }
+
+    @Test
+    /*default*/ void testRelease_spilled_while_reading() throws IOException {
+        Config config = new Config();
+        config.setRequestBodyMemoryThreshold(16);
+        byte[] content = createContent(100 * 1024);
+        RequestBodySpool instance = RequestBodySpool.read(new ByteArrayInputStream(content), config);
+        InputStream in = instance.createEntity().getContent();
+        // e.g. the exchange completed on an early response, the target is still reading
+        instance.release();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            baos.write(chunk, 0, read);
+        }
+        assertArrayEquals(content, baos.toByteArray());
+    }
+
+    void assertReplayable(byte[] expected, HttpEntity entity) throws IOException {
+        assertTrue(entity.isRepeatable());
+        assertEquals(expected.length, entity.getContentLength());
+        for (int i = 0; i < 2; i += 1) {
+            assertArrayEquals(expected, EntityUtils.toByteArray(entity));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            entity.writeTo(baos);
+            assertArrayEquals(expected, baos.toByteArray());
+        }
+    }
+
+    byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'x');
+        for (int i = 0; i < length; i += 7) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+}
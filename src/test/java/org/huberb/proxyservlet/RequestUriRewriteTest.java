@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class RequestUriRewriteTest {
+
+    @ParameterizedTest
+    @CsvSource(value = {
+        "'', '', false, ''",
+        "/a/b.html, '', false, /a/b.html",
+        "/a b/%c, '', false, /a%20b/%25c",
+        "'', a=b&c=d, false, ?a=b&c=d",
+        "/a, a=b c, false, /a?a=b%20c",
+        "/a, a=b#frag, false, /a?a=b",
+        "/a, a=b#frag, true, /a?a=b#frag",
+        "/a, #frag, true, /a#frag",
+        "/a, #frag, false, /a",})
+    /*default*/ void testGetSuffix(String pathInfo, String queryString, boolean doSendUrlFragment, String expected) {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getPathInfo()).thenReturn(pathInfo.isEmpty() ? null : pathInfo);
+        when(servletRequest.getQueryString()).thenReturn(queryString.isEmpty() ? null : queryString);
+
+        RequestUriRewrite requestUriRewrite = RequestUriRewrite.of(servletRequest, doSendUrlFragment);
+        assertEquals(expected, requestUriRewrite.getSuffix());
+    }
+
+    @Test
+    /*default*/ void testRewriteRequestUri() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getPathInfo()).thenReturn("/p");
+        when(servletRequest.getQueryString()).thenReturn("q=1");
+        RequestUriRewrite requestUriRewrite = RequestUriRewrite.of(servletRequest, false);
+
+        Env env1 = new Env.Builder().targetUri("http://host1/t1").build();
+        Env env2 = new Env.Builder().targetUri("http://host2:8080/t2").build();
+        assertEquals("http://host1/t1/p?q=1", requestUriRewrite.rewriteRequestUri(env1));
+        assertEquals("http://host2:8080/t2/p?q=1", requestUriRewrite.rewriteRequestUri(env2));
+    }
+
+    @Test
+    /*default*/ void testOf_request_attribute() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        RequestUriRewrite requestUriRewrite = new RequestUriRewrite(servletRequest, false);
+        when(servletRequest.getAttribute(RequestUriRewrite.ATTRIBUTE)).thenReturn(requestUriRewrite);
+
+        assertSame(requestUriRewrite, RequestUriRewrite.of(servletRequest, false));
+        // rewritten again, if the fragment setting differs
+        assertNotSame(requestUriRewrite, RequestUriRewrite.of(servletRequest, true));
+        verify(servletRequest, times(1)).setAttribute(Mockito.eq(RequestUriRewrite.ATTRIBUTE), Mockito.any());
+    }
+
+    @ParameterizedTest
+    @CsvSource(value = {
+        "http://localhost/t1/x/y?z=1, http://proxy:8080/ctx/multi/x/y?z=1",
+        "http://localhost/t1, http://proxy:8080/ctx/multi",
+        "http://other/t1/x, http://other/t1/x",})
+    /*default*/ void testRewriteResponseUrl(String theUrl, String expected) {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://proxy:8080/ctx/multi/a/b"));
+        when(servletRequest.getContextPath()).thenReturn("/ctx");
+        when(servletRequest.getServletPath()).thenReturn("/multi");
+        RequestUriRewrite requestUriRewrite = RequestUriRewrite.of(servletRequest, false);
+
+        Env env = new Env.Builder().targetUri("http://localhost/t1").build();
+        assertEquals(expected, requestUriRewrite.rewriteResponseUrl(env, theUrl));
+    }
+
+    @Test
+    /*default*/ void testGetServletUrl_once() {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://proxy/ctx/multi/a"));
+        when(servletRequest.getContextPath()).thenReturn("/ctx");
+        when(servletRequest.getServletPath()).thenReturn("/multi");
+        RequestUriRewrite requestUriRewrite = RequestUriRewrite.of(servletRequest, false);
+
+        assertEquals("http://proxy/ctx/multi", requestUriRewrite.getServletUrl());
+        assertEquals("http://proxy/ctx/multi", requestUriRewrite.getServletUrl());
+        verify(servletRequest, times(1)).getRequestURL();
+    }
+}
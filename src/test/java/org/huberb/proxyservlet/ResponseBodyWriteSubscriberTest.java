@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import org.huberb.proxyservlet.ResponseEntityWriteListenerTest.SlowServletOutputStream;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class ResponseBodyWriteSubscriberTest {
+
+    @Test
+    /*default*/ void testCopy_only_while_ready() throws Exception {
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        ResponseBodyWriteSubscriber instance = new ResponseBodyWriteSubscriber(sos, false);
+        CountingSubscription subscription = new CountingSubscription();
+        sos.setWriteListener(instance);
+        instance.onSubscribe(subscription);
+        assertEquals(1, subscription.requests);
+
+        // each write makes the client busy, nothing is requested meanwhile
+        instance.onNext(Arrays.asList(bufferOf("a-"), bufferOf("b-")));
+        assertEquals(1, sos.writes);
+        sos.catchUp();
+        assertEquals(2, sos.writes);
+        assertEquals(1, subscription.requests);
+
+        // the client caught up, request the next part
+        sos.catchUp();
+        assertEquals(2, subscription.requests);
+        instance.onNext(Collections.singletonList(bufferOf("c")));
+        sos.catchUp();
+        assertFalse(instance.getCompletion().isDone());
+
+        instance.onComplete();
+        assertTrue(instance.getCompletion().isDone());
+        assertArrayEquals("a-b-c".getBytes(StandardCharsets.UTF_8), sos.baos.toByteArray());
+        assertEquals(5, instance.getBytesWritten());
+        assertEquals(0, sos.flushes);
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    /*default*/ void testCopy_waits_for_write_possible() throws Exception {
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        ResponseBodyWriteSubscriber instance = new ResponseBodyWriteSubscriber(sos, false);
+        CountingSubscription subscription = new CountingSubscription();
+        instance.onSubscribe(subscription);
+
+        // nothing is requested before the write listener is registered
+        assertEquals(0, subscription.requests);
+        sos.setWriteListener(instance);
+        assertEquals(1, subscription.requests);
+    }
+
+    @Test
+    /*default*/ void testCopy_flushes_chunks() throws Exception {
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        sos.alwaysReady = true;
+        ResponseBodyWriteSubscriber instance = new ResponseBodyWriteSubscriber(sos, true);
+        sos.setWriteListener(instance);
+        instance.onSubscribe(new CountingSubscription());
+
+        instance.onNext(Collections.singletonList(bufferOf("data: event\n\n")));
+        instance.onComplete();
+
+        assertTrue(instance.getCompletion().isDone());
+        assertEquals("data: event\n\n", sos.baos.toString("UTF-8"));
+        assertEquals(1, sos.flushes);
+    }
+
+    @Test
+    /*default*/ void testOnError() throws Exception {
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        ResponseBodyWriteSubscriber instance = new ResponseBodyWriteSubscriber(sos, false);
+        CountingSubscription subscription = new CountingSubscription();
+        sos.setWriteListener(instance);
+        instance.onSubscribe(subscription);
+        IOException ioex = new IOException("client gone");
+        instance.onError(ioex);
+
+        ExecutionException exex = assertThrows(ExecutionException.class, () -> instance.getCompletion().get());
+        assertSame(ioex, exex.getCause());
+        assertTrue(subscription.cancelled);
+    }
+
+    static ByteBuffer bufferOf(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class CountingSubscription implements Flow.Subscription {
+
+        long requests;
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requests += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
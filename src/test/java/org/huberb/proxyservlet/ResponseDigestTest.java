@@ -0,0 +1,125 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class ResponseDigestTest {
+
+    static final List<String> HEADER_NAMES = Arrays.asList("Content-Type", "ETag");
+
+    @Test
+    /*default*/ void testDigestWhileWriting() throws IOException {
+        HttpResponse proxyResponse = createResponse(200, "content");
+        ResponseDigest instance = new ResponseDigest(proxyResponse, HEADER_NAMES);
+        assertFalse(instance.isComplete());
+        assertNull(instance.getBodyDigest());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        proxyResponse.getEntity().writeTo(baos);
+
+        ResponseDigest other = new ResponseDigest(createResponse(200, "content"), HEADER_NAMES);
+        other.consume();
+        assertAll(
+                () -> assertEquals("content", baos.toString("UTF-8")),
+                () -> assertTrue(instance.isComplete()),
+                () -> assertNotNull(instance.getBodyDigest()),
+                () -> assertEquals("text/plain; charset=ISO-8859-1", instance.getHeaders().get("content-type")),
+                () -> assertTrue(instance.compare(other).isEmpty())
+        );
+    }
+
+    @Test
+    /*default*/ void testDigestWhileReading() throws IOException {
+        HttpResponse proxyResponse = createResponse(200, "content");
+        ResponseDigest instance = new ResponseDigest(proxyResponse, HEADER_NAMES);
+
+        // a partial read, then the rest is consumed
+        InputStream is = proxyResponse.getEntity().getContent();
+        assertEquals('c', is.read());
+        assertEquals(2L, is.skip(2L));
+        instance.consume();
+        assertEquals(-1, proxyResponse.getEntity().getContent().read());
+
+        ResponseDigest other = new ResponseDigest(createResponse(200, "content"), HEADER_NAMES);
+        other.consume();
+        assertTrue(instance.compare(other).isEmpty());
+    }
+
+    @Test
+    /*default*/ void testCompare() throws IOException {
+        ResponseDigest primary = consumed(createResponse(200, "content"));
+
+        HttpResponse etag = createResponse(200, "content");
+        etag.addHeader("ETag", "\"1\"");
+        assertAll(
+                () -> assertEquals(EnumSet.of(ResponseDigest.Mismatch.STATUS),
+                        primary.compare(consumed(createResponse(201, "content")))),
+                () -> assertEquals(EnumSet.of(ResponseDigest.Mismatch.HEADERS),
+                        primary.compare(consumed(etag))),
+                () -> assertEquals(EnumSet.of(ResponseDigest.Mismatch.BODY),
+                        primary.compare(consumed(createResponse(200, "other")))),
+                () -> assertEquals(EnumSet.allOf(ResponseDigest.Mismatch.class),
+                        primary.compare(consumed(new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content"))))
+        );
+    }
+
+    @Test
+    /*default*/ void testNoEntity() throws IOException {
+        ResponseDigest instance = new ResponseDigest(new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content"),
+                HEADER_NAMES);
+        assertTrue(instance.isComplete());
+        instance.consume();
+        assertNotNull(instance.getBodyDigest());
+    }
+
+    static ResponseDigest consumed(HttpResponse proxyResponse) throws IOException {
+        ResponseDigest responseDigest = new ResponseDigest(proxyResponse, HEADER_NAMES);
+        responseDigest.consume();
+        return responseDigest;
+    }
+
+    static HttpResponse createResponse(int statusCode, String body) {
+        HttpResponse proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "reason");
+        StringEntity entity = new StringEntity(body, ContentType.TEXT_PLAIN);
+        proxyResponse.setEntity(entity);
+        proxyResponse.setHeader(entity.getContentType());
+        return proxyResponse;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class ResponseEntityWriteListenerTest {
+
+    @Test
+    /*default*/ void testCopy_only_while_ready() throws Exception {
+        byte[] content = new byte[25 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        ResponseEntityWriteListener instance = new ResponseEntityWriteListener(
+                new ByteArrayEntity(content), sos, Runnable::run, false);
+        sos.setWriteListener(instance);
+
+        // each write makes the client busy, until it has caught up
+        int rounds = 0;
+        while (!instance.getCompletion().isDone()) {
+            assertFalse(sos.ready);
+            sos.catchUp();
+            rounds += 1;
+        }
+        assertEquals(3, rounds);
+        assertEquals(3, sos.writes);
+        assertArrayEquals(content, sos.baos.toByteArray());
+        assertEquals(0, sos.flushes);
+    }
+
+    @Test
+    /*default*/ void testCopy_flushes_chunks() throws Exception {
+        byte[] content = "data: event\n\n".getBytes("UTF-8");
+        InputStreamEntity entity = new InputStreamEntity(new ByteArrayInputStream(content));
+        entity.setChunked(true);
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        sos.alwaysReady = true;
+        ResponseEntityWriteListener instance = new ResponseEntityWriteListener(
+                entity, sos, Runnable::run, false);
+        sos.setWriteListener(instance);
+
+        assertTrue(instance.getCompletion().isDone());
+        assertArrayEquals(content, sos.baos.toByteArray());
+        assertEquals(1, sos.flushes);
+    }
+
+    @Test
+    /*default*/ void testOnError() throws Exception {
+        SlowServletOutputStream sos = new SlowServletOutputStream();
+        ResponseEntityWriteListener instance = new ResponseEntityWriteListener(
+                new ByteArrayEntity(new byte[100]), sos, Runnable::run, false);
+        IOException ioex = new IOException("client gone");
+        instance.onError(ioex);
+
+        ExecutionException exex = assertThrows(ExecutionException.class, () -> instance.getCompletion().get());
+        assertSame(ioex, exex.getCause());
+    }
+
+    /**
+     * A client accepting one write, then being busy until it caught up.
+     */
+    static class SlowServletOutputStream extends ServletOutputStream {
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        WriteListener writeListener;
+        boolean ready = true;
+        boolean alwaysReady;
+        int writes;
+        int flushes;
+
+        void catchUp() throws IOException {
+            ready = true;
+            writeListener.onWritePossible();
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException ioex) {
+                writeListener.onError(ioex);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!ready) {
+                throw new IllegalStateException("not ready");
+            }
+            baos.write(b, off, len);
+            writes += 1;
+            ready = alwaysReady;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!ready) {
+                throw new IllegalStateException("not ready");
+            }
+            flushes += 1;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.huberb.proxyservlet.ResponseDigestTest.consumed;
+import static org.huberb.proxyservlet.ResponseDigestTest.createResponse;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class ShadowStatsTest {
+
+    @Test
+    /*default*/ void testCompareHeaders() {
+        Config config = new Config();
+        config.setShadowCompareHeaders(" Content-Type, ,ETag ");
+        assertEquals(Arrays.asList("Content-Type", "ETag"), new ShadowStats(config).getCompareHeaders());
+
+        config.setShadowCompareHeaders("");
+        assertTrue(new ShadowStats(config).getCompareHeaders().isEmpty());
+    }
+
+    @Test
+    /*default*/ void testRecord() throws IOException {
+        Config config = new Config();
+        config.setShadowSampleLogSize(2);
+        ShadowStats instance = new ShadowStats(config);
+        ResponseDigest primary = consumed(createResponse(200, "content"));
+
+        instance.record("/a", "http://localhost/1", primary, consumed(createResponse(200, "content")));
+        instance.record("/b", "http://localhost/1", primary, consumed(createResponse(500, "content")));
+        instance.record("/c", "http://localhost/1", primary, consumed(createResponse(200, "other")));
+        instance.record("/d", "http://localhost/1", primary, consumed(createResponse(404, "other")));
+        instance.recordIncomplete();
+
+        // the sample log keeps the latest mismatches only
+        List<ShadowStats.Sample> samples = instance.getSamples();
+        assertAll(
+                () -> assertEquals(4, instance.getCompared()),
+                () -> assertEquals(1, instance.getMatched()),
+                () -> assertEquals(2, instance.getStatusMismatches()),
+                () -> assertEquals(0, instance.getHeaderMismatches()),
+                () -> assertEquals(2, instance.getBodyMismatches()),
+                () -> assertEquals(1, instance.getIncomplete()),
+                () -> assertEquals(2, samples.size()),
+                () -> assertEquals("/c", samples.get(0).getRequestUri()),
+                () -> assertEquals("/d", samples.get(1).getRequestUri()),
+                () -> assertEquals(404, samples.get(1).getStatusCode()),
+                () -> assertEquals(200, samples.get(1).getPrimaryStatusCode()),
+                () -> assertTrue(instance.formatCounters().contains("body mismatches 2"), instance.formatCounters())
+        );
+    }
+
+    @Test
+    /*default*/ void testRecord_previous() throws IOException {
+        Config config = new Config();
+        config.setShadowSampleLogSize(3);
+        ShadowStats previous = new ShadowStats(config);
+        ResponseDigest primary = consumed(createResponse(200, "content"));
+        previous.record("/a", "http://localhost/1", primary, consumed(createResponse(500, "content")));
+        previous.record("/b", "http://localhost/1", primary, consumed(createResponse(500, "content")));
+
+        // the counters go on on reload, the smaller sample log is trimmed
+        config.setShadowSampleLogSize(1);
+        ShadowStats instance = new ShadowStats(config, previous);
+        instance.record("/c", "http://localhost/1", primary, consumed(createResponse(200, "other")));
+        List<ShadowStats.Sample> samples = instance.getSamples();
+        assertAll(
+                () -> assertEquals(3, instance.getCompared()),
+                () -> assertEquals(2, instance.getStatusMismatches()),
+                () -> assertEquals(1, samples.size()),
+                () -> assertEquals("/c", samples.get(0).getRequestUri())
+        );
+    }
+
+    @Test
+    /*default*/ void testNoSampleLog() throws IOException {
+        Config config = new Config();
+        config.setShadowSampleLogSize(0);
+        ShadowStats instance = new ShadowStats(config);
+
+        instance.record("/a", "http://localhost/1",
+                consumed(createResponse(200, "content")), consumed(createResponse(200, "other")));
+        assertEquals(1, instance.getBodyMismatches());
+        assertTrue(instance.getSamples().isEmpty());
+    }
+}
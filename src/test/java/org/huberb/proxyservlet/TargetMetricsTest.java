@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author pi
+ */
+public class TargetMetricsTest {
+
+    private static final String TARGET_URI = "http://localhost/a";
+
+    @Test
+    /*default*/ void testRecord() {
+        Env env = new Env.Builder().targetUri(TARGET_URI).build();
+        long startNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10);
+        TargetMetrics instance = new TargetMetrics(TARGET_URI);
+        instance.record(TargetOutcome.completed(0, env, 200, startNanos));
+        instance.record(TargetOutcome.completed(0, env, 503, startNanos));
+        instance.record(TargetOutcome.failed(0, env, new IOException("refused"), startNanos));
+        instance.record(TargetOutcome.failed(0, env, new Race.LostException(1), startNanos));
+
+        TargetMetrics.Snapshot snapshot = instance.snapshot();
+        assertAll(
+                () -> assertEquals(TARGET_URI, snapshot.getTargetUri()),
+                () -> assertEquals(4L, snapshot.getRequests()),
+                () -> assertEquals(2L, snapshot.getErrors()),
+                () -> assertEquals(2L, snapshot.getLatencies().getCount()),
+                () -> assertTrue(snapshot.getLatencies().getPercentileMicros(50.0) >= 10_000L),
+                () -> assertTrue(snapshot.formatMetrics().contains("requests 4, errors 2"), snapshot.formatMetrics())
+        );
+    }
+
+    @Test
+    /*default*/ void testRecord_time_to_response() {
+        Env env = new Env.Builder().targetUri(TARGET_URI).build();
+        // the headers arrived after 10 ms, streaming the body took seconds
+        long startNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(5);
+        long arrivalNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(10);
+        TargetMetrics instance = new TargetMetrics(TARGET_URI);
+        instance.record(TargetOutcome.completed(0, env, 200, startNanos, arrivalNanos));
+
+        long p50Micros = instance.snapshot().getLatencies().getPercentileMicros(50.0);
+        assertTrue(p50Micros >= 10_000L && p50Micros < 1_000_000L, "p50 " + p50Micros);
+    }
+
+    @Test
+    /*default*/ void testCountBytesReceived() throws IOException {
+        TargetMetrics instance = new TargetMetrics(TARGET_URI);
+        assertNull(instance.countBytesReceived(null));
+
+        HttpEntity entity = instance.countBytesReceived(
+                new InputStreamEntity(new ByteArrayInputStream(new byte[100])));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        entity.writeTo(baos);
+        assertEquals(100, baos.size());
+        assertEquals(100L, instance.snapshot().getBytesReceived());
+
+        instance.addBytesSent(42L);
+        assertEquals(42L, instance.snapshot().getBytesSent());
+    }
+
+    @Test
+    /*default*/ void testCountBytesReceived_discarded() throws IOException {
+        TargetMetrics instance = new TargetMetrics(TARGET_URI);
+        HttpEntity entity = instance.countBytesReceived(
+                new InputStreamEntity(new ByteArrayInputStream(new byte[100])));
+        try (InputStream is = entity.getContent()) {
+            assertEquals(0, is.read());
+        }
+        // closing does not read the rest of the body, only read bytes count
+        assertEquals(1L, instance.snapshot().getBytesReceived());
+    }
+
+    @Test
+    /*default*/ void testRegistry() {
+        TargetMetricsRegistry instance = new TargetMetricsRegistry();
+        Env envB = new Env.Builder().targetUri("http://localhost/b").build();
+        Env envA = new Env.Builder().targetUri(TARGET_URI).build();
+        instance.record(TargetOutcome.completed(1, envB, 200, System.nanoTime()));
+        instance.record(TargetOutcome.completed(0, envA, 200, System.nanoTime()));
+        instance.record(TargetOutcome.completed(0, envA, 200, System.nanoTime()));
+
+        List<TargetMetrics.Snapshot> snapshots = instance.snapshot();
+        assertAll(
+                () -> assertEquals(2, snapshots.size()),
+                () -> assertEquals(TARGET_URI, snapshots.get(0).getTargetUri()),
+                () -> assertEquals(2L, snapshots.get(0).getRequests()),
+                () -> assertEquals(1L, snapshots.get(1).getRequests()),
+                () -> assertTrue(instance.get(TARGET_URI) == instance.get(TARGET_URI))
+        );
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class TargetSamplerTest {
+
+    @Test
+    /*default*/ void testIsSampled_bounds() {
+        TargetSampler instance = new TargetSampler(new Config());
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        assertAll(
+                () -> assertTrue(instance.isSampled(1.0, servletRequest)),
+                () -> assertFalse(instance.isSampled(0.0, servletRequest))
+        );
+    }
+
+    @Test
+    /*default*/ void testIsSampled_random() {
+        TargetSampler instance = new TargetSampler(new Config());
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i += 1) {
+            if (instance.isSampled(0.2, servletRequest)) {
+                sampled += 1;
+            }
+        }
+        final int n = sampled;
+        assertTrue(n > 1500 && n < 2500, "sampled " + n);
+    }
+
+    @Test
+    /*default*/ void testIsSampled_sampleKey() {
+        Config config = new Config();
+        config.setSampleKeyHeader("X-User-Id");
+        TargetSampler instance = new TargetSampler(config);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i += 1) {
+            HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+            when(servletRequest.getHeader("X-User-Id")).thenReturn("user-" + i);
+            boolean decision = instance.isSampled(0.2, servletRequest);
+            // the same user gets the same decision, and is sampled at a higher rate, too
+            assertEquals(decision, instance.isSampled(0.2, servletRequest));
+            if (decision) {
+                sampled += 1;
+                assertTrue(instance.isSampled(0.5, servletRequest));
+            }
+        }
+        final int n = sampled;
+        assertTrue(n > 1500 && n < 2500, "sampled " + n);
+    }
+
+    @Test
+    /*default*/ void testFraction() {
+        for (String sampleKey : new String[]{"", "a", "user-1", "a much longer sample key"}) {
+            double p = TargetSampler.fraction(sampleKey);
+            assertTrue(p >= 0.0 && p < 1.0, sampleKey + " " + p);
+            assertEquals(p, TargetSampler.fraction(sampleKey));
+        }
+    }
+}
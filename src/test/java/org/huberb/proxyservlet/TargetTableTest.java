@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 pi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.huberb.proxyservlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author pi
+ */
+public class TargetTableTest {
+
+    @Test
+    /*default*/ void testGetTargets_absolute() {
+        TargetTable instance = new TargetTable(
+                Arrays.asList("http://localhost:8080/a", "http://localhost:8081/b"),
+                Arrays.asList(1.0, 0.5));
+        Env[] targets = instance.getTargets(createServletRequest("/ctx"));
+        assertAll(
+                () -> assertEquals(2, instance.size()),
+                () -> assertEquals("http://localhost:8080/a", targets[0].getTargetUri()),
+                () -> assertEquals(8081, targets[1].getTargetHost().getPort()),
+                () -> assertEquals(0.5, instance.getSampleRate(1)),
+                // absolute targets do not depend on the request
+                () -> assertSame(targets, instance.getTargets(createServletRequest("/other")))
+        );
+    }
+
+    @Test
+    /*default*/ void testGetTargets_relative() {
+        TargetTable instance = new TargetTable(
+                Arrays.asList("/a.html", "http://localhost:8081/b"),
+                Collections.emptyList());
+        Env[] targets = instance.getTargets(createServletRequest("/ctx"));
+        assertAll(
+                () -> assertEquals("http://localhost:8080/ctx/a.html", targets[0].getTargetUri()),
+                () -> assertEquals("http://localhost:8081/b", targets[1].getTargetUri()),
+                () -> assertEquals(1.0, instance.getSampleRate(1)),
+                // resolved once for each uri prefix
+                () -> assertSame(targets, instance.getTargets(createServletRequest("/ctx"))),
+                () -> assertEquals("http://localhost:8080/other/a.html",
+                        instance.getTargets(createServletRequest("/other"))[0].getTargetUri())
+        );
+    }
+
+    @Test
+    /*default*/ void testGetTargets_uriPrefixes_bounded() {
+        TargetTable instance = new TargetTable(Collections.singletonList("/a.html"), Collections.emptyList());
+        for (int i = 0; i < TargetTable.MAX_URI_PREFIXES; i += 1) {
+            instance.getTargets("http://localhost:" + i);
+        }
+        // uri prefixes exceeding the cache are resolved for each request
+        Env[] targets = instance.getTargets("http://localhost:9999");
+        assertNotSame(targets, instance.getTargets("http://localhost:9999"));
+        assertSame(instance.getTargets("http://localhost:0"), instance.getTargets("http://localhost:0"));
+    }
+
+    @Test
+    /*default*/ void testInvalidTargetUri() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new TargetTable(Collections.singletonList("no-host"), Collections.emptyList()));
+    }
+
+    HttpServletRequest createServletRequest(String contextPath) {
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getScheme()).thenReturn("http");
+        when(servletRequest.getLocalName()).thenReturn("localhost");
+        when(servletRequest.getLocalPort()).thenReturn(8080);
+        when(servletRequest.getContextPath()).thenReturn(contextPath);
+        return servletRequest;
+    }
+}